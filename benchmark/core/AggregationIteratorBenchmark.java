@@ -0,0 +1,136 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.opentsdb.core.SeekableViewsForBenchmark.ArraySeekableView;
+
+/**
+ * Measures {@link AggregationIterator} merging N series, both from synthetic
+ * views (aggregation cost only) and from real spans (aggregation plus
+ * {@code Span.Iterator} and {@code RowSeq.Iterator} decoding).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregationIteratorBenchmark {
+
+  @Param({ "1", "10", "100" })
+  public int num_series;
+
+  @Param({ "sum", "avg", "max", "dev" })
+  public String aggregator;
+
+  @Param({ "true", "false" })
+  public boolean is_integer;
+
+  /** 0 means all series are aligned, otherwise values are interpolated. */
+  @Param({ "0", "1500" })
+  public long stagger_ms;
+
+  /** One hour of 10 second data per series. */
+  @Param({ "360" })
+  public int num_data_points;
+
+  private static final long SAMPLE_PERIOD_MS = 10000;
+
+  private ArraySeekableView[] views;
+  private SeekableView[] iterators;
+  private List<Span> spans;
+  private Aggregator agg;
+  private long end_time;
+  private TSDB tsdb;
+
+  @Setup
+  public void setup() {
+    agg = Aggregators.get(aggregator);
+    views = SeekableViewsForBenchmark.generators(num_series, SAMPLE_PERIOD_MS,
+        num_data_points, is_integer, stagger_ms);
+    iterators = new SeekableView[num_series];
+    end_time = SeekableViewsForBenchmark.START_TIME_MS +
+        (num_data_points * SAMPLE_PERIOD_MS) + (num_series * stagger_ms);
+
+    tsdb = SeekableViewsForBenchmark.newTSDB();
+    spans = new ArrayList<Span>(num_series);
+    for (int i = 0; i < num_series; i++) {
+      spans.add(SeekableViewsForBenchmark.span(tsdb, i,
+          SeekableViewsForBenchmark.START_TIME_MS + (i * stagger_ms),
+          SAMPLE_PERIOD_MS, num_data_points, is_integer));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    tsdb.getClient().shutdown();
+  }
+
+  @Benchmark
+  public void aggregateViews(final Blackhole black_hole,
+                             final PointCounters counters) {
+    for (int i = 0; i < views.length; i++) {
+      views[i].reset();
+      iterators[i] = views[i];
+    }
+    final AggregationIterator it = new AggregationIterator(iterators,
+        SeekableViewsForBenchmark.START_TIME_MS, end_time, agg,
+        Aggregators.Interpolation.LERP, false);
+    consume(it, black_hole, counters);
+    counters.points_in += num_series * num_data_points;
+  }
+
+  @Benchmark
+  public void aggregateSpans(final Blackhole black_hole,
+                             final PointCounters counters) {
+    final AggregationIterator it = AggregationIterator.create(spans,
+        SeekableViewsForBenchmark.START_TIME_MS, end_time, agg,
+        Aggregators.Interpolation.LERP, null, 0, false, null);
+    consume(it, black_hole, counters);
+    counters.points_in += num_series * num_data_points;
+  }
+
+  /** Drains the iterator the same way the serializers do. */
+  static void consume(final SeekableView it,
+                      final Blackhole black_hole,
+                      final PointCounters counters) {
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      black_hole.consume(dp.timestamp());
+      if (dp.isInteger()) {
+        black_hole.consume(dp.longValue());
+      } else {
+        black_hole.consume(dp.doubleValue());
+      }
+      counters.points_out++;
+    }
+  }
+}
@@ -0,0 +1,96 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.opentsdb.core.SeekableViewsForBenchmark.ArraySeekableView;
+
+/**
+ * Measures {@link Downsampler} and {@link FillingDownsampler} for every
+ * {@link FillPolicy} the downsamplers handle ({@code SCALAR} is only used by
+ * expressions). The query window is twice as long as the data so the filling
+ * downsamplers spend half their output on fill values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DownsamplerBenchmark {
+
+  @Param({ "NONE", "ZERO", "NOT_A_NUMBER", "NULL" })
+  public FillPolicy fill_policy;
+
+  @Param({ "sum", "avg", "max" })
+  public String aggregator;
+
+  @Param({ "1m", "1h" })
+  public String interval;
+
+  @Param({ "true", "false" })
+  public boolean is_integer;
+
+  /** One day of 10 second data. */
+  @Param({ "8640" })
+  public int num_data_points;
+
+  private static final long SAMPLE_PERIOD_MS = 10000;
+
+  private ArraySeekableView source;
+  private DownsamplingSpecification specification;
+  private long end_time;
+
+  @Setup
+  public void setup() {
+    source = SeekableViewsForBenchmark.generator(
+        SeekableViewsForBenchmark.START_TIME_MS, SAMPLE_PERIOD_MS,
+        num_data_points, is_integer, 0);
+    specification = new DownsamplingSpecification(interval + "-" +
+        aggregator + "-" + fill_policy.getName());
+    end_time = SeekableViewsForBenchmark.START_TIME_MS +
+        (2 * num_data_points * SAMPLE_PERIOD_MS);
+  }
+
+  @Benchmark
+  public void downsample(final Blackhole black_hole,
+                         final PointCounters counters) {
+    source.reset();
+    final Downsampler downsampler;
+    // same selection as Span.downsampler()
+    if (fill_policy == FillPolicy.NONE) {
+      downsampler = new Downsampler(source, specification,
+          SeekableViewsForBenchmark.START_TIME_MS, end_time);
+    } else {
+      downsampler = new FillingDownsampler(source,
+          SeekableViewsForBenchmark.START_TIME_MS, end_time, specification,
+          SeekableViewsForBenchmark.START_TIME_MS, end_time);
+    }
+    AggregationIteratorBenchmark.consume(downsampler, black_hole, counters);
+    counters.points_in += num_data_points;
+  }
+}
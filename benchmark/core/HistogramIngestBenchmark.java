@@ -0,0 +1,122 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures what the put RPCs do to each incoming simple histogram before
+ * storing it, validating it by decoding then re-encoding it, through the
+ * {@link SimpleHistogramDecoder} codec and through
+ * {@link SimpleHistogramBuffer}, and merging the histograms of a series.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistogramIngestBenchmark {
+
+  @Param({ "10", "100" })
+  public int num_histograms;
+
+  @Param({ "16", "100" })
+  public int num_buckets;
+
+  private static final int ID = 0;
+
+  private SimpleHistogramDecoder codec;
+  private byte[][] encoded;
+
+  @Setup
+  public void setup() {
+    codec = new SimpleHistogramDecoder();
+    codec.setId(ID);
+    final Random random = new Random(42);
+    encoded = new byte[num_histograms][];
+    for (int i = 0; i < num_histograms; i++) {
+      final SimpleHistogram histogram = new SimpleHistogram(ID);
+      for (int b = 0; b < num_buckets; b++) {
+        histogram.addBucket((float) b, (float) b + 1,
+            (long) random.nextInt(1000));
+      }
+      histogram.setUnderflow((long) random.nextInt(10));
+      histogram.setOverflow((long) random.nextInt(10));
+      encoded[i] = histogram.histogram(false);
+    }
+  }
+
+  @Benchmark
+  public void reencodeCodec(final Blackhole black_hole,
+                            final PointCounters counters) {
+    for (int i = 0; i < encoded.length; i++) {
+      final Histogram histogram = codec.decode(encoded[i], false);
+      black_hole.consume(codec.encode(histogram, true));
+    }
+    counters.points_in += num_histograms;
+    counters.points_out += num_histograms;
+  }
+
+  @Benchmark
+  public void reencodeBuffer(final Blackhole black_hole,
+                             final PointCounters counters) {
+    for (int i = 0; i < encoded.length; i++) {
+      black_hole.consume(SimpleHistogramBuffer.decode(ID, encoded[i], false)
+          .encode(true));
+    }
+    counters.points_in += num_histograms;
+    counters.points_out += num_histograms;
+  }
+
+  @Benchmark
+  public void mergeCodec(final Blackhole black_hole,
+                         final PointCounters counters) {
+    final SimpleHistogram merged = (SimpleHistogram)
+        codec.decode(encoded[0], false);
+    for (int i = 1; i < encoded.length; i++) {
+      merged.aggregate(codec.decode(encoded[i], false),
+          HistogramAggregation.SUM);
+    }
+    black_hole.consume(codec.encode(merged, true));
+    counters.points_in += num_histograms;
+    counters.points_out++;
+  }
+
+  @Benchmark
+  public void mergeBuffer(final Blackhole black_hole,
+                          final PointCounters counters) {
+    final SimpleHistogramBuffer merged =
+        SimpleHistogramBuffer.decode(ID, encoded[0], false);
+    for (int i = 1; i < encoded.length; i++) {
+      merged.merge(SimpleHistogramBuffer.decode(ID, encoded[i], false));
+    }
+    black_hole.consume(merged.encode(true));
+    counters.points_in += num_histograms;
+    counters.points_out++;
+  }
+}
@@ -0,0 +1,110 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures merging {@link SimpleHistogram}s as the histogram aggregation and
+ * downsampling code does for each timestamp, plus the encode and decode cost
+ * of the stored representation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistogramMergeBenchmark {
+
+  @Param({ "10", "100" })
+  public int num_histograms;
+
+  @Param({ "16", "128" })
+  public int num_buckets;
+
+  private static final int ID = 0;
+
+  private SimpleHistogram[] histograms;
+  private byte[][] encoded;
+
+  @Setup
+  public void setup() {
+    final Random random = new Random(42);
+    histograms = new SimpleHistogram[num_histograms];
+    encoded = new byte[num_histograms][];
+    for (int i = 0; i < num_histograms; i++) {
+      final SimpleHistogram histogram = new SimpleHistogram(ID);
+      for (int b = 0; b < num_buckets; b++) {
+        histogram.addBucket((float) b, (float) b + 1,
+            (long) random.nextInt(1000));
+      }
+      histogram.setUnderflow((long) random.nextInt(10));
+      histogram.setOverflow((long) random.nextInt(10));
+      histograms[i] = histogram;
+      encoded[i] = histogram.histogram(true);
+    }
+  }
+
+  @Benchmark
+  public void merge(final Blackhole black_hole,
+                    final PointCounters counters) {
+    final SimpleHistogram merged = new SimpleHistogram(ID);
+    for (int i = 0; i < histograms.length; i++) {
+      merged.aggregate(histograms[i], HistogramAggregation.SUM);
+    }
+    black_hole.consume(merged);
+    counters.points_in += num_histograms;
+    counters.points_out++;
+  }
+
+  @Benchmark
+  public void decodeAndMerge(final Blackhole black_hole,
+                             final PointCounters counters) {
+    final SimpleHistogram merged = new SimpleHistogram(ID);
+    for (int i = 0; i < encoded.length; i++) {
+      final SimpleHistogram decoded = new SimpleHistogram(ID);
+      decoded.fromHistogram(encoded[i], true);
+      merged.aggregate(decoded, HistogramAggregation.SUM);
+    }
+    black_hole.consume(merged.histogram(true));
+    counters.points_in += num_histograms;
+    counters.points_out++;
+  }
+
+  @Benchmark
+  public void mergeAndPercentile(final Blackhole black_hole,
+                                 final PointCounters counters) {
+    final SimpleHistogram merged = new SimpleHistogram(ID);
+    for (int i = 0; i < histograms.length; i++) {
+      merged.aggregate(histograms[i], HistogramAggregation.SUM);
+    }
+    black_hole.consume(merged.percentile(99.0));
+    counters.points_in += num_histograms;
+    counters.points_out++;
+  }
+}
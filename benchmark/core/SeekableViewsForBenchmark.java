@@ -0,0 +1,301 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+import net.opentsdb.utils.Config;
+
+/**
+ * Synthetic series generators for the read path benchmarks. Modeled on
+ * {@code SeekableViewsForTest} but every value is computed up front into
+ * primitive arrays so that a benchmark iteration only measures the consumer
+ * (aggregator, downsampler, etc) and not the generator. All data is derived
+ * from a fixed seed so runs are comparable.
+ */
+public final class SeekableViewsForBenchmark {
+
+  /** 2013-01-01T00:00:00Z, aligned on an hour so rows split cleanly. */
+  public static final long START_TIME_MS = 1356998400000L;
+
+  /** Seed for the random walks. */
+  private static final long SEED = 42L;
+
+  private static final byte[] FAMILY = { 't' };
+
+  private SeekableViewsForBenchmark() {
+    // static helpers only
+  }
+
+  /**
+   * Creates a resettable view over {@code num_data_points} values spaced
+   * {@code sample_period_ms} apart starting at {@code start_time_ms}.
+   * @param start_time_ms Starting timestamp in milliseconds.
+   * @param sample_period_ms Sample period in milliseconds.
+   * @param num_data_points Total number of data points to generate.
+   * @param is_integer True to generate integer values, false for doubles.
+   * @param series Index of the series, used to vary the random walk.
+   * @return A view that can be rewound with {@link ArraySeekableView#reset()}.
+   */
+  public static ArraySeekableView generator(final long start_time_ms,
+                                            final long sample_period_ms,
+                                            final int num_data_points,
+                                            final boolean is_integer,
+                                            final int series) {
+    final Random random = new Random(SEED + series);
+    final long[] timestamps = new long[num_data_points];
+    final long[] long_values = is_integer ? new long[num_data_points] : null;
+    final double[] double_values = is_integer ? null :
+      new double[num_data_points];
+    long value = 1000;
+    for (int i = 0; i < num_data_points; i++) {
+      timestamps[i] = start_time_ms + (i * sample_period_ms);
+      // monotonic so that counters can be fed to the rate code as well.
+      value += random.nextInt(100);
+      if (is_integer) {
+        long_values[i] = value;
+      } else {
+        double_values[i] = value + random.nextDouble();
+      }
+    }
+    return new ArraySeekableView(timestamps, long_values, double_values);
+  }
+
+  /**
+   * Creates {@code num_series} views where each series is offset from the
+   * previous one by {@code stagger_ms}. A non-zero stagger forces the
+   * aggregation iterator to interpolate.
+   * @param num_series How many series to generate.
+   * @param sample_period_ms Sample period in milliseconds.
+   * @param num_data_points Data points per series.
+   * @param is_integer True to generate integer values, false for doubles.
+   * @param stagger_ms Offset between series timestamps in milliseconds.
+   * @return An array of resettable views.
+   */
+  public static ArraySeekableView[] generators(final int num_series,
+                                               final long sample_period_ms,
+                                               final int num_data_points,
+                                               final boolean is_integer,
+                                               final long stagger_ms) {
+    final ArraySeekableView[] views = new ArraySeekableView[num_series];
+    for (int i = 0; i < num_series; i++) {
+      views[i] = generator(START_TIME_MS + (i * stagger_ms), sample_period_ms,
+          num_data_points, is_integer, i);
+    }
+    return views;
+  }
+
+  /**
+   * Builds a span out of compacted rows, one row per hour, exactly as the
+   * scanners would hand it to the query code.
+   * @param tsdb A TSDB used for UID widths.
+   * @param tsuid_suffix A value used to make the tag value UID unique.
+   * @param start_time_ms Starting timestamp in milliseconds.
+   * @param sample_period_ms Sample period in milliseconds. If either time is
+   * not a multiple of a second then millisecond qualifiers are written.
+   * @param num_data_points Total number of data points in the span.
+   * @param is_integer True to store 8 byte integers, false for doubles.
+   * @return A populated span.
+   */
+  public static Span span(final TSDB tsdb,
+                          final int tsuid_suffix,
+                          final long start_time_ms,
+                          final long sample_period_ms,
+                          final int num_data_points,
+                          final boolean is_integer) {
+    final Span span = new Span(tsdb);
+    for (final KeyValue row : rows(tsdb, tsuid_suffix, start_time_ms,
+        sample_period_ms, num_data_points, is_integer)) {
+      span.addRow(row);
+    }
+    return span;
+  }
+
+  /**
+   * Builds the compacted rows for a single series.
+   * @param tsdb A TSDB used for UID widths.
+   * @param tsuid_suffix A value used to make the tag value UID unique.
+   * @param start_time_ms Starting timestamp in milliseconds.
+   * @param sample_period_ms Sample period in milliseconds.
+   * @param num_data_points Total number of data points across all rows.
+   * @param is_integer True to store 8 byte integers, false for doubles.
+   * @return A list of compacted rows in time order.
+   */
+  public static List<KeyValue> rows(final TSDB tsdb,
+                                    final int tsuid_suffix,
+                                    final long start_time_ms,
+                                    final long sample_period_ms,
+                                    final int num_data_points,
+                                    final boolean is_integer) {
+    final ArraySeekableView source = generator(start_time_ms,
+        sample_period_ms, num_data_points, is_integer, tsuid_suffix);
+    final boolean ms = start_time_ms % 1000 != 0 ||
+        sample_period_ms % 1000 != 0;
+    final short flags = is_integer ? (short) 0x7 :
+      (short) (Const.FLAG_FLOAT | 0x7);
+    final List<KeyValue> rows = new ArrayList<KeyValue>();
+
+    long base_time = -1;
+    byte[] qualifiers = null;
+    byte[] values = null;
+    int q_idx = 0;
+    int v_idx = 0;
+    while (source.hasNext()) {
+      final DataPoint dp = source.next();
+      final long ts = ms ? dp.timestamp() : dp.timestamp() / 1000;
+      final long row_base = (dp.timestamp() / 1000) -
+          ((dp.timestamp() / 1000) % Const.MAX_TIMESPAN);
+      if (row_base != base_time) {
+        if (qualifiers != null) {
+          rows.add(row(tsdb, base_time, tsuid_suffix, qualifiers, q_idx,
+              values, v_idx));
+        }
+        base_time = row_base;
+        qualifiers = new byte[(ms ? 4 : 2) * num_data_points];
+        values = new byte[8 * num_data_points];
+        q_idx = 0;
+        v_idx = 0;
+      }
+      final byte[] qualifier = Internal.buildQualifier(ts, flags);
+      System.arraycopy(qualifier, 0, qualifiers, q_idx, qualifier.length);
+      q_idx += qualifier.length;
+      final byte[] value = is_integer ? Bytes.fromLong(dp.longValue()) :
+        Bytes.fromLong(Double.doubleToRawLongBits(dp.doubleValue()));
+      System.arraycopy(value, 0, values, v_idx, value.length);
+      v_idx += value.length;
+    }
+    if (qualifiers != null) {
+      rows.add(row(tsdb, base_time, tsuid_suffix, qualifiers, q_idx,
+          values, v_idx));
+    }
+    return rows;
+  }
+
+  /**
+   * Creates a TSDB that never talks to storage. Compactions and the meta
+   * tracking are disabled.
+   * @return A TSDB suitable for building spans.
+   */
+  public static TSDB newTSDB() {
+    try {
+      final Config config = new Config(false);
+      config.overrideConfig("tsd.storage.enable_compaction", "false");
+      return new TSDB(config);
+    } catch (Exception e) {
+      throw new RuntimeException("Failed to instantiate the TSDB", e);
+    }
+  }
+
+  /** Assembles a compacted row with the trailing meta byte. */
+  private static KeyValue row(final TSDB tsdb,
+                              final long base_time,
+                              final int tsuid_suffix,
+                              final byte[] qualifiers,
+                              final int q_len,
+                              final byte[] values,
+                              final int v_len) {
+    final short metric_width = TSDB.metrics_width();
+    final short tagk_width = TSDB.tagk_width();
+    final short tagv_width = TSDB.tagv_width();
+    final byte[] key = new byte[Const.SALT_WIDTH() + metric_width +
+                                Const.TIMESTAMP_BYTES + tagk_width +
+                                tagv_width];
+    int pos = Const.SALT_WIDTH();
+    key[pos + metric_width - 1] = 1;
+    pos += metric_width;
+    Bytes.setInt(key, (int) base_time, pos);
+    pos += Const.TIMESTAMP_BYTES;
+    key[pos + tagk_width - 1] = 1;
+    pos += tagk_width;
+    final byte[] tagv = Bytes.fromInt(tsuid_suffix + 1);
+    System.arraycopy(tagv, 4 - tagv_width, key, pos, tagv_width);
+
+    final byte[] qualifier = new byte[q_len];
+    System.arraycopy(qualifiers, 0, qualifier, 0, q_len);
+    final byte[] value = new byte[v_len + 1];
+    System.arraycopy(values, 0, value, 0, v_len);
+    return new KeyValue(key, FAMILY, qualifier, value);
+  }
+
+  /**
+   * Iterates pre-computed primitive arrays. Hands out a single mutable data
+   * point like the real iterators do.
+   */
+  public static final class ArraySeekableView implements SeekableView {
+    private final long[] timestamps;
+    private final long[] long_values;
+    private final double[] double_values;
+    private final MutableDataPoint dp = new MutableDataPoint();
+    private int index;
+
+    ArraySeekableView(final long[] timestamps,
+                      final long[] long_values,
+                      final double[] double_values) {
+      this.timestamps = timestamps;
+      this.long_values = long_values;
+      this.double_values = double_values;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return index < timestamps.length;
+    }
+
+    @Override
+    public DataPoint next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("no more values");
+      }
+      if (long_values != null) {
+        dp.reset(timestamps[index], long_values[index]);
+      } else {
+        dp.reset(timestamps[index], double_values[index]);
+      }
+      index++;
+      return dp;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void seek(final long timestamp) {
+      while (index < timestamps.length && timestamps[index] < timestamp) {
+        index++;
+      }
+    }
+
+    /** Rewinds the view to the first data point. */
+    public void reset() {
+      index = 0;
+    }
+
+    /** @return The number of data points in the view. */
+    public int size() {
+      return timestamps.length;
+    }
+
+    /** @return The last timestamp in the view. */
+    public long lastTimestamp() {
+      return timestamps[timestamps.length - 1];
+    }
+  }
+}
@@ -0,0 +1,128 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hbase.async.KeyValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures decoding compacted rows through {@code RowSeq.Iterator} and
+ * walking a day of rows through {@code Span.Iterator}, including the cost of
+ * building the span from scanner results, as well as decoding the same span
+ * into {@link DataPointBatch}es.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpanBenchmark {
+
+  @Param({ "true", "false" })
+  public boolean is_integer;
+
+  /** 10 second data in second qualifiers, 500ms data in ms qualifiers. */
+  @Param({ "10000", "500" })
+  public long sample_period_ms;
+
+  /** Data points in the span. */
+  @Param({ "8640" })
+  public int num_data_points;
+
+  private TSDB tsdb;
+  private List<KeyValue> rows;
+  private Span span;
+  private RowSeq row_seq;
+
+  @Setup
+  public void setup() {
+    tsdb = SeekableViewsForBenchmark.newTSDB();
+    rows = SeekableViewsForBenchmark.rows(tsdb, 0,
+        SeekableViewsForBenchmark.START_TIME_MS, sample_period_ms,
+        num_data_points, is_integer);
+    span = new Span(tsdb);
+    for (final KeyValue row : rows) {
+      span.addRow(row);
+    }
+    row_seq = new RowSeq(tsdb);
+    row_seq.setRow(rows.get(0));
+  }
+
+  @TearDown
+  public void tearDown() {
+    tsdb.getClient().shutdown();
+  }
+
+  @Benchmark
+  public void rowSeqIterator(final Blackhole black_hole,
+                             final PointCounters counters) {
+    AggregationIteratorBenchmark.consume(row_seq.internalIterator(),
+        black_hole, counters);
+    counters.points_in += row_seq.size();
+  }
+
+  @Benchmark
+  public void spanIterator(final Blackhole black_hole,
+                           final PointCounters counters) {
+    AggregationIteratorBenchmark.consume(span.spanIterator(), black_hole,
+        counters);
+    counters.points_in += num_data_points;
+  }
+
+  @Benchmark
+  public void spanBatches(final Blackhole black_hole,
+                          final PointCounters counters) {
+    final SeekableView it = span.spanIterator();
+    final DataPointBatch batch = new DataPointBatch();
+    while (batch.fill(it) > 0) {
+      for (int i = 0; i < batch.size(); i++) {
+        black_hole.consume(batch.timestamp(i));
+        if (batch.isInteger(i)) {
+          black_hole.consume(batch.longValue(i));
+        } else {
+          black_hole.consume(batch.doubleValue(i));
+        }
+        counters.points_out++;
+      }
+    }
+    counters.points_in += num_data_points;
+  }
+
+  @Benchmark
+  public void buildAndIterateSpan(final Blackhole black_hole,
+                                  final PointCounters counters) {
+    final Span fresh = new Span(tsdb);
+    for (final KeyValue row : rows) {
+      fresh.addRow(row);
+    }
+    AggregationIteratorBenchmark.consume(fresh.spanIterator(), black_hole,
+        counters);
+    counters.points_in += num_data_points;
+  }
+}
@@ -0,0 +1,149 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.utils.JSON;
+
+/**
+ * Compares the JSON and binary encodings on the two hot paths of the HTTP
+ * API: parsing a batch of data points sent to {@code /api/put} and writing
+ * the data points of a query result, the way the serializers do it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final long START_TIME = 1356998400L;
+
+  /** Data points per put body and per query result */
+  @Param({ "1000", "50000" })
+  public int num_data_points;
+
+  @Param({ "true", "false" })
+  public boolean is_integer;
+
+  private byte[] json_put;
+  private byte[] binary_put;
+  private long[] timestamps;
+  private long[] longs;
+  private double[] doubles;
+
+  @Setup
+  public void setup() {
+    final List<IncomingDataPoint> dps =
+        new ArrayList<IncomingDataPoint>(num_data_points);
+    timestamps = new long[num_data_points];
+    longs = new long[num_data_points];
+    doubles = new double[num_data_points];
+    for (int i = 0; i < num_data_points; i++) {
+      final HashMap<String, String> tags = new HashMap<String, String>(2);
+      tags.put("host", "web" + (i % 100));
+      tags.put("dc", "dc" + (i % 4));
+      timestamps[i] = (START_TIME + i * 10) * 1000;
+      longs[i] = i * 37;
+      doubles[i] = i * 0.37;
+      dps.add(new IncomingDataPoint("sys.cpu.user." + (i % 10),
+          START_TIME + i / 100, is_integer ? Long.toString(longs[i])
+              : Double.toString(doubles[i]), tags));
+    }
+    json_put = JSON.serializeToBytes(dps);
+    final ChannelBuffer binary = BinaryWireFormat.encodePutV1(dps);
+    binary_put = new byte[binary.readableBytes()];
+    binary.readBytes(binary_put);
+  }
+
+  @Benchmark
+  public List<IncomingDataPoint> parsePutJson() {
+    // the JSON serializer decodes the content to a string first
+    return JSON.parseToObject(new String(json_put, UTF8),
+        HttpJsonSerializer.TR_INCOMING);
+  }
+
+  @Benchmark
+  public List<IncomingDataPoint> parsePutBinary() {
+    return BinaryWireFormat.decodePutV1(
+        ChannelBuffers.wrappedBuffer(binary_put));
+  }
+
+  @Benchmark
+  public ChannelBuffer writeQueryJson() throws IOException {
+    final ChannelBuffer response = ChannelBuffers.dynamicBuffer();
+    final OutputStream output = new ChannelBufferOutputStream(response);
+    final JsonGenerator json = JSON.getFactory().createGenerator(output);
+    json.writeStartObject();
+    for (int i = 0; i < num_data_points; i++) {
+      final String timestamp = Long.toString(timestamps[i] / 1000);
+      if (is_integer) {
+        json.writeNumberField(timestamp, longs[i]);
+      } else {
+        json.writeNumberField(timestamp, doubles[i]);
+      }
+    }
+    json.writeEndObject();
+    json.close();
+    return response;
+  }
+
+  @Benchmark
+  public ChannelBuffer writeQueryBinary() {
+    final ChannelBuffer response = ChannelBuffers.dynamicBuffer();
+    final BinaryWireFormat.Writer writer =
+        new BinaryWireFormat.Writer(response);
+    writer.writeVarint(num_data_points);
+    long last_timestamp = 0;
+    for (int i = 0; i < num_data_points; i++) {
+      final long timestamp = timestamps[i] / 1000;
+      writer.writeSignedVarint(timestamp - last_timestamp);
+      last_timestamp = timestamp;
+      if (is_integer) {
+        writer.writeByte(BinaryWireFormat.TYPE_LONG);
+        writer.writeSignedVarint(longs[i]);
+      } else {
+        writer.writeByte(BinaryWireFormat.TYPE_DOUBLE);
+        writer.writeDouble(doubles[i]);
+      }
+    }
+    writer.writeVarint(0);
+    return response;
+  }
+}
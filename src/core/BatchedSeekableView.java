@@ -0,0 +1,36 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+/**
+ * A {@link SeekableView} that can decode its data points straight into a
+ * {@link DataPointBatch}, a block at a time, instead of handing them out
+ * through a {@link DataPoint} view one at a time.
+ * <p>
+ * The two ways of iterating can be mixed: after {@link #nextBatch} the view
+ * is positioned as if {@link #next} had been called for each data point
+ * appended to the batch.
+ * @since 2.4
+ */
+public interface BatchedSeekableView extends SeekableView {
+
+  /**
+   * Appends the next data points to a batch, until the batch is full or the
+   * view is exhausted, recording the value count of each data point.
+   * @param batch The batch to append to.
+   * @return The number of data points appended, 0 if the view was exhausted
+   * or the batch already full.
+   */
+  int nextBatch(DataPointBatch batch);
+
+}
@@ -0,0 +1,461 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.hbase.async.Bytes.ByteMap;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.meta.Annotation;
+
+/**
+ * An immutable copy of the results of a query for one series, with the names
+ * already resolved and the data points stored in primitive arrays, as kept by
+ * the {@link QueryResultCache}. Copies of adjacent time ranges of a series
+ * can be sliced and stitched back together.
+ * @since 2.4
+ */
+final class CachedDataPoints implements DataPoints {
+
+  private final String metric;
+  private final Map<String, String> tags;
+  private final List<String> aggregated_tags;
+  private final byte[] metric_uid;
+  private final ByteMap<byte[]> tag_uids;
+  private final List<byte[]> aggregated_tag_uids;
+  private final List<String> tsuids;
+  private final List<Annotation> annotations;
+  private final int query_index;
+
+  /** Timestamps in milliseconds. */
+  private final long[] timestamps;
+  /** Integer values, or the bits of the floating point values. */
+  private final long[] values;
+  /** Whether each value is an integer, or a floating point value. */
+  private final boolean[] integers;
+  /** The number of raw data points behind the data points. */
+  private final int aggregated_size;
+
+  private CachedDataPoints(final CachedDataPoints meta,
+      final List<String> tsuids, final List<Annotation> annotations,
+      final long[] timestamps, final long[] values, final boolean[] integers,
+      final int aggregated_size) {
+    this(meta.metric, meta.tags, meta.aggregated_tags, meta.metric_uid,
+        meta.tag_uids, meta.aggregated_tag_uids, tsuids, annotations,
+        meta.query_index, timestamps, values, integers, aggregated_size);
+  }
+
+  private CachedDataPoints(final String metric,
+      final Map<String, String> tags, final List<String> aggregated_tags,
+      final byte[] metric_uid, final ByteMap<byte[]> tag_uids,
+      final List<byte[]> aggregated_tag_uids, final List<String> tsuids,
+      final List<Annotation> annotations, final int query_index,
+      final long[] timestamps, final long[] values, final boolean[] integers,
+      final int aggregated_size) {
+    this.metric = metric;
+    this.tags = tags;
+    this.aggregated_tags = aggregated_tags;
+    this.metric_uid = metric_uid;
+    this.tag_uids = tag_uids;
+    this.aggregated_tag_uids = aggregated_tag_uids;
+    this.tsuids = tsuids;
+    this.annotations = annotations;
+    this.query_index = query_index;
+    this.timestamps = timestamps;
+    this.values = values;
+    this.integers = integers;
+    this.aggregated_size = aggregated_size;
+  }
+
+  /**
+   * Copies the results of a query for a series, resolving its names first.
+   * This runs the aggregation of the series.
+   * @param dps The results to copy.
+   * @param from The first timestamp to copy in milliseconds, inclusive.
+   * @param to The last timestamp to copy in milliseconds, exclusive.
+   * @return A deferred resolving to the copy.
+   */
+  static Deferred<CachedDataPoints> copy(final DataPoints dps,
+      final long from, final long to) {
+    final String[] metric = new String[1];
+    final List<Map<String, String>> tags =
+        new ArrayList<Map<String, String>>(1);
+
+    class CopyCB implements Callback<CachedDataPoints, List<String>> {
+      @Override
+      public CachedDataPoints call(final List<String> aggregated_tags) {
+        return copy(dps, from, to, metric[0], tags.get(0), aggregated_tags);
+      }
+      @Override
+      public String toString() {
+        return "Copy cached data points callback";
+      }
+    }
+
+    class TagsCB implements Callback<Deferred<CachedDataPoints>,
+        Map<String, String>> {
+      @Override
+      public Deferred<CachedDataPoints> call(final Map<String, String> names) {
+        tags.add(names);
+        return dps.getAggregatedTagsAsync().addCallback(new CopyCB());
+      }
+      @Override
+      public String toString() {
+        return "Cached data points tags callback";
+      }
+    }
+
+    class MetricCB implements Callback<Deferred<CachedDataPoints>, String> {
+      @Override
+      public Deferred<CachedDataPoints> call(final String name) {
+        metric[0] = name;
+        return dps.getTagsAsync().addCallbackDeferring(new TagsCB());
+      }
+      @Override
+      public String toString() {
+        return "Cached data points metric callback";
+      }
+    }
+
+    return dps.metricNameAsync().addCallbackDeferring(new MetricCB());
+  }
+
+  /**
+   * Copies the data points of a series once its names are resolved.
+   * @param dps The results to copy.
+   * @param from The first timestamp to copy in milliseconds, inclusive.
+   * @param to The last timestamp to copy in milliseconds, exclusive.
+   * @param metric The metric name.
+   * @param tags The tag names.
+   * @param aggregated_tags The aggregated tag names.
+   * @return The copy.
+   */
+  static CachedDataPoints copy(final DataPoints dps, final long from,
+      final long to, final String metric, final Map<String, String> tags,
+      final List<String> aggregated_tags) {
+    long[] timestamps = new long[64];
+    long[] values = new long[64];
+    boolean[] integers = new boolean[64];
+    int size = 0;
+    final SeekableView it = dps.iterator();
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      if (dp.timestamp() < from || dp.timestamp() >= to) {
+        continue;
+      }
+      if (size == timestamps.length) {
+        timestamps = Arrays.copyOf(timestamps, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+        integers = Arrays.copyOf(integers, size * 2);
+      }
+      timestamps[size] = dp.timestamp();
+      integers[size] = dp.isInteger();
+      values[size] = dp.isInteger() ? dp.longValue()
+          : Double.doubleToRawLongBits(dp.doubleValue());
+      size++;
+    }
+    final List<String> tsuids = dps.getTSUIDs();
+    final List<Annotation> annotations = dps.getAnnotations();
+    return new CachedDataPoints(metric, tags, aggregated_tags,
+        dps.metricUID(), dps.getTagUids(), dps.getAggregatedTagUids(),
+        tsuids == null ? Collections.<String>emptyList() : tsuids,
+        annotations == null ? Collections.<Annotation>emptyList() : annotations,
+        dps.getQueryIndex(), Arrays.copyOf(timestamps, size),
+        Arrays.copyOf(values, size), Arrays.copyOf(integers, size),
+        dps.aggregatedSize());
+  }
+
+  /**
+   * Stitches copies of adjacent time ranges of the same series together.
+   * @param parts The copies, in time order.
+   * @return A series with all the data points, annotations and TSUIDs.
+   */
+  static CachedDataPoints concat(final List<CachedDataPoints> parts) {
+    if (parts.size() == 1) {
+      return parts.get(0);
+    }
+    int size = 0;
+    int aggregated_size = 0;
+    final LinkedHashSet<String> tsuids = new LinkedHashSet<String>();
+    final List<Annotation> annotations = new ArrayList<Annotation>();
+    for (final CachedDataPoints part : parts) {
+      size += part.size();
+      aggregated_size += part.aggregated_size;
+      tsuids.addAll(part.tsuids);
+      annotations.addAll(part.annotations);
+    }
+    final long[] timestamps = new long[size];
+    final long[] values = new long[size];
+    final boolean[] integers = new boolean[size];
+    int offset = 0;
+    for (final CachedDataPoints part : parts) {
+      System.arraycopy(part.timestamps, 0, timestamps, offset, part.size());
+      System.arraycopy(part.values, 0, values, offset, part.size());
+      System.arraycopy(part.integers, 0, integers, offset, part.size());
+      offset += part.size();
+    }
+    return new CachedDataPoints(parts.get(0),
+        new ArrayList<String>(tsuids), annotations, timestamps, values,
+        integers, aggregated_size);
+  }
+
+  /**
+   * Returns the part of the series in a time range.
+   * @param start The start of the range in milliseconds, inclusive.
+   * @param end The end of the range in milliseconds, exclusive.
+   * @return The series with the data points and annotations in the range, or
+   * null if there aren't any. The aggregated size is the number of data
+   * points since the raw ones can't be told apart anymore.
+   */
+  CachedDataPoints slice(final long start, final long end) {
+    final int from = lowerBound(start);
+    final int to = lowerBound(end);
+    List<Annotation> sliced = Collections.<Annotation>emptyList();
+    for (final Annotation annotation : annotations) {
+      final long timestamp = annotation.getStartTime() * 1000;
+      if (timestamp >= start && timestamp < end) {
+        if (sliced.isEmpty()) {
+          sliced = new ArrayList<Annotation>();
+        }
+        sliced.add(annotation);
+      }
+    }
+    if (from == to && sliced.isEmpty()) {
+      return null;
+    }
+    return new CachedDataPoints(this, tsuids, sliced,
+        Arrays.copyOfRange(timestamps, from, to),
+        Arrays.copyOfRange(values, from, to),
+        Arrays.copyOfRange(integers, from, to), to - from);
+  }
+
+  /** @return The index of the first data point at or after the timestamp */
+  private int lowerBound(final long timestamp) {
+    final int index = Arrays.binarySearch(timestamps, timestamp);
+    return index < 0 ? -index - 1 : index;
+  }
+
+  /**
+   * @return A key identifying the series among the results of a sub query,
+   * made of its metric, tags and aggregated tags.
+   */
+  String seriesKey() {
+    final StringBuilder buf = new StringBuilder(
+        RowKeyTemplateCache.seriesKey(metric, tags));
+    for (final String tagk : aggregated_tags) {
+      buf.append('|').append(tagk);
+    }
+    return buf.toString();
+  }
+
+  /** @return An estimate of the memory used by the copy, in data points */
+  int weight() {
+    return timestamps.length + 1;
+  }
+
+  @Override
+  public String metricName() {
+    return metric;
+  }
+
+  @Override
+  public Deferred<String> metricNameAsync() {
+    return Deferred.fromResult(metric);
+  }
+
+  @Override
+  public byte[] metricUID() {
+    return metric_uid;
+  }
+
+  @Override
+  public Map<String, String> getTags() {
+    return tags;
+  }
+
+  @Override
+  public Deferred<Map<String, String>> getTagsAsync() {
+    return Deferred.fromResult(tags);
+  }
+
+  @Override
+  public ByteMap<byte[]> getTagUids() {
+    return tag_uids;
+  }
+
+  @Override
+  public List<String> getAggregatedTags() {
+    return aggregated_tags;
+  }
+
+  @Override
+  public Deferred<List<String>> getAggregatedTagsAsync() {
+    return Deferred.fromResult(aggregated_tags);
+  }
+
+  @Override
+  public List<byte[]> getAggregatedTagUids() {
+    return aggregated_tag_uids;
+  }
+
+  @Override
+  public List<String> getTSUIDs() {
+    return tsuids;
+  }
+
+  @Override
+  public List<Annotation> getAnnotations() {
+    return annotations;
+  }
+
+  @Override
+  public int size() {
+    return timestamps.length;
+  }
+
+  @Override
+  public int aggregatedSize() {
+    return aggregated_size;
+  }
+
+  @Override
+  public SeekableView iterator() {
+    return new CachedIterator();
+  }
+
+  @Override
+  public long timestamp(final int i) {
+    return timestamps[i];
+  }
+
+  @Override
+  public boolean isInteger(final int i) {
+    return integers[i];
+  }
+
+  @Override
+  public long longValue(final int i) {
+    if (!integers[i]) {
+      throw new ClassCastException("value #" + i + " is not a long in " + this);
+    }
+    return values[i];
+  }
+
+  @Override
+  public double doubleValue(final int i) {
+    if (integers[i]) {
+      throw new ClassCastException("value #" + i + " is not a float in "
+          + this);
+    }
+    return Double.longBitsToDouble(values[i]);
+  }
+
+  @Override
+  public int getQueryIndex() {
+    return query_index;
+  }
+
+  @Override
+  public boolean isPercentile() {
+    return false;
+  }
+
+  @Override
+  public float getPercentile() {
+    throw new UnsupportedOperationException("getPercentile not supported");
+  }
+
+  @Override
+  public String toString() {
+    return "CachedDataPoints(metric=" + metric + ", tags=" + tags
+        + ", aggregated_tags=" + aggregated_tags + ", size="
+        + timestamps.length + ", query_index=" + query_index + ')';
+  }
+
+  /** Iterates over the copied data points, the iterator being the cursor. */
+  private final class CachedIterator implements SeekableView, DataPoint {
+
+    /** Index of the data point at the cursor, -1 before the first one. */
+    private int index = -1;
+
+    @Override
+    public boolean hasNext() {
+      return index < timestamps.length - 1;
+    }
+
+    @Override
+    public DataPoint next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("no more elements in " + this);
+      }
+      index++;
+      return this;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void seek(final long timestamp) {
+      index = lowerBound(timestamp) - 1;
+    }
+
+    @Override
+    public long timestamp() {
+      return timestamps[index];
+    }
+
+    @Override
+    public boolean isInteger() {
+      return integers[index];
+    }
+
+    @Override
+    public long longValue() {
+      return CachedDataPoints.this.longValue(index);
+    }
+
+    @Override
+    public double doubleValue() {
+      return CachedDataPoints.this.doubleValue(index);
+    }
+
+    @Override
+    public double toDouble() {
+      return integers[index] ? values[index]
+          : Double.longBitsToDouble(values[index]);
+    }
+
+    @Override
+    public long valueCount() {
+      return 1;
+    }
+
+    @Override
+    public String toString() {
+      return "CachedIterator(index=" + index + ", dps="
+          + CachedDataPoints.this + ')';
+    }
+  }
+}
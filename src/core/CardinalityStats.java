@@ -0,0 +1,167 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Estimates the number of series of each metric and the number of values of
+ * each of their tag keys from the data points written through this TSD, for
+ * {@link QueryPlanner} to cost the ways of fetching a query.
+ * <p>
+ * The estimates are HyperLogLog sketches so they never forget a series: they
+ * count every series written since the metric was first seen, or since it
+ * was last evicted when more than the maximum number of metrics are written.
+ * Series only written through other TSDs are not counted.
+ * @since 2.4
+ */
+final class CardinalityStats {
+
+  /** The precision of the series sketches, about 3% off in 1KB */
+  static final int SERIES_PRECISION = 10;
+
+  /** The precision of the tag value sketches, about 6% off in 256 bytes */
+  static final int TAG_VALUE_PRECISION = 8;
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  /** The sketches of the metrics, keyed on the metric UIDs */
+  private final Cache<String, MetricSketches> metrics;
+
+  /**
+   * Default ctor.
+   * @param max_metrics The maximum number of metrics to keep sketches for,
+   * the least recently written are evicted first.
+   * @throws IllegalArgumentException if the maximum is less than 1
+   */
+  CardinalityStats(final int max_metrics) {
+    if (max_metrics < 1) {
+      throw new IllegalArgumentException("The maximum number of metrics "
+          + "must be at least 1: " + max_metrics);
+    }
+    metrics = CacheBuilder.newBuilder()
+        .maximumSize(max_metrics)
+        .build();
+  }
+
+  /**
+   * Records the series of a data point.
+   * @param row The row key of the data point with the salt set or not.
+   */
+  void add(final byte[] row) {
+    final int metric_offset = Const.SALT_WIDTH();
+    final int metric_width = TSDB.metrics_width();
+    final int tags_offset = metric_offset + metric_width
+        + Const.TIMESTAMP_BYTES;
+    final String key = new String(row, metric_offset, metric_width,
+        Const.ASCII_CHARSET);
+
+    MetricSketches sketches = metrics.getIfPresent(key);
+    if (sketches == null) {
+      sketches = new MetricSketches();
+      final MetricSketches existing =
+          metrics.asMap().putIfAbsent(key, sketches);
+      if (existing != null) {
+        sketches = existing;
+      }
+    }
+
+    sketches.series.offer(HASH.newHasher()
+        .putBytes(row, metric_offset, metric_width)
+        .putBytes(row, tags_offset, row.length - tags_offset)
+        .hash().asLong());
+
+    final int tagk_width = TSDB.tagk_width();
+    final int tagv_width = TSDB.tagv_width();
+    for (int i = tags_offset; i + tagk_width + tagv_width <= row.length;
+        i += tagk_width + tagv_width) {
+      final String tagk = new String(row, i, tagk_width, Const.ASCII_CHARSET);
+      HyperLogLog tag_values = sketches.tag_values.get(tagk);
+      if (tag_values == null) {
+        tag_values = new HyperLogLog(TAG_VALUE_PRECISION);
+        final HyperLogLog existing =
+            sketches.tag_values.putIfAbsent(tagk, tag_values);
+        if (existing != null) {
+          tag_values = existing;
+        }
+      }
+      tag_values.offer(HASH.hashBytes(row, i + tagk_width, tagv_width)
+          .asLong());
+    }
+  }
+
+  /**
+   * @param metric The metric UID.
+   * @return The estimated number of series of the metric or 0 if none were
+   * written through this TSD.
+   */
+  long estimateSeries(final byte[] metric) {
+    final MetricSketches sketches = metrics.getIfPresent(
+        new String(metric, Const.ASCII_CHARSET));
+    return sketches == null ? 0 : sketches.series.estimate();
+  }
+
+  /**
+   * @param metric The metric UID.
+   * @param tagk The tag key UID.
+   * @return The estimated number of values of the tag key for the metric or
+   * 0 if none were written through this TSD.
+   */
+  long estimateTagValues(final byte[] metric, final byte[] tagk) {
+    final MetricSketches sketches = metrics.getIfPresent(
+        new String(metric, Const.ASCII_CHARSET));
+    if (sketches == null) {
+      return 0;
+    }
+    final HyperLogLog tag_values = sketches.tag_values.get(
+        new String(tagk, Const.ASCII_CHARSET));
+    return tag_values == null ? 0 : tag_values.estimate();
+  }
+
+  /** @return The number of metrics with sketches. */
+  long numMetrics() {
+    return metrics.size();
+  }
+
+  /**
+   * Records the size of the sketches.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    long bytes = 0;
+    for (final MetricSketches sketches : metrics.asMap().values()) {
+      bytes += sketches.series.bytes();
+      for (final HyperLogLog tag_values : sketches.tag_values.values()) {
+        bytes += tag_values.bytes();
+      }
+    }
+    collector.record("query.planner.metrics", metrics.size());
+    collector.record("query.planner.bytes", bytes);
+  }
+
+  /** The sketches of one metric */
+  private static final class MetricSketches {
+    final HyperLogLog series = new HyperLogLog(SERIES_PRECISION);
+    /** The tag value sketches keyed on the tag key UIDs */
+    final ConcurrentMap<String, HyperLogLog> tag_values =
+        new ConcurrentHashMap<String, HyperLogLog>();
+  }
+}
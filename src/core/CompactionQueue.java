@@ -14,11 +14,12 @@ package net.opentsdb.core;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -46,6 +47,16 @@ import net.opentsdb.utils.Pair;
  * compact.  A row is considered "old" if the timestamp in the row key is
  * older than a certain threshold.
  * <p>
+ * The queue is split into {@code tsd.storage.compaction.shards} shards so
+ * that writers don't all contend on the same skip list.  Rows are assigned to
+ * a shard by salt bucket when salting is enabled, otherwise by a hash of the
+ * metric and tags, so all the rows of a series land in the same shard.  Each
+ * shard has its own compaction thread and gets an equal slice of the flush
+ * thresholds and of {@code tsd.storage.compaction.max_queue_size}.
+ * Within a shard, rows are grouped by base time so the compaction thread
+ * only ever looks at hours that are old enough to compact, and it paces
+ * itself to work through each hour evenly rather than in one burst.
+ * <p>
  * The compaction process consists in reading all the cells within a given row
  * and writing them back out as a single big cell.  Once that writes succeeds,
  * we delete all the individual little cells.
@@ -54,16 +65,10 @@ import net.opentsdb.utils.Pair;
  * every single cell.  And because there is no way to efficiently append bytes
  * at the end of a cell, we have to do this instead.
  */
-final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
+final class CompactionQueue {
 
   private static final Logger LOG = LoggerFactory.getLogger(CompactionQueue.class);
 
-  /**
-   * How many items are currently in the queue.
-   * Because {@link ConcurrentSkipListMap#size} has O(N) complexity.
-   */
-  private final AtomicInteger size = new AtomicInteger();
-
   private final AtomicLong duplicates_different = new AtomicLong();
   private final AtomicLong duplicates_same = new AtomicLong();
   private final AtomicLong compaction_count = new AtomicLong();
@@ -79,42 +84,67 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   /** How frequently the compaction thread wakes up to flush stuff.  */
   private final int flush_interval;  // seconds
 
-  /** Minimum number of rows we'll attempt to compact at once.  */
+  /** Minimum number of rows we'll attempt to compact at once, per shard.  */
   private final int min_flush_threshold;  // rows
 
-  /** Maximum number of rows we'll compact concurrently.  */
+  /** Maximum number of rows we'll compact concurrently, per shard.  */
   private final int max_concurrent_flushes;  // rows
 
-  /** If this is X then we'll flush X times faster than we really need.  */
+  /** If this is X then we'll drain each hour in 1/X of MAX_TIMESPAN.  */
   private final int flush_speed;  // multiplicative factor
 
+  /** Maximum number of rows queued per shard, 0 for no limit.  */
+  private final int max_shard_size;  // rows
+
+  /** The shards of the queue, each with its own compaction thread.  */
+  private final Shard[] shards;
+
   /**
    * Constructor.
    * @param tsdb The TSDB we belong to.
    */
   public CompactionQueue(final TSDB tsdb) {
-    super(new Cmp(tsdb));
     this.tsdb = tsdb;
     metric_width = tsdb.metrics.width();
+    final int num_shards = Math.max(1,
+        tsdb.config.getInt("tsd.storage.compaction.shards"));
     flush_interval = tsdb.config.getInt("tsd.storage.compaction.flush_interval");
-    min_flush_threshold = tsdb.config.getInt("tsd.storage.compaction.min_flush_threshold");
-    max_concurrent_flushes = tsdb.config.getInt("tsd.storage.compaction.max_concurrent_flushes");
+    final int min_flush = tsdb.config.getInt(
+        "tsd.storage.compaction.min_flush_threshold");
+    // With more shards than the threshold every shard would flush on each
+    // tick, so keep at least one row per shard.
+    min_flush_threshold = min_flush > 0 
+        ? Math.max(1, min_flush / num_shards) : min_flush;
+    max_concurrent_flushes = Math.max(1, tsdb.config.getInt(
+        "tsd.storage.compaction.max_concurrent_flushes") / num_shards);
     flush_speed = tsdb.config.getInt("tsd.storage.compaction.flush_speed");
+    final int max_size = tsdb.config.getInt(
+        "tsd.storage.compaction.max_queue_size");
+    max_shard_size = max_size > 0 ? Math.max(1, max_size / num_shards) : 0;
+
+    shards = new Shard[num_shards];
+    for (int i = 0; i < num_shards; i++) {
+      shards[i] = new Shard(i);
+    }
 
     if (tsdb.config.enable_compactions()) {
-      startCompactionThread();
+      for (final Shard shard : shards) {
+        startCompactionThread(shard);
+      }
     }
   }
 
-  @Override
+  /** @return The total number of rows waiting in all of the shards. */
   public int size() {
-    return size.get();
+    int size = 0;
+    for (final Shard shard : shards) {
+      size += shard.size();
+    }
+    return size;
   }
 
   public void add(final byte[] row) {
-    if (super.put(row, Boolean.TRUE) == null) {
-      size.incrementAndGet();  // We added a new entry, count it.
-    }
+    shardFor(row).add(row);
   }
 
   /**
@@ -130,7 +160,33 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       LOG.info("Flushing all old outstanding rows out of " + size + " rows");
     }
     final long now = System.currentTimeMillis();
-    return flush(now / 1000 - Const.MAX_TIMESPAN - 1, Integer.MAX_VALUE);
+    final long cut_off = now / 1000 - Const.MAX_TIMESPAN - 1;
+    if (shards.length == 1) {
+      return shards[0].flush(cut_off, Integer.MAX_VALUE);
+    }
+    final ArrayList<Deferred<ArrayList<Object>>> ds = 
+        new ArrayList<Deferred<ArrayList<Object>>>(shards.length);
+    for (final Shard shard : shards) {
+      ds.add(shard.flush(cut_off, Integer.MAX_VALUE));
+    }
+    
+    /** Flattens the results of each shard's flush. */
+    final class GroupCB implements Callback<ArrayList<Object>, 
+        ArrayList<ArrayList<Object>>> {
+      @Override
+      public ArrayList<Object> call(final ArrayList<ArrayList<Object>> results) {
+        final ArrayList<Object> flattened = new ArrayList<Object>();
+        for (final ArrayList<Object> result : results) {
+          flattened.addAll(result);
+        }
+        return flattened;
+      }
+      @Override
+      public String toString() {
+        return "Group compaction shard flushes";
+      }
+    }
+    return Deferred.group(ds).addCallback(new GroupCB());
   }
 
   /**
@@ -145,83 +201,283 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       return;
     }
     // The remaining stats only make sense with compactions enabled.
-    collector.record("compaction.queue.size", size);
+    long dropped = 0;
+    for (final Shard shard : shards) {
+      dropped += shard.dropped.get();
+    }
+    collector.record("compaction.queue.size", size());
+    collector.record("compaction.queue.dropped", dropped);
     collector.record("compaction.errors", handle_read_error.errors, "rpc=read");
     collector.record("compaction.errors", handle_write_error.errors, "rpc=put");
     collector.record("compaction.errors", handle_delete_error.errors,
                      "rpc=delete");
     collector.record("compaction.writes", written_cells);
     collector.record("compaction.deletes", deleted_cells);
+    if (shards.length > 1) {
+      for (final Shard shard : shards) {
+        final String tag = "shard=" + shard.index;
+        collector.record("compaction.shard.queue.size", shard.size(), tag);
+        collector.record("compaction.shard.flushes", shard.flushes, tag);
+        collector.record("compaction.shard.dropped", shard.dropped, tag);
+      }
+    }
   }
 
   /**
-   * Flushes all the rows in the compaction queue older than the cutoff time.
-   * @param cut_off A UNIX timestamp in seconds (unsigned 32-bit integer).
-   * @param maxflushes How many rows to flush off the queue at once.
-   * This integer is expected to be strictly positive.
-   * @return A deferred that will be called back once everything has been
-   * flushed.
+   * Picks the shard for a row.  With salting the salt bucket is used so the
+   * shards line up with the salt buckets, otherwise we hash the metric and
+   * tags (skipping the base time) so every row of a series goes to the same
+   * shard.
+   * @param row The row key to place.
+   * @return The shard responsible for the row.
    */
-  private Deferred<ArrayList<Object>> flush(final long cut_off, int maxflushes) {
-    assert maxflushes > 0: "maxflushes must be > 0, but I got " + maxflushes;
-    // We can't possibly flush more entries than size().
-    maxflushes = Math.min(maxflushes, size());
-    if (maxflushes == 0) {  // Because size() might be 0.
-      return Deferred.fromResult(new ArrayList<Object>(0));
-    }
-    final ArrayList<Deferred<Object>> ds =
-      new ArrayList<Deferred<Object>>(Math.min(maxflushes, max_concurrent_flushes));
-    int nflushes = 0;
-    int seed = (int) (System.nanoTime() % 3);
-    for (final byte[] row : this.keySet()) {
-      if (maxflushes == 0) {
-        break;
-      }
-      if (seed == row.hashCode() % 3) {
-        continue;
-      }
-      final long base_time = Bytes.getUnsignedInt(row,
+  private Shard shardFor(final byte[] row) {
+    if (shards.length == 1) {
+      return shards[0];
+    }
+    int hash = 0;
+    if (Const.SALT_WIDTH() > 0) {
+      for (int i = 0; i < Const.SALT_WIDTH(); i++) {
+        hash = (hash << 8) | (row[i] & 0xFF);
+      }
+    } else {
+      final int timestamp_pos = metric_width;
+      final int tags_pos = timestamp_pos + Const.TIMESTAMP_BYTES;
+      for (int i = 0; i < row.length; i++) {
+        if (i == timestamp_pos) {
+          i = tags_pos;
+          if (i >= row.length) {
+            break;
+          }
+        }
+        hash = 31 * hash + row[i];
+      }
+    }
+    return shards[(hash & Integer.MAX_VALUE) % shards.length];
+  }
+
+  /**
+   * A single shard of the queue.  Rows are indexed by their base time so the
+   * flusher can go straight to the hours that are old enough to compact
+   * without walking over the rows still being written to.  We keep our own
+   * size counters since {@link ConcurrentSkipListSet#size} has O(N)
+   * complexity.
+   */
+  final class Shard {
+    /** Index of this shard, used in thread names and stats.  */
+    private final int index;
+
+    /** Pending rows keyed by the base time of the row, oldest first.  */
+    private final ConcurrentSkipListMap<Long, Bucket> buckets =
+      new ConcurrentSkipListMap<Long, Bucket>();
+
+    /** How many items are currently in the shard.  */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** How many rows we've pulled out of the shard to compact.  */
+    final AtomicLong flushes = new AtomicLong();
+
+    /** How many rows we didn't queue because the shard was full.  */
+    final AtomicLong dropped = new AtomicLong();
+
+    /** Newest base time the current drain window was started for.  */
+    private long drain_base_time = -1;  // seconds
+
+    /** When we want to be done compacting the current drain window.  */
+    private long drain_deadline;  // seconds
+
+    Shard(final int index) {
+      this.index = index;
+    }
+
+    int size() {
+      return size.get();
+    }
+
+    void clear() {
+      buckets.clear();
+      size.set(0);
+    }
+
+    void add(final byte[] row) {
+      if (max_shard_size > 0 && size.get() >= max_shard_size) {
+        // Leave the row as is, it's still readable, just not compacted.
+        if (dropped.incrementAndGet() % 10000 == 1) {
+          LOG.warn("Compaction queue shard " + index + " is full with " 
+              + size.get() + " rows, skipping compactions");
+        }
+        return;
+      }
+      final Long base_time = Bytes.getUnsignedInt(row,
           Const.SALT_WIDTH() + metric_width);
-      if (base_time > cut_off) {
-        break;
-      } else if (nflushes == max_concurrent_flushes) {
-        // We kicked off the compaction of too many rows already, let's wait
-        // until they're done before kicking off more.
-        break;
-      }
-      // You'd think that it would be faster to grab an iterator on the map
-      // and then call remove() on the iterator to "unlink" the element
-      // directly from where the iterator is at, but no, the JDK implements
-      // it by calling remove(key) so it has to lookup the key again anyway.
-      if (super.remove(row) == null) {  // We didn't remove anything.
-        continue;  // So someone else already took care of this entry.
-      }
-      nflushes++;
-      maxflushes--;
-      size.decrementAndGet();
-      ds.add(tsdb.get(row).addCallbacks(compactcb, handle_read_error));
-    }
-    final Deferred<ArrayList<Object>> group = Deferred.group(ds);
-    if (nflushes == max_concurrent_flushes && maxflushes > 0) {
-      // We're not done yet.  Once this group of flushes completes, we need
-      // to kick off more.
-      tsdb.getClient().flush();  // Speed up this batch by telling the client to flush.
-      final int maxflushez = maxflushes;  // Make it final for closure.
-      final class FlushMoreCB implements Callback<Deferred<ArrayList<Object>>,
-                                                  ArrayList<Object>> {
-        @Override
-        public Deferred<ArrayList<Object>> call(final ArrayList<Object> arg) {
-          return flush(cut_off, maxflushez);
+      while (true) {
+        Bucket bucket = buckets.get(base_time);
+        if (bucket == null) {
+          final Bucket fresh = new Bucket();
+          bucket = buckets.putIfAbsent(base_time, fresh);
+          if (bucket == null) {
+            bucket = fresh;
+          }
         }
-        @Override
-        public String toString() {
-          return "Continue flushing with cut_off=" + cut_off
-            + ", maxflushes=" + maxflushez;
+        if (!bucket.add(row)) {
+          return;  // Already queued.
+        }
+        size.incrementAndGet();  // We added a new entry, count it.
+        if (buckets.get(base_time) == bucket) {
+          return;
+        }
+        // The flusher retired the bucket while we were adding to it.  If it
+        // didn't pick up our row on its way out, try again in a new bucket.
+        if (!bucket.remove(row)) {
+          return;
+        }
+        size.decrementAndGet();
+      }
+    }
+
+    /**
+     * Computes how many rows to flush on this run of the compaction thread.
+     * <p>
+     * Once an hour becomes old enough to compact, we give ourselves
+     * {@code MAX_TIMESPAN / flush_speed} seconds to get through everything
+     * that is eligible and spread the work evenly over the runs left until
+     * that deadline, instead of flushing a burst at the top of the hour.  If
+     * more rows show up for old hours in the meantime, the rate goes up to
+     * still meet the deadline.
+     * @param now The current time in seconds.
+     * @param cut_off Rows with a base time at or before this are eligible.
+     * @return The number of rows to flush, 0 if nothing is eligible.
+     */
+    int flushesDue(final long now, final long cut_off) {
+      int eligible = 0;
+      long newest = -1;
+      for (final Map.Entry<Long, Bucket> entry :
+          buckets.headMap(cut_off, true).entrySet()) {
+        eligible += entry.getValue().size.get();
+        newest = entry.getKey();
+      }
+      if (eligible == 0) {
+        return 0;
+      }
+      if (newest > drain_base_time) {
+        drain_base_time = newest;
+        drain_deadline = now + Const.MAX_TIMESPAN / Math.max(1, flush_speed);
+      }
+      final long runs = Math.max(1, 
+          (drain_deadline - now) / Math.max(1, flush_interval));
+      return (int) Math.max(min_flush_threshold, (eligible + runs - 1) / runs);
+    }
+
+    /**
+     * Flushes all the rows in this shard older than the cutoff time.
+     * @param cut_off A UNIX timestamp in seconds (unsigned 32-bit integer).
+     * @param maxflushes How many rows to flush off the shard at once.
+     * This integer is expected to be strictly positive.
+     * @return A deferred that will be called back once everything has been
+     * flushed.
+     */
+    Deferred<ArrayList<Object>> flush(final long cut_off, int maxflushes) {
+      assert maxflushes > 0: "maxflushes must be > 0, but I got " + maxflushes;
+      // We can't possibly flush more entries than size().
+      maxflushes = Math.min(maxflushes, size());
+      if (maxflushes == 0) {  // Because size() might be 0.
+        return Deferred.fromResult(new ArrayList<Object>(0));
+      }
+      final ArrayList<Deferred<Object>> ds =
+        new ArrayList<Deferred<Object>>(Math.min(maxflushes, max_concurrent_flushes));
+      int nflushes = 0;
+      int seed = (int) (System.nanoTime() % 3);
+      buckets:
+      for (final Map.Entry<Long, Bucket> entry :
+          buckets.headMap(cut_off, true).entrySet()) {
+        final Bucket bucket = entry.getValue();
+        for (final byte[] row : bucket.rows) {
+          if (maxflushes == 0) {
+            break buckets;
+          } else if (nflushes == max_concurrent_flushes) {
+            // We kicked off the compaction of too many rows already, let's
+            // wait until they're done before kicking off more.
+            break buckets;
+          }
+          if (seed == row.hashCode() % 3) {
+            continue;
+          }
+          if (!bucket.remove(row)) {  // We didn't remove anything.
+            continue;  // So someone else already took care of this entry.
+          }
+          nflushes++;
+          maxflushes--;
+          size.decrementAndGet();
+          flushes.incrementAndGet();
+          ds.add(tsdb.get(row).addCallbacks(compactcb, handle_read_error));
+        }
+        if (bucket.size.get() == 0) {
+          retire(entry.getKey(), bucket);
+        }
+      }
+      final Deferred<ArrayList<Object>> group = Deferred.group(ds);
+      if (nflushes == max_concurrent_flushes && maxflushes > 0) {
+        // We're not done yet.  Once this group of flushes completes, we need
+        // to kick off more.
+        tsdb.getClient().flush();  // Speed up this batch by telling the client to flush.
+        final int maxflushez = maxflushes;  // Make it final for closure.
+        final class FlushMoreCB implements Callback<Deferred<ArrayList<Object>>,
+                                                    ArrayList<Object>> {
+          @Override
+          public Deferred<ArrayList<Object>> call(final ArrayList<Object> arg) {
+            return flush(cut_off, maxflushez);
+          }
+          @Override
+          public String toString() {
+            return "Continue flushing shard " + index + " with cut_off=" 
+              + cut_off + ", maxflushes=" + maxflushez;
+          }
+        }
+        group.addCallbackDeferring(new FlushMoreCB());
+      }
+      return group;
+    }
+
+    /**
+     * Unlinks an empty bucket from the index.  A writer may have slipped a
+     * row in right before we unlinked it so anything left over is put back.
+     */
+    private void retire(final Long base_time, final Bucket bucket) {
+      if (!buckets.remove(base_time, bucket)) {
+        return;
+      }
+      for (final byte[] row : bucket.rows) {
+        if (bucket.remove(row)) {
+          size.decrementAndGet();
+          add(row);
         }
       }
-      group.addCallbackDeferring(new FlushMoreCB());
     }
-    return group;
+  }
+
+  /** The rows of a shard sharing the same base time.  */
+  private static final class Bucket {
+    final ConcurrentSkipListSet<byte[]> rows =
+      new ConcurrentSkipListSet<byte[]>(Bytes.MEMCMP);
+
+    /** How many rows are in the bucket.  */
+    final AtomicInteger size = new AtomicInteger();
+
+    boolean add(final byte[] row) {
+      if (rows.add(row)) {
+        size.incrementAndGet();
+        return true;
+      }
+      return false;
+    }
+
+    boolean remove(final byte[] row) {
+      if (rows.remove(row)) {
+        size.decrementAndGet();
+        return true;
+      }
+      return false;
+    }
   }
 
   private final CompactCB compactcb = new CompactCB();
@@ -763,59 +1019,55 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
   }
 
-  static final long serialVersionUID = 1307386642;
-
-  /** Starts a compaction thread.  Only one such thread is needed.  */
-  private void startCompactionThread() {
-    final Thrd thread = new Thrd();
+  /**
+   * Starts a compaction thread for a shard.  Only one such thread is needed
+   * per shard.
+   */
+  private void startCompactionThread(final Shard shard) {
+    final Thrd thread = new Thrd(shard);
     thread.setDaemon(true);
     thread.start();
   }
 
-
-
   /**
-   * Background thread to trigger periodic compactions.
+   * Background thread to trigger periodic compactions of a shard.
    */
   final class Thrd extends Thread {
-    public Thrd() {
-      super("CompactionThread");
+    private final Shard shard;
+
+    public Thrd(final Shard shard) {
+      super(shards.length == 1 ? "CompactionThread" 
+          : "CompactionThread-" + shard.index);
+      this.shard = shard;
     }
 
     @Override
     public void run() {
       while (true) {
         try {
-          final int size = size();
+          final int size = shard.size();
           // Flush if  we have too many rows to recompact.
           // Note that in we might not be able to actually
           // flush anything if the rows aren't old enough.
           if (size > min_flush_threshold) {
-            // How much should we flush during this iteration?  This scheme is
-            // adaptive and flushes at a rate that is proportional to the size
-            // of the queue, so we flush more aggressively if the queue is big.
-            // Let's suppose MAX_TIMESPAN = 1h.  We have `size' rows to compact,
-            // and we better compact them all in less than 1h, otherwise we're
-            // going to "fall behind" when after a new hour starts (as we'll be
-            // inserting a ton of new rows then).  So slice MAX_TIMESPAN using
-            // FLUSH_INTERVAL to compute what fraction of `size' we need to
-            // flush at each iteration.  Note that `size' will usually account
-            // for many rows that can't be flushed yet (not old enough) so we're
-            // overshooting a bit (flushing more aggressively than necessary).
-            // This isn't a problem at all.  The only thing that matters is that
-            // the rate at which we flush stuff is proportional to how much work
-            // is sitting in the queue.  The multiplicative factor FLUSH_SPEED
-            // is added to make flush even faster than we need.  For example, if
-            // FLUSH_SPEED is 2, then instead of taking 1h to flush what we have
-            // for the previous hour, we'll take only 30m.  This is desirable so
-            // that we evict old entries from the queue a bit faster.
-            final int maxflushes = Math.max(min_flush_threshold,
-              size * flush_interval * flush_speed / Const.MAX_TIMESPAN);
+            // How much should we flush during this iteration?  Rows only
+            // become eligible an hour at a time, so rather than flushing a
+            // fraction of the whole queue we pace ourselves to drain what's
+            // eligible over the next MAX_TIMESPAN / FLUSH_SPEED seconds.  For
+            // example, if FLUSH_SPEED is 2, then we'll take about 30m to
+            // flush what we have for the previous hour, evenly spread over
+            // that time, which leaves room to catch up on late writes before
+            // the next hour's rows become eligible.
             final long now = System.currentTimeMillis();
-            flush(now / 1000 - Const.MAX_TIMESPAN - 1, maxflushes);
+            final long cut_off = now / 1000 - Const.MAX_TIMESPAN - 1;
+            final int maxflushes = shard.flushesDue(now / 1000, cut_off);
+            if (maxflushes > 0) {
+              shard.flush(cut_off, maxflushes);
+            }
             if (LOG.isDebugEnabled()) {
-              final int newsize = size();
-              LOG.debug("flush() took " + (System.currentTimeMillis() - now)
+              final int newsize = shard.size();
+              LOG.debug("flush() of shard " + shard.index + " took " 
+                        + (System.currentTimeMillis() - now)
                         + "ms, new queue size=" + newsize
                         + " (" + (newsize - size) + ')');
             }
@@ -824,10 +1076,10 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
           LOG.error("Uncaught exception in compaction thread", e);
         } catch (OutOfMemoryError e) {
           // Let's free up some memory by throwing away the compaction queue.
-          final int sz = size.get();
-          CompactionQueue.super.clear();
-          size.set(0);
-          LOG.error("Discarded the compaction queue, size=" + sz, e);
+          final int sz = shard.size();
+          shard.clear();
+          LOG.error("Discarded compaction queue shard " + shard.index 
+              + ", size=" + sz, e);
         } catch (Throwable e) {
           LOG.error("Uncaught *Throwable* in compaction thread", e);
           // Catching this kind of error is totally unexpected and is really
@@ -844,40 +1096,18 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
             LOG.error("Compaction thread interrupted in error handling", i);
             return;  // Don't flush, we're truly hopeless.
           }
-          startCompactionThread();
+          startCompactionThread(shard);
           return;
         }
         try {
           Thread.sleep(flush_interval * 1000);
         } catch (InterruptedException e) {
           LOG.error("Compaction thread interrupted, doing one last flush", e);
-          flush();
+          shard.flush(System.currentTimeMillis() / 1000 
+              - Const.MAX_TIMESPAN - 1, Integer.MAX_VALUE);
           return;
         }
       }
     }
   }
-
-  /**
-   * Helper to sort the byte arrays in the compaction queue.
-   * <p>
-   * This comparator sorts things by timestamp first, this way we can find
-   * all rows of the same age at once.
-   */
-  private static final class Cmp implements Comparator<byte[]> {
-
-    /** The position with which the timestamp of metric starts.  */
-    private final short timestamp_pos;
-
-    public Cmp(final TSDB tsdb) {
-      timestamp_pos = (short) (Const.SALT_WIDTH() + tsdb.metrics.width());
-    }
-
-    @Override
-    public int compare(final byte[] a, final byte[] b) {
-      final int c = Bytes.memcmp(a, b, timestamp_pos, Const.TIMESTAMP_BYTES);
-      // If the timestamps are equal, sort according to the entire row key.
-      return c != 0 ? c : Bytes.memcmp(a, b);
-    }
-  }
 }
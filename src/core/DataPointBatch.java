@@ -0,0 +1,329 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A block of data points stored column by column in primitive arrays, so
+ * stages of the read path can hand data points to each other a block at a
+ * time rather than through a {@link DataPoint} view per point.
+ * <p>
+ * A batch is filled from a {@link SeekableView} with {@link #fill}.  Views
+ * implementing {@link BatchedSeekableView} decode their data straight into
+ * the arrays, others are copied one data point at a time.  Consumers can then
+ * either read the columns by index, or walk the batch with {@link #advance}
+ * and use the batch itself as the {@link DataPoint} at the cursor.  Like the
+ * views, a batch is meant to be reused: filling it again overwrites its
+ * contents.
+ * <p>
+ * The number of values behind each data point (see
+ * {@link DataPoint#valueCount}) is only recorded when the batch is filled by a
+ * {@link BatchedSeekableView}, since views such as aggregators don't support
+ * it.
+ * <p>
+ * This class isn't thread safe.
+ * @since 2.4
+ */
+public final class DataPointBatch implements DataPoint {
+
+  /** The default number of data points per batch. */
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  /** Timestamps in milliseconds. */
+  private final long[] timestamps;
+  /** Whether each value is an integer, or a floating point value. */
+  private final boolean[] integers;
+  /** Integer values, only valid where {@code integers} is true. */
+  private final long[] long_values;
+  /** Floating point values, only valid where {@code integers} is false. */
+  private final double[] double_values;
+  /** Number of real values behind each data point. */
+  private final long[] value_counts;
+
+  /** Number of data points in the batch. */
+  private int size;
+  /** Index of the data point at the cursor, -1 before the first one. */
+  private int position = -1;
+  /** Whether or not {@code value_counts} was filled. */
+  private boolean counted = true;
+
+  /** Creates a batch of {@link #DEFAULT_CAPACITY} data points. */
+  public DataPointBatch() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a batch.
+   * @param capacity The maximum number of data points in the batch.
+   * @throws IllegalArgumentException if the capacity is less than 1.
+   */
+  public DataPointBatch(final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1: "
+          + capacity);
+    }
+    timestamps = new long[capacity];
+    integers = new boolean[capacity];
+    long_values = new long[capacity];
+    double_values = new double[capacity];
+    value_counts = new long[capacity];
+  }
+
+  /**
+   * Replaces the contents of the batch with the next data points of a view,
+   * up to the capacity of the batch, and resets the cursor.
+   * @param view The view to read from, it's left right after the last data
+   * point read.
+   * @return The number of data points read, 0 once the view is exhausted.
+   */
+  public int fill(final SeekableView view) {
+    clear();
+    if (view instanceof BatchedSeekableView) {
+      return ((BatchedSeekableView) view).nextBatch(this);
+    }
+    counted = false;
+    while (size < timestamps.length && view.hasNext()) {
+      final DataPoint dp = view.next();
+      if (dp.isInteger()) {
+        add(dp.timestamp(), dp.longValue(), 1);
+      } else {
+        add(dp.timestamp(), dp.doubleValue(), 1);
+      }
+    }
+    return size;
+  }
+
+  /** Empties the batch. */
+  public void clear() {
+    size = 0;
+    position = -1;
+    counted = true;
+  }
+
+  /** @return The maximum number of data points in the batch. */
+  public int capacity() {
+    return timestamps.length;
+  }
+
+  /** @return The number of data points in the batch. */
+  public int size() {
+    return size;
+  }
+
+  /** @return Whether or not the batch is at capacity. */
+  public boolean isFull() {
+    return size == timestamps.length;
+  }
+
+  /**
+   * @param i The index of a data point in the batch.
+   * @return The timestamp of the data point in milliseconds.
+   */
+  public long timestamp(final int i) {
+    checkIndex(i);
+    return timestamps[i];
+  }
+
+  /**
+   * @param i The index of a data point in the batch.
+   * @return Whether or not the data point has an integer value.
+   */
+  public boolean isInteger(final int i) {
+    checkIndex(i);
+    return integers[i];
+  }
+
+  /**
+   * @param i The index of a data point in the batch.
+   * @return The integer value of the data point.
+   * @throws ClassCastException if the value isn't an integer.
+   */
+  public long longValue(final int i) {
+    if (!isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a long in " + this);
+    }
+    return long_values[i];
+  }
+
+  /**
+   * @param i The index of a data point in the batch.
+   * @return The floating point value of the data point.
+   * @throws ClassCastException if the value is an integer.
+   */
+  public double doubleValue(final int i) {
+    if (isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a float in "
+          + this);
+    }
+    return double_values[i];
+  }
+
+  /**
+   * @param i The index of a data point in the batch.
+   * @return The value of the data point as a double, even if it's an integer.
+   */
+  public double toDouble(final int i) {
+    return isInteger(i) ? long_values[i] : double_values[i];
+  }
+
+  /**
+   * @param i The index of a data point in the batch.
+   * @return The number of real values behind the data point.
+   * @throws UnsupportedOperationException if the batch was filled from a view
+   * that doesn't track value counts.
+   */
+  public long valueCount(final int i) {
+    checkIndex(i);
+    if (!counted) {
+      throw new UnsupportedOperationException(
+          "Value counts were not recorded in " + this);
+    }
+    return value_counts[i];
+  }
+
+  /** @return Whether or not there are data points after the cursor. */
+  public boolean hasRemaining() {
+    return position + 1 < size;
+  }
+
+  /**
+   * Moves the cursor to the next data point, for use of the batch as a
+   * {@link DataPoint}.
+   * @throws NoSuchElementException if there are no more data points.
+   */
+  public void advance() {
+    if (!hasRemaining()) {
+      throw new NoSuchElementException("no more elements in " + this);
+    }
+    position++;
+  }
+
+  // ------------------- //
+  // DataPoint interface //
+  // ------------------- //
+
+  @Override
+  public long timestamp() {
+    return timestamp(position);
+  }
+
+  @Override
+  public boolean isInteger() {
+    return isInteger(position);
+  }
+
+  @Override
+  public long longValue() {
+    return longValue(position);
+  }
+
+  @Override
+  public double doubleValue() {
+    return doubleValue(position);
+  }
+
+  @Override
+  public double toDouble() {
+    return toDouble(position);
+  }
+
+  @Override
+  public long valueCount() {
+    return valueCount(position);
+  }
+
+  // ------------------------------------ //
+  // Helpers for the BatchedSeekableViews //
+  // ------------------------------------ //
+
+  /**
+   * Appends a data point with an integer value.
+   * @param timestamp The timestamp in milliseconds.
+   * @param value The value.
+   * @param value_count The number of real values behind the data point.
+   * @throws IndexOutOfBoundsException if the batch is full.
+   */
+  void add(final long timestamp, final long value, final long value_count) {
+    timestamps[size] = timestamp;
+    integers[size] = true;
+    long_values[size] = value;
+    value_counts[size] = value_count;
+    size++;
+  }
+
+  /**
+   * Appends a data point with a floating point value.
+   * @param timestamp The timestamp in milliseconds.
+   * @param value The value.
+   * @param value_count The number of real values behind the data point.
+   * @throws IndexOutOfBoundsException if the batch is full.
+   */
+  void add(final long timestamp, final double value, final long value_count) {
+    timestamps[size] = timestamp;
+    integers[size] = false;
+    double_values[size] = value;
+    value_counts[size] = value_count;
+    size++;
+  }
+
+  /**
+   * Appends a copy of a data point, including its value count.
+   * @param dp The data point to copy.
+   * @throws IndexOutOfBoundsException if the batch is full.
+   */
+  void add(final DataPoint dp) {
+    if (dp.isInteger()) {
+      add(dp.timestamp(), dp.longValue(), dp.valueCount());
+    } else {
+      add(dp.timestamp(), dp.doubleValue(), dp.valueCount());
+    }
+  }
+
+  /**
+   * Appends data points of another batch, as many as fit, copying the
+   * columns in bulk.
+   * @param from The batch to copy from.
+   * @param start The index of the first data point to copy.
+   * @param count The number of data points to copy.
+   * @return The number of data points appended, less than {@code count} if
+   * the batch filled up.
+   */
+  int addAll(final DataPointBatch from, final int start, final int count) {
+    final int appended = Math.min(count, timestamps.length - size);
+    System.arraycopy(from.timestamps, start, timestamps, size, appended);
+    System.arraycopy(from.integers, start, integers, size, appended);
+    System.arraycopy(from.long_values, start, long_values, size, appended);
+    System.arraycopy(from.double_values, start, double_values, size, 
+        appended);
+    System.arraycopy(from.value_counts, start, value_counts, size, appended);
+    if (!from.counted) {
+      counted = false;
+    }
+    size += appended;
+    return appended;
+  }
+
+  private void checkIndex(final int i) {
+    if (i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException("index " + i + " not in [0, "
+          + size + ") in " + this);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "DataPointBatch(size=" + size + ", capacity=" + timestamps.length
+        + ", position=" + position + ", counted=" + counted + ")";
+  }
+}
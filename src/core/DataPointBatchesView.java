@@ -0,0 +1,171 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over data points that were already computed and stored, in order,
+ * in a list of {@link DataPointBatch}es, e.g. the output of a
+ * {@link SpanGroup} aggregated ahead of time.
+ * <p>
+ * The batches are only read, so any number of views can share them.  Like
+ * the other views, the {@link DataPoint} returned by {@link #next} is the
+ * view itself and changes with each call.  Consumers reading a block at a
+ * time get the columns copied in bulk with {@link #nextBatch}.
+ */
+final class DataPointBatchesView implements BatchedSeekableView, DataPoint {
+
+  /** The batches to iterate over, none of them empty. */
+  private final List<DataPointBatch> batches;
+
+  /** Index of the batch holding the next data point. */
+  private int batch_index;
+
+  /** Index of the next data point in its batch. */
+  private int index;
+
+  /** The batch of the current data point. */
+  private DataPointBatch current;
+
+  /** Index of the current data point in its batch. */
+  private int current_index;
+
+  /**
+   * Ctor.
+   * @param batches Non-empty batches of data points, in timestamp order.
+   */
+  DataPointBatchesView(final List<DataPointBatch> batches) {
+    this.batches = batches;
+  }
+
+  // ------------------ //
+  // Iterator interface //
+  // ------------------ //
+
+  @Override
+  public boolean hasNext() {
+    return batch_index < batches.size();
+  }
+
+  @Override
+  public DataPoint next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException("no more elements in " + this);
+    }
+    current = batches.get(batch_index);
+    current_index = index;
+    if (++index == current.size()) {
+      batch_index++;
+      index = 0;
+    }
+    return this;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  // ----------------------------- //
+  // BatchedSeekableView interface //
+  // ----------------------------- //
+
+  @Override
+  public int nextBatch(final DataPointBatch batch) {
+    int appended = 0;
+    while (batch_index < batches.size() && !batch.isFull()) {
+      final DataPointBatch from = batches.get(batch_index);
+      final int count = batch.addAll(from, index, from.size() - index);
+      appended += count;
+      current = from;
+      current_index = index + count - 1;
+      index += count;
+      if (index == from.size()) {
+        batch_index++;
+        index = 0;
+      }
+    }
+    return appended;
+  }
+
+  // ---------------------- //
+  // SeekableView interface //
+  // ---------------------- //
+
+  @Override
+  public void seek(final long timestamp) {
+    batch_index = 0;
+    index = 0;
+    while (batch_index < batches.size()) {
+      final DataPointBatch batch = batches.get(batch_index);
+      if (batch.timestamp(batch.size() - 1) >= timestamp) {
+        // binary search for the first data point >= timestamp
+        int low = 0;
+        int high = batch.size() - 1;
+        while (low < high) {
+          final int mid = (low + high) >>> 1;
+          if (batch.timestamp(mid) < timestamp) {
+            low = mid + 1;
+          } else {
+            high = mid;
+          }
+        }
+        index = low;
+        return;
+      }
+      batch_index++;
+    }
+  }
+
+  // ------------------- //
+  // DataPoint interface //
+  // ------------------- //
+
+  @Override
+  public long timestamp() {
+    return current.timestamp(current_index);
+  }
+
+  @Override
+  public boolean isInteger() {
+    return current.isInteger(current_index);
+  }
+
+  @Override
+  public long longValue() {
+    return current.longValue(current_index);
+  }
+
+  @Override
+  public double doubleValue() {
+    return current.doubleValue(current_index);
+  }
+
+  @Override
+  public double toDouble() {
+    return current.toDouble(current_index);
+  }
+
+  @Override
+  public long valueCount() {
+    return current.valueCount(current_index);
+  }
+
+  @Override
+  public String toString() {
+    return "DataPointBatchesView(batches=" + batches.size()
+        + ", batch_index=" + batch_index + ", index=" + index + ")";
+  }
+}
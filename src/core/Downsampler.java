@@ -312,10 +312,16 @@ public class Downsampler implements SeekableView, DataPoint {
     /** True if it is initialized for iterating intervals. */
     private boolean initialized = false;
 
+    /** Data points read ahead from the source when it can fill batches, in
+     * which case {@code next_dp} is the batch itself. Null otherwise. */
+    private final DataPointBatch batch;
+
     /**
      * Constructor.
      */
     protected ValuesInInterval() {
+      batch = source instanceof BatchedSeekableView ? new DataPointBatch() 
+          : null;
       if (run_all) {
         timestamp_end_interval = query_end;
       } else if (!specification.useCalendar()) {
@@ -330,7 +336,7 @@ public class Downsampler implements SeekableView, DataPoint {
       // performance penalty by accessing the unnecessary first data of a span.
       if (!initialized) {
         initialized = true;
-        if (source.hasNext()) {
+        if (sourceHasNext()) {
           moveToNextValue();
           if (!run_all) {
             if (specification.useCalendar()) {
@@ -355,12 +361,12 @@ public class Downsampler implements SeekableView, DataPoint {
 
     /** Extracts the next value from the source. */
     private void moveToNextValue() {
-      if (source.hasNext()) {
+      if (sourceHasNext()) {
         has_next_value_from_source = true;
         // filter out dps that don't match start and end for run_alls
         if (run_all) {
-          while (source.hasNext()) {
-            next_dp = source.next();
+          while (sourceHasNext()) {
+            next_dp = sourceNext();
             if (next_dp.timestamp() < query_start) {
               next_dp = null;
               continue;
@@ -374,13 +380,32 @@ public class Downsampler implements SeekableView, DataPoint {
             has_next_value_from_source = false;
           }
         } else {
-          next_dp = source.next();
+          next_dp = sourceNext();
         }
       } else {
         has_next_value_from_source = false;
       }
     }
 
+    /** @return Whether the source has more data points, refilling the batch
+     * if we read ahead and it's exhausted. */
+    private boolean sourceHasNext() {
+      if (batch == null) {
+        return source.hasNext();
+      }
+      return batch.hasRemaining() || batch.fill(source) > 0;
+    }
+
+    /** @return The next data point from the source, call 
+     * {@link #sourceHasNext} first. */
+    private DataPoint sourceNext() {
+      if (batch == null) {
+        return source.next();
+      }
+      batch.advance();
+      return batch;
+    }
+
     /**
      * Resets the current interval with the interval of the timestamp of
      * the next value read from source. It is the first value of the next
@@ -433,6 +458,11 @@ public class Downsampler implements SeekableView, DataPoint {
       } else {
         source.seek(alignTimestamp(timestamp + specification.getInterval() - 1));
       }
+      if (batch != null) {
+        // the source moved, drop what we read ahead of it
+        batch.clear();
+        has_next_value_from_source = false;
+      }
       initialized = false;
     }
 
@@ -0,0 +1,257 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+
+/**
+ * A block of data points of a series compressed with the encoding described
+ * in "Gorilla: A Fast, Scalable, In-Memory Time Series Database": timestamps
+ * are stored as the delta of their deltas and values as the XOR with the
+ * previous value, both in as few bits as possible. Regular series take a
+ * couple of bytes per data point.
+ * <p>
+ * Values are stored as their raw 64 bits with one more bit telling integers
+ * from floating point values, so both round trip exactly. Data points must be
+ * appended in strictly increasing timestamp order.
+ * <p>
+ * This class isn't thread safe.
+ * @since 2.4
+ */
+final class GorillaBlock {
+
+  /** The bits, most significant first */
+  private long[] words = new long[4];
+  /** The number of bits written */
+  private int length;
+
+  private int count;
+  private long first_timestamp;
+  private long last_timestamp;
+  private long last_delta;
+  private long last_value;
+  /** Leading zeros of the last stored XOR, -1 before the first one */
+  private int last_leading = -1;
+  /** Trailing zeros of the last stored XOR */
+  private int last_trailing;
+
+  /**
+   * Appends a data point.
+   * @param timestamp The timestamp in milliseconds.
+   * @param value The integer value, or the bits of the floating point value.
+   * @param is_integer Whether or not the value is an integer.
+   * @throws IllegalArgumentException if the timestamp isn't after the last
+   * one.
+   */
+  void append(final long timestamp, final long value,
+      final boolean is_integer) {
+    if (count > 0 && timestamp <= last_timestamp) {
+      throw new IllegalArgumentException("Timestamp " + timestamp
+          + " must be after the last one: " + last_timestamp);
+    }
+    if (count == 0) {
+      first_timestamp = timestamp;
+      write(timestamp, 64);
+      write(is_integer ? 1 : 0, 1);
+      write(value, 64);
+    } else {
+      final long delta = timestamp - last_timestamp;
+      final long dod = delta - last_delta;
+      if (dod == 0) {
+        write(0, 1);
+      } else if (dod >= -64 && dod <= 63) {
+        write(0x2, 2);
+        write(dod, 7);
+      } else if (dod >= -256 && dod <= 255) {
+        write(0x6, 3);
+        write(dod, 9);
+      } else if (dod >= -2048 && dod <= 2047) {
+        write(0xE, 4);
+        write(dod, 12);
+      } else if (dod >= Integer.MIN_VALUE && dod <= Integer.MAX_VALUE) {
+        write(0x1E, 5);
+        write(dod, 32);
+      } else {
+        write(0x1F, 5);
+        write(dod, 64);
+      }
+      last_delta = delta;
+
+      write(is_integer ? 1 : 0, 1);
+      final long xor = value ^ last_value;
+      if (xor == 0) {
+        write(0, 1);
+      } else {
+        final int leading = Long.numberOfLeadingZeros(xor);
+        final int trailing = Long.numberOfTrailingZeros(xor);
+        if (last_leading >= 0 && leading >= last_leading
+            && trailing >= last_trailing) {
+          // fits in the window of the previous XOR
+          write(0x2, 2);
+          write(xor >>> last_trailing, 64 - last_leading - last_trailing);
+        } else {
+          final int meaningful = 64 - leading - trailing;
+          // 6 bits of leading zeros rather than 5 as integers have plenty
+          write(0x3, 2);
+          write(leading, 6);
+          write(meaningful - 1, 6);
+          write(xor >>> trailing, meaningful);
+          last_leading = leading;
+          last_trailing = trailing;
+        }
+      }
+    }
+    last_timestamp = timestamp;
+    last_value = value;
+    count++;
+  }
+
+  /**
+   * Decodes the data points.
+   * @param timestamps Where to write the timestamps in milliseconds.
+   * @param values Where to write the integer values or the bits of the
+   * floating point values.
+   * @param integers Where to write whether each value is an integer.
+   * @param offset The index in the arrays to write the first data point at.
+   */
+  void decode(final long[] timestamps, final long[] values,
+      final boolean[] integers, final int offset) {
+    if (count == 0) {
+      return;
+    }
+    final Reader reader = new Reader();
+    long timestamp = reader.read(64);
+    boolean is_integer = reader.read(1) == 1;
+    long value = reader.read(64);
+    timestamps[offset] = timestamp;
+    integers[offset] = is_integer;
+    values[offset] = value;
+
+    long delta = 0;
+    int leading = 0;
+    int trailing = 0;
+    for (int i = 1; i < count; i++) {
+      final long dod;
+      if (reader.read(1) == 0) {
+        dod = 0;
+      } else if (reader.read(1) == 0) {
+        dod = reader.readSigned(7);
+      } else if (reader.read(1) == 0) {
+        dod = reader.readSigned(9);
+      } else if (reader.read(1) == 0) {
+        dod = reader.readSigned(12);
+      } else if (reader.read(1) == 0) {
+        dod = reader.readSigned(32);
+      } else {
+        dod = reader.read(64);
+      }
+      delta += dod;
+      timestamp += delta;
+
+      is_integer = reader.read(1) == 1;
+      if (reader.read(1) == 1) {
+        if (reader.read(1) == 1) {
+          leading = (int) reader.read(6);
+          final int meaningful = (int) reader.read(6) + 1;
+          trailing = 64 - leading - meaningful;
+        }
+        value ^= reader.read(64 - leading - trailing) << trailing;
+      }
+      timestamps[offset + i] = timestamp;
+      integers[offset + i] = is_integer;
+      values[offset + i] = value;
+    }
+  }
+
+  /** Releases the unused capacity, e.g. once no more points are appended */
+  void trim() {
+    final int used = (length + 63) >>> 6;
+    if (used < words.length) {
+      words = Arrays.copyOf(words, Math.max(used, 1));
+    }
+  }
+
+  /** @return The number of data points in the block */
+  int size() {
+    return count;
+  }
+
+  /** @return The timestamp of the first data point in milliseconds */
+  long firstTimestamp() {
+    return first_timestamp;
+  }
+
+  /** @return The timestamp of the last data point in milliseconds */
+  long lastTimestamp() {
+    return last_timestamp;
+  }
+
+  /** @return The number of bytes used by the encoded data points */
+  int bytes() {
+    return words.length * 8;
+  }
+
+  /**
+   * Writes the lowest bits of a value.
+   * @param value The value to write.
+   * @param bits The number of bits to write, from 1 to 64.
+   */
+  private void write(final long value, final int bits) {
+    if (length + bits > words.length * 64) {
+      words = Arrays.copyOf(words, words.length * 2);
+    }
+    final int index = length >>> 6;
+    final int used = length & 63;
+    final long masked = bits == 64 ? value : value & ((1L << bits) - 1);
+    final int free = 64 - used;
+    if (bits <= free) {
+      words[index] |= masked << (free - bits);
+    } else {
+      words[index] |= masked >>> (bits - free);
+      words[index + 1] |= masked << (64 - (bits - free));
+    }
+    length += bits;
+  }
+
+  /** Reads the bits back in the order they were written */
+  private final class Reader {
+    private int position;
+
+    /**
+     * @param bits The number of bits to read, from 1 to 64.
+     * @return The bits as the lowest bits of a long.
+     */
+    long read(final int bits) {
+      final int index = position >>> 6;
+      final int used = position & 63;
+      final int available = 64 - used;
+      long value;
+      if (bits <= available) {
+        value = words[index] << used >>> (64 - bits);
+      } else {
+        value = (words[index] << used >>> (64 - bits))
+            | (words[index + 1] >>> (64 - (bits - available)));
+      }
+      position += bits;
+      return value;
+    }
+
+    /**
+     * @param bits The number of bits to read, from 1 to 63.
+     * @return The two's complement value of the bits.
+     */
+    long readSigned(final int bits) {
+      return read(bits) << (64 - bits) >> (64 - bits);
+    }
+  }
+}
@@ -103,17 +103,60 @@ public class HistogramPojo extends IncomingDataPoint {
     shdp.setUnderflow(underflow);
     
     for (final Entry<String, Long> bucket : buckets.entrySet()) {
-      final String[] bounds = Tags.splitString(bucket.getKey(), ',');
-      if (bounds.length != 2) {
-        throw new IllegalArgumentException("Unable to parse bucket bounds: " 
-            + bucket.getKey());
-      }
-      shdp.addBucket(Float.parseFloat(bounds[0]), Float.parseFloat(bounds[1]), 
-          bucket.getValue());
+      final String bounds = bucket.getKey();
+      final int comma = boundsSeparator(bounds);
+      shdp.addBucket(Float.parseFloat(bounds.substring(0, comma)), 
+          Float.parseFloat(bounds.substring(comma + 1)), bucket.getValue());
     }
     return shdp;
   }
   
+  /**
+   * Parses the buckets straight into the primitive arrays of a buffer,
+   * skipping the map of bucket objects {@link #toSimpleHistogram} builds.
+   * A null bucket count is read as 0.
+   * @param tsdb The TSDB to pull the simple histogram codec ID from.
+   * @return The histogram.
+   * @throws IllegalArgumentException if the buckets were empty or a bound
+   * couldn't be parsed.
+   * @since 2.4
+   */
+  public SimpleHistogramBuffer toSimpleHistogramBuffer(final TSDB tsdb) {
+    if (buckets == null || buckets.isEmpty()) {
+      throw new IllegalArgumentException("Buckets cannot be empty when "
+          + "creating a simple histogram.");
+    }
+    
+    final SimpleHistogramBuffer histogram = new SimpleHistogramBuffer(
+        tsdb.histogramManager().getCodec(SimpleHistogramDecoder.class));
+    histogram.setUnderflow(underflow);
+    histogram.setOverflow(overflow);
+    
+    for (final Entry<String, Long> bucket : buckets.entrySet()) {
+      final String bounds = bucket.getKey();
+      final int comma = boundsSeparator(bounds);
+      final Long count = bucket.getValue();
+      histogram.addBucket(Float.parseFloat(bounds.substring(0, comma)), 
+          Float.parseFloat(bounds.substring(comma + 1)), 
+          count == null ? 0 : count);
+    }
+    return histogram;
+  }
+  
+  /**
+   * @return The index of the comma between the lower and upper bounds of a
+   * bucket.
+   * @throws IllegalArgumentException if there isn't exactly one comma.
+   */
+  private static int boundsSeparator(final String bounds) {
+    final int comma = bounds.indexOf(',');
+    if (comma < 0 || bounds.indexOf(',', comma + 1) >= 0) {
+      throw new IllegalArgumentException("Unable to parse bucket bounds: " 
+          + bounds);
+    }
+    return comma;
+  }
+  
   public Map<String, Long> getBuckets() {
     return buckets;
   }
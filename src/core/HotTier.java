@@ -0,0 +1,667 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Keeps the data points written through this TSD over the last
+ * {@code tsd.core.hot_tier.retention} ms in memory, per series, so queries
+ * over recent data, e.g. alerting on the last few minutes, are answered
+ * without scanning storage.
+ * <p>
+ * Each series holds a ring of {@link GorillaBlock}s, the oldest being dropped
+ * once all of their data points are older than the retention. Data points
+ * older than the last one of their series are kept aside uncompressed and
+ * merged on reads, replacing a data point with the same timestamp as
+ * storage does.
+ * <p>
+ * A query is answered from memory if it suppresses annotations, which are
+ * only stored with the data points, and its start is within the retention
+ * and after this TSD started buffering. The series are then filtered and turned
+ * into rows like the ones {@link SaltScanner} reads, so grouping, downsampling
+ * and aggregation work the same. This only holds if every data point of the
+ * series queried is written through this TSD: data points written through
+ * other TSDs, bulk imports or directly to storage aren't seen. Data points are only added once stored. Series past
+ * {@code tsd.core.hot_tier.max_series} aren't buffered and no queries on
+ * their metric are answered from memory until their data points age out.
+ * @since 2.4
+ */
+final class HotTier implements TimerTask {
+  private static final Logger LOG = LoggerFactory.getLogger(HotTier.class);
+
+  /** The maximum number of data points per block */
+  static final int BLOCK_SIZE = 128;
+
+  private final TSDB tsdb;
+  private final long retention;
+  private final int max_series;
+  /** The maximum time between the first and last data point of a block */
+  private final long block_span;
+  /** When the tier started buffering, in milliseconds */
+  private final long started;
+
+  /** The series per metric UID, keyed on their TSUID */
+  private final ConcurrentHashMap<String, ConcurrentHashMap<String, Series>>
+      metrics = new ConcurrentHashMap<String,
+          ConcurrentHashMap<String, Series>>();
+  /** The number of series buffered, cheaper than counting them */
+  private final AtomicInteger num_series = new AtomicInteger();
+  /** Per metric UID, no query can start before this timestamp since one of
+   * its series was refused */
+  private final ConcurrentHashMap<String, Long> incomplete_until =
+      new ConcurrentHashMap<String, Long>();
+
+  /** Set once shutdown to stop rescheduling the eviction */
+  private volatile boolean stopped;
+
+  private final AtomicLong datapoints_added = new AtomicLong();
+  private final AtomicLong datapoints_late = new AtomicLong();
+  private final AtomicLong datapoints_dropped = new AtomicLong();
+  private final AtomicLong queries_served = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param tsdb The TSDB to resolve the tags of the series with.
+   * @param config The config to load the settings from.
+   * @throws IllegalArgumentException if a setting is invalid.
+   */
+  HotTier(final TSDB tsdb, final Config config) {
+    this.tsdb = tsdb;
+    retention = config.getLong("tsd.core.hot_tier.retention");
+    if (retention < 1000) {
+      throw new IllegalArgumentException("The hot tier retention must be at "
+          + "least 1000 ms: " + retention);
+    }
+    max_series = config.getInt("tsd.core.hot_tier.max_series");
+    if (max_series < 1) {
+      throw new IllegalArgumentException("The hot tier max series must be at "
+          + "least 1: " + max_series);
+    }
+    block_span = retention / 8;
+    started = DateTime.currentTimeMillis();
+    LOG.info("Keeping the last " + retention + "ms of data points in memory "
+        + "for up to " + max_series + " series");
+  }
+
+  /** Schedules the eviction of old data points */
+  void start() {
+    tsdb.getTimer().newTimeout(this, Math.min(retention, 60000),
+        TimeUnit.MILLISECONDS);
+  }
+
+  /** Stops evicting, e.g. when shutting down. */
+  void shutdown() {
+    stopped = true;
+  }
+
+  /**
+   * Adds a data point to its series.
+   * @param row The row key of the data point, with the salt and base time
+   * set or not.
+   * @param timestamp The timestamp in seconds or milliseconds.
+   * @param value The value as stored.
+   * @param flags The flags of the value.
+   */
+  void add(final byte[] row, final long timestamp, final byte[] value,
+      final short flags) {
+    final long ms = (timestamp & Const.SECOND_MASK) == 0
+        ? timestamp * 1000 : timestamp;
+    final long cutoff = DateTime.currentTimeMillis() - retention;
+    if (ms < cutoff) {
+      datapoints_dropped.incrementAndGet();
+      return;
+    }
+    final boolean is_integer = (flags & Const.FLAG_FLOAT) == 0;
+    final long bits = is_integer
+        ? Internal.extractIntegerValue(value, 0, (byte) flags)
+        : Double.doubleToRawLongBits(
+            Internal.extractFloatingPointValue(value, 0, (byte) flags));
+    final byte[] tsuid = UniqueId.getTSUIDFromKey(row, TSDB.metrics_width(),
+        Const.TIMESTAMP_BYTES);
+    final String metric = new String(tsuid, 0, TSDB.metrics_width(),
+        Const.ASCII_CHARSET);
+    final String key = new String(tsuid, Const.ASCII_CHARSET);
+
+    // retry if the series was evicted concurrently
+    while (true) {
+      ConcurrentHashMap<String, Series> series_map = metrics.get(metric);
+      if (series_map == null) {
+        series_map = new ConcurrentHashMap<String, Series>();
+        final ConcurrentHashMap<String, Series> existing =
+            metrics.putIfAbsent(metric, series_map);
+        if (existing != null) {
+          series_map = existing;
+        }
+      }
+      Series series = series_map.get(key);
+      if (series == null) {
+        if (num_series.incrementAndGet() > max_series) {
+          num_series.decrementAndGet();
+          datapoints_dropped.incrementAndGet();
+          // queries must start after anything this series missed
+          final Long incomplete = ms + retention;
+          while (true) {
+            final Long until = incomplete_until.putIfAbsent(metric, incomplete);
+            if (until == null || until >= incomplete
+                || incomplete_until.replace(metric, until, incomplete)) {
+              return;
+            }
+          }
+        }
+        series = new Series(tsuid, block_span);
+        final Series existing = series_map.putIfAbsent(key, series);
+        if (existing != null) {
+          num_series.decrementAndGet();
+          series = existing;
+        }
+      }
+      final int added = series.add(ms, bits, is_integer, cutoff);
+      if (added == Series.EVICTED) {
+        continue;
+      }
+      if (added == Series.LATE) {
+        datapoints_late.incrementAndGet();
+      }
+      datapoints_added.incrementAndGet();
+      return;
+    }
+  }
+
+  /**
+   * Whether or not all the data points a query needs are in memory.
+   * @param metric The metric UID.
+   * @param start The start of the query in milliseconds.
+   * @return True if the start is within the retention and after the tier
+   * started buffering and, if a series of the metric was refused, after its
+   * data points.
+   */
+  boolean covers(final byte[] metric, final long start) {
+    final Long until = incomplete_until.get(
+        new String(metric, Const.ASCII_CHARSET));
+    return start >= started && (until == null || start >= until)
+        && start >= DateTime.currentTimeMillis() - retention;
+  }
+
+  /**
+   * Finds the series of a metric matching a query and loads their data points
+   * as compacted rows into spans, the same as a scan of the data table.
+   * @param metric The metric UID.
+   * @param tsuids An optional list of TSUIDs to restrict the series to.
+   * @param regex An optional regular expression the row keys of the series
+   * must match, see {@link net.opentsdb.query.QueryUtil#getRowKeyUIDRegex}.
+   * @param filters Optional filters to run on the tag names of the series.
+   * @param start The start of the range to load in milliseconds.
+   * @param end The end of the range to load in milliseconds.
+   * @param spans The spans to fill, keyed on the row keys.
+   * @return A deferred resolving to the spans once filled.
+   */
+  Deferred<SortedMap<byte[], Span>> findSpans(final byte[] metric,
+      final List<String> tsuids, final String regex,
+      final List<TagVFilter> filters, final long start, final long end,
+      final SortedMap<byte[], Span> spans) {
+    queries_served.incrementAndGet();
+    final List<Series> matches = new ArrayList<Series>();
+    final ConcurrentHashMap<String, Series> series_map =
+        metrics.get(new String(metric, Const.ASCII_CHARSET));
+    if (series_map != null) {
+      if (tsuids != null && !tsuids.isEmpty()) {
+        for (final String tsuid : tsuids) {
+          final Series series = series_map.get(new String(
+              UniqueId.stringToUid(tsuid), Const.ASCII_CHARSET));
+          if (series != null) {
+            matches.add(series);
+          }
+        }
+      } else {
+        final Pattern pattern = regex == null ? null : Pattern.compile(regex);
+        for (final Series series : series_map.values()) {
+          if (pattern == null || pattern.matcher(new String(
+              series.rowKey(0), Const.ASCII_CHARSET)).matches()) {
+            matches.add(series);
+          }
+        }
+      }
+    }
+    if (filters == null || filters.isEmpty()) {
+      for (final Series series : matches) {
+        series.loadRows(tsdb, start, end, spans);
+      }
+      return Deferred.fromResult(spans);
+    }
+
+    class MatchCB implements Callback<Object, ArrayList<Boolean>> {
+      private final Series series;
+      MatchCB(final Series series) {
+        this.series = series;
+      }
+      @Override
+      public Object call(final ArrayList<Boolean> matched) {
+        for (final boolean match : matched) {
+          if (!match) {
+            return null;
+          }
+        }
+        synchronized (spans) {
+          series.loadRows(tsdb, start, end, spans);
+        }
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "Hot tier filter match callback";
+      }
+    }
+
+    class TagsCB implements Callback<Deferred<ArrayList<Boolean>>,
+        Map<String, String>> {
+      @Override
+      public Deferred<ArrayList<Boolean>> call(final Map<String, String> tags)
+          throws Exception {
+        final List<Deferred<Boolean>> matched =
+            new ArrayList<Deferred<Boolean>>(filters.size());
+        for (final TagVFilter filter : filters) {
+          matched.add(filter.match(tags));
+        }
+        return Deferred.group(matched);
+      }
+      @Override
+      public String toString() {
+        return "Hot tier filter tags callback";
+      }
+    }
+
+    class GroupCB implements Callback<SortedMap<byte[], Span>,
+        ArrayList<Object>> {
+      @Override
+      public SortedMap<byte[], Span> call(final ArrayList<Object> ignored) {
+        return spans;
+      }
+      @Override
+      public String toString() {
+        return "Hot tier filter group callback";
+      }
+    }
+
+    final List<Deferred<Object>> deferreds =
+        new ArrayList<Deferred<Object>>(matches.size());
+    for (final Series series : matches) {
+      deferreds.add(Tags.getTagsAsync(tsdb, series.rowKey(0))
+          .addCallbackDeferring(new TagsCB())
+          .addCallback(new MatchCB(series)));
+    }
+    return Deferred.group(deferreds).addCallback(new GroupCB());
+  }
+
+  @Override
+  public void run(final Timeout timeout) {
+    if (stopped) {
+      return;
+    }
+    try {
+      evict(DateTime.currentTimeMillis() - retention);
+    } catch (RuntimeException e) {
+      LOG.error("Failed to evict data points from the hot tier", e);
+    } finally {
+      if (!stopped) {
+        start();
+      }
+    }
+  }
+
+  /**
+   * Drops the blocks older than the cutoff and the series left empty.
+   * @param cutoff The oldest timestamp to keep in milliseconds.
+   */
+  void evict(final long cutoff) {
+    for (final ConcurrentHashMap<String, Series> series_map :
+         metrics.values()) {
+      final Iterator<Series> iterator = series_map.values().iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next().evict(cutoff)) {
+          iterator.remove();
+          num_series.decrementAndGet();
+        }
+      }
+    }
+    for (final Map.Entry<String, Long> entry : incomplete_until.entrySet()) {
+      if (entry.getValue() <= cutoff) {
+        incomplete_until.remove(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /** @return The number of series buffered */
+  int numSeries() {
+    return num_series.get();
+  }
+
+  /**
+   * Records the stats of the tier.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    long bytes = 0;
+    long datapoints = 0;
+    for (final ConcurrentHashMap<String, Series> series_map :
+         metrics.values()) {
+      for (final Series series : series_map.values()) {
+        synchronized (series) {
+          bytes += series.bytes();
+          datapoints += series.size();
+        }
+      }
+    }
+    collector.record("hot_tier.series", num_series.get());
+    collector.record("hot_tier.bytes", bytes);
+    collector.record("hot_tier.datapoints", datapoints, "type=buffered");
+    collector.record("hot_tier.datapoints", datapoints_added, "type=added");
+    collector.record("hot_tier.datapoints", datapoints_late, "type=late");
+    collector.record("hot_tier.datapoints", datapoints_dropped,
+        "type=dropped");
+    collector.record("hot_tier.queries", queries_served);
+  }
+
+  /** The recent data points of a series */
+  static final class Series {
+    /** Returned by {@link #add} for a data point in order */
+    static final int ADDED = 0;
+    /** Returned by {@link #add} for a data point older than the last one */
+    static final int LATE = 1;
+    /** Returned by {@link #add} if the series was evicted meanwhile */
+    static final int EVICTED = 2;
+
+    /** The metric and tag UIDs */
+    private final byte[] tsuid;
+    /** The maximum time between the first and last data point of a block */
+    private final long block_span;
+    /** The blocks in time order, the last one being appended to */
+    private final ArrayDeque<GorillaBlock> blocks =
+        new ArrayDeque<GorillaBlock>();
+    /** Data points older than the last one, with the integer flag */
+    private TreeMap<Long, long[]> late;
+    /** Set once evicted, the series has to be created again */
+    private boolean evicted;
+
+    Series(final byte[] tsuid, final long block_span) {
+      this.tsuid = tsuid;
+      this.block_span = block_span;
+    }
+
+    /**
+     * Adds a data point.
+     * @param timestamp The timestamp in milliseconds.
+     * @param value The value or the bits of the floating point value.
+     * @param is_integer Whether or not the value is an integer.
+     * @param cutoff The oldest timestamp kept in milliseconds.
+     * @return {@link #ADDED}, {@link #LATE} or {@link #EVICTED}.
+     */
+    synchronized int add(final long timestamp, final long value,
+        final boolean is_integer, final long cutoff) {
+      if (evicted) {
+        return EVICTED;
+      }
+      GorillaBlock block = blocks.peekLast();
+      if (block != null && timestamp <= block.lastTimestamp()) {
+        if (late == null) {
+          late = new TreeMap<Long, long[]>();
+        }
+        late.put(timestamp, new long[] { value, is_integer ? 1 : 0 });
+        return LATE;
+      }
+      if (block == null || block.size() >= BLOCK_SIZE
+          || timestamp - block.firstTimestamp() >= block_span) {
+        if (block != null) {
+          block.trim();
+        }
+        evictBlocks(cutoff);
+        block = new GorillaBlock();
+        blocks.addLast(block);
+      }
+      block.append(timestamp, value, is_integer);
+      return ADDED;
+    }
+
+    /**
+     * Drops the blocks and late data points older than the cutoff.
+     * @param cutoff The oldest timestamp to keep in milliseconds.
+     * @return True if the series is now empty and was marked as evicted.
+     */
+    synchronized boolean evict(final long cutoff) {
+      evictBlocks(cutoff);
+      if (blocks.isEmpty() && (late == null || late.isEmpty())) {
+        evicted = true;
+      }
+      return evicted;
+    }
+
+    private void evictBlocks(final long cutoff) {
+      while (!blocks.isEmpty() && blocks.peekFirst().lastTimestamp() < cutoff) {
+        blocks.removeFirst();
+      }
+      if (late != null) {
+        late.headMap(cutoff).clear();
+        if (late.isEmpty()) {
+          late = null;
+        }
+      }
+    }
+
+    /** @return The number of data points, counting late ones */
+    int size() {
+      int size = late == null ? 0 : late.size();
+      for (final GorillaBlock block : blocks) {
+        size += block.size();
+      }
+      return size;
+    }
+
+    /** @return An estimate of the bytes used by the data points */
+    long bytes() {
+      long bytes = late == null ? 0 : late.size() * 64L;
+      for (final GorillaBlock block : blocks) {
+        bytes += block.bytes();
+      }
+      return bytes;
+    }
+
+    /**
+     * Builds a row key of the series with the salt set.
+     * @param base_time The base time in seconds.
+     * @return The row key.
+     */
+    byte[] rowKey(final int base_time) {
+      final int metric_width = TSDB.metrics_width();
+      final byte[] row = new byte[Const.SALT_WIDTH() + tsuid.length
+          + Const.TIMESTAMP_BYTES];
+      System.arraycopy(tsuid, 0, row, Const.SALT_WIDTH(), metric_width);
+      Bytes.setInt(row, base_time, Const.SALT_WIDTH() + metric_width);
+      System.arraycopy(tsuid, metric_width, row, Const.SALT_WIDTH()
+          + metric_width + Const.TIMESTAMP_BYTES, tsuid.length - metric_width);
+      RowKey.prefixKeyWithSalt(row);
+      return row;
+    }
+
+    /**
+     * Loads the data points in a range into the span of the series, as one
+     * compacted row per hour.
+     * @param tsdb The TSDB to create the spans with.
+     * @param start The start of the range in milliseconds.
+     * @param end The end of the range in milliseconds.
+     * @param spans The spans, keyed on the row keys.
+     */
+    void loadRows(final TSDB tsdb, final long start, final long end,
+        final SortedMap<byte[], Span> spans) {
+      final long[] timestamps;
+      final long[] values;
+      final boolean[] integers;
+      int size = 0;
+      synchronized (this) {
+        int capacity = late == null ? 0 : late.size();
+        for (final GorillaBlock block : blocks) {
+          if (block.lastTimestamp() >= start
+              && block.firstTimestamp() <= end) {
+            capacity += block.size();
+          }
+        }
+        timestamps = new long[capacity];
+        values = new long[capacity];
+        integers = new boolean[capacity];
+        for (final GorillaBlock block : blocks) {
+          if (block.lastTimestamp() >= start
+              && block.firstTimestamp() <= end) {
+            block.decode(timestamps, values, integers, size);
+            size += block.size();
+          }
+        }
+        if (late != null) {
+          size = merge(late.subMap(start, true, end, true), timestamps, values,
+              integers, size);
+        }
+      }
+
+      int from = 0;
+      while (from < size && timestamps[from] < start) {
+        from++;
+      }
+      while (from < size && timestamps[from] <= end) {
+        final int base_time = (int) ((timestamps[from] / 1000)
+            - ((timestamps[from] / 1000) % Const.MAX_TIMESPAN));
+        final long next_row = (base_time + Const.MAX_TIMESPAN) * 1000L;
+        int to = from;
+        while (to < size && timestamps[to] < next_row
+            && timestamps[to] <= end) {
+          to++;
+        }
+        final KeyValue row = buildRow(base_time, timestamps, values, integers,
+            from, to);
+        Span span = spans.get(row.key());
+        if (span == null) {
+          span = new Span(tsdb);
+          spans.put(row.key(), span);
+        }
+        span.addRow(row);
+        from = to;
+      }
+    }
+
+    /**
+     * Builds a compacted row like {@link CompactionQueue} does.
+     * @return The row with the data points from the first index to the last
+     * one excluded.
+     */
+    private KeyValue buildRow(final int base_time, final long[] timestamps,
+        final long[] values, final boolean[] integers, final int from,
+        final int to) {
+      boolean ms_in_row = false;
+      boolean s_in_row = false;
+      int qualifiers_length = 0;
+      for (int i = from; i < to; i++) {
+        if (timestamps[i] % 1000 == 0) {
+          s_in_row = true;
+          qualifiers_length += 2;
+        } else {
+          ms_in_row = true;
+          qualifiers_length += 4;
+        }
+      }
+      final int count = to - from;
+      final byte[] qualifier = new byte[qualifiers_length];
+      final byte[] value = new byte[count * 8 + (count > 1 ? 1 : 0)];
+      int offset = 0;
+      for (int i = from; i < to; i++) {
+        final short flags = (short) ((integers[i] ? 0 : Const.FLAG_FLOAT)
+            | 0x7);
+        final byte[] column = Internal.buildQualifier(
+            timestamps[i] % 1000 == 0 ? timestamps[i] / 1000 : timestamps[i],
+            flags);
+        System.arraycopy(column, 0, qualifier, offset, column.length);
+        offset += column.length;
+        Bytes.setLong(value, values[i], (i - from) * 8);
+      }
+      if (count > 1 && ms_in_row && s_in_row) {
+        value[value.length - 1] = Const.MS_MIXED_COMPACT;
+      }
+      return new KeyValue(rowKey(base_time), TSDB.FAMILY(), qualifier, value);
+    }
+  }
+
+  /**
+   * Merges late data points into sorted ones, the late ones replacing data
+   * points with the same timestamp.
+   * @return The number of data points once merged.
+   */
+  static int merge(final SortedMap<Long, long[]> late, final long[] timestamps,
+      final long[] values, final boolean[] integers, final int size) {
+    if (late.isEmpty()) {
+      return size;
+    }
+    final long[] sorted_timestamps = new long[size];
+    final long[] sorted_values = new long[size];
+    final boolean[] sorted_integers = new boolean[size];
+    System.arraycopy(timestamps, 0, sorted_timestamps, 0, size);
+    System.arraycopy(values, 0, sorted_values, 0, size);
+    System.arraycopy(integers, 0, sorted_integers, 0, size);
+    int index = 0;
+    int merged = 0;
+    final Iterator<Map.Entry<Long, long[]>> iterator =
+        late.entrySet().iterator();
+    Map.Entry<Long, long[]> next = iterator.next();
+    while (index < size || next != null) {
+      if (next == null || (index < size
+          && sorted_timestamps[index] < next.getKey())) {
+        timestamps[merged] = sorted_timestamps[index];
+        values[merged] = sorted_values[index];
+        integers[merged] = sorted_integers[index];
+        index++;
+      } else {
+        if (index < size && sorted_timestamps[index] == next.getKey()) {
+          index++;
+        }
+        timestamps[merged] = next.getKey();
+        values[merged] = next.getValue()[0];
+        integers[merged] = next.getValue()[1] == 1;
+        next = iterator.hasNext() ? iterator.next() : null;
+      }
+      merged++;
+    }
+    return merged;
+  }
+}
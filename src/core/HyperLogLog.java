@@ -0,0 +1,89 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+/**
+ * A HyperLogLog sketch estimating the number of distinct 64 bit hashes
+ * offered to it in {@code 2^precision} bytes. The standard error is about
+ * {@code 1.04 / sqrt(2^precision)}, e.g. 3.25% with a precision of 10.
+ * <p>
+ * The registers only ever grow so concurrent offers only lock when one of
+ * them has to be raised, which stops happening once the sketch has seen
+ * most of the values.
+ * @since 2.4
+ */
+final class HyperLogLog {
+
+  /** The number of bits of the hashes picking the register */
+  private final int precision;
+
+  /** The largest rank seen for each register */
+  private final byte[] registers;
+
+  /**
+   * Default ctor.
+   * @param precision The number of bits picking the register, from 4 to 16.
+   * @throws IllegalArgumentException if the precision is out of range
+   */
+  HyperLogLog(final int precision) {
+    if (precision < 4 || precision > 16) {
+      throw new IllegalArgumentException("The precision must be from 4 "
+          + "to 16: " + precision);
+    }
+    this.precision = precision;
+    registers = new byte[1 << precision];
+  }
+
+  /**
+   * Records a value.
+   * @param hash A well mixed 64 bit hash of the value.
+   */
+  void offer(final long hash) {
+    final int index = (int) (hash >>> (64 - precision));
+    // the guard bit caps the rank when the remaining bits are all zeros
+    final byte rank = (byte) (Long.numberOfLeadingZeros(
+        (hash << precision) | (1L << (precision - 1))) + 1);
+    if (registers[index] < rank) {
+      synchronized (this) {
+        if (registers[index] < rank) {
+          registers[index] = rank;
+        }
+      }
+    }
+  }
+
+  /** @return The estimated number of distinct values offered. */
+  long estimate() {
+    final int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for (final byte register : registers) {
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+    final double alpha = 0.7213 / (1 + 1.079 / m);
+    final double estimate = alpha * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      // linear counting is more accurate for the small cardinalities
+      return Math.round(m * Math.log((double) m / zeros));
+    }
+    return Math.round(estimate);
+  }
+
+  /** @return The size of the registers in bytes. */
+  int bytes() {
+    return registers.length;
+  }
+}
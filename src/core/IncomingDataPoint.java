@@ -102,7 +102,7 @@ public class IncomingDataPoint {
     final StringBuilder buf = new StringBuilder();
     buf.append("metric=").append(this.metric);
     buf.append(" ts=").append(this.timestamp);
-    buf.append(" value=").append(this.value).append(" ");
+    buf.append(" value=").append(this.getValue()).append(" ");
     if (this.tags != null) {
       for (Map.Entry<String, String> entry : this.tags.entrySet()) {
         buf.append(entry.getKey()).append("=").append(entry.getValue());
@@ -122,7 +122,7 @@ public class IncomingDataPoint {
   }
 
   /** @return the value */
-  public final String getValue() {
+  public String getValue() {
     return value;
   }
 
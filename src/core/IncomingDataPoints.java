@@ -32,6 +32,13 @@ import net.opentsdb.stats.Histogram;
 
 /**
  * Receives new data points and stores them in HBase.
+ * <p>
+ * With {@code tsd.core.bulk.reorder_window} set, a data point is held back
+ * until a newer one of the series comes in, or {@link #persist} is called,
+ * and the deferred returned by {@code addPoint} stays pending until then.
+ * The {@link DataPoints} view of this object ({@link #size},
+ * {@link #timestamp}, {@link #toString}...) isn't maintained for the data
+ * points written, held back or not, and stays empty.
  */
 final class IncomingDataPoints implements WritableDataPoints {
 
@@ -51,6 +58,16 @@ final class IncomingDataPoints implements WritableDataPoints {
   /** Whether or not to allow out of order data. */
   private final boolean allow_out_of_order_data;
 
+  /**
+   * How far behind the newest data point, in milliseconds, a data point can
+   * arrive and still be written in order. 0 to write data points as they
+   * arrive.
+   */
+  private final long reorder_window;
+
+  /** The data points held back for reordering, sorted on time */
+  private ReorderBuffer reorder_buffer;
+
   /**
    * The row key. Optional salt + 3 bytes for the metric name, 4 bytes for 
    * the base timestamp, 6 bytes per tag (3 for the name, 3 for the value).
@@ -68,7 +85,7 @@ final class IncomingDataPoints implements WritableDataPoints {
   /** Each value in the row. */
   private long[] values;
 
-  /** Track the last timestamp written for this series */
+  /** Track the last timestamp written for this series, in milliseconds */
   private long last_ts;
 
   /** Number of data points in this row. */
@@ -93,6 +110,8 @@ final class IncomingDataPoints implements WritableDataPoints {
     this.tsdb = tsdb;
     allow_out_of_order_data = tsdb.getConfig()
         .getBoolean("tsd.core.bulk.allow_out_of_order_timestamps");
+    reorder_window = Math.max(0,
+        tsdb.getConfig().getLong("tsd.core.bulk.reorder_window"));
   }
 
   /**
@@ -207,6 +226,10 @@ final class IncomingDataPoints implements WritableDataPoints {
 
   public void setSeries(final String metric, final Map<String, String> tags) {
     checkMetricAndTags(metric, tags);
+    if (reorder_buffer != null) {
+      // the held back data points belong to the previous series
+      persist();
+    }
     try {
       row = rowKeyTemplate(tsdb, metric, tags);
       RowKey.prefixKeyWithSalt(row);
@@ -286,17 +309,7 @@ final class IncomingDataPoints implements WritableDataPoints {
 
     // always maintain last_ts in milliseconds
     if ((ms_timestamp ? timestamp : timestamp * 1000) <= last_ts) {
-      if (allow_out_of_order_data) {
-        // as we don't want to perform any funky calculations to find out if
-        // we're still in the same time range, just pass it off to the regular
-        // TSDB add function.
-        return tsdb.addPointInternal(metric, timestamp, value, tags, flags);
-      } else {
-        throw new IllegalArgumentException("New timestamp=" + timestamp
-            + " is less than or equal to previous=" + last_ts
-            + " when trying to add value=" + Arrays.toString(value) + " to "
-            + this);
-      }
+      return addOutOfOrder(timestamp, value, flags);
     }
     
     /** Callback executed for chaining filter calls to see if the value
@@ -307,7 +320,9 @@ final class IncomingDataPoints implements WritableDataPoints {
         if (!allowed) {
           return Deferred.fromResult(null);
         }
-        
+        if (reorder_window > 0) {
+          return reorder(timestamp, value, flags);
+        }
 
         last_ts = (ms_timestamp ? timestamp : timestamp * 1000);
 
@@ -374,6 +389,187 @@ final class IncomingDataPoints implements WritableDataPoints {
     return Deferred.fromResult(true).addCallbackDeferring(new WriteCB());
   }
 
+  /**
+   * Handles a data point older than the last one written, passing it to the
+   * regular TSDB add function if allowed.
+   * @throws IllegalArgumentException if out of order data isn't allowed
+   */
+  private Deferred<Object> addOutOfOrder(final long timestamp,
+      final byte[] value, final short flags) {
+    if (allow_out_of_order_data) {
+      // as we don't want to perform any funky calculations to find out if
+      // we're still in the same time range, just pass it off to the regular
+      // TSDB add function.
+      return tsdb.addPointInternal(metric, timestamp, value, tags, flags);
+    }
+    throw new IllegalArgumentException("New timestamp=" + timestamp
+        + " is less than or equal to previous=" + last_ts
+        + " when trying to add value=" + Arrays.toString(value) + " to "
+        + this);
+  }
+
+  /**
+   * Holds a data point back until it's more than the reorder window older
+   * than the newest data point, then writes it along with the other data
+   * points released, in order, one request per row.
+   * @return A deferred called back once the data point has been written.
+   */
+  private Deferred<Object> reorder(final long timestamp, final byte[] value,
+      final short flags) {
+    final long time = (timestamp & Const.SECOND_MASK) != 0
+        ? timestamp : timestamp * 1000;
+    if (time <= last_ts) {
+      // released while the filter was running
+      return addOutOfOrder(timestamp, value, flags);
+    }
+    if (reorder_buffer == null) {
+      reorder_buffer = new ReorderBuffer();
+    }
+    final Deferred<Object> deferred = reorder_buffer.add(time, timestamp,
+        value, flags);
+    final int released = reorder_buffer.countBefore(
+        reorder_buffer.newest() - reorder_window);
+    if (released > 0) {
+      write(released);
+    }
+    return deferred;
+  }
+
+  /**
+   * Writes the oldest data points of the reorder buffer.
+   * @param count How many data points to write.
+   * @return A deferred called back once all of them have been written.
+   */
+  private Deferred<Object> write(final int count) {
+    final ReorderBuffer buffer = reorder_buffer;
+    final ArrayList<Deferred<Object>> results =
+        new ArrayList<Deferred<Object>>();
+    int start = 0;
+    while (start < count) {
+      final long base_time = baseTime(buffer.timestamps[start]);
+      int end = start + 1;
+      while (end < count && baseTime(buffer.timestamps[end]) == base_time) {
+        end++;
+      }
+      results.add(writeRow(buffer, start, end, base_time));
+      start = end;
+    }
+    last_ts = buffer.times[count - 1];
+    buffer.remove(count);
+    if (buffer.size == 0) {
+      reorder_buffer = null;
+    }
+    return Deferred.group(results).addCallback(new GroupCB());
+  }
+
+  /**
+   * Writes a run of data points from the reorder buffer that fall in the same
+   * row and hands the result over to each of them.
+   * @return The deferred result of the write.
+   */
+  private Deferred<Object> writeRow(final ReorderBuffer buffer,
+      final int start, final int end, final long base_time) {
+    // released points only move forward so, as for unordered writes, the
+    // row is switched and scheduled for compaction once per base time
+    if (base_time != baseTime()) {
+      updateBaseTime(base_time);
+    }
+    final byte[] key = row;
+
+    final int count = end - start;
+    final byte[][] qualifiers = new byte[count][];
+    final byte[][] values = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      qualifiers[i] = Internal.buildQualifier(buffer.timestamps[start + i],
+          buffer.flags[start + i]);
+      values[i] = buffer.values[start + i];
+    }
+
+    Deferred<Object> result;
+    if (tsdb.getConfig().enable_appends()) {
+      int length = 0;
+      for (int i = 0; i < count; i++) {
+        length += qualifiers[i].length + values[i].length;
+      }
+      final byte[] appended = new byte[length];
+      int offset = 0;
+      for (int i = 0; i < count; i++) {
+        final byte[] kv = new AppendDataPoints(qualifiers[i], values[i])
+            .getBytes();
+        System.arraycopy(kv, 0, appended, offset, kv.length);
+        offset += kv.length;
+      }
+      final AppendRequest point = new AppendRequest(tsdb.table, key,
+          TSDB.FAMILY, AppendDataPoints.APPEND_COLUMN_QUALIFIER, appended);
+      point.setDurable(!batch_import);
+      result = tsdb.client.append(point);
+    } else if (count == 1 || tsdb.getConfig().use_otsdb_timestamp()) {
+      // a put has a single cell timestamp
+      final ArrayList<Deferred<Object>> puts =
+          new ArrayList<Deferred<Object>>(count);
+      for (int i = 0; i < count; i++) {
+        final PutRequest point = RequestBuilder.buildPutRequest(
+            tsdb.getConfig(), tsdb.table, key, TSDB.FAMILY, qualifiers[i],
+            values[i], buffer.timestamps[start + i]);
+        point.setDurable(!batch_import);
+        puts.add(tsdb.client.put(point));
+      }
+      result = count == 1 ? puts.get(0)
+          : Deferred.group(puts).addCallback(new GroupCB());
+    } else {
+      sortColumns(qualifiers, values);
+      final PutRequest point = new PutRequest(tsdb.table, key, TSDB.FAMILY,
+          qualifiers, values);
+      point.setDurable(!batch_import);
+      result = tsdb.client.put(point);
+    }
+
+    final Deferred<Object>[] deferreds = buffer.deferreds(start, end);
+    /** Passes the result of the write, or its exception, to each data point */
+    final class RowCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object result) {
+        for (final Deferred<Object> deferred : deferreds) {
+          deferred.callback(result);
+        }
+        return result;
+      }
+      @Override
+      public String toString() {
+        return "IncomingDataPoints reordered row callback";
+      }
+    }
+    return result.addBoth(new RowCB());
+  }
+
+  /** @return The base time of the row for a timestamp in s or ms. */
+  private static long baseTime(final long timestamp) {
+    final long seconds = (timestamp & Const.SECOND_MASK) != 0
+        ? timestamp / 1000 : timestamp;
+    return seconds - (seconds % Const.MAX_TIMESPAN);
+  }
+
+  /**
+   * Sorts the columns of a put on their qualifiers as HBase does, as second
+   * and millisecond qualifiers don't sort in time order.
+   */
+  private static void sortColumns(final byte[][] qualifiers,
+      final byte[][] values) {
+    // insertion sort, the columns are nearly always sorted already
+    for (int i = 1; i < qualifiers.length; i++) {
+      final byte[] qualifier = qualifiers[i];
+      final byte[] value = values[i];
+      int j = i - 1;
+      while (j >= 0 && Bytes.memcmp(qualifiers[j], qualifier) > 0) {
+        qualifiers[j + 1] = qualifiers[j];
+        values[j + 1] = values[j];
+        j--;
+      }
+      qualifiers[j + 1] = qualifier;
+      values[j + 1] = value;
+    }
+  }
+
   private void grow() {
     // We can't have more than 1 value per second, so MAX_TIMESPAN values.
     final int new_size = Math.min(size * 2, Const.MAX_TIMESPAN);
@@ -596,9 +792,15 @@ final class IncomingDataPoints implements WritableDataPoints {
     return buf.toString();
   }
 
+  /**
+   * Writes the data points held back for reordering, if any.
+   */
   @Override
   public Deferred<Object> persist() {
-    return Deferred.fromResult((Object) null);
+    if (reorder_buffer == null) {
+      return Deferred.fromResult((Object) null);
+    }
+    return write(reorder_buffer.size);
   }
 
   public int getQueryIndex() {
@@ -614,4 +816,119 @@ final class IncomingDataPoints implements WritableDataPoints {
   public float getPercentile() {
     throw new UnsupportedOperationException("getPercentile not supported");
   }
+
+  /** Turns the results of a group of writes into a single null */
+  private static final class GroupCB
+      implements Callback<Object, ArrayList<Object>> {
+    @Override
+    public Object call(final ArrayList<Object> results) {
+      return null;
+    }
+    @Override
+    public String toString() {
+      return "IncomingDataPoints group callback";
+    }
+  }
+
+  /**
+   * The data points held back for reordering in parallel arrays sorted on
+   * time. A data point at the same millisecond as a buffered one replaces it
+   * as a later put of the same column would.
+   */
+  private static final class ReorderBuffer {
+    /** The times in milliseconds, sorted */
+    long[] times = new long[16];
+    /** The timestamps as given, in seconds or milliseconds */
+    long[] timestamps = new long[16];
+    byte[][] values = new byte[16][];
+    short[] flags = new short[16];
+    Object[] deferreds = new Object[16];
+    int size;
+
+    /**
+     * Adds or replaces a data point.
+     * @return A deferred to call back once the data point is written.
+     */
+    Deferred<Object> add(final long time, final long timestamp,
+        final byte[] value, final short flag) {
+      final Deferred<Object> deferred = new Deferred<Object>();
+      int index;
+      if (size == 0 || times[size - 1] < time) {
+        index = size;
+      } else {
+        index = Arrays.binarySearch(times, 0, size, time);
+        if (index >= 0) {
+          // the replaced data point is written along with this one
+          deferred.chain(deferred(index));
+          timestamps[index] = timestamp;
+          values[index] = value;
+          flags[index] = flag;
+          deferreds[index] = deferred;
+          return deferred;
+        }
+        index = -(index + 1);
+      }
+      if (size == times.length) {
+        final int capacity = size * 2;
+        times = Arrays.copyOf(times, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        values = Arrays.copyOf(values, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        deferreds = Arrays.copyOf(deferreds, capacity);
+      }
+      if (index < size) {
+        final int moved = size - index;
+        System.arraycopy(times, index, times, index + 1, moved);
+        System.arraycopy(timestamps, index, timestamps, index + 1, moved);
+        System.arraycopy(values, index, values, index + 1, moved);
+        System.arraycopy(flags, index, flags, index + 1, moved);
+        System.arraycopy(deferreds, index, deferreds, index + 1, moved);
+      }
+      times[index] = time;
+      timestamps[index] = timestamp;
+      values[index] = value;
+      flags[index] = flag;
+      deferreds[index] = deferred;
+      size++;
+      return deferred;
+    }
+
+    /** @return The time of the newest data point in milliseconds. */
+    long newest() {
+      return times[size - 1];
+    }
+
+    /** @return The number of data points strictly before the time. */
+    int countBefore(final long time) {
+      final int index = Arrays.binarySearch(times, 0, size, time);
+      return index >= 0 ? index : -(index + 1);
+    }
+
+    /** Drops the oldest data points. */
+    void remove(final int count) {
+      final int remaining = size - count;
+      System.arraycopy(times, count, times, 0, remaining);
+      System.arraycopy(timestamps, count, timestamps, 0, remaining);
+      System.arraycopy(values, count, values, 0, remaining);
+      System.arraycopy(flags, count, flags, 0, remaining);
+      System.arraycopy(deferreds, count, deferreds, 0, remaining);
+      Arrays.fill(values, remaining, size, null);
+      Arrays.fill(deferreds, remaining, size, null);
+      size = remaining;
+    }
+
+    @SuppressWarnings("unchecked")
+    Deferred<Object> deferred(final int index) {
+      return (Deferred<Object>) deferreds[index];
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Deferred<Object>[] deferreds(final int start, final int end) {
+      final Deferred<Object>[] range = new Deferred[end - start];
+      for (int i = start; i < end; i++) {
+        range[i - start] = deferred(i);
+      }
+      return range;
+    }
+  }
 }
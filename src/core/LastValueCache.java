@@ -0,0 +1,161 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.UniqueId;
+
+/**
+ * Bounded cache of the last data point written through this TSD for each
+ * series, keyed on the TSUID, so the last point queries of dashboards don't
+ * have to read rows back from storage. The least recently used series are
+ * evicted first.
+ * <p>
+ * A series only has the data points written through this TSD, once stored.
+ * If other TSDs or bulk imports write to the same series, the cached data
+ * point may be older than the last one in storage. Series whose rows are
+ * deleted by a query are dropped.
+ * @since 2.4
+ */
+public final class LastValueCache {
+
+  /** The last data points, keyed on the TSUIDs */
+  private final Cache<String, LastValue> values;
+
+  /**
+   * Default ctor.
+   * @param max_size The maximum number of series to keep.
+   * @throws IllegalArgumentException if the size is less than 1
+   */
+  public LastValueCache(final int max_size) {
+    if (max_size < 1) {
+      throw new IllegalArgumentException("The last value cache size "
+          + "must be at least 1: " + max_size);
+    }
+    values = CacheBuilder.newBuilder()
+        .maximumSize(max_size)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Records a data point if it's the latest of its series.
+   * @param row The row key of the data point with the salt set or not.
+   * @param timestamp The timestamp in seconds or milliseconds.
+   * @param value The value as stored.
+   * @param flags The flags of the value.
+   */
+  void add(final byte[] row, final long timestamp, final byte[] value,
+      final short flags) {
+    final long ms = (timestamp & Const.SECOND_MASK) == 0
+        ? timestamp * 1000 : timestamp;
+    final boolean is_integer = (flags & Const.FLAG_FLOAT) == 0;
+    final LastValue last = new LastValue(ms, is_integer
+        ? Internal.extractIntegerValue(value, 0, (byte) flags)
+        : Double.doubleToRawLongBits(
+            Internal.extractFloatingPointValue(value, 0, (byte) flags)),
+        is_integer);
+    final String key = new String(UniqueId.getTSUIDFromKey(row,
+        TSDB.metrics_width(), Const.TIMESTAMP_BYTES), Const.ASCII_CHARSET);
+
+    final ConcurrentMap<String, LastValue> map = values.asMap();
+    while (true) {
+      final LastValue existing = map.putIfAbsent(key, last);
+      if (existing == null || existing.timestamp > ms) {
+        return;
+      }
+      if (map.replace(key, existing, last)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Fetches the last data point of a series.
+   * @param tsuid The TSUID of the series.
+   * @return The data point with the TSUID, timestamp in milliseconds and
+   * value set, the same as read from storage, or null if the series isn't
+   * cached.
+   */
+  public IncomingDataPoint getLastPoint(final byte[] tsuid) {
+    final LastValue last = values.getIfPresent(
+        new String(tsuid, Const.ASCII_CHARSET));
+    if (last == null) {
+      return null;
+    }
+    final IncomingDataPoint dp = new IncomingDataPoint();
+    dp.setTSUID(UniqueId.uidToString(tsuid));
+    dp.setTimestamp(last.timestamp);
+    dp.setValue(last.is_integer ? Long.toString(last.value)
+        : Double.toString(Double.longBitsToDouble(last.value)));
+    return dp;
+  }
+
+  /**
+   * Drops the data point of a series, e.g. when its rows are deleted.
+   * @param row A row key of the series with the salt set or not.
+   */
+  void evict(final byte[] row) {
+    values.invalidate(new String(UniqueId.getTSUIDFromKey(row,
+        TSDB.metrics_width(), Const.TIMESTAMP_BYTES), Const.ASCII_CHARSET));
+  }
+
+  /** Drops all the data points. */
+  public void clear() {
+    values.invalidateAll();
+  }
+
+  /** @return The number of series cached. */
+  public long size() {
+    return values.size();
+  }
+
+  /** @return The hit, miss and eviction counts since startup. */
+  CacheStats stats() {
+    return values.stats();
+  }
+
+  /**
+   * Records the cache stats.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    final CacheStats stats = values.stats();
+    collector.record("last_value.cache-hit", stats.hitCount());
+    collector.record("last_value.cache-miss", stats.missCount());
+    collector.record("last_value.cache-evictions", stats.evictionCount());
+    collector.record("last_value.cache-size", values.size());
+  }
+
+  /** The last data point of a series */
+  private static final class LastValue {
+    /** The timestamp in milliseconds */
+    final long timestamp;
+    /** The integer value or the bits of the floating point value */
+    final long value;
+    final boolean is_integer;
+
+    LastValue(final long timestamp, final long value,
+        final boolean is_integer) {
+      this.timestamp = timestamp;
+      this.value = value;
+      this.is_integer = is_integer;
+    }
+  }
+}
@@ -0,0 +1,215 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Aggregates the {@link SpanGroup}s of a sub query on the query executor of
+ * the TSD instead of on the I/O thread that completed the scan.
+ * <p>
+ * The groups of a sub query are independent, so up to {@code max_tasks}
+ * tasks each take the next group not yet aggregated and materialize it (see
+ * {@link SpanGroup#materialize}) until none are left. Sub queries attach
+ * their own instance when their scan completes so they're aggregated
+ * concurrently as well. The results are passed on once all the groups are
+ * aggregated, which means the rest of the callback chain, usually the
+ * serialization, runs on the executor thread that finished last.
+ * <p>
+ * Materialized groups hold all of their data points until they're 
+ * serialized, so a sub query only buffers up to {@code max_buffered_points}.
+ * The groups that don't fit are left to aggregate lazily while they're
+ * serialized, which keeps the memory of large results bounded.
+ * @since 2.4
+ */
+final class ParallelAggregation
+    implements Callback<Deferred<DataPoints[]>, DataPoints[]> {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(ParallelAggregation.class);
+
+  /** The executor to run the tasks on */
+  private final ExecutorService executor;
+
+  /** The maximum number of tasks for this sub query */
+  private final int max_tasks;
+
+  /** The maximum number of data points to buffer, 0 for no limit */
+  private final long max_buffered_points;
+
+  /** Optional stats to record the tasks in, may be null */
+  private final QueryStats query_stats;
+
+  /** The index of the sub query */
+  private final int query_index;
+
+  /**
+   * Default ctor.
+   * @param executor The executor to run the tasks on.
+   * @param max_tasks The maximum number of groups aggregated concurrently,
+   * values less than 1 are treated as 1.
+   * @param max_buffered_points The maximum number of aggregated data points
+   * the sub query keeps in memory, 0 or less for no limit.
+   * @param query_stats Optional stats to record the tasks in, may be null.
+   * @param query_index The index of the sub query.
+   */
+  ParallelAggregation(final ExecutorService executor, final int max_tasks,
+      final long max_buffered_points, final QueryStats query_stats, 
+      final int query_index) {
+    if (executor == null) {
+      throw new IllegalArgumentException("Executor cannot be null");
+    }
+    this.executor = executor;
+    this.max_tasks = Math.max(1, max_tasks);
+    this.max_buffered_points = Math.max(0, max_buffered_points);
+    this.query_stats = query_stats;
+    this.query_index = query_index;
+  }
+
+  @Override
+  public Deferred<DataPoints[]> call(final DataPoints[] results) {
+    final List<SpanGroup> groups = new ArrayList<SpanGroup>(results.length);
+    for (final DataPoints dps : results) {
+      if (dps instanceof SpanGroup) {
+        groups.add((SpanGroup) dps);
+      }
+    }
+    if (groups.isEmpty()) {
+      return Deferred.fromResult(results);
+    }
+
+    final int tasks = Math.min(max_tasks, groups.size());
+    final Aggregation aggregation = new Aggregation(results, groups, tasks);
+    for (int i = 0; i < tasks; i++) {
+      try {
+        executor.execute(aggregation);
+      } catch (RejectedExecutionException e) {
+        // only happens when shutting down, finish the job here
+        LOG.debug("Query executor rejected an aggregation task, running it "
+            + "on the calling thread", e);
+        aggregation.run();
+      }
+    }
+    return aggregation.deferred;
+  }
+
+  /**
+   * Run by each task of a sub query, aggregates groups until there aren't
+   * any left. The last task to finish passes the results on.
+   */
+  private final class Aggregation implements Runnable {
+    final DataPoints[] results;
+    final List<SpanGroup> groups;
+    final int tasks;
+    final Deferred<DataPoints[]> deferred = new Deferred<DataPoints[]>();
+    final long start = DateTime.nanoTime();
+    /** Index of the next group to aggregate */
+    final AtomicInteger next = new AtomicInteger();
+    /** Data points that can still be buffered, null for no limit */
+    final AtomicLong budget = max_buffered_points > 0 
+        ? new AtomicLong(max_buffered_points) : null;
+    /** Number of groups left to aggregate lazily */
+    final AtomicInteger lazy = new AtomicInteger();
+    /** Number of tasks still running */
+    final AtomicInteger running;
+    /** The first exception thrown by a group, if any */
+    volatile RuntimeException failure;
+
+    Aggregation(final DataPoints[] results, final List<SpanGroup> groups,
+        final int tasks) {
+      this.results = results;
+      this.groups = groups;
+      this.tasks = tasks;
+      running = new AtomicInteger(tasks);
+    }
+
+    @Override
+    public void run() {
+      try {
+        int i;
+        while (failure == null &&
+            (i = next.getAndIncrement()) < groups.size()) {
+          if (groups.get(i).materialize(budget) < 0) {
+            lazy.incrementAndGet();
+          }
+        }
+      } catch (RuntimeException e) {
+        failure = e;
+      } finally {
+        if (running.decrementAndGet() == 0) {
+          complete();
+        }
+      }
+    }
+
+    private void complete() {
+      if (lazy.get() > 0 && LOG.isDebugEnabled()) {
+        LOG.debug(lazy.get() + " of " + groups.size() + " groups of sub "
+            + "query " + query_index + " exceeded the buffer of " 
+            + max_buffered_points + " points and will aggregate lazily");
+      }
+      if (query_stats != null) {
+        query_stats.addStat(query_index, QueryStat.AGGREGATION_TASKS, tasks);
+        query_stats.addStat(query_index, QueryStat.PARALLEL_AGGREGATION_TIME,
+            DateTime.nanoTime() - start);
+      }
+      if (failure != null) {
+        deferred.callback(failure);
+      } else {
+        deferred.callback(results);
+      }
+    }
+  }
+
+  /**
+   * Creates the executor used to aggregate query results.
+   * @param threads The number of threads.
+   * @return A fixed size executor with daemon threads.
+   */
+  static ExecutorService newExecutor(final int threads) {
+    return new ThreadPoolExecutor(threads, threads,
+        0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+        new AggregationThreadFactory());
+  }
+
+  /** Names the threads and makes sure they don't hold the JVM up. */
+  private static final class AggregationThreadFactory implements ThreadFactory {
+    private final AtomicInteger id = new AtomicInteger(0);
+
+    @Override
+    public Thread newThread(final Runnable r) {
+      final Thread thread = new Thread(r, "QueryAggregation #"
+          + id.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,155 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Map;
+
+import org.hbase.async.Bytes.ByteMap;
+
+/**
+ * Picks the cheapest way of fetching the rows of a query from the
+ * {@link CardinalityStats} of its metric. The costs are in rows read by
+ * storage:
+ * <ul>
+ * <li>A scan with the row key regex reads every series of the metric.</li>
+ * <li>A fuzzy filtered scan seeks over the series that don't match the
+ * literal tag values so it reads about the matching series, each costing
+ * {@link #FUZZY_ROW_COST} rows for the seek, the filter and the scanner
+ * round trip.</li>
+ * <li>A multi-get fetches every combination of the literal tag values
+ * whether the series exists or not, each costing {@link #GET_ROW_COST} rows
+ * for the random read. It requires explicit tags and filters that are all
+ * literals.</li>
+ * </ul>
+ * So the scan wins when the filters keep about a third of the series or
+ * more, and the fuzzy filter beats the multi-gets when a third of the
+ * combinations or more don't exist.
+ * @since 2.4
+ */
+final class QueryPlanner {
+
+  /** The ways of fetching the rows. The ordinals are reported in the
+   * query stats so new plans have to be added at the end. */
+  enum Plan {
+    SCAN,
+    FUZZY_SCAN,
+    MULTI_GET
+  }
+
+  /** The cost of a row read by a fuzzy filtered scan in scanned rows */
+  static final int FUZZY_ROW_COST = 3;
+
+  /** The cost of a row read by a get in scanned rows */
+  static final int GET_ROW_COST = 2;
+
+  private final Plan plan;
+  private final long estimated_series;
+  private final long cost;
+
+  private QueryPlanner(final Plan plan, final long estimated_series,
+      final long cost) {
+    this.plan = plan;
+    this.estimated_series = estimated_series;
+    this.cost = cost;
+  }
+
+  /**
+   * Costs the plans of a query.
+   * @param stats The cardinality statistics.
+   * @param metric The metric UID.
+   * @param row_key_literals The tag keys of the query with their literal
+   * values, null when any value matches.
+   * @param explicit_tags Whether or not the series have exactly the tags
+   * of the query.
+   * @param literals_only Whether or not the literals are the only filters.
+   * @param rows The number of rows of each series in the query time range.
+   * @param allow_fuzzy Whether or not the query may use the fuzzy filter.
+   * @param allow_multi_get Whether or not the query may use multi-gets.
+   * @param multi_get_limit The maximum number of tag value combinations
+   * to fetch with multi-gets.
+   * @return The cheapest plan or null if the metric has no statistics.
+   */
+  static QueryPlanner plan(final CardinalityStats stats, final byte[] metric,
+      final ByteMap<byte[][]> row_key_literals, final boolean explicit_tags,
+      final boolean literals_only, final long rows,
+      final boolean allow_fuzzy, final boolean allow_multi_get,
+      final int multi_get_limit) {
+    final long series = stats.estimateSeries(metric);
+    if (series < 1) {
+      return null;
+    }
+
+    final boolean has_literals = row_key_literals != null
+        && !row_key_literals.isEmpty();
+    double matching = series;
+    long combinations = 1;
+    boolean all_literals = has_literals;
+    if (has_literals) {
+      for (final Map.Entry<byte[], byte[][]> entry : row_key_literals) {
+        final byte[][] values = entry.getValue();
+        if (values == null || values.length == 0) {
+          all_literals = false;
+          continue;
+        }
+        if (combinations <= multi_get_limit) {
+          combinations *= values.length;
+        }
+        final long tag_values = stats.estimateTagValues(metric, entry.getKey());
+        if (tag_values > values.length) {
+          matching = matching * values.length / tag_values;
+        }
+      }
+    }
+
+    Plan plan = Plan.SCAN;
+    long cost = series * rows;
+    if (allow_fuzzy && explicit_tags && has_literals) {
+      final long fuzzy_cost = Math.max(1, Math.round(matching))
+          * rows * FUZZY_ROW_COST;
+      if (fuzzy_cost < cost) {
+        plan = Plan.FUZZY_SCAN;
+        cost = fuzzy_cost;
+      }
+    }
+    if (allow_multi_get && explicit_tags && literals_only && all_literals
+        && combinations <= multi_get_limit) {
+      final long multi_get_cost = combinations * rows * GET_ROW_COST;
+      if (multi_get_cost < cost) {
+        plan = Plan.MULTI_GET;
+        cost = multi_get_cost;
+      }
+    }
+    return new QueryPlanner(plan, series, cost);
+  }
+
+  /** @return The cheapest way of fetching the rows. */
+  Plan getPlan() {
+    return plan;
+  }
+
+  /** @return The estimated number of series of the metric. */
+  long getEstimatedSeries() {
+    return estimated_series;
+  }
+
+  /** @return The estimated cost of the plan in scanned rows. */
+  long getCost() {
+    return cost;
+  }
+
+  @Override
+  public String toString() {
+    return "plan=" + plan + ", estimated_series=" + estimated_series
+        + ", cost=" + cost;
+  }
+}
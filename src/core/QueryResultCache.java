@@ -0,0 +1,509 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Caches the results of downsampled queries in time slices aligned on a
+ * fixed interval, e.g. an hour, so dashboards refreshing the same query over
+ * a sliding window only query storage for the slices they haven't seen yet.
+ * <p>
+ * The results are cached per normalized {@link TSQuery} without its time
+ * range. A query is split into the slices fully inside its range, the partial
+ * slices at each end and the slices too recent to be cached. The cached
+ * slices are served from memory, contiguous missing slices are run as one
+ * query each then cached, and the rest is always run. The parts of each
+ * series are then stitched back together.
+ * <p>
+ * Slices ending less than {@code tsd.query.cache.min_age} ms ago aren't
+ * cached so late data points have a chance to land first. Data points
+ * written to older slices afterwards aren't seen until the slice expires,
+ * {@code tsd.query.cache.expire_after} ms after it was cached, or is
+ * evicted. The cache is bounded on the number of data points it holds and
+ * is cleared when the caches are dropped or a UID is renamed or deleted.
+ * <p>
+ * Only queries whose sub queries are all downsampled on an interval dividing
+ * the slice are cached, since downsampling buckets then never straddle two
+ * slices. Rates, histograms, calendar downsampling, padding and deletes are
+ * run as usual. Note that without a fill policy, the aggregation doesn't
+ * interpolate a series across a gap spanning a slice boundary, the same as
+ * for a query starting at that boundary.
+ * @since 2.4
+ */
+public final class QueryResultCache {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(QueryResultCache.class);
+
+  /** The TSDB to run the queries with */
+  private final TSDB tsdb;
+
+  /** The width of the slices in milliseconds */
+  private final long slice_interval;
+
+  /** How long in milliseconds a slice must be over before it is cached */
+  private final long min_age;
+
+  /** The results of each slice, per query key and slice start */
+  private final Cache<String, Slice> slices;
+
+  /** Queries whose range didn't cover a slice old enough to be cached */
+  private final AtomicLong uncacheable = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param tsdb The TSDB to run the queries with.
+   * @param config The config to load the settings from.
+   * @throws IllegalArgumentException if a setting is invalid.
+   */
+  QueryResultCache(final TSDB tsdb, final Config config) {
+    this.tsdb = tsdb;
+    slice_interval = DateTime.parseDuration(
+        config.getString("tsd.query.cache.slice"));
+    min_age = config.getLong("tsd.query.cache.min_age");
+    final long max_datapoints = config.getLong(
+        "tsd.query.cache.max_datapoints");
+    final long expire_after = config.getLong(
+        "tsd.query.cache.expire_after");
+    if (slice_interval % 1000 != 0) {
+      throw new IllegalArgumentException("The query cache slice must be a "
+          + "whole number of seconds: " + slice_interval);
+    }
+    if (min_age < 0) {
+      throw new IllegalArgumentException("The query cache min age cannot be "
+          + "negative: " + min_age);
+    }
+    if (max_datapoints < 1) {
+      throw new IllegalArgumentException("The query cache max data points "
+          + "must be at least 1: " + max_datapoints);
+    }
+    if (expire_after < 0) {
+      throw new IllegalArgumentException("The query cache expiration cannot "
+          + "be negative: " + expire_after);
+    }
+    final CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+    if (expire_after > 0) {
+      builder.expireAfterWrite(expire_after, TimeUnit.MILLISECONDS);
+    }
+    slices = builder
+        .maximumWeight(max_datapoints)
+        .weigher(new Weigher<String, Slice>() {
+          @Override
+          public int weigh(final String key, final Slice slice) {
+            return slice.weight;
+          }
+        })
+        .recordStats()
+        .build();
+    LOG.info("Caching query results in slices of " + slice_interval + "ms");
+  }
+
+  /**
+   * Whether or not the query can use the cache.
+   * @param query The validated query.
+   * @return True if every sub query is downsampled on an interval dividing
+   * the slice, without rates, histograms or calendars.
+   */
+  public boolean isCacheable(final TSQuery query) {
+    if (query.getDelete() || query.getPadding() || query.getUseCalendar()
+        || query.getQueries() == null || query.getQueries().isEmpty()) {
+      return false;
+    }
+    for (final TSSubQuery sub : query.getQueries()) {
+      final DownsamplingSpecification downsampler =
+          sub.downsamplingSpecification();
+      if (sub.isHistogramQuery() || sub.getRate() || downsampler == null
+          || downsampler.useCalendar() || downsampler.getInterval() <= 0
+          || slice_interval % downsampler.getInterval() != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Runs the query, serving the slices of its range from the cache when
+   * possible and caching the ones that were run.
+   * @param query The validated query, see {@link #isCacheable}.
+   * @param queries The queries built from it, run as is if none of its
+   * slices can be cached.
+   * @return A deferred resolving to the results of each sub query, in order.
+   */
+  public Deferred<ArrayList<DataPoints[]>> runAsync(final TSQuery query,
+      final Query[] queries) {
+    final String key = queryKey(query);
+    final long start = query.startTime();
+    final long end = query.endTime();
+    // first and last are the bounds of the slices that can be cached
+    final long first = start % slice_interval == 0 ? start
+        : (start / slice_interval + 1) * slice_interval;
+    final long limit = Math.min(end + 1,
+        DateTime.currentTimeMillis() - min_age);
+    final long last = limit - (limit % slice_interval);
+    if (last <= first) {
+      uncacheable.incrementAndGet();
+      return run(queries);
+    }
+
+    final List<Deferred<List<List<CachedDataPoints>>>> parts =
+        new ArrayList<Deferred<List<List<CachedDataPoints>>>>();
+    // the queries built by the caller run the first range, others are built
+    final Query[][] built = new Query[][] { queries };
+    long hits = 0;
+    long misses = 0;
+    if (start < first) {
+      parts.add(runRange(query, built, start, first - 1));
+    }
+    long slice_start = first;
+    Slice slice = slices.getIfPresent(sliceKey(key, slice_start));
+    while (slice_start < last) {
+      if (slice != null) {
+        parts.add(Deferred.fromResult(slice.results));
+        hits++;
+        slice_start += slice_interval;
+        slice = slice_start < last
+            ? slices.getIfPresent(sliceKey(key, slice_start)) : null;
+        continue;
+      }
+      final long missing_start = slice_start;
+      do {
+        misses++;
+        slice_start += slice_interval;
+        slice = slice_start < last
+            ? slices.getIfPresent(sliceKey(key, slice_start)) : null;
+      } while (slice_start < last && slice == null);
+      parts.add(runRange(query, built, missing_start, slice_start - 1)
+          .addCallback(new StoreCB(key, missing_start, slice_start)));
+    }
+    if (last <= end) {
+      parts.add(runRange(query, built, last, end));
+    }
+
+    final QueryStats stats = query.getQueryStats();
+    if (stats != null) {
+      for (int i = 0; i < query.getQueries().size(); i++) {
+        stats.addStat(i, QueryStat.CACHE_HITS, hits);
+        stats.addStat(i, QueryStat.CACHE_MISSES, misses);
+      }
+    }
+    return Deferred.groupInOrder(parts)
+        .addCallback(new StitchCB(query.getQueries().size()));
+  }
+
+  /**
+   * Runs the built queries as usual.
+   * @param queries The queries to run.
+   * @return A deferred resolving to the results of each query, in order.
+   */
+  private static Deferred<ArrayList<DataPoints[]>> run(final Query[] queries) {
+    final ArrayList<Deferred<DataPoints[]>> deferreds =
+        new ArrayList<Deferred<DataPoints[]>>(queries.length);
+    for (final Query query : queries) {
+      deferreds.add(query.runAsync());
+    }
+    return Deferred.groupInOrder(deferreds);
+  }
+
+  /**
+   * Runs the query on part of its range and copies the results. Downsampled
+   * results may spill over the range, so the copies are clipped to it
+   * except at the ends of the query's own range.
+   * @param query The query to run.
+   * @param built Holds the queries built by the caller until a range takes
+   * them, null afterwards.
+   * @param start The start of the range in milliseconds.
+   * @param end The end of the range in milliseconds, inclusive.
+   * @return A deferred resolving to the copied series of each sub query.
+   */
+  private Deferred<List<List<CachedDataPoints>>> runRange(
+      final TSQuery query, final Query[][] built, final long start,
+      final long end) {
+    final long from = start == query.startTime() ? Long.MIN_VALUE : start;
+    final long to = end == query.endTime() ? Long.MAX_VALUE : end + 1;
+    // a query can't run on a single millisecond, the extra one is clipped
+    final long run_start = start == end && end == query.endTime()
+        ? start - 1 : start;
+    final long run_end = start == end && end < query.endTime() ? end + 1 : end;
+
+    class CopyCB implements Callback<List<List<CachedDataPoints>>,
+        ArrayList<ArrayList<CachedDataPoints>>> {
+      @Override
+      public List<List<CachedDataPoints>> call(
+          final ArrayList<ArrayList<CachedDataPoints>> copies) {
+        return new ArrayList<List<CachedDataPoints>>(copies);
+      }
+      @Override
+      public String toString() {
+        return "Query cache copy callback";
+      }
+    }
+
+    class ResultsCB implements Callback<Deferred<List<List<CachedDataPoints>>>,
+        ArrayList<DataPoints[]>> {
+      @Override
+      public Deferred<List<List<CachedDataPoints>>> call(
+          final ArrayList<DataPoints[]> results) {
+        final List<Deferred<ArrayList<CachedDataPoints>>> copies =
+            new ArrayList<Deferred<ArrayList<CachedDataPoints>>>(
+                results.size());
+        for (final DataPoints[] series : results) {
+          final List<Deferred<CachedDataPoints>> deferreds =
+              new ArrayList<Deferred<CachedDataPoints>>(series.length);
+          for (final DataPoints dps : series) {
+            deferreds.add(CachedDataPoints.copy(dps, from, to));
+          }
+          copies.add(Deferred.groupInOrder(deferreds));
+        }
+        return Deferred.groupInOrder(copies).addCallback(new CopyCB());
+      }
+      @Override
+      public String toString() {
+        return "Query cache results callback";
+      }
+    }
+
+    class BuildCB implements Callback<Deferred<ArrayList<DataPoints[]>>,
+        Query[]> {
+      @Override
+      public Deferred<ArrayList<DataPoints[]>> call(final Query[] queries) {
+        for (final Query sub : queries) {
+          // the start first since the end must stay after it
+          sub.setStartTime(run_start);
+          sub.setEndTime(run_end);
+        }
+        return run(queries);
+      }
+      @Override
+      public String toString() {
+        return "Query cache build callback";
+      }
+    }
+
+    final Deferred<Query[]> queries;
+    if (built[0] != null) {
+      queries = Deferred.fromResult(built[0]);
+      built[0] = null;
+    } else {
+      queries = query.buildQueriesAsync(tsdb);
+    }
+    return queries.addCallbackDeferring(new BuildCB())
+        .addCallbackDeferring(new ResultsCB());
+  }
+
+  /** Splits the results of a range of slices and caches each slice. */
+  private final class StoreCB implements Callback<List<List<CachedDataPoints>>,
+      List<List<CachedDataPoints>>> {
+    private final String key;
+    private final long start;
+    private final long end;
+
+    StoreCB(final String key, final long start, final long end) {
+      this.key = key;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public List<List<CachedDataPoints>> call(
+        final List<List<CachedDataPoints>> results) {
+      for (long slice_start = start; slice_start < end;
+           slice_start += slice_interval) {
+        final List<List<CachedDataPoints>> slice =
+            new ArrayList<List<CachedDataPoints>>(results.size());
+        for (final List<CachedDataPoints> series : results) {
+          final List<CachedDataPoints> sliced =
+              new ArrayList<CachedDataPoints>(series.size());
+          for (final CachedDataPoints dps : series) {
+            final CachedDataPoints part = end - start == slice_interval
+                ? dps : dps.slice(slice_start, slice_start + slice_interval);
+            if (part != null) {
+              sliced.add(part);
+            }
+          }
+          slice.add(sliced);
+        }
+        slices.put(sliceKey(key, slice_start), new Slice(slice));
+      }
+      return results;
+    }
+
+    @Override
+    public String toString() {
+      return "Query cache store callback";
+    }
+  }
+
+  /** Stitches the parts of each series back together. */
+  private static final class StitchCB implements
+      Callback<ArrayList<DataPoints[]>, ArrayList<List<List<CachedDataPoints>>>> {
+    private final int num_queries;
+
+    StitchCB(final int num_queries) {
+      this.num_queries = num_queries;
+    }
+
+    @Override
+    public ArrayList<DataPoints[]> call(
+        final ArrayList<List<List<CachedDataPoints>>> parts) {
+      final ArrayList<DataPoints[]> results =
+          new ArrayList<DataPoints[]>(num_queries);
+      for (int i = 0; i < num_queries; i++) {
+        final Map<String, List<CachedDataPoints>> series =
+            new LinkedHashMap<String, List<CachedDataPoints>>();
+        for (final List<List<CachedDataPoints>> part : parts) {
+          for (final CachedDataPoints dps : part.get(i)) {
+            final String series_key = dps.seriesKey();
+            List<CachedDataPoints> pieces = series.get(series_key);
+            if (pieces == null) {
+              pieces = new ArrayList<CachedDataPoints>(parts.size());
+              series.put(series_key, pieces);
+            }
+            pieces.add(dps);
+          }
+        }
+        final DataPoints[] stitched = new DataPoints[series.size()];
+        int index = 0;
+        for (final List<CachedDataPoints> pieces : series.values()) {
+          stitched[index++] = CachedDataPoints.concat(pieces);
+        }
+        results.add(stitched);
+      }
+      return results;
+    }
+
+    @Override
+    public String toString() {
+      return "Query cache stitch callback";
+    }
+  }
+
+  /** The copied series of each sub query over a slice */
+  private static final class Slice {
+    private final List<List<CachedDataPoints>> results;
+    private final int weight;
+
+    Slice(final List<List<CachedDataPoints>> results) {
+      this.results = results;
+      int weight = 1;
+      for (final List<CachedDataPoints> series : results) {
+        for (final CachedDataPoints dps : series) {
+          weight += dps.weight();
+        }
+      }
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * Builds the cache key of a query from everything but its time range. Each
+   * user supplied string is prefixed with its length so the key stays
+   * unambiguous.
+   * @param query The validated query.
+   * @return The key of the query.
+   */
+  static String queryKey(final TSQuery query) {
+    final StringBuilder buf = new StringBuilder(128);
+    buf.append(query.getTimezone()).append('|')
+       .append(query.getMsResolution()).append('|')
+       .append(query.getShowTSUIDs()).append('|')
+       .append(query.getNoAnnotations());
+    for (final TSSubQuery sub : query.getQueries()) {
+      buf.append("|q|");
+      append(buf, sub.getMetric());
+      if (sub.getTsuids() != null) {
+        for (final String tsuid : sub.getTsuids()) {
+          append(buf, tsuid);
+        }
+      }
+      buf.append('|');
+      append(buf, sub.getAggregator());
+      append(buf, sub.getDownsample());
+      buf.append(sub.getExplicitTags()).append('|')
+         .append(sub.isPreAggregate()).append('|')
+         .append(sub.getRollupUsage());
+      if (sub.getFilters() != null) {
+        for (final TagVFilter filter : sub.getFilters()) {
+          buf.append("|f|");
+          append(buf, filter.getType());
+          append(buf, filter.getTagk());
+          append(buf, filter.getFilter());
+          buf.append(filter.isGroupBy());
+        }
+      }
+    }
+    return buf.toString();
+  }
+
+  private static void append(final StringBuilder buf, final String value) {
+    if (value == null) {
+      buf.append("-1:");
+    } else {
+      buf.append(value.length()).append(':').append(value);
+    }
+  }
+
+  private static String sliceKey(final String key, final long start) {
+    return start + "@" + key;
+  }
+
+  /** Drops all the cached slices, e.g. after data was written in the past */
+  public void clear() {
+    slices.invalidateAll();
+  }
+
+  /** @return The number of slices cached */
+  long size() {
+    return slices.size();
+  }
+
+  /** @return The hit, miss and eviction counts of slices since startup */
+  CacheStats stats() {
+    return slices.stats();
+  }
+
+  /**
+   * Records the cache stats.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    final CacheStats stats = slices.stats();
+    collector.record("query.cache.slices", stats.hitCount(), "type=hit");
+    collector.record("query.cache.slices", stats.missCount(), "type=miss");
+    collector.record("query.cache.slices", stats.evictionCount(),
+        "type=evicted");
+    collector.record("query.cache.size", slices.size());
+    collector.record("query.cache.uncacheable", uncacheable);
+  }
+}
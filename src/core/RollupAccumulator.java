@@ -0,0 +1,586 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.rollup.NoSuchRollupForIntervalException;
+import net.opentsdb.rollup.RollupConfig;
+import net.opentsdb.rollup.RollupInterval;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Computes rollups from the raw data points as they are written, so the
+ * rollup tables are populated without a separate job posting to
+ * {@code /api/rollup}. For each series and each rollup interval a window
+ * keeps the sum, count, min and max of the data points falling in it. Once
+ * the interval is over and {@code tsd.rollups.ingest.flush_delay} ms have
+ * passed to let stragglers in, the window is written to the rollup table
+ * with {@link TSDB#addAggregatePoint}, one value per aggregator among
+ * those four that has an ID in the rollup config.
+ * <p>
+ * If {@code tsd.rollups.ingest.groupby_drop_tags} lists tag keys, the same
+ * windows are also kept per group of series sharing the remaining tags and
+ * written to the pre-aggregate tables of the intervals, the group by
+ * aggregator being the rollup aggregator.
+ * <p>
+ * A data point arriving after its window was written is dropped and counted
+ * as late, as is a data point that would open a window past
+ * {@code tsd.rollups.ingest.max_windows}. The windows only live in memory so
+ * the ones still open when a TSD dies are lost, and data points replayed
+ * from a spool or backfilled later than the delay are late.
+ * <p>
+ * The windows are kept per TSD and written as complete values, so this only
+ * holds if every data point of a series, and of every series of a group by
+ * set when pre-aggregating, is written through the same TSD. If several TSDs
+ * ingest the same series, e.g. behind a round robin load balancer, each
+ * writes its partial sum, count, min and max to the same rollup cell and the
+ * last one wins. Writers must therefore be routed by series, or by the tags
+ * left once {@code tsd.rollups.ingest.groupby_drop_tags} are dropped, and
+ * {@code tsd.rollups.ingest.routed} set to confirm it. Data points written
+ * with bulk imports or directly to storage aren't seen either.
+ * @since 2.4
+ */
+final class RollupAccumulator implements TimerTask {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(RollupAccumulator.class);
+
+  /** The aggregators that can be computed from a window */
+  private static final String[] AGGREGATORS = { "sum", "count", "min", "max" };
+
+  private final TSDB tsdb;
+  private final List<RollupInterval> intervals;
+  private final List<String> aggregators;
+  private final Set<String> groupby_drop_tags;
+  private final String agg_tag_key;
+  private final long flush_delay;
+  private final long flush_interval;
+  private final int max_windows;
+
+  /** The open windows */
+  private final ConcurrentHashMap<WindowKey, Window> windows =
+      new ConcurrentHashMap<WindowKey, Window>();
+  /** The number of windows in the map, cheaper than its size */
+  private final AtomicInteger open_windows = new AtomicInteger();
+  /** The time of the last flush, windows closing at or before it are late */
+  private final AtomicLong flushed_until = new AtomicLong(Long.MIN_VALUE);
+
+  /** Set once shutdown to stop rescheduling the flush */
+  private volatile boolean stopped;
+
+  private final AtomicLong datapoints_added = new AtomicLong();
+  private final AtomicLong datapoints_late = new AtomicLong();
+  private final AtomicLong datapoints_dropped = new AtomicLong();
+  private final AtomicLong windows_flushed = new AtomicLong();
+  private final AtomicLong write_errors = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param tsdb The TSDB to write the rollups with.
+   * @param rollup_config The rollup config, may not be null.
+   * @param config The config to load the settings from.
+   * @throws IllegalArgumentException if a setting is invalid, an interval
+   * isn't configured or none of the aggregators has an ID
+   */
+  RollupAccumulator(final TSDB tsdb, final RollupConfig rollup_config,
+      final Config config) {
+    this.tsdb = tsdb;
+    if (!config.getBoolean("tsd.rollups.ingest.routed")) {
+      throw new IllegalArgumentException("Computing rollups at ingest requires "
+          + "the writes of a series to go to a single TSD, set "
+          + "tsd.rollups.ingest.routed to confirm they are routed so");
+    }
+    flush_delay = config.getLong("tsd.rollups.ingest.flush_delay");
+    if (flush_delay < 0) {
+      throw new IllegalArgumentException("The rollup flush delay can't be "
+          + "negative: " + flush_delay);
+    }
+    flush_interval = config.getLong("tsd.rollups.ingest.flush_interval");
+    if (flush_interval < 1) {
+      throw new IllegalArgumentException("The rollup flush interval must be "
+          + "at least 1 ms: " + flush_interval);
+    }
+    max_windows = config.getInt("tsd.rollups.ingest.max_windows");
+    if (max_windows < 1) {
+      throw new IllegalArgumentException("The max rollup windows must be at "
+          + "least 1: " + max_windows);
+    }
+    agg_tag_key = config.getString("tsd.rollups.agg_tag_key");
+
+    intervals = new ArrayList<RollupInterval>();
+    final String names = config.getString("tsd.rollups.ingest.intervals");
+    if (Strings.isNullOrEmpty(names)) {
+      for (final RollupInterval interval : rollup_config.getIntervals()) {
+        if (!interval.isDefaultInterval()) {
+          intervals.add(interval);
+        }
+      }
+    } else {
+      for (final String name : names.split(",")) {
+        if (name.trim().isEmpty()) {
+          continue;
+        }
+        final RollupInterval interval;
+        try {
+          interval = rollup_config.getRollupInterval(name.trim());
+        } catch (NoSuchRollupForIntervalException e) {
+          throw new IllegalArgumentException("Unknown rollup interval: "
+              + name, e);
+        }
+        if (interval.isDefaultInterval()) {
+          throw new IllegalArgumentException("The default rollup interval is "
+              + "the raw data and can't be computed: " + name);
+        }
+        intervals.add(interval);
+      }
+    }
+
+    aggregators = new ArrayList<String>(AGGREGATORS.length);
+    for (final String aggregator : AGGREGATORS) {
+      if (rollup_config.getAggregationIds().containsKey(aggregator)) {
+        aggregators.add(aggregator);
+      }
+    }
+    if (aggregators.isEmpty()) {
+      throw new IllegalArgumentException("None of the aggregators "
+          + "sum, count, min or max have a rollup ID");
+    }
+
+    final String drop_tags = config.getString(
+        "tsd.rollups.ingest.groupby_drop_tags");
+    if (Strings.isNullOrEmpty(drop_tags)) {
+      groupby_drop_tags = Collections.emptySet();
+    } else {
+      groupby_drop_tags = new HashSet<String>();
+      for (final String tagk : drop_tags.split(",")) {
+        if (!tagk.trim().isEmpty()) {
+          groupby_drop_tags.add(tagk.trim());
+        }
+      }
+    }
+  }
+
+  /** Schedules the first flush. */
+  void start() {
+    LOG.warn("Computing rollups for " + intervals.size() + " intervals at "
+        + "ingest, they are only correct if all the writes of a series"
+        + (groupby_drop_tags.isEmpty() ? "" : " or group by set")
+        + " go through this TSD");
+    tsdb.getTimer().newTimeout(this, flush_interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Adds an integer data point to the windows of its series.
+   * @param metric The metric.
+   * @param timestamp The timestamp in seconds or milliseconds.
+   * @param value The value.
+   * @param tags The tags, copied.
+   */
+  void add(final String metric, final long timestamp, final long value,
+      final Map<String, String> tags) {
+    add(metric, timestamp, value, 0, true, tags);
+  }
+
+  /**
+   * Adds a floating point data point to the windows of its series.
+   * @param metric The metric.
+   * @param timestamp The timestamp in seconds or milliseconds.
+   * @param value The value.
+   * @param tags The tags, copied.
+   */
+  void add(final String metric, final long timestamp, final double value,
+      final Map<String, String> tags) {
+    add(metric, timestamp, 0, value, false, tags);
+  }
+
+  /** Called by the timer to write the closed windows. */
+  @Override
+  public void run(final Timeout timeout) {
+    if (stopped) {
+      return;
+    }
+    try {
+      flush(DateTime.currentTimeMillis());
+    } catch (RuntimeException e) {
+      LOG.error("Failed to flush the rollup windows", e);
+    } finally {
+      if (!stopped) {
+        start();
+      }
+    }
+  }
+
+  /**
+   * Writes the windows closed at the given time.
+   * @param now The current time in milliseconds.
+   * @return A deferred called back once the writes are done, never in error.
+   */
+  Deferred<Object> flush(final long now) {
+    // raised before the scan so an add racing with it can't reopen a window
+    // once written, see addToWindow()
+    long flushed = flushed_until.get();
+    while (flushed < now && !flushed_until.compareAndSet(flushed, now)) {
+      flushed = flushed_until.get();
+    }
+
+    final List<Deferred<Object>> deferreds = new ArrayList<Deferred<Object>>();
+    final Iterator<Map.Entry<WindowKey, Window>> iterator =
+        windows.entrySet().iterator();
+    while (iterator.hasNext()) {
+      final Map.Entry<WindowKey, Window> entry = iterator.next();
+      if (entry.getKey().flushAt(flush_delay) <= now
+          && windows.remove(entry.getKey(), entry.getValue())) {
+        open_windows.decrementAndGet();
+        write(entry.getKey(), entry.getValue(), deferreds);
+      }
+    }
+    return group(deferreds);
+  }
+
+  /**
+   * Stops the flush timer and writes all the windows, open or not.
+   * @return A deferred called back once the writes are done, never in error.
+   */
+  Deferred<Object> shutdown() {
+    stopped = true;
+    return flush(Long.MAX_VALUE);
+  }
+
+  /** @return The number of open windows. */
+  int openWindows() {
+    return open_windows.get();
+  }
+
+  /**
+   * Records the rollup stats.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("rollup.ingest.windows", open_windows.get());
+    collector.record("rollup.ingest.flushed", windows_flushed);
+    collector.record("rollup.ingest.datapoints", datapoints_added,
+        "type=added");
+    collector.record("rollup.ingest.datapoints", datapoints_late, "type=late");
+    collector.record("rollup.ingest.datapoints", datapoints_dropped,
+        "type=dropped");
+    collector.record("rollup.ingest.errors", write_errors);
+  }
+
+  /** Adds the value to the series and group windows of each interval. */
+  private void add(final String metric, final long timestamp,
+      final long long_value, final double double_value,
+      final boolean is_integer, final Map<String, String> tags) {
+    final long seconds = (timestamp & Const.SECOND_MASK) != 0
+        ? timestamp / 1000 : timestamp;
+    final long now = DateTime.currentTimeMillis();
+
+    final TreeMap<String, String> series_tags =
+        new TreeMap<String, String>(tags);
+    series_tags.remove(agg_tag_key);
+    TreeMap<String, String> group_tags = null;
+    if (!groupby_drop_tags.isEmpty()) {
+      group_tags = new TreeMap<String, String>(series_tags);
+      group_tags.keySet().removeAll(groupby_drop_tags);
+    }
+
+    for (final RollupInterval interval : intervals) {
+      final long start = seconds - (seconds % interval.getIntervalSeconds());
+      final WindowKey series = new WindowKey(metric, series_tags, interval,
+          start, false);
+      if (series.flushAt(flush_delay) <= now) {
+        datapoints_late.incrementAndGet();
+        continue;
+      }
+      addToWindow(series, long_value, double_value, is_integer);
+      if (group_tags != null) {
+        addToWindow(new WindowKey(metric, group_tags, interval, start, true),
+            long_value, double_value, is_integer);
+      }
+    }
+  }
+
+  /** Adds the value to the window, opening it if needed. */
+  private void addToWindow(final WindowKey key, final long long_value,
+      final double double_value, final boolean is_integer) {
+    Window window = windows.get(key);
+    if (window == null) {
+      if (open_windows.get() >= max_windows) {
+        datapoints_dropped.incrementAndGet();
+        return;
+      }
+      final Window opened = new Window();
+      window = windows.putIfAbsent(key, opened);
+      if (window == null) {
+        open_windows.incrementAndGet();
+        window = opened;
+      }
+    }
+    final boolean added;
+    synchronized (window) {
+      // An add that read the time before a flush may get here after the
+      // flush wrote the window, and would open a new one for the interval
+      // that would overwrite the rollup with a partial one. So check the
+      // flush time under the lock the flush writes with and drop the
+      // window if it's still empty.
+      if (key.flushAt(flush_delay) <= flushed_until.get()) {
+        added = false;
+        if (window.count < 1) {
+          window.closed = true;
+          if (windows.remove(key, window)) {
+            open_windows.decrementAndGet();
+          }
+        }
+      } else {
+        added = is_integer ? window.add(long_value) : window.add(double_value);
+      }
+    }
+    if (added) {
+      datapoints_added.incrementAndGet();
+    } else {
+      // flushed since we got it
+      datapoints_late.incrementAndGet();
+    }
+  }
+
+  /** Writes a value per aggregator for the window. */
+  private void write(final WindowKey key, final Window window,
+      final List<Deferred<Object>> deferreds) {
+    final long timestamp = key.start;
+    final String interval = key.interval.getInterval();
+    synchronized (window) {
+      window.closed = true;
+      if (window.count < 1) {
+        return;
+      }
+      for (final String aggregator : aggregators) {
+        final Map<String, String> tags =
+            new HashMap<String, String>(key.tags);
+        final String groupby_aggregator = key.is_groupby ? aggregator : null;
+        try {
+          final Deferred<Object> deferred;
+          if (aggregator.equals("count")) {
+            deferred = tsdb.addAggregatePoint(key.metric, timestamp,
+                window.count, tags, key.is_groupby, interval, aggregator,
+                groupby_aggregator);
+          } else if (window.is_integer) {
+            deferred = tsdb.addAggregatePoint(key.metric, timestamp,
+                window.longValue(aggregator), tags, key.is_groupby, interval,
+                aggregator, groupby_aggregator);
+          } else {
+            deferred = tsdb.addAggregatePoint(key.metric, timestamp,
+                window.doubleValue(aggregator), tags, key.is_groupby,
+                interval, aggregator, groupby_aggregator);
+          }
+          deferreds.add(deferred.addErrback(new ErrorCB(key, aggregator)));
+        } catch (RuntimeException e) {
+          new ErrorCB(key, aggregator).call(e);
+        }
+      }
+    }
+    windows_flushed.incrementAndGet();
+  }
+
+  /** @return A deferred waiting on all of the writes. */
+  private static Deferred<Object> group(final List<Deferred<Object>> deferreds) {
+    if (deferreds.isEmpty()) {
+      return Deferred.fromResult(null);
+    }
+    final class GroupCB implements Callback<Object, ArrayList<Object>> {
+      @Override
+      public Object call(final ArrayList<Object> results) {
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "rollup flush group callback";
+      }
+    }
+    return Deferred.group(deferreds).addCallback(new GroupCB());
+  }
+
+  /** Counts and logs a failed rollup write, swallowing the exception */
+  private final class ErrorCB implements Callback<Object, Exception> {
+    private final WindowKey key;
+    private final String aggregator;
+
+    ErrorCB(final WindowKey key, final String aggregator) {
+      this.key = key;
+      this.aggregator = aggregator;
+    }
+
+    @Override
+    public Object call(final Exception e) {
+      write_errors.incrementAndGet();
+      LOG.error("Failed to write the " + aggregator + " rollup of " + key, e);
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return "rollup write errback";
+    }
+  }
+
+  /** Identifies a window: a series or group, an interval and its start */
+  private static final class WindowKey {
+    final String metric;
+    final Map<String, String> tags;
+    final RollupInterval interval;
+    /** The start of the interval in seconds */
+    final long start;
+    final boolean is_groupby;
+    private final int hash;
+
+    WindowKey(final String metric, final Map<String, String> tags,
+        final RollupInterval interval, final long start,
+        final boolean is_groupby) {
+      this.metric = metric;
+      this.tags = tags;
+      this.interval = interval;
+      this.start = start;
+      this.is_groupby = is_groupby;
+      int h = metric.hashCode();
+      h = 31 * h + tags.hashCode();
+      h = 31 * h + interval.getIntervalSeconds();
+      h = 31 * h + (int) (start ^ (start >>> 32));
+      hash = is_groupby ? ~h : h;
+    }
+
+    /** @return When the window can be written, in milliseconds */
+    long flushAt(final long delay) {
+      return (start + interval.getIntervalSeconds()) * 1000 + delay;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof WindowKey)) {
+        return false;
+      }
+      final WindowKey other = (WindowKey) obj;
+      return hash == other.hash
+          && start == other.start
+          && is_groupby == other.is_groupby
+          && interval == other.interval
+          && metric.equals(other.metric)
+          && tags.equals(other.tags);
+    }
+
+    @Override
+    public String toString() {
+      return metric + tags + " at " + start + " over "
+          + interval.getInterval() + (is_groupby ? " grouped" : "");
+    }
+  }
+
+  /**
+   * The aggregates of a window, exact integers as long as all the values
+   * are integers. Guarded by itself.
+   */
+  private static final class Window {
+    boolean is_integer = true;
+    /** Set once written, the window takes no more values */
+    boolean closed;
+    long count;
+    long long_sum;
+    long long_min = Long.MAX_VALUE;
+    long long_max = Long.MIN_VALUE;
+    double double_sum;
+    double double_min = Double.POSITIVE_INFINITY;
+    double double_max = Double.NEGATIVE_INFINITY;
+
+    /** @return False if the window was written already */
+    synchronized boolean add(final long value) {
+      if (closed) {
+        return false;
+      }
+      if (!is_integer) {
+        addDouble(value);
+        return true;
+      }
+      long_sum += value;
+      long_min = Math.min(long_min, value);
+      long_max = Math.max(long_max, value);
+      count++;
+      return true;
+    }
+
+    /** @return False if the window was written already */
+    synchronized boolean add(final double value) {
+      if (closed) {
+        return false;
+      }
+      if (is_integer) {
+        is_integer = false;
+        double_sum = long_sum;
+        if (count > 0) {
+          double_min = long_min;
+          double_max = long_max;
+        }
+      }
+      addDouble(value);
+      return true;
+    }
+
+    private void addDouble(final double value) {
+      double_sum += value;
+      double_min = Math.min(double_min, value);
+      double_max = Math.max(double_max, value);
+      count++;
+    }
+
+    long longValue(final String aggregator) {
+      if (aggregator.equals("sum")) {
+        return long_sum;
+      }
+      return aggregator.equals("min") ? long_min : long_max;
+    }
+
+    double doubleValue(final String aggregator) {
+      if (aggregator.equals("sum")) {
+        return double_sum;
+      }
+      return aggregator.equals("min") ? double_min : double_max;
+    }
+  }
+}
@@ -0,0 +1,261 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.PutRequest;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Groups the data points written to the same row within a short window and
+ * writes them as a single {@link PutRequest} with one column per data point,
+ * instead of one RPC per data point each carrying the full row key. The
+ * columns are the same as with individual puts so compactions and queries
+ * aren't affected.
+ * <p>
+ * A row's batch is sent once it holds {@code max_points} data points or
+ * when the flush timer fires, {@code interval} milliseconds after the first
+ * data point was batched. The deferred returned for each data point is
+ * called back with the result of the batch's put, so errors still reach
+ * the storage exception handler of each data point.
+ * <p>
+ * Writing the same column twice in a batch would be ambiguous so the batch
+ * is sent before the second value is added, keeping the last write as the
+ * one stored like with individual puts.
+ * @since 2.4
+ */
+final class RowBatcher implements TimerTask {
+
+  /** Sorts the columns of a put by qualifier, as HBase does */
+  private static final Comparator<Column> QUALIFIER_CMP =
+      new Comparator<Column>() {
+    @Override
+    public int compare(final Column a, final Column b) {
+      return Bytes.memcmp(a.qualifier, b.qualifier);
+    }
+  };
+
+  private final TSDB tsdb;
+  private final int max_points;
+  private final long interval;
+
+  /** The batches not sent yet, keyed on the row. Guarded by this. */
+  private final ByteMap<Batch> batches = new ByteMap<Batch>();
+
+  /** Whether or not a flush is scheduled. Guarded by this. */
+  private boolean flush_scheduled;
+
+  private final AtomicLong puts_sent = new AtomicLong();
+  private final AtomicLong datapoints_batched = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param tsdb The TSDB to write with.
+   * @param max_points The number of data points at which a batch is sent.
+   * @param interval How long to wait for more data points, in milliseconds.
+   * @throws IllegalArgumentException if the max points or interval are less
+   * than 1
+   */
+  RowBatcher(final TSDB tsdb, final int max_points, final long interval) {
+    if (max_points < 1) {
+      throw new IllegalArgumentException("The max points per row batch must "
+          + "be at least 1: " + max_points);
+    }
+    if (interval < 1) {
+      throw new IllegalArgumentException("The row batch interval must be at "
+          + "least 1 ms: " + interval);
+    }
+    this.tsdb = tsdb;
+    this.max_points = max_points;
+    this.interval = interval;
+  }
+
+  /**
+   * Adds a data point to the batch of its row.
+   * @param row The complete row key, salted and with the base time.
+   * @param qualifier The column qualifier.
+   * @param value The column value.
+   * @return A deferred called back once the batch has been written.
+   */
+  Deferred<Object> add(final byte[] row, final byte[] qualifier,
+      final byte[] value) {
+    final Deferred<Object> deferred = new Deferred<Object>();
+    Batch full = null;
+    Batch duplicate = null;
+    boolean schedule = false;
+    synchronized (this) {
+      Batch batch = batches.get(row);
+      if (batch != null && batch.contains(qualifier)) {
+        duplicate = batches.remove(row);
+        batch = null;
+      }
+      if (batch == null) {
+        batch = new Batch(row);
+        batches.put(row, batch);
+      }
+      batch.columns.add(new Column(qualifier, value, deferred));
+      if (batch.columns.size() >= max_points) {
+        full = batches.remove(row);
+      }
+      if (!flush_scheduled && !batches.isEmpty()) {
+        flush_scheduled = true;
+        schedule = true;
+      }
+    }
+    datapoints_batched.incrementAndGet();
+    if (duplicate != null) {
+      send(duplicate);
+    }
+    if (full != null) {
+      send(full);
+    }
+    if (schedule) {
+      tsdb.getTimer().newTimeout(this, interval, TimeUnit.MILLISECONDS);
+    }
+    return deferred;
+  }
+
+  /** Sends all the pending batches to the HBase client. */
+  void flush() {
+    final List<Batch> pending;
+    synchronized (this) {
+      if (batches.isEmpty()) {
+        return;
+      }
+      pending = new ArrayList<Batch>(batches.values());
+      batches.clear();
+    }
+    for (final Batch batch : pending) {
+      send(batch);
+    }
+  }
+
+  /** Called by the timer to send the batches. */
+  @Override
+  public void run(final Timeout timeout) {
+    synchronized (this) {
+      flush_scheduled = false;
+    }
+    flush();
+  }
+
+  /** @return The number of rows with data points waiting to be sent. */
+  synchronized int pendingRows() {
+    return batches.size();
+  }
+
+  /**
+   * Records the batching stats.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("rowbatch.puts", puts_sent);
+    collector.record("rowbatch.datapoints", datapoints_batched);
+  }
+
+  /**
+   * Writes a batch and hands the result over to its data points.
+   * @param batch The batch to write.
+   */
+  private void send(final Batch batch) {
+    final int size = batch.columns.size();
+    final PutRequest put;
+    if (size == 1) {
+      final Column column = batch.columns.get(0);
+      put = new PutRequest(tsdb.table, batch.row, TSDB.FAMILY(),
+          column.qualifier, column.value);
+    } else {
+      Collections.sort(batch.columns, QUALIFIER_CMP);
+      final byte[][] qualifiers = new byte[size][];
+      final byte[][] values = new byte[size][];
+      for (int i = 0; i < size; i++) {
+        qualifiers[i] = batch.columns.get(i).qualifier;
+        values[i] = batch.columns.get(i).value;
+      }
+      put = new PutRequest(tsdb.table, batch.row, TSDB.FAMILY(), qualifiers,
+          values);
+    }
+    Deferred<Object> result;
+    try {
+      result = tsdb.client.put(put);
+    } catch (RuntimeException e) {
+      // the other batches of a flush still have to go out
+      result = Deferred.fromError(e);
+    }
+    puts_sent.incrementAndGet();
+
+    /** Passes the result of the put, or its exception, to each data point */
+    final class BatchCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object result) {
+        for (final Column column : batch.columns) {
+          column.deferred.callback(result);
+        }
+        return result;
+      }
+      @Override
+      public String toString() {
+        return "row batch callback";
+      }
+    }
+    result.addBoth(new BatchCB());
+  }
+
+  /** The data points of a row waiting to be sent */
+  private static final class Batch {
+    final byte[] row;
+    final ArrayList<Column> columns = new ArrayList<Column>();
+
+    Batch(final byte[] row) {
+      this.row = row;
+    }
+
+    boolean contains(final byte[] qualifier) {
+      for (final Column column : columns) {
+        if (Arrays.equals(column.qualifier, qualifier)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /** A data point in a batch */
+  private static final class Column {
+    final byte[] qualifier;
+    final byte[] value;
+    final Deferred<Object> deferred;
+
+    Column(final byte[] qualifier, final byte[] value,
+        final Deferred<Object> deferred) {
+      this.qualifier = qualifier;
+      this.value = value;
+      this.deferred = deferred;
+    }
+  }
+}
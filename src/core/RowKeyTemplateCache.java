@@ -0,0 +1,133 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Bounded cache of the row key templates built by
+ * {@link IncomingDataPoints#rowKeyTemplate} for the series written recently,
+ * keyed on the metric and the sorted tags. Most data points belong to a
+ * series seen moments before, so a hit skips the UID lookups and the key
+ * assembly and only costs a copy of the template.
+ * <p>
+ * A template has the salt and base time left as zeros, like the ones built
+ * from scratch. Callers get their own copy since they fill those in.
+ * Templates of series whose UIDs were renamed or deleted are only dropped
+ * on eviction or with {@link #clear}, the same as the UID caches.
+ * @since 2.4
+ */
+final class RowKeyTemplateCache {
+
+  /** The templates, keyed on the series' metric and sorted tags */
+  private final Cache<String, byte[]> templates;
+
+  /**
+   * Default ctor.
+   * @param max_size The maximum number of templates to keep.
+   * @throws IllegalArgumentException if the size is less than 1
+   */
+  RowKeyTemplateCache(final int max_size) {
+    if (max_size < 1) {
+      throw new IllegalArgumentException("The row key template cache size "
+          + "must be at least 1: " + max_size);
+    }
+    templates = CacheBuilder.newBuilder()
+        .maximumSize(max_size)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Returns a copy of the row key template of the series, building and
+   * caching it if needed.
+   * @param tsdb The TSDB to resolve UIDs with on a miss.
+   * @param metric The metric of the series.
+   * @param tags The tags of the series.
+   * @return A new row key with the salt and base time left to fill in.
+   * @throws NoSuchUniqueName if a name wasn't assigned a UID and can't be
+   * assigned one. Nothing is cached in this case.
+   */
+  byte[] get(final TSDB tsdb, final String metric,
+      final Map<String, String> tags) {
+    final String key = seriesKey(metric, tags);
+    byte[] template = templates.getIfPresent(key);
+    if (template == null) {
+      template = IncomingDataPoints.rowKeyTemplate(tsdb, metric, tags);
+      // we hand out a copy of a template built concurrently as well, both
+      // have the same UIDs
+      templates.put(key, template);
+    }
+    return template.clone();
+  }
+
+  /** Drops all the templates, e.g. after UIDs were renamed or deleted. */
+  void clear() {
+    templates.invalidateAll();
+  }
+
+  /** @return The number of templates cached. */
+  long size() {
+    return templates.size();
+  }
+
+  /** @return The hit, miss and eviction counts since startup. */
+  CacheStats stats() {
+    return templates.stats();
+  }
+
+  /**
+   * Records the cache stats.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    final CacheStats stats = templates.stats();
+    collector.record("rowkey.cache-hit", stats.hitCount());
+    collector.record("rowkey.cache-miss", stats.missCount());
+    collector.record("rowkey.cache-evictions", stats.evictionCount());
+    collector.record("rowkey.cache-size", templates.size());
+  }
+
+  /**
+   * Builds the cache key of a series. Each name is prefixed with its length
+   * so the key stays unambiguous whatever special characters are allowed.
+   * @param metric The metric of the series.
+   * @param tags The tags of the series.
+   * @return The metric followed by the tags sorted by name.
+   */
+  static String seriesKey(final String metric, final Map<String, String> tags) {
+    final SortedMap<String, String> sorted = tags instanceof SortedMap
+        && ((SortedMap<String, String>) tags).comparator() == null
+        ? (SortedMap<String, String>) tags : new TreeMap<String, String>(tags);
+    final StringBuilder buf = new StringBuilder(metric.length() + 4 +
+        tags.size() * 32);
+    append(buf, metric);
+    for (final Map.Entry<String, String> tag : sorted.entrySet()) {
+      append(buf, tag.getKey());
+      append(buf, tag.getValue());
+    }
+    return buf.toString();
+  }
+
+  private static void append(final StringBuilder buf, final String name) {
+    buf.append(name.length()).append(':').append(name);
+  }
+}
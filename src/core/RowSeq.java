@@ -524,7 +524,7 @@ public final class RowSeq implements iRowSeq {
   }
   
   /** Iterator for {@link RowSeq}s.  */
-  final class Iterator implements iRowSeq.Iterator {
+  final class Iterator implements iRowSeq.Iterator, BatchedSeekableView {
 
     /** Current qualifier.  */
     private int qualifier;
@@ -571,6 +571,33 @@ public final class RowSeq implements iRowSeq {
       throw new UnsupportedOperationException();
     }
 
+    // ----------------------------- //
+    // BatchedSeekableView interface //
+    // ----------------------------- //
+
+    public int nextBatch(final DataPointBatch batch) {
+      final int start = batch.size();
+      while (qual_index < qualifiers.length && !batch.isFull()) {
+        if (Internal.inMilliseconds(qualifiers[qual_index])) {
+          qualifier = Bytes.getInt(qualifiers, qual_index);
+          qual_index += 4;
+        } else {
+          qualifier = Bytes.getUnsignedShort(qualifiers, qual_index);
+          qual_index += 2;
+        }
+        final byte flags = (byte) qualifier;
+        if ((qualifier & Const.FLAG_FLOAT) == 0x0) {
+          batch.add(timestamp(), 
+              extractIntegerValue(values, value_index, flags), 1);
+        } else {
+          batch.add(timestamp(), 
+              extractFloatingPointValue(values, value_index, flags), 1);
+        }
+        value_index += (flags & Const.LENGTH_MASK) + 1;
+      }
+      return batch.size() - start;
+    }
+
     // ---------------------- //
     // SeekableView interface //
     // ---------------------- //
@@ -736,6 +736,9 @@ public class SaltScanner {
       if (delete) {
         final DeleteRequest del = new DeleteRequest(tsdb.dataTable(), key);
         tsdb.getClient().delete(del);
+        if (tsdb.getLastValueCache() != null) {
+          tsdb.getLastValueCache().evict(key);
+        }
       }
       
       List<HistogramDataPoint> hists = new ArrayList<HistogramDataPoint>();
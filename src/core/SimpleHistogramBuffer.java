@@ -0,0 +1,382 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+
+import org.hbase.async.Bytes;
+
+/**
+ * A {@link SimpleHistogram} held in primitive arrays for the write path.
+ * It reads and writes the exact same encoding as
+ * {@link SimpleHistogram#histogram(boolean)} but without a Kryo stream, a
+ * {@code TreeMap} or a boxed bucket and count per entry, so validating and
+ * re-encoding an incoming histogram allocates little more than the arrays
+ * and the output.
+ * <p>
+ * Buckets are kept sorted on their lower then upper bounds like the
+ * {@code TreeMap} of the simple histogram. Adding a bucket with the bounds
+ * of an existing one replaces its count, merging another histogram sums
+ * the counts.
+ * <p>
+ * This class is not thread safe.
+ * @since 2.4
+ */
+public final class SimpleHistogramBuffer {
+  /** The ID of the simple histogram codec */
+  private final int id;
+
+  private float[] lower_bounds;
+  private float[] upper_bounds;
+  private long[] counts;
+
+  /** The number of buckets in use */
+  private int size;
+
+  private long underflow;
+  private long overflow;
+
+  /**
+   * Default ctor.
+   * @param id The ID of the simple histogram codec.
+   */
+  public SimpleHistogramBuffer(final int id) {
+    this(id, 16);
+  }
+
+  /**
+   * Ctor with an initial bucket capacity.
+   * @param id The ID of the simple histogram codec.
+   * @param capacity The number of buckets to allocate room for.
+   */
+  private SimpleHistogramBuffer(final int id, final int capacity) {
+    this.id = id;
+    lower_bounds = new float[capacity];
+    upper_bounds = new float[capacity];
+    counts = new long[capacity];
+  }
+
+  /**
+   * Decodes a histogram encoded by {@link SimpleHistogram#histogram(boolean)}
+   * or {@link #encode(boolean)}. Bytes past the overflow count are ignored.
+   * @param id The ID of the simple histogram codec.
+   * @param raw The encoded histogram.
+   * @param includes_id Whether or not the first byte is the codec ID.
+   * @return The decoded histogram.
+   * @throws IllegalArgumentException if the data is null or truncated or has
+   * a negative number of buckets.
+   */
+  public static SimpleHistogramBuffer decode(final int id,
+                                             final byte[] raw,
+                                             final boolean includes_id) {
+    if (raw == null) {
+      throw new IllegalArgumentException("The data array cannot be null.");
+    }
+    int offset = includes_id ? 1 : 0;
+    if (raw.length < offset + 4) {
+      throw new IllegalArgumentException("Histogram data too short: "
+          + Bytes.pretty(raw));
+    }
+    final int buckets = (short) ((raw[offset] << 8) | (raw[offset + 1] & 0xFF));
+    offset += 2;
+    if (buckets < 0) {
+      throw new IllegalArgumentException("Negative number of buckets "
+          + buckets + " in histogram: " + Bytes.pretty(raw));
+    }
+    final SimpleHistogramBuffer histogram =
+        new SimpleHistogramBuffer(id, Math.max(1, buckets));
+    final int[] position = { offset };
+    for (int i = 0; i < buckets; i++) {
+      if (position[0] + 9 > raw.length) {
+        throw truncated(raw);
+      }
+      final float lower = Float.intBitsToFloat(
+          Bytes.getInt(raw, position[0]));
+      final float upper = Float.intBitsToFloat(
+          Bytes.getInt(raw, position[0] + 4));
+      position[0] += 8;
+      histogram.addBucket(lower, upper, readVarLong(raw, position));
+    }
+    histogram.underflow = readVarLong(raw, position);
+    histogram.overflow = readVarLong(raw, position);
+    return histogram;
+  }
+
+  /**
+   * Adds a bucket or replaces the count of the bucket with the same bounds.
+   * Adding buckets in order is the cheapest.
+   * @param lower The lower bound.
+   * @param upper The upper bound.
+   * @param count The count.
+   */
+  public void addBucket(final float lower, final float upper, final long count) {
+    if (size == 0 || compare(size - 1, lower, upper) < 0) {
+      insert(size, lower, upper, count);
+      return;
+    }
+    final int index = search(lower, upper);
+    if (index >= 0) {
+      counts[index] = count;
+    } else {
+      insert(-(index + 1), lower, upper, count);
+    }
+  }
+
+  /**
+   * Adds the buckets, underflow and overflow of another histogram to this one,
+   * summing the counts of the buckets with the same bounds.
+   * @param other A non-null histogram to merge.
+   */
+  public void merge(final SimpleHistogramBuffer other) {
+    underflow += other.underflow;
+    overflow += other.overflow;
+    if (sameBuckets(other)) {
+      // same layout, the common case for a series
+      for (int i = 0; i < size; i++) {
+        counts[i] += other.counts[i];
+      }
+      return;
+    }
+
+    final int capacity = size + other.size;
+    final float[] lowers = new float[capacity];
+    final float[] uppers = new float[capacity];
+    final long[] merged = new long[capacity];
+    int i = 0;
+    int j = 0;
+    int k = 0;
+    while (i < size || j < other.size) {
+      final int cmp;
+      if (i == size) {
+        cmp = 1;
+      } else if (j == other.size) {
+        cmp = -1;
+      } else {
+        cmp = compare(i, other.lower_bounds[j], other.upper_bounds[j]);
+      }
+      if (cmp <= 0) {
+        lowers[k] = lower_bounds[i];
+        uppers[k] = upper_bounds[i];
+        merged[k] = counts[i++];
+        if (cmp == 0) {
+          merged[k] += other.counts[j++];
+        }
+      } else {
+        lowers[k] = other.lower_bounds[j];
+        uppers[k] = other.upper_bounds[j];
+        merged[k] = other.counts[j++];
+      }
+      k++;
+    }
+    lower_bounds = lowers;
+    upper_bounds = uppers;
+    counts = merged;
+    size = k;
+  }
+
+  /**
+   * Encodes the histogram the same way as
+   * {@link SimpleHistogram#histogram(boolean)}.
+   * @param include_id Whether or not to prepend the codec ID.
+   * @return The encoded histogram.
+   */
+  public byte[] encode(final boolean include_id) {
+    int length = (include_id ? 1 : 0) + 2 + varLongLength(underflow)
+        + varLongLength(overflow);
+    for (int i = 0; i < size; i++) {
+      length += 8 + varLongLength(counts[i]);
+    }
+    final byte[] encoded = new byte[length];
+    int offset = 0;
+    if (include_id) {
+      encoded[offset++] = (byte) id;
+    }
+    encoded[offset++] = (byte) (size >>> 8);
+    encoded[offset++] = (byte) size;
+    for (int i = 0; i < size; i++) {
+      Bytes.setInt(encoded, Float.floatToIntBits(lower_bounds[i]), offset);
+      Bytes.setInt(encoded, Float.floatToIntBits(upper_bounds[i]), offset + 4);
+      offset = writeVarLong(encoded, offset + 8, counts[i]);
+    }
+    offset = writeVarLong(encoded, offset, underflow);
+    writeVarLong(encoded, offset, overflow);
+    return encoded;
+  }
+
+  /** @return The ID of the simple histogram codec. */
+  public int getId() {
+    return id;
+  }
+
+  /** @return The number of buckets. */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param index A bucket index less than {@link #size()}.
+   * @return The lower bound of the bucket.
+   */
+  public float lowerBound(final int index) {
+    return lower_bounds[index];
+  }
+
+  /**
+   * @param index A bucket index less than {@link #size()}.
+   * @return The upper bound of the bucket.
+   */
+  public float upperBound(final int index) {
+    return upper_bounds[index];
+  }
+
+  /**
+   * @param index A bucket index less than {@link #size()}.
+   * @return The count of the bucket.
+   */
+  public long count(final int index) {
+    return counts[index];
+  }
+
+  public long getUnderflow() {
+    return underflow;
+  }
+
+  public void setUnderflow(final long underflow) {
+    this.underflow = underflow;
+  }
+
+  public long getOverflow() {
+    return overflow;
+  }
+
+  public void setOverflow(final long overflow) {
+    this.overflow = overflow;
+  }
+
+  /** @return Whether or not the other histogram has the same buckets. */
+  private boolean sameBuckets(final SimpleHistogramBuffer other) {
+    if (size != other.size) {
+      return false;
+    }
+    for (int i = 0; i < size; i++) {
+      if (compare(i, other.lower_bounds[i], other.upper_bounds[i]) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Compares the bucket at the index to the bounds, as the buckets do. */
+  private int compare(final int index, final float lower, final float upper) {
+    final int cmp = Float.compare(lower_bounds[index], lower);
+    return cmp != 0 ? cmp : Float.compare(upper_bounds[index], upper);
+  }
+
+  /** @return The index of the bucket or (-(insertion point) - 1). */
+  private int search(final float lower, final float upper) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final int cmp = compare(mid, lower, upper);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  private void insert(final int index, final float lower, final float upper,
+                      final long count) {
+    if (size == counts.length) {
+      final int capacity = Math.max(16, size * 2);
+      lower_bounds = Arrays.copyOf(lower_bounds, capacity);
+      upper_bounds = Arrays.copyOf(upper_bounds, capacity);
+      counts = Arrays.copyOf(counts, capacity);
+    }
+    if (index < size) {
+      System.arraycopy(lower_bounds, index, lower_bounds, index + 1, size - index);
+      System.arraycopy(upper_bounds, index, upper_bounds, index + 1, size - index);
+      System.arraycopy(counts, index, counts, index + 1, size - index);
+    }
+    lower_bounds[index] = lower;
+    upper_bounds[index] = upper;
+    counts[index] = count;
+    size++;
+  }
+
+  /**
+   * Reads a Kryo variable length positive long: 7 bits per byte with the
+   * high bit set if another byte follows, the 9th byte holding 8 bits.
+   * @param raw The data.
+   * @param position A one element array with the offset to read at, moved
+   * past the value.
+   * @return The value.
+   * @throws IllegalArgumentException if the data is truncated
+   */
+  private static long readVarLong(final byte[] raw, final int[] position) {
+    int offset = position[0];
+    long value = 0;
+    for (int shift = 0; shift < 56; shift += 7) {
+      if (offset >= raw.length) {
+        throw truncated(raw);
+      }
+      final byte b = raw[offset++];
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        position[0] = offset;
+        return value;
+      }
+    }
+    if (offset >= raw.length) {
+      throw truncated(raw);
+    }
+    value |= (long) (raw[offset++] & 0xFF) << 56;
+    position[0] = offset;
+    return value;
+  }
+
+  /** @return The new offset after writing the value as Kryo does. */
+  private static int writeVarLong(final byte[] buf, int offset, long value) {
+    for (int i = 0; i < 8; i++) {
+      if ((value >>> 7) == 0) {
+        buf[offset++] = (byte) value;
+        return offset;
+      }
+      buf[offset++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buf[offset++] = (byte) value;
+    return offset;
+  }
+
+  /** @return The number of bytes the value is written on, from 1 to 9. */
+  private static int varLongLength(final long value) {
+    int length = 1;
+    long remaining = value >>> 7;
+    while (remaining != 0 && length < 9) {
+      length++;
+      remaining >>>= 7;
+    }
+    return length;
+  }
+
+  private static IllegalArgumentException truncated(final byte[] raw) {
+    return new IllegalArgumentException("Truncated histogram data: "
+        + Bytes.pretty(raw));
+  }
+}
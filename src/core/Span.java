@@ -401,7 +401,7 @@ public class Span implements DataPoints {
   }
 
   /** Iterator for {@link Span}s. */
-  final class Iterator implements SeekableView {
+  final class Iterator implements BatchedSeekableView {
 
     /** Index of the {@link RowSeq} we're currently at, in {@code rows}. */
     private int row_index;
@@ -456,6 +456,23 @@ public class Span implements DataPoints {
       throw new UnsupportedOperationException();
     }
 
+    // ----------------------------- //
+    // BatchedSeekableView interface //
+    // ----------------------------- //
+
+    @Override
+    public int nextBatch(final DataPointBatch batch) {
+      final int start = batch.size();
+      while (!batch.isFull() && hasNext()) {
+        if (current_row instanceof BatchedSeekableView) {
+          ((BatchedSeekableView) current_row).nextBatch(batch);
+        } else {
+          batch.add(current_row.next());
+        }
+      }
+      return batch.size() - start;
+    }
+
     // ---------------------- //
     // SeekableView interface //
     // ---------------------- //
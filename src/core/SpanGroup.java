@@ -20,6 +20,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hbase.async.Bytes;
 import org.hbase.async.Bytes.ByteMap;
@@ -110,6 +111,9 @@ final class SpanGroup implements DataPoints {
   /** The TSDB to which we belong, used for resolution */
   private final TSDB tsdb;
   
+  /** The aggregated data points once {@link #materialize} ran, or null. */
+  private volatile List<DataPointBatch> materialized;
+  
   /**
    * Ctor.
    * @param tsdb The TSDB we belong to.
@@ -299,6 +303,7 @@ final class SpanGroup implements DataPoints {
       throw new AssertionError("The set of tags has already been computed"
                                + ", you can't add more Spans to " + this);
     }
+    materialized = null;
 
     // normalize timestamps to milliseconds for proper comparison
     final long start = (start_time & Const.SECOND_MASK) == 0 ? 
@@ -525,6 +530,67 @@ final class SpanGroup implements DataPoints {
   }
 
   public SeekableView iterator() {
+    final List<DataPointBatch> batches = materialized;
+    if (batches != null) {
+      return new DataPointBatchesView(batches);
+    }
+    return aggregate();
+  }
+
+  /**
+   * Runs the aggregation to completion and keeps the resulting data points,
+   * so that the following iterations only read them. This lets the CPU 
+   * heavy part of a query run on a worker thread ahead of serialization.
+   * Calling it again once the group is materialized is a no-op.
+   * @return The number of aggregated data points.
+   */
+  int materialize() {
+    return materialize(null);
+  }
+
+  /**
+   * Same as {@link #materialize()} but bounded by a budget of data points
+   * shared with other groups. The capacity of each batch is taken from the 
+   * budget before the batch is allocated. If the budget runs out the batches
+   * are dropped, their capacity handed back, and the group stays lazy so 
+   * it's aggregated while it's serialized instead.
+   * @param budget The number of data points that can still be buffered, 
+   * null for no limit.
+   * @return The number of aggregated data points or -1 if the budget ran 
+   * out.
+   */
+  int materialize(final AtomicLong budget) {
+    List<DataPointBatch> batches = materialized;
+    if (batches == null) {
+      batches = new ArrayList<DataPointBatch>();
+      final SeekableView it = aggregate();
+      DataPointBatch batch = null;
+      long reserved = 0;
+      while (it.hasNext()) {
+        if (batch == null || batch.isFull()) {
+          if (budget != null) {
+            if (budget.addAndGet(-DataPointBatch.DEFAULT_CAPACITY) < 0) {
+              budget.addAndGet(reserved + DataPointBatch.DEFAULT_CAPACITY);
+              return -1;
+            }
+            reserved += DataPointBatch.DEFAULT_CAPACITY;
+          }
+          batch = new DataPointBatch();
+          batches.add(batch);
+        }
+        batch.add(it.next());
+      }
+      materialized = batches;
+    }
+    int size = 0;
+    for (final DataPointBatch batch : batches) {
+      size += batch.size();
+    }
+    return size;
+  }
+
+  /** @return A new iterator running the aggregation over the spans. */
+  private SeekableView aggregate() {
     return AggregationIterator.create(spans, start_time, end_time, aggregator,
                                   aggregator.interpolationMethod(),
                                   downsampler, query_start, query_end,
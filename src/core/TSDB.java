@@ -22,6 +22,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Strings;
@@ -50,9 +51,11 @@ import org.jboss.netty.util.Timer;
 import net.opentsdb.auth.Authentication;
 import net.opentsdb.tree.TreeBuilder;
 import net.opentsdb.tsd.RTPublisher;
+import net.opentsdb.tsd.SpoolingStorageExceptionHandler;
 import net.opentsdb.tsd.StorageExceptionHandler;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UidCacheSnapshot;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.uid.UniqueIdFilterPlugin;
 import net.opentsdb.uid.UniqueId.UniqueIdType;
@@ -142,6 +145,37 @@ public final class TSDB {
    */
   private final CompactionQueue compactionq;
 
+  /** Snapshots of the UID caches if enabled, null otherwise. */
+  private final UidCacheSnapshot uid_snapshot;
+
+  /** Aggregates query results off the I/O threads if enabled, null otherwise */
+  private final ExecutorService query_executor;
+
+  /** Row key templates of the series written recently if enabled, null
+   * otherwise */
+  private final RowKeyTemplateCache row_key_cache;
+
+  /** Groups data points per row before writing them if enabled, null
+   * otherwise */
+  private final RowBatcher row_batcher;
+
+  /** Computes the rollups of the raw data points if enabled, null
+   * otherwise */
+  private final RollupAccumulator rollup_accumulator;
+
+  /** Caches the results of downsampled queries if enabled, null otherwise */
+  private final QueryResultCache query_cache;
+
+  /** Keeps the recent data points in memory if enabled, null otherwise */
+  final HotTier hot_tier;
+
+  /** Caches the last data point of each series if enabled, null otherwise */
+  private final LastValueCache last_value_cache;
+
+  /** Estimates the cardinality of the metrics written for the query
+   * planner if enabled, null otherwise */
+  final CardinalityStats cardinality_stats;
+
   /** Authentication Plugin to use if configured */
   private Authentication authentication = null;
 
@@ -312,6 +346,12 @@ public final class TSDB {
       agg_tag_key = config.getString("tsd.rollups.agg_tag_key");
       raw_agg_tag_value = config.getString("tsd.rollups.raw_agg_tag_value");
       rollups_block_derived = config.getBoolean("tsd.rollups.block_derived");
+      if (config.getBoolean("tsd.rollups.ingest.enable")) {
+        rollup_accumulator = new RollupAccumulator(this, rollup_config, config);
+        rollup_accumulator.start();
+      } else {
+        rollup_accumulator = null;
+      }
     } else {
       rollup_config = null;
       default_interval = null;
@@ -319,12 +359,61 @@ public final class TSDB {
       agg_tag_key = null;
       raw_agg_tag_value = null;
       rollups_block_derived = false;
+      rollup_accumulator = null;
     }
     
     QueryStats.setEnableDuplicates(
         config.getBoolean("tsd.query.allow_simultaneous_duplicates"));
 
-    if (config.getBoolean("tsd.core.preload_uid_cache")) {
+    final int query_threads = config.getInt("tsd.query.parallel.threads");
+    if (query_threads > 0) {
+      query_executor = ParallelAggregation.newExecutor(query_threads);
+      LOG.info("Aggregating query results on " + query_threads + " threads");
+    } else {
+      query_executor = null;
+    }
+
+    query_cache = config.getBoolean("tsd.query.cache.enable")
+        ? new QueryResultCache(this, config) : null;
+
+    if (config.getBoolean("tsd.core.hot_tier.enable")) {
+      hot_tier = new HotTier(this, config);
+      hot_tier.start();
+    } else {
+      hot_tier = null;
+    }
+
+    last_value_cache = config.getBoolean("tsd.core.last_value_cache.enable")
+        ? new LastValueCache(
+            config.getInt("tsd.core.last_value_cache.max_series")) : null;
+
+    cardinality_stats = config.getBoolean("tsd.query.planner.enable")
+        ? new CardinalityStats(config.getInt("tsd.query.planner.max_metrics"))
+        : null;
+
+    final int row_key_cache_size = config.getInt("tsd.core.row_key_cache.size");
+    row_key_cache = row_key_cache_size > 0
+        ? new RowKeyTemplateCache(row_key_cache_size) : null;
+
+    if (config.getBoolean("tsd.storage.row_batch.enable")) {
+      row_batcher = new RowBatcher(this, 
+          config.getInt("tsd.storage.row_batch.max_points"),
+          config.getLong("tsd.storage.row_batch.interval"));
+    } else {
+      row_batcher = null;
+    }
+
+    // a snapshot warms the caches much faster than scanning the UID table
+    boolean uid_cache_loaded = false;
+    if (config.getBoolean("tsd.uid.snapshot.enable")) {
+      uid_snapshot = new UidCacheSnapshot(this, 
+          Arrays.asList(metrics, tag_names, tag_values));
+      uid_cache_loaded = uid_snapshot.load();
+      uid_snapshot.start();
+    } else {
+      uid_snapshot = null;
+    }
+    if (!uid_cache_loaded && config.getBoolean("tsd.core.preload_uid_cache")) {
       final ByteMap<UniqueId> uid_cache_map = new ByteMap<UniqueId>();
       uid_cache_map.put(METRICS_QUAL.getBytes(CHARSET), metrics);
       uid_cache_map.put(TAG_NAME_QUAL.getBytes(CHARSET), tag_names);
@@ -489,9 +578,15 @@ public final class TSDB {
 
     // load the storage exception plugin if enabled
     if (config.getBoolean("tsd.core.storage_exception_handler.enable")) {
-      storage_exception_handler = PluginLoader.loadSpecificPlugin(
-          config.getString("tsd.core.storage_exception_handler.plugin"),
-          StorageExceptionHandler.class);
+      final String seh_plugin = 
+          config.getString("tsd.core.storage_exception_handler.plugin");
+      // the built-in spool isn't registered as a service
+      if (SpoolingStorageExceptionHandler.class.getName().equals(seh_plugin)) {
+        storage_exception_handler = new SpoolingStorageExceptionHandler();
+      } else {
+        storage_exception_handler = PluginLoader.loadSpecificPlugin(
+            seh_plugin, StorageExceptionHandler.class);
+      }
       if (storage_exception_handler == null) {
         throw new IllegalArgumentException(
             "Unable to locate storage exception handler plugin: " +
@@ -605,6 +700,33 @@ public final class TSDB {
     return this.config;
   }
 
+  /**
+   * Getter that returns the executor aggregating query results.
+   * @return The executor or null if parallel aggregation is disabled.
+   * @since 2.4
+   */
+  public ExecutorService getQueryExecutor() {
+    return query_executor;
+  }
+
+  /**
+   * Getter that returns the cache of downsampled query results.
+   * @return The cache or null if disabled.
+   * @since 2.4
+   */
+  public QueryResultCache getQueryResultCache() {
+    return query_cache;
+  }
+
+  /**
+   * Getter that returns the cache of the last data point of each series.
+   * @return The cache or null if disabled.
+   * @since 2.4
+   */
+  public LastValueCache getLastValueCache() {
+    return last_value_cache;
+  }
+
   /**
    * Returns the storage exception handler. May be null if not enabled
    * @return The storage exception handler
@@ -701,6 +823,62 @@ public final class TSDB {
     }
   }
 
+  /**
+   * Attempts to find the UIDs matching a list of names with a single batched
+   * lookup for the names missing from the cache.
+   * @param type The type of UID
+   * @param names The names to search for
+   * @return A deferred resolving to the UIDs, in the same order as the names.
+   * @throws IllegalArgumentException if the type is not valid
+   * @throws NoSuchUniqueName (in the deferred) if one of the names was not 
+   * found
+   * @since 2.4
+   */
+  public Deferred<ArrayList<byte[]>> getUIDsAsync(final UniqueIdType type, 
+      final List<String> names) {
+    for (final String name : names) {
+      if (name == null || name.isEmpty()) {
+        throw new IllegalArgumentException("Missing UID name");
+      }
+    }
+    switch (type) {
+      case METRIC:
+        return metrics.getIdsAsync(names);
+      case TAGK:
+        return tag_names.getIdsAsync(names);
+      case TAGV:
+        return tag_values.getIdsAsync(names);
+      default:
+        throw new IllegalArgumentException("Unrecognized UID type");
+    }
+  }
+
+  /**
+   * Scans the UID table for the names starting with a prefix and matching a
+   * regular expression.
+   * @param type The type of UID
+   * @param prefix An optional prefix of the names, null or empty for any.
+   * @param regex An optional regular expression the names have to contain
+   * a match for, null for any.
+   * @param max_results Maximum number of names to return.
+   * @return The names found with their UIDs.
+   * @throws IllegalArgumentException if the type is not valid
+   * @since 2.4
+   */
+  public Deferred<Map<String, byte[]>> findUIDsAsync(final UniqueIdType type,
+      final String prefix, final String regex, final int max_results) {
+    switch (type) {
+      case METRIC:
+        return metrics.findIdsAsync(prefix, regex, max_results);
+      case TAGK:
+        return tag_names.findIdsAsync(prefix, regex, max_results);
+      case TAGV:
+        return tag_values.findIdsAsync(prefix, regex, max_results);
+      default:
+        throw new IllegalArgumentException("Unrecognized UID type");
+    }
+  }
+
   /**
    * Verifies that the data and UID tables exist in HBase and optionally the
    * tree and meta data tables if the user has enabled meta tracking or tree
@@ -811,6 +989,27 @@ public final class TSDB {
     collector.addExtraTag("class", "TSDB");
     try {
       collector.record("datapoints.added", datapoints_added, "type=all");
+      if (row_key_cache != null) {
+        row_key_cache.collectStats(collector);
+      }
+      if (row_batcher != null) {
+        row_batcher.collectStats(collector);
+      }
+      if (rollup_accumulator != null) {
+        rollup_accumulator.collectStats(collector);
+      }
+      if (query_cache != null) {
+        query_cache.collectStats(collector);
+      }
+      if (hot_tier != null) {
+        hot_tier.collectStats(collector);
+      }
+      if (last_value_cache != null) {
+        last_value_cache.collectStats(collector);
+      }
+      if (cardinality_stats != null) {
+        cardinality_stats.collectStats(collector);
+      }
     } finally {
       collector.clearExtraTag("class");
     }
@@ -936,10 +1135,19 @@ public final class TSDB {
     collector.record("uid.cache-hit", uid.cacheHits(), "kind=" + uid.kind());
     collector.record("uid.cache-miss", uid.cacheMisses(), "kind=" + uid.kind());
     collector.record("uid.cache-size", uid.cacheSize(), "kind=" + uid.kind());
+    collector.record("uid.coalesced-lookups", uid.coalescedLookups(), 
+        "kind=" + uid.kind());
+    if (uid.cacheBytes() > 0) {
+      collector.record("uid.cache-bytes", uid.cacheBytes(), "kind=" + uid.kind());
+      collector.record("uid.cache-rejected", uid.cacheRejected(), 
+          "kind=" + uid.kind());
+    }
     collector.record("uid.random-collisions", uid.randomIdCollisions(),
         "kind=" + uid.kind());
     collector.record("uid.rejected-assignments", uid.rejectedAssignments(),
         "kind=" + uid.kind());
+    collector.record("uid.reserved-blocks", uid.reservedBlocks(),
+        "kind=" + uid.kind());
   }
 
   /** @return the width, in bytes, of metric UIDs */
@@ -1139,7 +1347,7 @@ public final class TSDB {
     }
     
     checkTimestampAndTags(metric, timestamp, raw_data, tags, (short) 0);
-    final byte[] row = IncomingDataPoints.rowKeyTemplate(this, metric, tags);
+    final byte[] row = rowKeyTemplate(metric, tags);
 
     final byte[] qualifier = Internal.getQualifier(timestamp, 
         HistogramDataPoint.PREFIX);
@@ -1154,12 +1362,29 @@ public final class TSDB {
       final short flags) {
 
     checkTimestampAndTags(metric, timestamp, value, tags, flags);
-    final byte[] row = IncomingDataPoints.rowKeyTemplate(this, metric, tags);
+    final byte[] row = rowKeyTemplate(metric, tags);
     
     final byte[] qualifier = Internal.buildQualifier(timestamp, flags);
 
     return storeIntoDB(metric, timestamp, value, tags, flags, row, qualifier);
   }
+
+  /**
+   * Returns a new row key for the series with the salt and base time left to
+   * fill in, from the row key cache if enabled.
+   * @param metric The metric of the series.
+   * @param tags The tags of the series.
+   * @return The row key template.
+   * @throws NoSuchUniqueName if a name wasn't assigned a UID and can't be
+   * assigned one.
+   */
+  final byte[] rowKeyTemplate(final String metric,
+      final Map<String, String> tags) {
+    if (row_key_cache != null) {
+      return row_key_cache.get(this, metric, tags);
+    }
+    return IncomingDataPoints.rowKeyTemplate(this, metric, tags);
+  }
   
   private final Deferred<Object> storeIntoDB(final String metric, 
                                              final long timestamp, 
@@ -1178,6 +1403,35 @@ public final class TSDB {
       base_time = (timestamp - (timestamp % Const.MAX_TIMESPAN));
     }
 
+    /** Callback executed once the data point is stored to add it to the
+     * in-memory tiers and the rollups computed by the TSD. */
+    final class StoredCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object result) {
+        if (hot_tier != null) {
+          hot_tier.add(row, timestamp, value, flags);
+        }
+        if (last_value_cache != null) {
+          last_value_cache.add(row, timestamp, value, flags);
+        }
+        if (rollup_accumulator != null) {
+          if ((flags & Const.FLAG_FLOAT) != 0) {
+            rollup_accumulator.add(metric, timestamp,
+                Internal.extractFloatingPointValue(value, 0, (byte) flags),
+                tags);
+          } else {
+            rollup_accumulator.add(metric, timestamp,
+                Internal.extractIntegerValue(value, 0, (byte) flags), tags);
+          }
+        }
+        return result;
+      }
+      @Override
+      public String toString() {
+        return "addPointInternal Stored Callback";
+      }
+    }
+
     /** Callback executed for chaining filter calls to see if the value
      * should be written or not. */
     final class WriteCB implements Callback<Deferred<Object>, Boolean> {
@@ -1191,6 +1445,10 @@ public final class TSDB {
         Bytes.setInt(row, (int) base_time, metrics.width() + Const.SALT_WIDTH());
         RowKey.prefixKeyWithSalt(row);
 
+        if (cardinality_stats != null) {
+          cardinality_stats.add(row);
+        }
+
         Deferred<Object> result = null;
         if (!isHistogram(qualifier) && config.enable_appends()) {
           if(config.use_otsdb_timestamp()) {
@@ -1202,14 +1460,26 @@ public final class TSDB {
           result = client.append(point);
         } else if (!isHistogram(qualifier)) {
           scheduleForCompaction(row, (int) base_time);
-          final PutRequest point = RequestBuilder.buildPutRequest(config, table, row, FAMILY, qualifier, value, timestamp);
-          result = client.put(point);
+          // a put has a single cell timestamp so those can't be batched
+          if (row_batcher != null && !config.use_otsdb_timestamp()) {
+            result = row_batcher.add(row, qualifier, value);
+          } else {
+            final PutRequest point = RequestBuilder.buildPutRequest(config, table, row, FAMILY, qualifier, value, timestamp);
+            result = client.put(point);
+          }
         } else {
           scheduleForCompaction(row, (int) base_time);
           final PutRequest histo_point = new PutRequest(table, row, FAMILY, qualifier, value);
           result = client.put(histo_point);
         }
 
+        if ((hot_tier != null || last_value_cache != null
+            || rollup_accumulator != null) && !isHistogram(qualifier)) {
+          // once stored so the tiers never answer with a failed write and
+          // the rollups don't count it
+          result.addCallback(new StoredCB());
+        }
+
         // Count all added datapoints, not just those that came in through PUT rpc
         // Will there be others? Well, something could call addPoint programatically right?
         datapoints_added.incrementAndGet();
@@ -1517,7 +1787,7 @@ public final class TSDB {
         ? null : rollup_config.getRollupInterval(interval));
     final int aggregator_id = rollup_interval == null ? -1 :
       rollup_config.getIdForAggregator(rollup_aggregator);
-    final byte[] row = IncomingDataPoints.rowKeyTemplate(this, metric, tags);
+    final byte[] row = rowKeyTemplate(metric, tags);
     final String rollup_agg = rollup_aggregator != null ? 
         rollup_aggregator.toUpperCase() : null;
     if (rollup_agg!= null && rollups_block_derived && 
@@ -1610,6 +1880,9 @@ public final class TSDB {
       }
     }
 
+    if (row_batcher != null) {
+      row_batcher.flush();
+    }
     return config.enable_compactions() && compactionq != null
       ? compactionq.flush().addCallback(new HClientFlush())
       : client.flush();
@@ -1707,6 +1980,26 @@ public final class TSDB {
       LOG.info("Flushing compaction queue");
       deferreds.add(compactionq.flush().addCallback(new CompactCB()));
     }
+    if (rollup_accumulator != null) {
+      LOG.info("Writing the open rollup windows");
+      deferreds.add(rollup_accumulator.shutdown());
+    }
+    if (hot_tier != null) {
+      hot_tier.shutdown();
+    }
+    if (row_batcher != null) {
+      // hands the batches over to the client, flushed on its shutdown
+      LOG.info("Flushing the row batches");
+      row_batcher.flush();
+    }
+    if (uid_snapshot != null) {
+      LOG.info("Writing the UID cache snapshot");
+      uid_snapshot.shutdown();
+    }
+    if (query_executor != null) {
+      LOG.info("Shutting down the query executor");
+      query_executor.shutdown();
+    }
     if (startup != null) {
       LOG.info("Shutting down startup plugin: " +
               startup.getClass().getCanonicalName());
@@ -1820,6 +2113,15 @@ public final class TSDB {
     metrics.dropCaches();
     tag_names.dropCaches();
     tag_values.dropCaches();
+    if (row_key_cache != null) {
+      row_key_cache.clear();
+    }
+    if (query_cache != null) {
+      query_cache.clear();
+    }
+    if (last_value_cache != null) {
+      last_value_cache.clear();
+    }
   }
 
   /**
@@ -1878,6 +2180,12 @@ public final class TSDB {
    */
   public Deferred<Object> deleteUidAsync(final String type, final String name) {
     final UniqueIdType uid_type = UniqueId.stringToUniqueIdType(type);
+    if (row_key_cache != null) {
+      row_key_cache.clear();
+    }
+    if (query_cache != null) {
+      query_cache.clear();
+    }
     switch (uid_type) {
     case METRIC:
       return metrics.deleteAsync(name);
@@ -1934,6 +2242,12 @@ public final class TSDB {
       LOG.warn("Unknown type name: " + type);
       throw new IllegalArgumentException("Unknown type name");
     }
+    if (row_key_cache != null) {
+      row_key_cache.clear();
+    }
+    if (query_cache != null) {
+      query_cache.clear();
+    }
   }
 
   /** @return the name of the UID table as a byte array for client requests */
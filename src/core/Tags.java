@@ -437,18 +437,19 @@ public final class Tags {
                                            + tsdb.metrics.width()
                                            + Const.TIMESTAMP_BYTES);
     
-    final ArrayList<Deferred<String>> deferreds = 
-      new ArrayList<Deferred<String>>((row.length - metric_ts_bytes) / tag_bytes);
+    final int num_tags = (row.length - metric_ts_bytes) / tag_bytes;
+    final List<byte[]> tagks = new ArrayList<byte[]>(num_tags);
+    final List<byte[]> tagvs = new ArrayList<byte[]>(num_tags);
     
     for (short pos = metric_ts_bytes; pos < row.length; pos += tag_bytes) {
       final byte[] tmp_name = new byte[name_width];
       final byte[] tmp_value = new byte[value_width];
 
       System.arraycopy(row, pos, tmp_name, 0, name_width);
-      deferreds.add(tsdb.tag_names.getNameAsync(tmp_name));
+      tagks.add(tmp_name);
 
       System.arraycopy(row, pos + name_width, tmp_value, 0, value_width);
-      deferreds.add(tsdb.tag_values.getNameAsync(tmp_value));
+      tagvs.add(tmp_value);
     }
     
     class NameCB implements Callback<Map<String, String>, ArrayList<String>> {
@@ -469,7 +470,7 @@ public final class Tags {
       }
     }
     
-    return Deferred.groupInOrder(deferreds).addCallback(new NameCB());
+    return getTagNamesAsync(tsdb, tagks, tagvs).addCallback(new NameCB());
   }
 
   /**
@@ -487,12 +488,12 @@ public final class Tags {
       return Deferred.fromResult(Collections.<String, String>emptyMap());
     }
     
-    final ArrayList<Deferred<String>> deferreds = 
-        new ArrayList<Deferred<String>>();
+    final List<byte[]> tagks = new ArrayList<byte[]>(tags.size());
+    final List<byte[]> tagvs = new ArrayList<byte[]>(tags.size());
     
     for (final Map.Entry<byte[], byte[]> pair : tags) {
-      deferreds.add(tsdb.tag_names.getNameAsync(pair.getKey()));
-      deferreds.add(tsdb.tag_values.getNameAsync(pair.getValue()));
+      tagks.add(pair.getKey());
+      tagvs.add(pair.getValue());
     }
     
     class NameCB implements Callback<Map<String, String>, ArrayList<String>> {
@@ -512,7 +513,7 @@ public final class Tags {
       }
     }
     
-    return Deferred.groupInOrder(deferreds).addCallback(new NameCB());
+    return getTagNamesAsync(tsdb, tagks, tagvs).addCallback(new NameCB());
   }
   
   /**
@@ -671,6 +672,9 @@ public final class Tags {
                             final String metric,
                             final Map<String, String> tags,
                             final boolean create) {
+    if (!create) {
+      return resolveAllBatchedAsync(tsdb, tags);
+    }
     final ArrayList<Deferred<byte[]>> tag_ids =
       new ArrayList<Deferred<byte[]>>(tags.size());
 
@@ -710,6 +714,51 @@ public final class Tags {
     return Deferred.group(tag_ids).addCallback(SORT_CB);
   }
 
+  /**
+   * Resolves existing tags with one batched lookup per UID type.
+   * @param tsdb The TSDB to use for UniqueId lookups.
+   * @param tags The tags to resolve.
+   * @return an array of sorted tags (tag id, tag name).
+   */
+  private static Deferred<ArrayList<byte[]>>
+    resolveAllBatchedAsync(final TSDB tsdb, final Map<String, String> tags) {
+    final List<String> tagks = new ArrayList<String>(tags.size());
+    final List<String> tagvs = new ArrayList<String>(tags.size());
+    for (final Map.Entry<String, String> entry : tags.entrySet()) {
+      tagks.add(entry.getKey());
+      tagvs.add(entry.getValue());
+    }
+    final Deferred<ArrayList<byte[]>> tagv_ids = 
+        tsdb.tag_values.getIdsAsync(tagvs);
+    
+    class TagkIdsCB implements 
+        Callback<Deferred<ArrayList<byte[]>>, ArrayList<byte[]>> {
+      public Deferred<ArrayList<byte[]>> call(final ArrayList<byte[]> tagks) {
+        class TagvIdsCB implements 
+            Callback<ArrayList<byte[]>, ArrayList<byte[]>> {
+          public ArrayList<byte[]> call(final ArrayList<byte[]> tagvs) {
+            final ArrayList<byte[]> tag_ids = 
+                new ArrayList<byte[]>(tagks.size());
+            for (int i = 0; i < tagks.size(); i++) {
+              final byte[] nameid = tagks.get(i);
+              final byte[] valueid = tagvs.get(i);
+              final byte[] thistag = new byte[nameid.length + valueid.length];
+              System.arraycopy(nameid, 0, thistag, 0, nameid.length);
+              System.arraycopy(valueid, 0, thistag, nameid.length, 
+                  valueid.length);
+              tag_ids.add(thistag);
+            }
+            return tag_ids;
+          }
+        }
+        return tagv_ids.addCallback(new TagvIdsCB());
+      }
+    }
+    
+    return tsdb.tag_names.getIdsAsync(tagks)
+        .addCallbackDeferring(new TagkIdsCB()).addCallback(SORT_CB);
+  }
+
   /**
    * Sorts a list of tags.
    * Each entry in the list expected to be a byte array that contains the tag
@@ -776,8 +825,8 @@ public final class Tags {
     final short tag_bytes = (short) (name_width + value_width);
     final HashMap<String, String> result
       = new HashMap<String, String>(tags.size());
-    final ArrayList<Deferred<String>> deferreds 
-      = new ArrayList<Deferred<String>>(tags.size());
+    final List<byte[]> tagks = new ArrayList<byte[]>(tags.size());
+    final List<byte[]> tagvs = new ArrayList<byte[]>(tags.size());
     
     for (final byte[] tag : tags) {
       final byte[] tmp_name = new byte[name_width];
@@ -787,9 +836,9 @@ public final class Tags {
             + " (expected " + tag_bytes + "): " + Arrays.toString(tag));
       }
       System.arraycopy(tag, 0, tmp_name, 0, name_width);
-      deferreds.add(tsdb.tag_names.getNameAsync(tmp_name));
+      tagks.add(tmp_name);
       System.arraycopy(tag, name_width, tmp_value, 0, value_width);
-      deferreds.add(tsdb.tag_values.getNameAsync(tmp_value));
+      tagvs.add(tmp_value);
     }
     
     class GroupCB implements Callback<HashMap<String, String>, ArrayList<String>> {
@@ -804,7 +853,45 @@ public final class Tags {
       }
     }
     
-    return Deferred.groupInOrder(deferreds).addCallback(new GroupCB());
+    return getTagNamesAsync(tsdb, tagks, tagvs).addCallback(new GroupCB());
+  }
+  
+  /**
+   * Resolves the names of tag key and tag value UIDs with one batched lookup
+   * per UID type instead of one lookup per UID.
+   * @param tsdb The TSDB to use for UniqueId lookups.
+   * @param tagks The tag key UIDs to resolve.
+   * @param tagvs The tag value UIDs to resolve, paired with the keys.
+   * @return A deferred with the names in tagk1, tagv1, .. tagkn, tagvn order.
+   * @throws NoSuchUniqueId (in the deferred) if one of the UIDs wasn't found.
+   */
+  private static Deferred<ArrayList<String>> getTagNamesAsync(final TSDB tsdb,
+      final List<byte[]> tagks, final List<byte[]> tagvs) {
+    // fire both lookups before waiting on either
+    final Deferred<ArrayList<String>> tagv_names = 
+        tsdb.tag_values.getNamesAsync(tagvs);
+    
+    class TagkNamesCB implements 
+        Callback<Deferred<ArrayList<String>>, ArrayList<String>> {
+      public Deferred<ArrayList<String>> call(final ArrayList<String> tagks) {
+        class TagvNamesCB implements 
+            Callback<ArrayList<String>, ArrayList<String>> {
+          public ArrayList<String> call(final ArrayList<String> tagvs) {
+            final ArrayList<String> names = 
+                new ArrayList<String>(tagks.size() * 2);
+            for (int i = 0; i < tagks.size(); i++) {
+              names.add(tagks.get(i));
+              names.add(tagvs.get(i));
+            }
+            return names;
+          }
+        }
+        return tagv_names.addCallback(new TagvNamesCB());
+      }
+    }
+    
+    return tsdb.tag_names.getNamesAsync(tagks)
+        .addCallbackDeferring(new TagkNamesCB());
   }
   
   /**
@@ -17,11 +17,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -167,6 +169,9 @@ final class TsdbQuery implements Query {
   
   /** Whether or not to match series with ONLY the given tags */
   private boolean explicit_tags;
+
+  /** Whether the annotations were suppressed, the hot tier has none */
+  private boolean no_annotations;
   
   private List<Float> percentiles;
   
@@ -184,6 +189,9 @@ final class TsdbQuery implements Query {
   /** Whether or not to fall back on query failure. */
   private boolean search_query_failure;
   
+  /** The plan picked from the cardinality statistics, null if not planned */
+  private QueryPlanner query_plan;
+  
   /** The maximum number of bytes allowed per query. */
   private long max_bytes = 0;
   
@@ -444,6 +452,7 @@ final class TsdbQuery implements Query {
     setStartTime(query.startTime());
     setEndTime(query.endTime());
     setDelete(query.getDelete());
+    no_annotations = query.getNoAnnotations();
     query_index = index;
     query_stats = query.getQueryStats();
     
@@ -513,6 +522,7 @@ final class TsdbQuery implements Query {
         @Override
         public Object call(final ArrayList<byte[]> results) throws Exception {
           findGroupBys();
+          planQuery();
           return null;
         }
       }
@@ -560,6 +570,18 @@ final class TsdbQuery implements Query {
         private List<Deferred<byte[]>> resolveTagFilters() {
           final List<Deferred<byte[]>> deferreds = 
               new ArrayList<Deferred<byte[]>>(filters.size());
+          final boolean pushdown = 
+              tsdb.getConfig().getBoolean("tsd.query.filter.pushdown");
+          final int expansion_limit = tsdb.getConfig().getInt(
+              "tsd.query.filter.expansion_limit");
+          // the literals of a tag key are OR'd in the scan so only push down
+          // the filters alone on their tag key
+          final Map<String, Integer> tagk_filters = 
+              new HashMap<String, Integer>(filters.size());
+          for (final TagVFilter filter : filters) {
+            final Integer count = tagk_filters.get(filter.getTagk());
+            tagk_filters.put(filter.getTagk(), count == null ? 1 : count + 1);
+          }
           for (final TagVFilter filter : filters) {
             // determine if the user is asking for pre-agg data
             if (filter instanceof TagVLiteralOrFilter && tsdb.getAggTagKey() != null) {
@@ -571,7 +593,13 @@ final class TsdbQuery implements Query {
               }
             }
             
-            deferreds.add(filter.resolveTagkName(tsdb));
+            if (pushdown && filter.postScan() && 
+                tagk_filters.get(filter.getTagk()) == 1) {
+              // match the UIDs of the values on storage if there aren't many
+              deferreds.add(filter.resolveMatchingTags(tsdb, expansion_limit));
+            } else {
+              deferreds.add(filter.resolveTagkName(tsdb));
+            }
           }
           return deferreds;
         }
@@ -704,6 +732,70 @@ final class TsdbQuery implements Query {
       }
     }
   }
+  
+  /**
+   * Picks between a scan, a fuzzy filtered scan and multi-gets from the
+   * cardinality statistics of the metric when the planner is enabled,
+   * overriding the static configuration. Queries resolved through the search
+   * plugin or without statistics for the metric are left as configured.
+   */
+  private void planQuery() {
+    if (tsdb.cardinality_stats == null || multiget_with_search || 
+        row_key_literals == null || row_key_literals.isEmpty()) {
+      return;
+    }
+    
+    boolean literals_only = true;
+    for (final TagVFilter filter : filters) {
+      if (filter.postScan()) {
+        literals_only = false;
+        break;
+      }
+    }
+    final long rows = Math.max(1, (getScanEndTimeSeconds() - 
+        getScanStartTimeSeconds()) / Const.MAX_TIMESPAN);
+    query_plan = QueryPlanner.plan(tsdb.cardinality_stats, metric, 
+        row_key_literals, explicit_tags, literals_only, rows, 
+        override_fuzzy_filter, override_multi_get, 
+        tsdb.getConfig().getInt("tsd.query.multi_get.limit"));
+    if (query_plan == null) {
+      return;
+    }
+    
+    switch (query_plan.getPlan()) {
+    case MULTI_GET:
+      use_multi_gets = true;
+      row_key_literals_list = new ArrayList<ByteMap<byte[][]>>(1);
+      row_key_literals_list.add(row_key_literals);
+      break;
+    case FUZZY_SCAN:
+      use_multi_gets = false;
+      enable_fuzzy_filter = true;
+      break;
+    default:
+      use_multi_gets = false;
+      enable_fuzzy_filter = false;
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Planned query " + query_index + ": " + query_plan);
+    }
+    if (query_stats != null) {
+      query_stats.addStat(query_index, QueryStat.QUERY_PLAN, 
+          query_plan.getPlan().ordinal());
+      query_stats.addStat(query_index, QueryStat.ESTIMATED_SERIES, 
+          query_plan.getEstimatedSeries());
+      query_stats.addStat(query_index, QueryStat.ESTIMATED_COST, 
+          query_plan.getCost());
+    }
+  }
+  
+  /** @return Whether or not the planner picked multi-gets without the 
+   * search plugin. */
+  private boolean isPlannedMultiGet() {
+    return query_plan != null && 
+        query_plan.getPlan() == QueryPlanner.Plan.MULTI_GET;
+  }
+  
   /**
    * Executes the query.
    * NOTE: Do not run the same query multiple times. Construct a new query with
@@ -741,12 +833,22 @@ final class TsdbQuery implements Query {
   @Override
   public Deferred<DataPoints[]> runAsync() throws HBaseException {
     Deferred<DataPoints[]> result = null;
-    if (use_multi_gets && override_multi_get) {
+    if (inHotTier()) {
+      result = findSpansInHotTier().addCallback(new GroupByAndAggregateCB());
+    } else if (use_multi_gets && override_multi_get) {
       result = this.findSpansWithMultiGetter().addCallback(new GroupByAndAggregateCB());
     } else {
       result = findSpans().addCallback(new GroupByAndAggregateCB());
     }
 
+    final ExecutorService executor = tsdb.getQueryExecutor();
+    if (executor != null) {
+      result = result.addCallbackDeferring(new ParallelAggregation(executor, 
+          tsdb.getConfig().getInt("tsd.query.parallel.max_tasks"), 
+          tsdb.getConfig().getLong("tsd.query.parallel.max_buffered_points"),
+          query_stats, query_index));
+    }
+
     if (rollup_usage != null && rollup_usage.fallback()) {
       result.addCallback(new FallbackRollupOnEmptyResult());
     }
@@ -832,6 +934,79 @@ final class TsdbQuery implements Query {
     }
   }
   
+  /**
+   * Whether or not the data points of this query are all in the hot tier.
+   * Rollup and delete queries always go to storage, as do queries that
+   * return annotations since those are only stored with the data points.
+   * @return True if the hot tier is enabled and covers the start of the query,
+   * aligned on the downsampling interval.
+   */
+  private boolean inHotTier() {
+    if (tsdb.hot_tier == null || delete || !no_annotations
+        || RollupQuery.isValidQuery(rollup_query)) {
+      return false;
+    }
+    return tsdb.hot_tier.covers(metric, getHotTierStartTimeMs());
+  }
+
+  /** @return The start of the query in ms, aligned on the downsampling 
+   * interval if any, or the start of the scan for rates as they need the
+   * previous data point. */
+  private long getHotTierStartTimeMs() {
+    if (rate) {
+      return getScanStartTimeSeconds() * 1000L;
+    }
+    long start = getStartTime();
+    if ((start & Const.SECOND_MASK) == 0L) {
+      start *= 1000L;
+    }
+    if (downsampler != null && downsampler.getInterval() > 0) {
+      start -= start % downsampler.getInterval();
+    }
+    return start;
+  }
+
+  /**
+   * Loads the data points of the series matching this query from the hot tier
+   * into spans, the same as {@link #findSpans} would from storage. Data points
+   * of the rows scanned before the covered start are loaded if still in 
+   * memory, they're outside of the query anyway.
+   * @return A map from row key to the {@link Span} for that row key.
+   */
+  private Deferred<SortedMap<byte[], Span>> findSpansInHotTier() {
+    final TreeMap<byte[], Span> spans = 
+      new TreeMap<byte[], Span>(new SpanCmp(
+          (short)(Const.SALT_WIDTH() + tsdb.metrics.width())));
+    
+    final List<TagVFilter> scanner_filters;
+    if (filters != null) {   
+      scanner_filters = new ArrayList<TagVFilter>(filters.size());
+      for (final TagVFilter filter : filters) {
+        if (filter.postScan()) {
+          scanner_filters.add(filter);
+        }
+      }
+    } else {
+      scanner_filters = null;
+    }
+    
+    final String row_regex;
+    if (tsuids != null && !tsuids.isEmpty()) {
+      row_regex = null;
+    } else if ((group_bys == null || group_bys.isEmpty()) 
+        && (row_key_literals == null || row_key_literals.isEmpty())) {
+      row_regex = null;
+    } else {
+      row_regex = QueryUtil.getRowKeyUIDRegex(group_bys, row_key_literals, 
+          explicit_tags, null, null);
+    }
+    
+    scan_start_time = DateTime.nanoTime();
+    return tsdb.hot_tier.findSpans(metric, tsuids, row_regex, scanner_filters,
+        getScanStartTimeSeconds() * 1000L, getScanEndTimeSeconds() * 1000L - 1,
+        spans);
+  }
+  
   private Deferred<SortedMap<byte[], Span>> findSpansWithMultiGetter() throws HBaseException {
     final short metric_width = tsdb.metrics.width();
     final TreeMap<byte[], Span> spans = // The key is a row key from HBase.
@@ -841,8 +1016,9 @@ final class TsdbQuery implements Query {
     
     return new MultiGetQuery(tsdb, this, metric, row_key_literals_list, 
         getScanStartTimeSeconds(), getScanEndTimeSeconds(),
-        tableToBeScanned(), spans, null, 0, rollup_query, query_stats, query_index, 0,
-        false, search_query_failure).fetch();
+        tableToBeScanned(), spans, null, 0, rollup_query, query_stats, query_index, 
+        max_bytes > 0 ? max_bytes : Long.MAX_VALUE,
+        false, search_query_failure || isPlannedMultiGet()).fetch();
   }
   
   /**
@@ -905,8 +1081,9 @@ final class TsdbQuery implements Query {
     scan_start_time = System.nanoTime();
     return new MultiGetQuery(tsdb, this, metric, row_key_literals_list, 
         getScanStartTimeSeconds(), getScanEndTimeSeconds(),
-        tableToBeScanned(), null, histSpans, 0, rollup_query, query_stats, query_index, 0,
-        false, search_query_failure).fetchHistogram();
+        tableToBeScanned(), null, histSpans, 0, rollup_query, query_stats, query_index, 
+        max_bytes > 0 ? max_bytes : Long.MAX_VALUE,
+        false, search_query_failure || isPlannedMultiGet()).fetchHistogram();
   }
   
   /**
@@ -1861,6 +2038,10 @@ final class TsdbQuery implements Query {
       return query.group_bys;
     }
     
+    static QueryPlanner getQueryPlan(final TsdbQuery query) {
+      return query.query_plan;
+    }
+    
     static ByteMap<byte[][]> getRowKeyLiterals(final TsdbQuery query) {
       return query.row_key_literals;
     }
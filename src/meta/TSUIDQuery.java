@@ -22,6 +22,7 @@ import java.util.Map;
 
 import net.opentsdb.core.IncomingDataPoint;
 import net.opentsdb.core.Internal;
+import net.opentsdb.core.LastValueCache;
 import net.opentsdb.core.RowKey;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
@@ -181,6 +182,11 @@ public class TSUIDQuery {
         } else if (incoming_tsuid != null) {
           setTSUID(incoming_tsuid);
         }
+        final IncomingDataPoint cached = getCachedLastPoint(meta_enabled);
+        if (cached != null) {
+          return resolve_names ? resolveNames(cached) 
+              : Deferred.fromResult(cached);
+        }
         if (back_scan < 1 && meta_enabled) {
           final GetRequest get = new GetRequest(tsdb.metaTable(), tsuid);
           get.family(TSMeta.FAMILY());
@@ -216,6 +222,28 @@ public class TSUIDQuery {
     }
   }
   
+  /**
+   * Fetches the last data point of the TSUID from the last value cache if 
+   * enabled. The data point must be within the hours that would be read from
+   * storage, unless the meta counter is used to find the last hour written.
+   * @param meta_enabled Whether or not the meta counter is read.
+   * @return The data point or null if not cached.
+   */
+  private IncomingDataPoint getCachedLastPoint(final boolean meta_enabled) {
+    final LastValueCache cache = tsdb.getLastValueCache();
+    if (cache == null) {
+      return null;
+    }
+    final IncomingDataPoint dp = cache.getLastPoint(tsuid);
+    if (dp == null || (back_scan < 1 && meta_enabled)) {
+      return dp;
+    }
+    final long base_time = Internal.baseTime(last_timestamp > 0 
+        ? last_timestamp : DateTime.currentTimeMillis());
+    return dp.getTimestamp() >= (base_time - back_scan * 3600L) * 1000L 
+        ? dp : null;
+  }
+  
   /**
    * Sets the query to perform
    * @param metric Name of the metric to search for
@@ -467,8 +495,8 @@ public class TSUIDQuery {
    * @param metric The metric name to resolve
    * @param tags The tags to resolve. May not be empty.
    * @return A deferred containing the TSUID when ready or an error such as
-   * a NoSuchUniqueName exception if the metric didn't exist or a
-   * DeferredGroupException if one of the tag keys or values did not exist.
+   * a NoSuchUniqueName exception if the metric or one of the tag keys or
+   * values did not exist.
    * @throws IllegalArgumentException if the metric or tags were null or
    * empty.
    */
@@ -442,6 +442,28 @@ public abstract class TagVFilter implements Comparable<TagVFilter> {
       }
     }
 
+    /**
+     * The batched lookup fails as a whole on the first unknown value. When
+     * unresolved values may be skipped, look them up one at a time instead.
+     * The values found by the batch are cached by then so only the missing 
+     * ones go back to storage.
+     */
+    class BatchErrback implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) throws Exception {
+        if (!config.getBoolean("tsd.query.skip_unresolved_tagvs")) {
+          throw e;
+        }
+        final List<Deferred<byte[]>> tagvs = 
+            new ArrayList<Deferred<byte[]>>(literals.size());
+        for (final String tagv : literals) {
+          tagvs.add(tsdb.getUIDAsync(UniqueIdType.TAGV, tagv)
+              .addErrback(new TagVErrback()));
+        }
+        return Deferred.group(tagvs);
+      }
+    }
+    
     /**
      * Stores the non-null UIDs in the local list and then sorts them in
      * prep for use in the regex filter
@@ -450,7 +472,7 @@ public abstract class TagVFilter implements Comparable<TagVFilter> {
       @Override
       public byte[] call(final ArrayList<byte[]> results) 
           throws Exception {
-        tagv_uids = new ArrayList<byte[]>(results.size() - 1);
+        tagv_uids = new ArrayList<byte[]>(results.size());
         for (final byte[] tagv : results) {
           if (tagv != null) {
             tagv_uids.add(tagv);
@@ -473,19 +495,159 @@ public abstract class TagVFilter implements Comparable<TagVFilter> {
       }
     }
 
-    final List<Deferred<byte[]>> tagvs = 
-        new ArrayList<Deferred<byte[]>>(literals.size());
-    for (final String tagv : literals) {
-      tagvs.add(tsdb.getUIDAsync(UniqueIdType.TAGV, tagv)
-          .addErrback(new TagVErrback()));
+    /** Waits on the tagk before handing the tag values on. */
+    class TagVsCB implements 
+        Callback<Deferred<ArrayList<byte[]>>, ArrayList<byte[]>> {
+      final Deferred<byte[]> tagk_uid;
+      TagVsCB(final Deferred<byte[]> tagk_uid) {
+        this.tagk_uid = tagk_uid;
+      }
+      @Override
+      public Deferred<ArrayList<byte[]>> call(final ArrayList<byte[]> tagvs) {
+        class TagKCB implements Callback<ArrayList<byte[]>, byte[]> {
+          @Override
+          public ArrayList<byte[]> call(final byte[] ignored) {
+            return tagvs;
+          }
+        }
+        return tagk_uid.addCallback(new TagKCB());
+      }
     }
-    // ugly hack to resolve the tagk UID. The callback will return null and we'll
-    // remove it from the UID list.
-    tagvs.add(tsdb.getUIDAsync(UniqueIdType.TAGK, tagk)
-      .addCallback(new ResolvedTagKCB()));
-    return Deferred.group(tagvs).addCallback(new ResolvedTagVCB());
+    
+    final Deferred<byte[]> tagk_uid = tsdb.getUIDAsync(UniqueIdType.TAGK, tagk)
+        .addCallback(new ResolvedTagKCB());
+    // one batched lookup for all of the literals instead of one get each
+    final Deferred<ArrayList<byte[]>> tagvs = tsdb.getUIDsAsync(
+        UniqueIdType.TAGV, new ArrayList<String>(literals))
+        .addErrback(new BatchErrback());
+    return tagvs.addCallbackDeferring(new TagVsCB(tagk_uid))
+        .addCallback(new ResolvedTagVCB());
   }
-  
+
+  /**
+   * Resolves the tagk name to it's UID and, for filters that can match a tag
+   * value on its own, the UIDs of all the tag values matching the filter from
+   * the UID table. With the UIDs the row key scanner filters the rows on the
+   * storage servers instead of the TSD resolving the tags of every row.
+   * Filters matching more than the maximum number of values keep the UIDs
+   * empty and match after the scan. By default only the tagk is resolved.
+   * @param tsdb The TSDB to use for the lookup
+   * @param max_values The maximum number of tag value UIDs to keep.
+   * @return A deferred to let the caller know that the lookup was completed.
+   * The value will be the tag UID (unless it's an exception of course)
+   * @since 2.4
+   */
+  public Deferred<byte[]> resolveMatchingTags(final TSDB tsdb,
+      final int max_values) {
+    return resolveTagkName(tsdb);
+  }
+
+  /**
+   * Resolves the tagk name to it's UID then scans the UID table for the tag
+   * values this filter matches. The scan narrows the names down on the storage
+   * servers with the prefix and regular expression, then each name is matched
+   * against the filter itself.
+   * @param tsdb The TSDB to use for the lookup
+   * @param prefix An optional prefix all the matching values start with.
+   * @param regex An optional regular expression all the matching values
+   * contain a match for.
+   * @param max_values The maximum number of tag value UIDs to keep.
+   * @return A deferred to let the caller know that the lookup was completed.
+   * The value will be the tag UID (unless it's an exception of course)
+   * @since 2.4
+   */
+  protected Deferred<byte[]> resolveMatchingTags(final TSDB tsdb,
+      final String prefix, final String regex, final int max_values) {
+
+    /** Keeps the UIDs of the names matching the filter */
+    class MatchedCB implements Callback<byte[], ArrayList<Boolean>> {
+      private final List<byte[]> uids;
+
+      MatchedCB(final List<byte[]> uids) {
+        this.uids = uids;
+      }
+
+      @Override
+      public byte[] call(final ArrayList<Boolean> matches) throws Exception {
+        final List<byte[]> matched = new ArrayList<byte[]>(uids.size());
+        for (int i = 0; i < matches.size(); i++) {
+          if (matches.get(i)) {
+            matched.add(uids.get(i));
+          }
+        }
+        Collections.sort(matched, Bytes.MEMCMP);
+        tagv_uids = matched;
+        return tagk_bytes;
+      }
+
+      @Override
+      public String toString() {
+        return "Matched tag values of " + TagVFilter.this;
+      }
+    }
+
+    /** Matches the names found unless there were too many */
+    class FoundCB implements Callback<Deferred<byte[]>, Map<String, byte[]>> {
+      @Override
+      public Deferred<byte[]> call(final Map<String, byte[]> found)
+          throws Exception {
+        if (found.size() > max_values) {
+          LOG.debug("Matching tag values after the scan as more than "
+              + max_values + " match " + TagVFilter.this);
+          return Deferred.fromResult(tagk_bytes);
+        }
+        final List<byte[]> uids = new ArrayList<byte[]>(found.size());
+        final List<Deferred<Boolean>> matches =
+            new ArrayList<Deferred<Boolean>>(found.size());
+        for (final Map.Entry<String, byte[]> entry : found.entrySet()) {
+          uids.add(entry.getValue());
+          matches.add(match(Collections.singletonMap(tagk, entry.getKey())));
+        }
+        return Deferred.groupInOrder(matches)
+            .addCallback(new MatchedCB(uids));
+      }
+
+      @Override
+      public String toString() {
+        return "Found tag values of " + TagVFilter.this;
+      }
+    }
+
+    /** Leaves the filter to match after the scan if the UID scan failed */
+    class ErrorCB implements Callback<byte[], Exception> {
+      @Override
+      public byte[] call(final Exception e) throws Exception {
+        LOG.warn("Failed to find the tag values of " + TagVFilter.this
+            + ", matching them after the scan", e);
+        tagv_uids = null;
+        return tagk_bytes;
+      }
+
+      @Override
+      public String toString() {
+        return "Tag value scan error of " + TagVFilter.this;
+      }
+    }
+
+    /** Scans for the tag values once the tagk is resolved */
+    class TagkCB implements Callback<Deferred<byte[]>, byte[]> {
+      @Override
+      public Deferred<byte[]> call(final byte[] uid) throws Exception {
+        return tsdb.findUIDsAsync(UniqueIdType.TAGV, prefix, regex,
+            max_values + 1)
+            .addCallbackDeferring(new FoundCB())
+            .addErrback(new ErrorCB());
+      }
+
+      @Override
+      public String toString() {
+        return "Resolved tagk of " + TagVFilter.this;
+      }
+    }
+
+    return resolveTagkName(tsdb).addCallbackDeferring(new TagkCB());
+  }
+
   /** @return the tag key associated with this filter */
   public String getTagk() {
     return tagk;
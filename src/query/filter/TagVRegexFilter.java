@@ -19,6 +19,8 @@ import java.util.regex.PatternSyntaxException;
 import com.google.common.base.Objects;
 import com.stumbleupon.async.Deferred;
 
+import net.opentsdb.core.TSDB;
+
 /**
  * A filter that allows for regular expression matching on tag values.
  * @since 2.2
@@ -55,6 +57,12 @@ public class TagVRegexFilter extends TagVFilter {
     return Deferred.fromResult(pattern.matcher(tagv).find());
   }
 
+  @Override
+  public Deferred<byte[]> resolveMatchingTags(final TSDB tsdb,
+      final int max_values) {
+    return resolveMatchingTags(tsdb, null, pattern.pattern(), max_values);
+  }
+
   @Override
   public String debugInfo() {
     return "{pattern=" + pattern.toString() + "}";
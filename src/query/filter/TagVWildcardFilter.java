@@ -14,7 +14,9 @@ package net.opentsdb.query.filter;
 
 import java.util.Arrays;
 import java.util.Map;
+import java.util.regex.Pattern;
 
+import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -138,6 +140,24 @@ public class TagVWildcardFilter extends TagVFilter {
     return Deferred.fromResult(true);
   }
 
+  @Override
+  public Deferred<byte[]> resolveMatchingTags(final TSDB tsdb,
+      final int max_values) {
+    // the storage servers only narrow the values down to those containing
+    // every component, in any order, then match() picks the values
+    final StringBuilder regex = new StringBuilder();
+    if (case_insensitive) {
+      regex.append("(?iu)");
+    }
+    regex.append("(?s)^");
+    for (final String component : components) {
+      regex.append("(?=.*").append(Pattern.quote(component)).append(")");
+    }
+    return resolveMatchingTags(tsdb, 
+        has_prefix && !has_postfix && !case_insensitive ? components[0] : null,
+        regex.toString(), max_values);
+  }
+
   @Override
   public String debugInfo() {
     return "{components=" + Arrays.toString(components) + ", case=" + 
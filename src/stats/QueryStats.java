@@ -133,6 +133,15 @@ public class QueryStats {
     // Query Setup stats
     STRING_TO_UID_TIME ("stringToUidTime", true),
     
+    // Result cache stats, in time slices
+    CACHE_HITS ("cacheHits", false),
+    CACHE_MISSES ("cacheMisses", false),
+    
+    // Query planner stats, the plan being the ordinal of QueryPlanner.Plan
+    QUERY_PLAN ("queryPlan", false),
+    ESTIMATED_SERIES ("estimatedSeries", false),
+    ESTIMATED_COST ("estimatedCost", false),
+    
     // Storage stats
     COLUMNS_FROM_STORAGE ("columnsFromStorage", false),
     ROWS_FROM_STORAGE ("rowsFromStorage", false),
@@ -156,6 +165,8 @@ public class QueryStats {
     // Post Scan stats
     QUERY_SCAN_TIME ("queryScanTime", true),
     GROUP_BY_TIME ("groupByTime", true),
+    AGGREGATION_TASKS ("aggregationTasks", false),
+    PARALLEL_AGGREGATION_TIME ("parallelAggregationTime", true),
     
     // Serialization time stats
     UID_TO_STRING_TIME ("uidToStringTime", true),
@@ -17,6 +17,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.zip.GZIPInputStream;
 
@@ -75,6 +76,7 @@ final class TextImporter {
       for (final String path : args) {
         points += importFile(tsdb.getClient(), tsdb, path, skip_errors);
       }
+      persistAll();
       final double time_delta = (System.nanoTime() - start_time) / 1000000000.0;
       LOG.info(String.format("Total: imported %d data points in %.3fs"
                              + " (%.1f points/s)",
@@ -98,6 +100,9 @@ final class TextImporter {
 
   static volatile boolean throttle = false;
 
+  /** The write that got throttled and was sent again, to wait on */
+  static volatile Deferred<Object> throttled_write;
+
   private static int importFile(final HBaseClient client,
                                 final TSDB tsdb,
                                 final String path,
@@ -113,11 +118,12 @@ final class TextImporter {
           if (arg instanceof PleaseThrottleException) {
             final PleaseThrottleException e = (PleaseThrottleException) arg;
             LOG.warn("Need to throttle, HBase isn't keeping up.", e);
-            throttle = true;
             final HBaseRpc rpc = e.getFailedRpc();
             if (rpc instanceof PutRequest) {
-              client.put((PutRequest) rpc);  // Don't lose edits.
+              // Don't lose edits.
+              throttled_write = client.put((PutRequest) rpc).addErrback(this);
             }
+            throttle = true;
             return null;
           }
           LOG.error("Exception caught while processing file "
@@ -209,7 +215,16 @@ final class TextImporter {
             LOG.info("Throttling...");
             long throttle_time = System.nanoTime();
             try {
-              d.joinUninterruptibly();
+              final Deferred<Object> resent = throttled_write;
+              throttled_write = null;
+              if (resent != null) {
+                resent.joinUninterruptibly();
+              } else {
+                // with a reorder window the data point may be held back until
+                // a newer one comes, which this thread would have to read
+                dp.persist();
+                d.joinUninterruptibly();
+              }
             } catch (final Exception e) {
               throw new RuntimeException("Should never happen", e);
             }
@@ -274,6 +289,19 @@ final class TextImporter {
   private static final HashMap<String, WritableDataPoints> datapoints =
     new HashMap<String, WritableDataPoints>();
 
+  /**
+   * Writes the data points still held back by the series, e.g. for
+   * reordering, and waits for them.
+   */
+  private static void persistAll() throws Exception {
+    final ArrayList<Deferred<Object>> deferreds =
+      new ArrayList<Deferred<Object>>(datapoints.size());
+    for (final WritableDataPoints dp : datapoints.values()) {
+      deferreds.add(dp.persist());
+    }
+    Deferred.group(deferreds).joinUninterruptibly();
+  }
+
   private static
     WritableDataPoints getDataPoints(final TSDB tsdb,
                                      final String metric,
@@ -27,7 +27,9 @@ import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
@@ -78,6 +80,9 @@ public abstract class AbstractHttpQuery {
   /** Used for recording query statistics */
   protected QueryStats stats;
   
+  /** Set once the headers of a chunked response were written */
+  private boolean chunked_reply;
+  
   /**
    * Set up required internal state.  For subclasses.
    * 
@@ -428,6 +433,10 @@ public abstract class AbstractHttpQuery {
 
   /**
    * Sends an HTTP reply to the client.
+   * <p>
+   * If a chunked reply was already started the status can't be changed any 
+   * more, so the reply is aborted by closing the channel, which the client 
+   * sees as a truncated response.
    * @param status The status of the request (e.g. 200 OK or 404 Not Found).
    * @param buf The content of the reply to send.
    */
@@ -441,6 +450,16 @@ public abstract class AbstractHttpQuery {
       done();
       return;
     }
+    if (chunked_reply) {
+      logWarn("Aborting the chunked reply on " + request.getUri() 
+          + " instead of sending a " + status + " status");
+      if (stats != null) {
+        stats.markSendFailed();
+      }
+      chan.close();
+      done();
+      return;
+    }
     response.headers().set(HttpHeaders.Names.CONTENT_TYPE, contentType);
 
     // TODO(tsuna): Server, X-Backend, etc. headers.
@@ -462,6 +481,100 @@ public abstract class AbstractHttpQuery {
     done();
   }
   
+  /**
+   * Whether or not the reply can be streamed to the client with chunked 
+   * transfer encoding, which requires HTTP/1.1.
+   * @return True if chunks can be sent.
+   * @since 2.4
+   */
+  public boolean canSendChunks() {
+    return HttpVersion.HTTP_1_1.equals(request.getProtocolVersion());
+  }
+  
+  /** @return Whether or not the headers of a chunked reply were sent. 
+   * @since 2.4 */
+  public boolean isChunkedReply() {
+    return chunked_reply;
+  }
+  
+  /**
+   * Sends the readable bytes of the buffer as the next chunk of a chunked 
+   * reply, writing a 200 status and the headers first if this is the first 
+   * chunk. The buffer is copied then cleared so the caller can keep writing 
+   * to it.
+   * <p>
+   * The returned deferred is how the caller applies back pressure: while the 
+   * channel is writable it's already called back, otherwise it's called back 
+   * once this chunk (and so everything queued before it) has been written to 
+   * the socket, or with the exception if the write failed.
+   * @param buf The buffer to drain.
+   * @param contentType The content type sent with the headers.
+   * @return A deferred to wait on before producing more data.
+   * @since 2.4
+   */
+  public Deferred<Object> sendChunk(final ChannelBuffer buf, 
+      final String contentType) {
+    if (!chunked_reply) {
+      if (!chan.isConnected()) {
+        return Deferred.fromError(new IllegalStateException(
+            "Channel was closed before the reply was started: " + chan));
+      }
+      response.headers().set(HttpHeaders.Names.CONTENT_TYPE, contentType);
+      response.setStatus(HttpResponseStatus.OK);
+      response.setChunked(true);
+      HttpHeaders.setTransferEncodingChunked(response);
+      chan.write(response);
+      chunked_reply = true;
+    }
+    if (!buf.readable()) {
+      return Deferred.fromResult(null);
+    }
+    final ChannelFuture future = chan.write(
+        new DefaultHttpChunk(ChannelBuffers.copiedBuffer(buf)));
+    buf.clear();
+    if (chan.isWritable()) {
+      return Deferred.fromResult(null);
+    }
+    
+    final Deferred<Object> written = new Deferred<Object>();
+    future.addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(final ChannelFuture future) {
+        if (future.isSuccess()) {
+          written.callback(null);
+        } else {
+          written.callback(future.getCause());
+        }
+      }
+    });
+    return written;
+  }
+  
+  /**
+   * Sends whatever is left in the buffer and terminates a chunked reply 
+   * started with {@link #sendChunk}.
+   * @param buf The buffer to drain, may be empty.
+   * @since 2.4
+   */
+  public void finishChunkedReply(final ChannelBuffer buf) {
+    if (!chunked_reply) {
+      throw new IllegalStateException("No chunked reply was started for " 
+          + request.getUri());
+    }
+    if (buf.readable()) {
+      chan.write(new DefaultHttpChunk(ChannelBuffers.copiedBuffer(buf)));
+      buf.clear();
+    }
+    final ChannelFuture future = chan.write(HttpChunk.LAST_CHUNK);
+    if (stats != null) {
+      future.addListener(new SendSuccess());
+    }
+    if (!HttpHeaders.isKeepAlive(request)) {
+      future.addListener(ChannelFutureListener.CLOSE);
+    }
+    done();
+  }
+  
   /** A simple class that marks a query as complete when the stats are set */
   private class SendSuccess implements ChannelFutureListener {
     @Override
@@ -0,0 +1,286 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * Pushes back on writers when storage can't keep up, instead of queuing
+ * data points in the heap until asynchbase throws
+ * {@code PleaseThrottleException}s.
+ * <p>
+ * The controller counts the writes issued by the put RPCs that haven't
+ * completed yet and times them. Ingest is overloaded when
+ * {@code tsd.rpc.admission.max_pending_puts} writes are pending or when the
+ * 99th percentile put latency of the last interval reached
+ * {@code tsd.rpc.admission.max_latency} ms. While overloaded, telnet
+ * connections that send data points stop being read from, leaving the
+ * lines in the TCP buffers of the clients, and HTTP puts are answered with
+ * a 429. Telnet connections are read from again once at most
+ * {@code tsd.rpc.admission.resume_pending_puts} writes are pending and the
+ * latency is back under its limit.
+ * <p>
+ * Put latencies are also recorded in {@link TSDB#getPutLatencyHistogram}.
+ * That histogram never resets so the decision is made on a histogram of the
+ * last {@code tsd.rpc.admission.interval} ms instead.
+ * @since 2.4
+ */
+final class AdmissionController implements TimerTask {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(AdmissionController.class);
+
+  private final TSDB tsdb;
+  private final int max_pending;
+  private final int resume_pending;
+  private final int max_latency;
+  private final long interval;
+
+  /** Writes issued and not completed yet */
+  private final AtomicInteger pending = new AtomicInteger();
+
+  /** The latencies of the writes completed this interval. Guarded by this. */
+  private Histogram window = newHistogram();
+
+  /** The 99th percentile latency of the last interval, in ms */
+  private volatile int last_latency;
+
+  /** Telnet channels that aren't read from until the load goes down */
+  private final Set<Channel> paused =
+      Collections.newSetFromMap(new ConcurrentHashMap<Channel, Boolean>());
+
+  /** Forgets a paused channel once it's closed */
+  private final ChannelFutureListener close_listener =
+      new ChannelFutureListener() {
+    @Override
+    public void operationComplete(final ChannelFuture future) {
+      paused.remove(future.getChannel());
+    }
+  };
+
+  private volatile boolean shutdown;
+
+  private final AtomicLong pauses = new AtomicLong();
+  private final AtomicLong resumes = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Default ctor. Starts evaluating the put latency every interval.
+   * @param tsdb The TSDB to pull the config and timer from.
+   * @throws IllegalArgumentException if a setting is out of range
+   */
+  AdmissionController(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    final Config config = tsdb.getConfig();
+    max_pending = config.getInt("tsd.rpc.admission.max_pending_puts");
+    resume_pending = config.getInt("tsd.rpc.admission.resume_pending_puts");
+    max_latency = config.getInt("tsd.rpc.admission.max_latency");
+    interval = config.getLong("tsd.rpc.admission.interval");
+    if (max_pending < 1) {
+      throw new IllegalArgumentException("The max pending puts must be at "
+          + "least 1: " + max_pending);
+    }
+    if (resume_pending < 0 || resume_pending >= max_pending) {
+      throw new IllegalArgumentException("The resume pending puts must be "
+          + "between 0 and the max pending puts: " + resume_pending);
+    }
+    if (interval < 1) {
+      throw new IllegalArgumentException("The admission interval must be at "
+          + "least 1 ms: " + interval);
+    }
+    tsdb.getTimer().newTimeout(this, interval, TimeUnit.MILLISECONDS);
+    LOG.info("Admission control enabled with max pending puts " + max_pending
+        + (max_latency > 0 ? " and max put latency " + max_latency + " ms"
+            : ""));
+  }
+
+  /**
+   * Counts a write as pending until its deferred completes, successfully or
+   * not, and times it.
+   * @param deferred The deferred of the write.
+   * @return The same deferred.
+   */
+  <T> Deferred<T> track(final Deferred<T> deferred) {
+    pending.incrementAndGet();
+    final long start = System.nanoTime();
+    final class CompleteCB implements Callback<T, T> {
+      @Override
+      public T call(final T result) {
+        pending.decrementAndGet();
+        record((int) ((System.nanoTime() - start) / 1000000));
+        if (!paused.isEmpty()) {
+          resume();
+        }
+        return result;
+      }
+      @Override
+      public String toString() {
+        return "admission complete callback";
+      }
+    }
+    deferred.addBoth(new CompleteCB());
+    return deferred;
+  }
+
+  /** @return Whether or not new writes should be held back. */
+  boolean overloaded() {
+    return pending.get() >= max_pending || latencyExceeded();
+  }
+
+  /**
+   * Stops reading from a telnet channel if ingest is overloaded. The data
+   * points already read are still written.
+   * @param chan The channel a data point was received on.
+   */
+  void admit(final Channel chan) {
+    if (chan == null || shutdown || !overloaded()) {
+      return;
+    }
+    if (paused.add(chan)) {
+      chan.setReadable(false);
+      // called right away if the channel was already closed
+      chan.getCloseFuture().addListener(close_listener);
+      pauses.incrementAndGet();
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Paused reading from " + chan + " with " + pending.get()
+            + " pending puts");
+      }
+    }
+  }
+
+  /**
+   * Rejects an HTTP put if ingest is overloaded.
+   * @param query The HTTP query.
+   * @throws BadRequestException with a 429 status if overloaded
+   */
+  void admit(final HttpQuery query) {
+    if (shutdown || !overloaded()) {
+      return;
+    }
+    rejected.incrementAndGet();
+    query.response().headers().set("Retry-After",
+        Long.toString(Math.max(1, interval / 1000)));
+    throw new BadRequestException(HttpResponseStatus.TOO_MANY_REQUESTS,
+        "Too many pending writes", "Storage is not keeping up with the "
+            + "writes, please retry later");
+  }
+
+  /** Evaluates the latency of the last interval, called by the timer. */
+  @Override
+  public void run(final Timeout timeout) {
+    if (shutdown) {
+      return;
+    }
+    final Histogram last;
+    synchronized (this) {
+      last = window;
+      window = newHistogram();
+    }
+    last_latency = last.percentile(99);
+    resume();
+    tsdb.getTimer().newTimeout(this, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /** Stops evaluating the load and reads from all the channels again. */
+  void shutdown() {
+    shutdown = true;
+    for (final Channel chan : paused) {
+      if (paused.remove(chan)) {
+        chan.getCloseFuture().removeListener(close_listener);
+        chan.setReadable(true);
+      }
+    }
+  }
+
+  /** @return The number of writes pending. */
+  int pending() {
+    return pending.get();
+  }
+
+  /** @return The number of telnet channels paused. */
+  int paused() {
+    return paused.size();
+  }
+
+  /**
+   * Records the admission stats.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("rpc.admission.pending", pending.get());
+    collector.record("rpc.admission.latency", last_latency, "percentile=99");
+    collector.record("rpc.admission.paused", paused.size());
+    collector.record("rpc.admission.pauses", pauses);
+    collector.record("rpc.admission.resumes", resumes);
+    collector.record("rpc.admission.rejected", rejected);
+  }
+
+  /** Reads from the paused channels again if the load went down. */
+  private void resume() {
+    if (pending.get() > resume_pending || latencyExceeded()) {
+      return;
+    }
+    for (final Channel chan : paused) {
+      if (paused.remove(chan)) {
+        chan.getCloseFuture().removeListener(close_listener);
+        chan.setReadable(true);
+        resumes.incrementAndGet();
+      }
+    }
+  }
+
+  private boolean latencyExceeded() {
+    return max_latency > 0 && last_latency >= max_latency;
+  }
+
+  /**
+   * Adds the latency of a write to the histograms. Histograms aren't
+   * thread safe.
+   * @param latency The latency in ms.
+   */
+  private void record(final int latency) {
+    synchronized (this) {
+      window.add(latency);
+    }
+    final Histogram put_latency = tsdb.getPutLatencyHistogram();
+    synchronized (put_latency) {
+      put_latency.add(latency);
+    }
+  }
+
+  /** @return A histogram with the same buckets as the put latency one. */
+  private static Histogram newHistogram() {
+    return new Histogram(16000, (short) 2, 100);
+  }
+}
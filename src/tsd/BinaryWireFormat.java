@@ -0,0 +1,401 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.Tags;
+
+/**
+ * Compact binary encoding of data points used by {@link HttpBinarySerializer}
+ * for {@code /api/put} bodies and {@code /api/query} responses.
+ * <p>
+ * Integers are written as base 128 varints, the same as protobuf, and signed
+ * values are zig-zag encoded first so small negative deltas stay small.
+ * Doubles are 8 bytes IEEE 754, big endian. Strings are written once per
+ * message: the first occurrence is a {@code 0} followed by the varint length
+ * and the UTF-8 bytes, and it's assigned the next index of the message's
+ * dictionary. Later occurrences are written as {@code index + 1}. Metric and
+ * tag names repeat a lot, so most of them cost a single byte.
+ * <p>
+ * Every message starts with the {@link #VERSION} byte. A put body follows it
+ * with the varint number of data points, then for each data point:
+ * <pre>
+ * string  metric
+ * sint64  timestamp, as a delta from the previous data point (or from 0)
+ * byte    {@link #TYPE_LONG} then an sint64 or {@link #TYPE_DOUBLE} then 8 bytes
+ * uint32  number of tags, then as many tag key and value strings
+ * </pre>
+ * A query response follows the version byte with one {@link #SERIES} record
+ * per time series and ends with {@link #END}:
+ * <pre>
+ * string  metric
+ * uint32  number of tags, then as many tag key and value strings
+ * uint32  number of aggregated tags, then as many strings
+ * uint32  number of TSUIDs, 0 unless requested, then as many strings
+ * blocks  of data points: the uint32 number of data points in the block,
+ *         then for each the sint64 timestamp delta and a value typed as
+ *         above or {@link #TYPE_NULL}. A block of 0 data points ends the
+ *         series. Timestamp deltas restart from 0 with each series.
+ * </pre>
+ * Response timestamps are in seconds unless the query asked for millisecond
+ * resolution, as with JSON.
+ * @since 2.4
+ */
+public final class BinaryWireFormat {
+  /** Content type of binary requests and responses */
+  public static final String CONTENT_TYPE = "application/x-opentsdb-binary";
+
+  /** The version of the encoding, the first byte of every message */
+  public static final byte VERSION = 1;
+
+  /** Value types */
+  public static final byte TYPE_LONG = 0;
+  public static final byte TYPE_DOUBLE = 1;
+  /** A missing value reported as null per the query's fill policy */
+  public static final byte TYPE_NULL = 2;
+
+  /** Query response record types */
+  public static final byte END = 0;
+  public static final byte SERIES = 1;
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private BinaryWireFormat() {
+    // only static and nested classes
+  }
+
+  /**
+   * Writes values to a buffer, keeping the dictionary of the strings written
+   * so far. Not thread safe.
+   */
+  public static final class Writer {
+    private final ChannelBuffer buffer;
+    private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+    /** @param buffer The buffer to append to, usually a dynamic buffer */
+    public Writer(final ChannelBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    /** @return The buffer written to */
+    public ChannelBuffer buffer() {
+      return buffer;
+    }
+
+    /** @param value A single byte to write */
+    public void writeByte(final int value) {
+      buffer.writeByte(value);
+    }
+
+    /** @param value An unsigned varint to write, must not be negative */
+    public void writeVarint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        buffer.writeByte((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      buffer.writeByte((int) value);
+    }
+
+    /** @param value A signed value to write, zig-zag encoded */
+    public void writeSignedVarint(final long value) {
+      writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    /** @param value A double to write */
+    public void writeDouble(final double value) {
+      buffer.writeLong(Double.doubleToRawLongBits(value));
+    }
+
+    /** @param value A string to write, a reference if it was already sent */
+    public void writeString(final String value) {
+      final Integer index = strings.get(value);
+      if (index != null) {
+        writeVarint(index + 1);
+        return;
+      }
+      strings.put(value, strings.size());
+      final byte[] bytes = value.getBytes(CHARSET);
+      buffer.writeByte(0);
+      writeVarint(bytes.length);
+      buffer.writeBytes(bytes);
+    }
+  }
+
+  /**
+   * Reads values from a buffer, keeping the dictionary of the strings read
+   * so far. Not thread safe.
+   */
+  public static final class Reader {
+    private final ChannelBuffer buffer;
+    private final List<String> strings = new ArrayList<String>();
+
+    /** @param buffer The buffer to read from */
+    public Reader(final ChannelBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    /** @return Whether or not there's anything left to read */
+    public boolean readable() {
+      return buffer.readable();
+    }
+
+    /**
+     * @return The next byte
+     * @throws IllegalArgumentException if the message was truncated
+     */
+    public byte readByte() {
+      ensure(1);
+      return buffer.readByte();
+    }
+
+    /**
+     * @return The next unsigned varint
+     * @throws IllegalArgumentException if the message was truncated or the
+     * varint is longer than 64 bits
+     */
+    public long readVarint() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        final byte b = readByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("Malformed varint at offset "
+          + buffer.readerIndex());
+    }
+
+    /**
+     * @return The next varint as a count that can't be larger than the
+     * number of bytes left, as each item takes at least a byte
+     * @throws IllegalArgumentException if the count is out of range
+     */
+    public int readCount() {
+      final long count = readVarint();
+      if (count < 0 || count > buffer.readableBytes()) {
+        throw new IllegalArgumentException("Invalid count " + count
+            + " with " + buffer.readableBytes() + " bytes left");
+      }
+      return (int) count;
+    }
+
+    /** @return The next zig-zag encoded signed varint */
+    public long readSignedVarint() {
+      final long value = readVarint();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** @return The next double */
+    public double readDouble() {
+      ensure(8);
+      return Double.longBitsToDouble(buffer.readLong());
+    }
+
+    /**
+     * @return The next string
+     * @throws IllegalArgumentException if the reference is unknown or the
+     * message was truncated
+     */
+    public String readString() {
+      final long ref = readVarint();
+      if (ref > 0) {
+        if (ref > strings.size()) {
+          throw new IllegalArgumentException("Unknown string reference "
+              + ref + ", only " + strings.size() + " strings were sent");
+        }
+        return strings.get((int) ref - 1);
+      }
+      final int length = readCount();
+      final String value = buffer.toString(buffer.readerIndex(), length,
+          CHARSET);
+      buffer.skipBytes(length);
+      strings.add(value);
+      return value;
+    }
+
+    private void ensure(final int bytes) {
+      if (buffer.readableBytes() < bytes) {
+        throw new IllegalArgumentException("Truncated message at offset "
+            + buffer.readerIndex());
+      }
+    }
+  }
+
+  /**
+   * Encodes data points as a put body. Useful to clients and tests.
+   * @param data_points The data points to encode, with a metric and tags.
+   * Their values must parse as a long or a double.
+   * @return A buffer with the encoded data points
+   * @throws IllegalArgumentException if a value couldn't be parsed
+   */
+  public static ChannelBuffer encodePutV1(
+      final List<? extends IncomingDataPoint> data_points) {
+    final Writer writer = new Writer(
+        ChannelBuffers.dynamicBuffer(16 + data_points.size() * 16));
+    writer.writeByte(VERSION);
+    writer.writeVarint(data_points.size());
+    long last_timestamp = 0;
+    for (final IncomingDataPoint dp : data_points) {
+      writer.writeString(dp.getMetric());
+      writer.writeSignedVarint(dp.getTimestamp() - last_timestamp);
+      last_timestamp = dp.getTimestamp();
+      final String value = dp.getValue();
+      if (Tags.looksLikeInteger(value)) {
+        writer.writeByte(TYPE_LONG);
+        writer.writeSignedVarint(Tags.parseLong(value));
+      } else {
+        writer.writeByte(TYPE_DOUBLE);
+        writer.writeDouble(Double.parseDouble(value));
+      }
+      final Map<String, String> tags = dp.getTags();
+      if (tags == null) {
+        writer.writeVarint(0);
+        continue;
+      }
+      writer.writeVarint(tags.size());
+      for (final Map.Entry<String, String> tag : tags.entrySet()) {
+        writer.writeString(tag.getKey());
+        writer.writeString(tag.getValue());
+      }
+    }
+    return writer.buffer();
+  }
+
+  /**
+   * Decodes a put body. The buffer's reader index is moved to the end of
+   * the message.
+   * @param buffer The encoded data points
+   * @return The data points as {@link DecodedDataPoint}s so their values
+   * can be stored without going through a string
+   * @throws IllegalArgumentException if the message is malformed
+   */
+  public static List<IncomingDataPoint> decodePutV1(
+      final ChannelBuffer buffer) {
+    final Reader reader = new Reader(buffer);
+    checkVersion(reader);
+    final int count = reader.readCount();
+    final List<IncomingDataPoint> data_points =
+        new ArrayList<IncomingDataPoint>(count);
+    long timestamp = 0;
+    for (int i = 0; i < count; i++) {
+      final String metric = reader.readString();
+      timestamp += reader.readSignedVarint();
+      final DecodedDataPoint dp;
+      final byte type = reader.readByte();
+      switch (type) {
+        case TYPE_LONG:
+          dp = new DecodedDataPoint(metric, timestamp, 
+              reader.readSignedVarint());
+          break;
+        case TYPE_DOUBLE:
+          dp = new DecodedDataPoint(metric, timestamp, reader.readDouble());
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown value type " + type
+              + " for data point " + i);
+      }
+      final int num_tags = reader.readCount();
+      final HashMap<String, String> tags =
+          new HashMap<String, String>(num_tags * 2);
+      for (int t = 0; t < num_tags; t++) {
+        tags.put(reader.readString(), reader.readString());
+      }
+      dp.setTags(tags);
+      data_points.add(dp);
+    }
+    if (reader.readable()) {
+      throw new IllegalArgumentException(buffer.readableBytes()
+          + " unexpected bytes after " + count + " data points");
+    }
+    return data_points;
+  }
+
+  /**
+   * A data point decoded from a put body. The value is kept as the primitive
+   * it was encoded as and is only formatted as a string if something asks 
+   * for it, e.g. to report an error.
+   */
+  public static final class DecodedDataPoint extends IncomingDataPoint {
+    private final boolean is_integer;
+    private final long long_value;
+    private final double double_value;
+
+    DecodedDataPoint(final String metric, final long timestamp, 
+        final long value) {
+      super(metric, timestamp, null, null);
+      is_integer = true;
+      long_value = value;
+      double_value = 0;
+    }
+
+    DecodedDataPoint(final String metric, final long timestamp, 
+        final double value) {
+      super(metric, timestamp, null, null);
+      is_integer = false;
+      long_value = 0;
+      double_value = value;
+    }
+
+    /** @return Whether or not the value is an integer */
+    public boolean isInteger() {
+      return is_integer;
+    }
+
+    /** @return The integer value */
+    public long longValue() {
+      return long_value;
+    }
+
+    /** @return The floating point value */
+    public double doubleValue() {
+      return double_value;
+    }
+
+    /** 
+     * @return Whether or not the floating point value can be stored as a 
+     * float without losing precision, like {@link Tags#fitsInFloat}.
+     */
+    public boolean fitsInFloat() {
+      return ((float) double_value) == double_value;
+    }
+
+    @Override
+    public String getValue() {
+      return is_integer ? Long.toString(long_value) 
+          : Double.toString(double_value);
+    }
+  }
+
+  /**
+   * Reads and validates the version byte of a message.
+   * @param reader The reader at the start of a message
+   * @throws IllegalArgumentException if the version isn't supported
+   */
+  static void checkVersion(final Reader reader) {
+    final byte version = reader.readByte();
+    if (version != VERSION) {
+      throw new IllegalArgumentException("Unsupported binary format version "
+          + version + ", expected " + VERSION);
+    }
+  }
+}
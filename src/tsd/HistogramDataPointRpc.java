@@ -15,7 +15,12 @@ package net.opentsdb.tsd;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
 
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
@@ -26,9 +31,10 @@ import com.google.common.base.Strings;
 import com.stumbleupon.async.Deferred;
 
 import net.opentsdb.core.Histogram;
+import net.opentsdb.core.HistogramCodecManager;
 import net.opentsdb.core.HistogramPojo;
 import net.opentsdb.core.IncomingDataPoint;
-import net.opentsdb.core.SimpleHistogram;
+import net.opentsdb.core.SimpleHistogramBuffer;
 import net.opentsdb.core.SimpleHistogramDecoder;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
@@ -49,6 +55,10 @@ public class HistogramDataPointRpc extends PutDataPointRpc
       
   /** Whether or not histograms are enabled. */
   private final boolean enabled;
+  
+  /** Whether or not to merge the simple histograms of a put for the same 
+   * series and timestamp. */
+  private final boolean merge_puts;
 
   /**
    * Default ctor. Checks the "tsd.core.histograms.config" value to see if 
@@ -64,6 +74,7 @@ public class HistogramDataPointRpc extends PutDataPointRpc
     } else {
       enabled = true;
     }
+    merge_puts = config.getBoolean("tsd.core.histograms.merge_puts");
   }
 
   @Override
@@ -83,8 +94,13 @@ public class HistogramDataPointRpc extends PutDataPointRpc
           "] is not permitted for this endpoint");
     }
     
-    final List<HistogramPojo> dps = query.serializer()
+    checkAdmission(query);
+
+    List<HistogramPojo> dps = query.serializer()
         .parsePutV1(HistogramPojo.class, TYPE_REF);
+    if (merge_puts) {
+      dps = mergeSimpleHistograms(tsdb, dps);
+    }
     processDataPoint(tsdb, query, dps);
   }
   
@@ -144,15 +160,18 @@ public class HistogramDataPointRpc extends PutDataPointRpc
     
     // validation and prepend the ID.
     try {
-      final Histogram dp;
-      if (has_id) {
-        dp = tsdb.histogramManager().decode(id, 
-          HistogramPojo.base64StringToBytes(value), false);
+      final byte[] raw;
+      if (!has_id) {
+        raw = parseTelnet(tsdb, value).encode(true);
+      } else if (isSimple(tsdb.histogramManager(), id)) {
+        raw = SimpleHistogramBuffer.decode(id, 
+            HistogramPojo.base64StringToBytes(value), false).encode(true);
       } else {
-        dp = parseTelnet(tsdb, value);
+        final Histogram dp = tsdb.histogramManager().decode(id, 
+          HistogramPojo.base64StringToBytes(value), false);
+        raw = tsdb.histogramManager().encode(id, dp, true);
       }
-      return tsdb.addHistogramPoint(metric, timestamp, 
-          tsdb.histogramManager().encode(id, dp, true), tags);
+      return tsdb.addHistogramPoint(metric, timestamp, raw, tags);
     } catch (Exception e) {
       return Deferred.fromError(e);
     }
@@ -194,7 +213,7 @@ public class HistogramDataPointRpc extends PutDataPointRpc
       dp.setValue(value);
     } else {
       dp.setValue(HistogramPojo.bytesToBase64String(
-          parseTelnet(tsdb, value).histogram(false)));
+          parseTelnet(tsdb, value).encode(false)));
     }
     final HashMap<String, String> tags = new HashMap<String, String>();
     for (int i = has_id ? 5 : 4; i < words.length; i++) {
@@ -206,9 +225,9 @@ public class HistogramDataPointRpc extends PutDataPointRpc
     return dp;
   }
 
-  SimpleHistogram parseTelnet(final TSDB tsdb, final String encoded) {
-    final SimpleHistogram shdp = new SimpleHistogram(tsdb.histogramManager()
-        .getCodec(SimpleHistogramDecoder.class));
+  SimpleHistogramBuffer parseTelnet(final TSDB tsdb, final String encoded) {
+    final SimpleHistogramBuffer shdp = new SimpleHistogramBuffer(
+        tsdb.histogramManager().getCodec(SimpleHistogramDecoder.class));
     
     final String[] buckets = Tags.splitString(encoded, ':');
     if (buckets.length < 1) {
@@ -241,6 +260,131 @@ public class HistogramDataPointRpc extends PutDataPointRpc
     return shdp;
   }
   
+  /**
+   * Validates a histogram from a put and encodes it with its codec ID for
+   * storage. Simple histograms are decoded and re-encoded straight from 
+   * primitive arrays, other types through their codec.
+   * @param tsdb The TSDB to pull the codecs from.
+   * @param pojo The non-null histogram.
+   * @return The encoded histogram.
+   * @throws IllegalArgumentException if the histogram couldn't be decoded.
+   */
+  static byte[] encodeForStorage(final TSDB tsdb, final HistogramPojo pojo) {
+    final SimpleHistogramBuffer simple = toSimpleHistogram(tsdb, pojo);
+    if (simple != null) {
+      return simple.encode(true);
+    }
+    final Histogram hdp = tsdb.histogramManager().decode(
+        pojo.getId(), pojo.getBytes(), false);
+    return tsdb.histogramManager().encode(hdp.getId(), hdp, true);
+  }
+  
+  /**
+   * Merges the simple histograms of a put that share a metric, tags and 
+   * timestamp into one, summing their buckets, since only the last one would
+   * be kept in storage. Other histograms, including the ones that fail to 
+   * decode, are left as is for {@link #processDataPoint} to handle. Only the
+   * duplicates are decoded here.
+   * @param tsdb The TSDB to pull the codecs from.
+   * @param dps The parsed histograms.
+   * @return The histograms to write, in the order of their first occurrence.
+   */
+  @VisibleForTesting
+  List<HistogramPojo> mergeSimpleHistograms(final TSDB tsdb, 
+                                            final List<HistogramPojo> dps) {
+    if (dps.size() < 2) {
+      return dps;
+    }
+    final Map<String, Integer> series = new HashMap<String, Integer>();
+    final Map<Integer, SimpleHistogramBuffer> merged = 
+        new HashMap<Integer, SimpleHistogramBuffer>();
+    final Set<Integer> unmergeable = new HashSet<Integer>();
+    final List<HistogramPojo> results = 
+        new ArrayList<HistogramPojo>(dps.size());
+    
+    for (final HistogramPojo dp : dps) {
+      if (dp == null || !dp.validate(null)) {
+        results.add(dp);
+        continue;
+      }
+      final String key = dp.getMetric() + ' ' + dp.getTimestamp() + ' ' 
+          + new TreeMap<String, String>(dp.getTags());
+      final Integer first = series.get(key);
+      if (first == null) {
+        series.put(key, results.size());
+        results.add(dp);
+        continue;
+      }
+      if (unmergeable.contains(first)) {
+        results.add(dp);
+        continue;
+      }
+      
+      try {
+        SimpleHistogramBuffer histogram = merged.get(first);
+        if (histogram == null) {
+          histogram = toSimpleHistogram(tsdb, results.get(first));
+          if (histogram == null) {
+            unmergeable.add(first);
+            results.add(dp);
+            continue;
+          }
+          merged.put(first, histogram);
+        }
+        final SimpleHistogramBuffer other = toSimpleHistogram(tsdb, dp);
+        if (other == null) {
+          results.add(dp);
+          continue;
+        }
+        histogram.merge(other);
+        merged_histograms.incrementAndGet();
+      } catch (IllegalArgumentException e) {
+        if (!merged.containsKey(first)) {
+          unmergeable.add(first);
+        }
+        results.add(dp);
+      }
+    }
+    
+    for (final Entry<Integer, SimpleHistogramBuffer> entry : merged.entrySet()) {
+      final HistogramPojo original = results.get(entry.getKey());
+      final HistogramPojo dp = new HistogramPojo();
+      dp.setMetric(original.getMetric());
+      dp.setTimestamp(original.getTimestamp());
+      dp.setTags(new HashMap<String, String>(original.getTags()));
+      dp.setId(entry.getValue().getId());
+      dp.setValue(HistogramPojo.bytesToBase64String(
+          entry.getValue().encode(false)));
+      results.set(entry.getKey(), dp);
+    }
+    return results;
+  }
+  
+  /**
+   * Converts a histogram from a put to primitive arrays if it's a simple one.
+   * @param tsdb The TSDB to pull the codecs from.
+   * @param pojo The non-null histogram.
+   * @return The simple histogram or null if the histogram is of another type.
+   * @throws IllegalArgumentException if the histogram couldn't be decoded.
+   */
+  private static SimpleHistogramBuffer toSimpleHistogram(final TSDB tsdb, 
+      final HistogramPojo pojo) {
+    if (Strings.isNullOrEmpty(pojo.getValue())) {
+      return pojo.toSimpleHistogramBuffer(tsdb);
+    }
+    if (!isSimple(tsdb.histogramManager(), pojo.getId())) {
+      return null;
+    }
+    return SimpleHistogramBuffer.decode(pojo.getId(), pojo.getBytes(), false);
+  }
+  
+  /** @return Whether or not the ID is mapped to the simple histogram codec.
+   * @throws IllegalArgumentException if no codec is mapped to the ID. */
+  private static boolean isSimple(final HistogramCodecManager manager, 
+                                  final int id) {
+    return manager.getCodec(id).getClass() == SimpleHistogramDecoder.class;
+  }
+  
   @VisibleForTesting
   boolean enabled() {
     return enabled;
@@ -0,0 +1,370 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.DataPointBatch;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.FillPolicy;
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.SeekableView;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.stats.QueryStats.QueryStat;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Serializer using the compact {@link BinaryWireFormat} for data point puts
+ * and query results, the two calls where parsing and generating JSON costs
+ * the most. It's selected with the {@code serializer=binary} query string
+ * parameter or with the {@link BinaryWireFormat#CONTENT_TYPE} Content-Type.
+ * <p>
+ * Everything else, including query bodies and errors, is handled as JSON by
+ * the parent class and returned with the JSON content type. Query results
+ * only carry the metric, tags, aggregated tags, TSUIDs and data points;
+ * annotations, the query and stats require the JSON serializer.
+ * @since 2.4
+ */
+class HttpBinarySerializer extends HttpJsonSerializer {
+
+  /**
+   * Default constructor necessary for plugin implementation
+   */
+  public HttpBinarySerializer() {
+    super();
+    request_content_type = BinaryWireFormat.CONTENT_TYPE;
+  }
+
+  /**
+   * Constructor that sets the query object
+   * @param query Request/resposne object
+   */
+  public HttpBinarySerializer(final HttpQuery query) {
+    super(query);
+    request_content_type = BinaryWireFormat.CONTENT_TYPE;
+  }
+
+  /** @return the version */
+  @Override
+  public String version() {
+    return "2.4.0";
+  }
+
+  /** @return the shortname */
+  @Override
+  public String shortName() {
+    return "binary";
+  }
+
+  /**
+   * Parses one or more binary encoded data points for storage
+   * @return an array of data points to process for storage
+   * @throws BadRequestException if the content was missing or malformed
+   */
+  @Override
+  public List<IncomingDataPoint> parsePutV1() {
+    if (!query.hasContent()) {
+      throw new BadRequestException("Missing request content");
+    }
+    try {
+      return BinaryWireFormat.decodePutV1(
+          query.request().getContent().duplicate());
+    } catch (IllegalArgumentException iae) {
+      throw new BadRequestException("Unable to parse the binary data points",
+          iae);
+    }
+  }
+
+  /**
+   * Parses one or more binary encoded data points for storage. Only plain
+   * data points can be encoded, rollups and histograms have to use JSON.
+   * @return an array of data points to process for storage
+   * @throws BadRequestException if the content was missing or malformed or
+   * if the type isn't supported
+   */
+  @SuppressWarnings("unchecked")
+  @Override
+  public <T extends IncomingDataPoint> List<T> parsePutV1(
+      final Class<T> type, final TypeReference<ArrayList<T>> typeReference) {
+    if (type != IncomingDataPoint.class) {
+      throw new BadRequestException(HttpResponseStatus.NOT_IMPLEMENTED,
+          "The requested API endpoint has not been implemented",
+          this.getClass().getCanonicalName() + " can't parse "
+          + type.getSimpleName() + " data points");
+    }
+    return (List<T>) parsePutV1();
+  }
+
+  /**
+   * Format the results from a timeseries data query
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals Ignored, annotations aren't encoded
+   * @return A Deferred<ChannelBuffer> object to pass on to the caller
+   * @throws IOException if serialization failed
+   */
+  @Override
+  public Deferred<ChannelBuffer> formatQueryAsyncV1(final TSQuery data_query,
+      final List<DataPoints[]> results, final List<Annotation> globals)
+          throws IOException {
+    return serializeQueryAsyncV1(data_query, results, 0);
+  }
+
+  /**
+   * Serializes the results from a timeseries data query, sending a chunk to
+   * the client whenever at least {@code chunk_size} bytes were buffered.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals Ignored, annotations aren't encoded
+   * @param chunk_size The minimum number of bytes to buffer per chunk
+   * @return A deferred called back once the reply was handed to the channel
+   * @throws IOException if serialization failed
+   */
+  @Override
+  public Deferred<Object> streamQueryAsyncV1(final TSQuery data_query,
+      final List<DataPoints[]> results, final List<Annotation> globals,
+      final int chunk_size) throws IOException {
+    if (chunk_size < 1) {
+      throw new IllegalArgumentException("Chunk size must be at least 1: "
+          + chunk_size);
+    }
+
+    /** Sends the response if it was small enough to never need a chunk */
+    class SendIt implements Callback<Object, ChannelBuffer> {
+      public Object call(final ChannelBuffer buffer) throws Exception {
+        if (buffer != null) {
+          query.sendReply(buffer);
+        }
+        return null;
+      }
+    }
+    return serializeQueryAsyncV1(data_query, results, chunk_size)
+        .addCallback(new SendIt());
+  }
+
+  /**
+   * Serializes the results from a timeseries data query. The series are
+   * written one after the other, in the order of the results.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param chunk_size When greater than 0, the output is streamed to the
+   * client in chunks of at least this many bytes.
+   * @return The buffered response, or null if it was streamed.
+   */
+  private Deferred<ChannelBuffer> serializeQueryAsyncV1(
+      final TSQuery data_query, final List<DataPoints[]> results,
+      final int chunk_size) {
+    response_content_type = BinaryWireFormat.CONTENT_TYPE;
+    final ChannelBuffer response = ChannelBuffers.dynamicBuffer();
+    final BinaryWireFormat.Writer writer =
+        new BinaryWireFormat.Writer(response);
+    writer.writeByte(BinaryWireFormat.VERSION);
+
+    /**
+     * When streaming, sends what was serialized so far as a chunk once it's
+     * large enough and returns the last write at the end of a series so a
+     * slow client holds the next series back.
+     */
+    class Flusher {
+      Deferred<Object> pending;
+
+      void flush() {
+        if (chunk_size > 0 && response.readableBytes() >= chunk_size) {
+          pending = query.sendChunk(response, responseContentType());
+        }
+      }
+
+      Deferred<Object> flushAndWait() {
+        flush();
+        final Deferred<Object> last = pending;
+        pending = null;
+        return last;
+      }
+    }
+    final Flusher flusher = new Flusher();
+
+    /** Resolves the names of a series then writes it to the buffer */
+    class SeriesWriter implements Callback<Deferred<Object>, Object> {
+      final DataPoints dps;
+      final Map<String, String> tags = new HashMap<String, String>();
+      final List<String> agg_tags = new ArrayList<String>();
+      String metric;
+      long uid_start;
+
+      SeriesWriter(final DataPoints dps) {
+        this.dps = dps;
+      }
+
+      class MetricResolver implements Callback<Object, String> {
+        public Object call(final String name) throws Exception {
+          metric = name;
+          return null;
+        }
+      }
+
+      class TagResolver implements Callback<Object, Map<String, String>> {
+        public Object call(final Map<String, String> resolved)
+            throws Exception {
+          tags.putAll(resolved);
+          return null;
+        }
+      }
+
+      class AggTagResolver implements Callback<Object, List<String>> {
+        public Object call(final List<String> resolved) throws Exception {
+          agg_tags.addAll(resolved);
+          return null;
+        }
+      }
+
+      class WriteToBuffer implements Callback<Object, ArrayList<Object>> {
+        public Object call(final ArrayList<Object> ignored) throws Exception {
+          final int query_index = dps.getQueryIndex();
+          data_query.getQueryStats().addStat(query_index,
+              QueryStat.UID_TO_STRING_TIME, DateTime.nanoTime() - uid_start);
+          final long serialization_start = DateTime.nanoTime();
+
+          writer.writeByte(BinaryWireFormat.SERIES);
+          writer.writeString(metric);
+          writer.writeVarint(tags.size());
+          for (final Map.Entry<String, String> tag : tags.entrySet()) {
+            writer.writeString(tag.getKey());
+            writer.writeString(tag.getValue());
+          }
+          writer.writeVarint(agg_tags.size());
+          for (final String tag : agg_tags) {
+            writer.writeString(tag);
+          }
+          if (data_query.getShowTSUIDs()) {
+            // sort a copy, the list may belong to the data points
+            final List<String> tsuids = 
+                new ArrayList<String>(dps.getTSUIDs());
+            Collections.sort(tsuids);
+            writer.writeVarint(tsuids.size());
+            for (final String tsuid : tsuids) {
+              writer.writeString(tsuid);
+            }
+          } else {
+            writer.writeVarint(0);
+          }
+
+          final long dps_start = DateTime.nanoTime();
+          final long start_time = data_query.startTime();
+          final long end_time = data_query.endTime();
+          final boolean ms_resolution = data_query.getMsResolution();
+          final boolean nan_as_null = data_query.getQueries()
+              .get(query_index).fillPolicy() == FillPolicy.NULL;
+          final SeekableView it = dps.iterator();
+          final DataPointBatch batch = new DataPointBatch();
+          long last_timestamp = 0;
+          long counter = 0;
+          while (batch.fill(it) > 0) {
+            // timestamps are sorted so the points in range are contiguous
+            int first = 0;
+            while (first < batch.size() && batch.timestamp(first) < start_time) {
+              first++;
+            }
+            int last = batch.size();
+            while (last > first && batch.timestamp(last - 1) > end_time) {
+              last--;
+            }
+            if (first == last) {
+              continue;
+            }
+            writer.writeVarint(last - first);
+            for (int i = first; i < last; i++) {
+              final long ts = ms_resolution ? batch.timestamp(i)
+                  : batch.timestamp(i) / 1000;
+              writer.writeSignedVarint(ts - last_timestamp);
+              last_timestamp = ts;
+              if (batch.isInteger(i)) {
+                writer.writeByte(BinaryWireFormat.TYPE_LONG);
+                writer.writeSignedVarint(batch.longValue(i));
+              } else {
+                final double value = batch.doubleValue(i);
+                if (nan_as_null && Double.isNaN(value)) {
+                  writer.writeByte(BinaryWireFormat.TYPE_NULL);
+                } else {
+                  writer.writeByte(BinaryWireFormat.TYPE_DOUBLE);
+                  writer.writeDouble(value);
+                }
+              }
+            }
+            counter += last - first;
+            flusher.flush();
+          }
+          // an empty block closes the series
+          writer.writeVarint(0);
+
+          data_query.getQueryStats().addStat(query_index,
+              QueryStat.AGGREGATION_TIME, DateTime.nanoTime() - dps_start);
+          data_query.getQueryStats().addStat(query_index,
+              QueryStat.AGGREGATED_SIZE, counter);
+          data_query.getQueryStats().addStat(query_index,
+              QueryStat.SERIALIZATION_TIME,
+              DateTime.nanoTime() - serialization_start);
+          return flusher.flushAndWait();
+        }
+      }
+
+      public Deferred<Object> call(final Object obj) throws Exception {
+        uid_start = DateTime.nanoTime();
+        final List<Deferred<Object>> deferreds =
+            new ArrayList<Deferred<Object>>(3);
+        deferreds.add(dps.metricNameAsync().addCallback(new MetricResolver()));
+        deferreds.add(dps.getTagsAsync().addCallback(new TagResolver()));
+        deferreds.add(dps.getAggregatedTagsAsync()
+            .addCallback(new AggTagResolver()));
+        return Deferred.group(deferreds).addCallback(new WriteToBuffer());
+      }
+    }
+
+    // serialize one series at a time so the output stays in order
+    final Deferred<Object> cb_chain = new Deferred<Object>();
+    for (final DataPoints[] separate_dps : results) {
+      for (final DataPoints dps : separate_dps) {
+        cb_chain.addCallback(new SeriesWriter(dps));
+      }
+    }
+
+    /** Closes the response and returns or finishes sending it */
+    class FinalCB implements Callback<ChannelBuffer, Object> {
+      public ChannelBuffer call(final Object obj) throws Exception {
+        data_query.getQueryStats().markSerializationSuccessful();
+        writer.writeByte(BinaryWireFormat.END);
+        if (query.isChunkedReply()) {
+          query.finishChunkedReply(response);
+          return null;
+        }
+        return response;
+      }
+    }
+
+    cb_chain.callback(null);
+    return cb_chain.addCallback(new FinalCB());
+  }
+}
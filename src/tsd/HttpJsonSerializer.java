@@ -33,12 +33,15 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
+import net.opentsdb.core.BatchedSeekableView;
 import net.opentsdb.core.Const;
 import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPointBatch;
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.FillPolicy;
 import net.opentsdb.core.IncomingDataPoint;
 import net.opentsdb.core.QueryException;
+import net.opentsdb.core.SeekableView;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
 import net.opentsdb.core.TSSubQuery;
@@ -88,6 +91,9 @@ class HttpJsonSerializer extends HttpSerializer {
     new TypeReference<HashMap<String, Object>>() {};
   private static TypeReference<List<Annotation>> TR_ANNOTATIONS = 
       new TypeReference<List<Annotation>>() {};
+  
+  /** How many data points of a series to write between stream flushes */
+  private static final int FLUSH_DATA_POINTS = 1024;
     
   /**
    * Default constructor necessary for plugin implementation
@@ -641,6 +647,58 @@ class HttpJsonSerializer extends HttpSerializer {
   public Deferred<ChannelBuffer> formatQueryAsyncV1(final TSQuery data_query, 
       final List<DataPoints[]> results, final List<Annotation> globals) 
           throws IOException {
+    return serializeQueryAsyncV1(data_query, results, globals, 0);
+  }
+  
+  /**
+   * Serializes the results from a timeseries data query, sending a chunk to 
+   * the client whenever at least {@code chunk_size} bytes were buffered. A
+   * series larger than a chunk is sent a block of data points at a time and 
+   * the next series isn't serialized until the channel has caught up.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @param chunk_size The minimum number of bytes to buffer per chunk
+   * @return A deferred called back once the reply was handed to the channel
+   * @throws IOException if serialization failed
+   * @since 2.4
+   */
+  @Override
+  public Deferred<Object> streamQueryAsyncV1(final TSQuery data_query, 
+      final List<DataPoints[]> results, final List<Annotation> globals, 
+      final int chunk_size) throws IOException {
+    if (chunk_size < 1) {
+      throw new IllegalArgumentException("Chunk size must be at least 1: " 
+          + chunk_size);
+    }
+    
+    /** Sends the response if it was small enough to never need a chunk */
+    class SendIt implements Callback<Object, ChannelBuffer> {
+      public Object call(final ChannelBuffer buffer) throws Exception {
+        if (buffer != null) {
+          query.sendReply(buffer);
+        }
+        return null;
+      }
+    }
+    return serializeQueryAsyncV1(data_query, results, globals, chunk_size)
+        .addCallback(new SendIt());
+  }
+  
+  /**
+   * Serializes the results from a timeseries data query.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @param chunk_size When greater than 0, the output is streamed to the 
+   * client in chunks of at least this many bytes.
+   * @return The buffered response, or null if it was streamed.
+   * @throws IOException if serialization failed
+   */
+  private Deferred<ChannelBuffer> serializeQueryAsyncV1(
+      final TSQuery data_query, final List<DataPoints[]> results, 
+      final List<Annotation> globals, final int chunk_size) 
+          throws IOException {
     
     final long start = DateTime.currentTimeMillis();
     final boolean as_arrays = this.query.hasQueryStringParam("arrays");
@@ -662,6 +720,35 @@ class HttpJsonSerializer extends HttpSerializer {
     final JsonGenerator json = JSON.getFactory().createGenerator(output);
     json.writeStartArray();
  
+    /**
+     * When streaming, sends what was serialized so far as a chunk once it's
+     * large enough. Chunks are sent without waiting while a series is being
+     * written; at the end of a series the last write is returned to the
+     * callback chain so a slow client holds the next series back.
+     */
+    class Flusher {
+      /** The deferred of the last chunk sent, if any since the last wait */
+      Deferred<Object> pending;
+      
+      void flush() throws IOException {
+        if (chunk_size < 1) {
+          return;
+        }
+        json.flush();
+        if (response.readableBytes() >= chunk_size) {
+          pending = query.sendChunk(response, responseContentType());
+        }
+      }
+      
+      Deferred<Object> flushAndWait() throws IOException {
+        flush();
+        final Deferred<Object> last = pending;
+        pending = null;
+        return last;
+      }
+    }
+    final Flusher flusher = new Flusher();
+    
     /**
      * Every individual data point set (the result of a query and possibly a
      * group by) will initiate an asynchronous metric/tag UID to name resolution
@@ -815,56 +902,68 @@ class HttpJsonSerializer extends HttpSerializer {
           json.writeFieldName("dps");
           long counter = 0;
           
-          // default is to write a map, otherwise write arrays
+          // default is to write a map, otherwise write arrays. Views that
+          // hold or decode their data points in columns are read a block at
+          // a time, others, like the aggregators, straight off the view as
+          // copying them into a batch would only add a pass over the data.
+          final SeekableView it = dps.iterator();
+          final DataPointBatch batch = it instanceof BatchedSeekableView 
+              ? new DataPointBatch() : null;
+          DataPoint dp;
+          final long start_time = data_query.startTime();
+          final long end_time = data_query.endTime();
+          final boolean ms_resolution = data_query.getMsResolution();
+          final boolean nan_as_null = 
+              orig_query.fillPolicy() == FillPolicy.NULL;
           if (!timeout_flag.get(0) && as_arrays) {
             json.writeStartArray();
-            for (final DataPoint dp : dps) {
-              if (dp.timestamp() < data_query.startTime() || 
-                  dp.timestamp() > data_query.endTime()) {
+            while ((dp = nextDataPoint(it, batch)) != null) {
+              final long ts = dp.timestamp();
+              if (ts < start_time || ts > end_time) {
                 continue;
               }
-              final long timestamp = data_query.getMsResolution() ? 
-                  dp.timestamp() : dp.timestamp() / 1000;
               json.writeStartArray();
-              json.writeNumber(timestamp);
+              json.writeNumber(ms_resolution ? ts : ts / 1000);
               if (dp.isInteger()) {
                 json.writeNumber(dp.longValue());
               } else { 
                 // Report missing intervals as null or NaN.
                 final double value = dp.doubleValue();
-                if (Double.isNaN(value) && 
-                    orig_query.fillPolicy() == FillPolicy.NULL) {
+                if (Double.isNaN(value) && nan_as_null) {
                   json.writeNull();
                 } else {
-                  json.writeNumber(dp.doubleValue());
+                  json.writeNumber(value);
                 }
               }
               json.writeEndArray();
-              ++counter;
+              if (++counter % FLUSH_DATA_POINTS == 0) {
+                flusher.flush();
+              }
             }
             json.writeEndArray();
           } else if (!timeout_flag.get(0)) {
             json.writeStartObject();
-            for (final DataPoint dp : dps) {
-              if (dp.timestamp() < (data_query.startTime()) || 
-                  dp.timestamp() > (data_query.endTime())) {
+            while ((dp = nextDataPoint(it, batch)) != null) {
+              final long ts = dp.timestamp();
+              if (ts < start_time || ts > end_time) {
                 continue;
               }
-              final long timestamp = data_query.getMsResolution() ? 
-                  dp.timestamp() : dp.timestamp() / 1000;
+              final String timestamp = 
+                  Long.toString(ms_resolution ? ts : ts / 1000);
               if (dp.isInteger()) {
-                json.writeNumberField(Long.toString(timestamp), dp.longValue());
+                json.writeNumberField(timestamp, dp.longValue());
               } else {
                 // Report missing intervals as null or NaN.
                 final double value = dp.doubleValue();
-                if (Double.isNaN(value) && 
-                    orig_query.fillPolicy() == FillPolicy.NULL) {
-                  json.writeNumberField(Long.toString(timestamp), null);
+                if (Double.isNaN(value) && nan_as_null) {
+                  json.writeNumberField(timestamp, null);
                 } else {
-                  json.writeNumberField(Long.toString(timestamp), dp.doubleValue());
+                  json.writeNumberField(timestamp, value);
                 }
               }
-              ++counter;
+              if (++counter % FLUSH_DATA_POINTS == 0) {
+                flusher.flush();
+              }
             }
             json.writeEndObject();
             
@@ -901,7 +1000,7 @@ class HttpJsonSerializer extends HttpSerializer {
 
           // close the results for this particular query
           json.writeEndObject();
-          return null;
+          return flusher.flushAndWait();
         }
       }
       
@@ -966,6 +1065,10 @@ class HttpJsonSerializer extends HttpSerializer {
         if (jsonp != null && !jsonp.isEmpty()) {
           output.write(")".getBytes());
         }
+        if (query.isChunkedReply()) {
+          query.finishChunkedReply(response);
+          return null;
+        }
         return response;
       }
     }
@@ -1223,4 +1326,25 @@ class HttpJsonSerializer extends HttpSerializer {
     }
     return ChannelBuffers.wrappedBuffer(JSON.serializeToBytes(obj));
   }
+  
+  /**
+   * Moves to the next data point of a series, refilling the batch from the
+   * view once it's been walked through if the view is read in blocks.
+   * @param it The view of the series.
+   * @param batch The batch to read the view into, null to read it point by
+   * point.
+   * @return The next data point, the batch at its cursor if reading blocks,
+   * or null once the view is exhausted.
+   */
+  private static DataPoint nextDataPoint(final SeekableView it, 
+      final DataPointBatch batch) {
+    if (batch == null) {
+      return it.hasNext() ? it.next() : null;
+    }
+    if (!batch.hasRemaining() && batch.fill(it) == 0) {
+      return null;
+    }
+    batch.advance();
+    return batch;
+  }
 }
@@ -28,6 +28,7 @@ import ch.qos.logback.classic.spi.ThrowableProxy;
 import ch.qos.logback.classic.spi.ThrowableProxyUtil;
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
 import net.opentsdb.core.DataPoints;
@@ -522,6 +523,37 @@ public abstract class HttpSerializer {
         " has not implemented formatQueryV1");
   }
   
+  /**
+   * Serializes the results from a timeseries data query and sends them to the
+   * client. Serializers that can stream should send the output in chunks of
+   * at least {@code chunk_size} bytes as series are serialized, through
+   * {@link HttpQuery#sendChunk}, waiting on the returned deferreds so a slow 
+   * client holds back the serialization. Responses smaller than a chunk 
+   * should be sent with {@link HttpQuery#sendReply(ChannelBuffer)} as usual.
+   * <p>
+   * The default implementation buffers the whole response with 
+   * {@link #formatQueryAsyncV1} and sends it at once.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @param chunk_size The minimum number of bytes to buffer per chunk
+   * @return A deferred called back once the reply was handed to the channel
+   * @throws IOException if serialization failed
+   * @since 2.4
+   */
+  public Deferred<Object> streamQueryAsyncV1(final TSQuery data_query, 
+      final List<DataPoints[]> results, final List<Annotation> globals, 
+      final int chunk_size) throws IOException {
+    class SendIt implements Callback<Object, ChannelBuffer> {
+      public Object call(final ChannelBuffer buffer) throws Exception {
+        query.sendReply(buffer);
+        return null;
+      }
+    }
+    return formatQueryAsyncV1(data_query, results, globals)
+        .addCallback(new SendIt());
+  }
+  
   /**
    * Format a list of last data points
    * @param data_points The results of the query
@@ -0,0 +1,382 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * Limits the rate at which data points are written, per connection, per
+ * remote address, per metric prefix and per tenant, so that a single
+ * misbehaving collector can't starve the others. Each limit is a token
+ * bucket refilled at the configured number of data points per second and
+ * holding up to {@code tsd.rpc.rate_limit.burst} ms worth of tokens.
+ * <p>
+ * A data point has to get a token from every bucket that applies to it,
+ * the narrowest first. Rates of 0 disable a limit. Metric prefixes are
+ * configured as {@code prefix:rate} pairs separated by commas, a metric
+ * being limited by the longest prefix it starts with. Tenants are the
+ * values of the {@code tsd.rpc.rate_limit.tenant_tag} tag.
+ * <p>
+ * Buckets are created on demand and dropped once unused for longer than it
+ * takes them to fill up again, so forgetting them doesn't change the
+ * limits.
+ * @since 2.4
+ */
+final class IngestRateLimiter {
+
+  /** The limit a data point exceeded */
+  enum Limit {
+    CONNECTION("connection"),
+    ADDRESS("address"),
+    METRIC("metric"),
+    TENANT("tenant");
+
+    private final String name;
+    Limit(final String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private static final AtomicLong connection_limited = new AtomicLong();
+  private static final AtomicLong address_limited = new AtomicLong();
+  private static final AtomicLong metric_limited = new AtomicLong();
+  private static final AtomicLong tenant_limited = new AtomicLong();
+
+  private final Ticker ticker;
+  private final long burst;
+  private final long connection_rate;
+  private final long address_rate;
+  private final long tenant_rate;
+  private final String tenant_tag;
+
+  /** Metric prefix buckets, longest prefix first */
+  private final List<PrefixBucket> prefixes;
+
+  private final LoadingCache<Channel, TokenBucket> connections;
+  private final LoadingCache<Object, TokenBucket> addresses;
+  private final LoadingCache<String, TokenBucket> tenants;
+
+  /**
+   * Default ctor.
+   * @param config The config to load the limits from.
+   * @throws IllegalArgumentException if a limit is invalid
+   */
+  IngestRateLimiter(final Config config) {
+    this(config, Ticker.systemTicker());
+  }
+
+  /**
+   * Ctor with the source of time, for unit testing.
+   * @param config The config to load the limits from.
+   * @param ticker The source of nanosecond time.
+   * @throws IllegalArgumentException if a limit is invalid
+   */
+  IngestRateLimiter(final Config config, final Ticker ticker) {
+    this.ticker = ticker;
+    final long burst_ms = config.getLong("tsd.rpc.rate_limit.burst");
+    if (burst_ms < 1) {
+      throw new IllegalArgumentException("The rate limit burst must be at "
+          + "least 1 ms: " + burst_ms);
+    }
+    burst = TimeUnit.MILLISECONDS.toNanos(burst_ms);
+    connection_rate = rate(config, "tsd.rpc.rate_limit.connection");
+    address_rate = rate(config, "tsd.rpc.rate_limit.address");
+    tenant_rate = rate(config, "tsd.rpc.rate_limit.tenant");
+    final String tag = config.getString("tsd.rpc.rate_limit.tenant_tag");
+    tenant_tag = tenant_rate > 0 && !Strings.isNullOrEmpty(tag) ? tag : null;
+    prefixes = parsePrefixes(
+        config.getString("tsd.rpc.rate_limit.metric_prefixes"));
+
+    // an idle bucket is full again after the burst so it's safe to drop
+    final long expiry = Math.max(burst_ms, 60000);
+    connections = newCache(connection_rate, expiry);
+    addresses = newCache(address_rate, expiry);
+    tenants = newCache(tenant_rate, expiry);
+  }
+
+  /**
+   * Takes a token for a data point split in words.
+   * @param chan The channel the data point was received on.
+   * @param metric The metric, may be null if missing.
+   * @param words The words of the command, searched for the tenant tag.
+   * @return The limit exceeded, null if the data point can be written.
+   */
+  Limit acquire(final Channel chan, final String metric,
+      final String[] words) {
+    String tenant = null;
+    if (tenant_tag != null) {
+      for (final String word : words) {
+        if (word != null && word.length() > tenant_tag.length()
+            && word.charAt(tenant_tag.length()) == '='
+            && word.startsWith(tenant_tag)) {
+          tenant = word.substring(tenant_tag.length() + 1);
+          break;
+        }
+      }
+    }
+    return acquire(chan, metric, tenant);
+  }
+
+  /**
+   * Takes a token for a parsed data point.
+   * @param chan The channel the data point was received on.
+   * @param metric The metric, may be null if missing.
+   * @param tags The tags, may be null.
+   * @return The limit exceeded, null if the data point can be written.
+   */
+  Limit acquire(final Channel chan, final String metric,
+      final Map<String, String> tags) {
+    return acquire(chan, metric,
+        tenant_tag != null && tags != null ? tags.get(tenant_tag) : null);
+  }
+
+  /**
+   * Records the number of data points rejected per limit.
+   * @param collector The collector to use.
+   */
+  static void collectStats(final StatsCollector collector) {
+    collector.record("rpc.rate_limited", connection_limited,
+        "type=connection");
+    collector.record("rpc.rate_limited", address_limited, "type=address");
+    collector.record("rpc.rate_limited", metric_limited, "type=metric");
+    collector.record("rpc.rate_limited", tenant_limited, "type=tenant");
+  }
+
+  /**
+   * Takes a token from each bucket that applies to the data point. If one of
+   * them is empty the tokens already taken from the others are handed back,
+   * so a rejected data point doesn't count against the wider limits.
+   * @return The limit exceeded, null if the data point can be written.
+   */
+  private Limit acquire(final Channel chan, final String metric,
+      final String tenant) {
+    final long now = ticker.read();
+    TokenBucket connection = null;
+    if (connections != null && chan != null) {
+      connection = connections.getUnchecked(chan);
+      if (!connection.acquire(now)) {
+        connection_limited.incrementAndGet();
+        return Limit.CONNECTION;
+      }
+    }
+    TokenBucket address = null;
+    if (addresses != null && chan != null
+        && chan.getRemoteAddress() != null) {
+      address = addresses.getUnchecked(addressKey(chan.getRemoteAddress()));
+      if (!address.acquire(now)) {
+        release(connection);
+        address_limited.incrementAndGet();
+        return Limit.ADDRESS;
+      }
+    }
+    TokenBucket prefix_bucket = null;
+    if (metric != null) {
+      for (final PrefixBucket prefix : prefixes) {
+        if (metric.startsWith(prefix.prefix)) {
+          if (!prefix.bucket.acquire(now)) {
+            release(connection);
+            release(address);
+            metric_limited.incrementAndGet();
+            return Limit.METRIC;
+          }
+          prefix_bucket = prefix.bucket;
+          break;
+        }
+      }
+    }
+    if (tenant != null && !tenants.getUnchecked(tenant).acquire(now)) {
+      release(connection);
+      release(address);
+      release(prefix_bucket);
+      tenant_limited.incrementAndGet();
+      return Limit.TENANT;
+    }
+    return null;
+  }
+
+  /** Hands a token back to a bucket, if any. */
+  private static void release(final TokenBucket bucket) {
+    if (bucket != null) {
+      bucket.release();
+    }
+  }
+
+  /** @return The host part of the address, so all ports share a bucket */
+  private static Object addressKey(final SocketAddress address) {
+    if (address instanceof InetSocketAddress
+        && ((InetSocketAddress) address).getAddress() != null) {
+      return ((InetSocketAddress) address).getAddress();
+    }
+    return address;
+  }
+
+  /** @return A cache of buckets at the rate or null if the rate is 0 */
+  private <K> LoadingCache<K, TokenBucket> newCache(final long rate,
+      final long expiry) {
+    if (rate < 1) {
+      return null;
+    }
+    return CacheBuilder.newBuilder()
+        .ticker(ticker)
+        .expireAfterAccess(expiry, TimeUnit.MILLISECONDS)
+        .build(new CacheLoader<K, TokenBucket>() {
+          @Override
+          public TokenBucket load(final K key) {
+            return new TokenBucket(rate, burst, ticker.read());
+          }
+        });
+  }
+
+  /**
+   * Parses the metric prefixes and their rates.
+   * @param config The comma separated {@code prefix:rate} pairs.
+   * @return The buckets, longest prefix first.
+   * @throws IllegalArgumentException if a pair is malformed
+   */
+  private List<PrefixBucket> parsePrefixes(final String config) {
+    if (Strings.isNullOrEmpty(config)) {
+      return Collections.emptyList();
+    }
+    final List<PrefixBucket> buckets = new ArrayList<PrefixBucket>();
+    for (final String pair : config.split(",")) {
+      final String trimmed = pair.trim();
+      if (trimmed.isEmpty()) {
+        continue;
+      }
+      final int colon = trimmed.lastIndexOf(':');
+      if (colon < 1 || colon == trimmed.length() - 1) {
+        throw new IllegalArgumentException("Invalid metric prefix rate limit, "
+            + "expected prefix:rate: " + trimmed);
+      }
+      final long rate;
+      try {
+        rate = Long.parseLong(trimmed.substring(colon + 1));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid metric prefix rate: "
+            + trimmed, e);
+      }
+      if (rate < 1) {
+        throw new IllegalArgumentException("The metric prefix rate must be "
+            + "at least 1: " + trimmed);
+      }
+      buckets.add(new PrefixBucket(trimmed.substring(0, colon),
+          new TokenBucket(rate, burst, ticker.read())));
+    }
+    Collections.sort(buckets, new Comparator<PrefixBucket>() {
+      @Override
+      public int compare(final PrefixBucket a, final PrefixBucket b) {
+        return b.prefix.length() - a.prefix.length();
+      }
+    });
+    return buckets;
+  }
+
+  /** @return The rate in data points per second, 0 if disabled */
+  private static long rate(final Config config, final String key) {
+    final long rate = config.getLong(key);
+    if (rate < 0) {
+      throw new IllegalArgumentException("The rate limit " + key
+          + " can't be negative: " + rate);
+    }
+    return rate;
+  }
+
+  /**
+   * A lock-free token bucket. Instead of a token count it keeps the time at
+   * which the bucket will be full again, moved forward by the time it takes
+   * to refill one token on each acquisition, as in the generic cell rate
+   * algorithm. A token is available as long as that time isn't more than
+   * the burst ahead of now.
+   */
+  static final class TokenBucket {
+    /** Nanoseconds to refill one token */
+    private final long interval;
+    /** How far ahead the full time may get, in nanoseconds */
+    private final long tolerance;
+    /** When the bucket is full again, in ticker nanoseconds */
+    private final AtomicLong full_at;
+
+    /**
+     * Default ctor, the bucket starts full.
+     * @param rate The tokens per second.
+     * @param burst How many nanoseconds of tokens the bucket holds.
+     * @param now The current ticker time.
+     */
+    TokenBucket(final long rate, final long burst, final long now) {
+      interval = Math.max(1, TimeUnit.SECONDS.toNanos(1) / rate);
+      tolerance = Math.max(interval, burst);
+      full_at = new AtomicLong(now);
+    }
+
+    /**
+     * Takes a token if one is available.
+     * @param now The current ticker time.
+     * @return True if a token was taken, false if the bucket is empty.
+     */
+    boolean acquire(final long now) {
+      while (true) {
+        final long current = full_at.get();
+        final long next = (current - now > 0 ? current : now) + interval;
+        if (next - now > tolerance) {
+          return false;
+        }
+        if (full_at.compareAndSet(current, next)) {
+          return true;
+        }
+      }
+    }
+
+    /**
+     * Hands back a token taken by {@link #acquire}. Moving the full time
+     * before now is harmless as acquisitions start from now at the earliest.
+     */
+    void release() {
+      full_at.addAndGet(-interval);
+    }
+  }
+
+  /** A bucket shared by the metrics starting with a prefix */
+  private static final class PrefixBucket {
+    final String prefix;
+    final TokenBucket bucket;
+
+    PrefixBucket(final String prefix, final TokenBucket bucket) {
+      this.prefix = prefix;
+      this.bucket = bucket;
+    }
+  }
+}
@@ -45,7 +45,6 @@ public final class PipelineFactory implements ChannelPipelineFactory {
 
   // Those are entirely stateless and thus a single instance is needed.
   private static final StringEncoder ENCODER = new StringEncoder();
-  private static final WordSplitter DECODER = new WordSplitter();
 
   // Those are sharable but maintain some state, so a single instance per
   // PipelineFactory is needed.
@@ -159,7 +158,7 @@ public final class PipelineFactory implements ChannelPipelineFactory {
       } else {
         pipeline.addLast("framer", new LineBasedFrameDecoder(1024));
         pipeline.addLast("encoder", ENCODER);
-        pipeline.addLast("decoder", DECODER);
+        pipeline.addLast("decoder", new PutLineDecoder());
       }
 
       if (tsdb.getAuth() != null) {
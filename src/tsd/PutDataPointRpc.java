@@ -21,7 +21,6 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
-import com.google.common.base.Strings;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 import com.stumbleupon.async.TimeoutException;
@@ -41,7 +40,6 @@ import org.jboss.netty.util.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import net.opentsdb.core.Histogram;
 import net.opentsdb.core.HistogramPojo;
 import net.opentsdb.core.IncomingDataPoint;
 import net.opentsdb.core.TSDB;
@@ -85,6 +83,7 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
   protected static final AtomicLong rollup_dps = new AtomicLong();
   protected static final AtomicLong raw_stored = new AtomicLong();
   protected static final AtomicLong raw_histograms_stored = new AtomicLong();
+  protected static final AtomicLong merged_histograms = new AtomicLong();
   protected static final AtomicLong rollup_stored = new AtomicLong();
   protected static final AtomicLong hbase_errors = new AtomicLong();
   protected static final AtomicLong unknown_errors = new AtomicLong();
@@ -99,6 +98,12 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
   /** Whether or not to send error messages back over telnet */
   private final boolean send_telnet_errors;
   
+  /** Holds back writers when storage is overloaded, null if disabled */
+  private AdmissionController admission;
+  
+  /** Limits the rate of data points per client, null if disabled */
+  private IngestRateLimiter rate_limiter;
+  
   /** The type of data point we're writing.
    * @since 2.4 */
   public enum DataPointType {
@@ -144,12 +149,59 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
     } else {
       throw new IllegalArgumentException("Unrecognized command: " + cmd[0]);
     }
+    return executeTelnet(tsdb, chan, type, command, cmd, null);
+  }
+
+  /**
+   * Handles a put line parsed by the {@link PutLineDecoder}. The same as
+   * a {@code put} command split in words without parsing it again.
+   * @param tsdb The TSDB to write to.
+   * @param chan The channel the line was received on.
+   * @param put The parsed data point.
+   * @return A deferred resolved once the data point was written or rejected.
+   */
+  Deferred<Object> executePut(final TSDB tsdb, final Channel chan,
+      final PutLineDecoder.PutLine put) {
+    telnet_requests.incrementAndGet();
+    raw_dps.incrementAndGet();
+    return executeTelnet(tsdb, chan, DataPointType.PUT, "put", null, put);
+  }
 
+  /**
+   * Writes a data point received over telnet and reports errors.
+   * @param tsdb The TSDB to write to.
+   * @param chan The channel the data point was received on.
+   * @param type The type of data point.
+   * @param command The lower case command.
+   * @param cmd The command split in words, null if parsed already.
+   * @param put The parsed put, null if split in words.
+   * @return A deferred resolved once the data point was written or rejected.
+   */
+  private Deferred<Object> executeTelnet(final TSDB tsdb, final Channel chan,
+      final DataPointType type, final String command, final String[] cmd,
+      final PutLineDecoder.PutLine put) {
     String errmsg = null;
     try {
 
       checkAuthorization(tsdb, chan, command);
 
+      if (rate_limiter != null) {
+        final IngestRateLimiter.Limit limit = cmd != null 
+            ? rate_limiter.acquire(chan, metric(type, cmd), cmd) 
+            : rate_limiter.acquire(chan, put.metric, put.tags);
+        if (limit != null) {
+          if (send_telnet_errors && chan.isConnected()) {
+            if (chan.isWritable()) {
+              chan.write(type + ": Rate limit per " + limit 
+                  + " exceeded\n");
+            } else {
+              writes_blocked.incrementAndGet();
+            }
+          }
+          return Deferred.fromResult(null);
+        }
+      }
+
       /**
        * Error callback that handles passing a data point to the storage 
        * exception handler as well as responding to the client when HBase
@@ -179,7 +231,7 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
           
           // we handle the storage exceptions here so as to avoid creating yet
           // another callback object on every data point.
-          handleStorageException(tsdb, getDataPointFromString(tsdb, cmd), arg);
+          handleStorageException(tsdb, getDataPoint(tsdb, cmd, put), arg);
           
           if (send_telnet_errors) {
             if (chan.isConnected()) {
@@ -217,7 +269,13 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
       
       // Rollups and histos override this method in their implementation so 
       // that it will route properly.
-      return importDataPoint(tsdb, cmd)
+      Deferred<Object> result = cmd != null 
+          ? importDataPoint(tsdb, cmd) : importDataPoint(tsdb, put);
+      if (admission != null) {
+        result = admission.track(result);
+        admission.admit(chan);
+      }
+      return result
           .addCallback(new SuccessCB())
           .addErrback(new PutErrback());
     } catch (NumberFormatException x) {
@@ -240,10 +298,10 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
     } catch (PleaseThrottleException x) {
       errmsg = type + ": Throttling exception: " + x.getMessage() + '\n';
       inflight_exceeded.incrementAndGet();
-      handleStorageException(tsdb, getDataPointFromString(tsdb, cmd), x);
+      handleStorageException(tsdb, getDataPoint(tsdb, cmd, put), x);
     } catch (TimeoutException tex) {
       errmsg = type + ": Request timed out: " + tex.getMessage() + '\n';
-      handleStorageException(tsdb, getDataPointFromString(tsdb, cmd), tex);
+      handleStorageException(tsdb, getDataPoint(tsdb, cmd, put), tex);
     } catch (RuntimeException rex) {
       errmsg = type + ": Unexpected runtime exception: " + rex.getMessage() + '\n';
       throw rex;
@@ -280,6 +338,8 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
           "] is not permitted for this endpoint");
     }
 
+    checkAdmission(query);
+
     final List<IncomingDataPoint> dps;
     //noinspection TryWithIdenticalCatches
     try {
@@ -419,6 +479,14 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
           continue;
         }
         
+        if (rate_limiter != null && rate_limiter.acquire(query.channel(), 
+            dp.getMetric(), dp.getTags()) != null) {
+          if (show_details) {
+            details.add(getHttpDetails("Rate limit exceeded", dp));
+          }
+          continue;
+        }
+        
         // TODO - refactor the add calls someday or move some of this into the 
         // actual data point class.
         final Deferred<Boolean> deferred;
@@ -426,20 +494,31 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
           final HistogramPojo pojo = (HistogramPojo) dp;
           // validation and/or conversion before storage of histograms by 
           // decoding then re-encoding.
-          final Histogram hdp;
-          if (Strings.isNullOrEmpty(dp.getValue())) {
-            hdp = pojo.toSimpleHistogram(tsdb);
-          } else {
-            hdp = tsdb.histogramManager().decode(
-                pojo.getId(), pojo.getBytes(), false);
-          }
           deferred = tsdb.addHistogramPoint(
               pojo.getMetric(), 
               pojo.getTimestamp(), 
-              tsdb.histogramManager().encode(hdp.getId(), hdp, true), 
+              HistogramDataPointRpc.encodeForStorage(tsdb, pojo), 
               pojo.getTags())
                 .addCallback(new SuccessCB())
                 .addErrback(new PutErrback());
+        } else if (type == DataPointType.PUT && 
+            dp instanceof BinaryWireFormat.DecodedDataPoint) {
+          // already decoded to a number, skip the string parsing
+          final BinaryWireFormat.DecodedDataPoint ddp = 
+              (BinaryWireFormat.DecodedDataPoint) dp;
+          final Deferred<Object> put;
+          if (ddp.isInteger()) {
+            put = tsdb.addPoint(ddp.getMetric(), ddp.getTimestamp(), 
+                ddp.longValue(), ddp.getTags());
+          } else if (ddp.fitsInFloat()) {
+            put = tsdb.addPoint(ddp.getMetric(), ddp.getTimestamp(), 
+                (float) ddp.doubleValue(), ddp.getTags());
+          } else {
+            put = tsdb.addPoint(ddp.getMetric(), ddp.getTimestamp(), 
+                ddp.doubleValue(), ddp.getTags());
+          }
+          deferred = put.addCallback(new SuccessCB())
+              .addErrback(new PutErrback());
         } else {
           if (Tags.looksLikeInteger(dp.getValue())) {
             switch (type) {
@@ -494,6 +573,9 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
             }
           }
         }
+        if (admission != null) {
+          admission.track(deferred);
+        }
         ++queued;
         if (synchronous) {
           deferreds.add(deferred);
@@ -726,6 +808,8 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
     collector.record("rpc.errors", illegal_arguments, "type=illegal_arguments");
     collector.record("rpc.errors", unknown_metrics, "type=unknown_metrics");
     collector.record("rpc.errors", writes_blocked, "type=socket_writes_blocked");
+    collector.record("rpc.merged", merged_histograms, "type=histogram");
+    IngestRateLimiter.collectStats(collector);
   }
 
   /**
@@ -779,6 +863,53 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
     }
   }
   
+  /**
+   * Imports a single data point parsed by the {@link PutLineDecoder}.
+   * @param tsdb The TSDB to import the data point into.
+   * @param put The parsed data point.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws IllegalArgumentException if any argument is invalid.
+   * @throws NoSuchUniqueName if the metric isn't registered.
+   */
+  protected Deferred<Object> importDataPoint(final TSDB tsdb,
+      final PutLineDecoder.PutLine put) {
+    if (put.is_integer) {
+      return tsdb.addPoint(put.metric, put.timestamp, put.long_value, 
+          put.tags);
+    } else if ((float) put.double_value == put.double_value) {
+      return tsdb.addPoint(put.metric, put.timestamp, 
+          (float) put.double_value, put.tags);
+    } else {
+      return tsdb.addPoint(put.metric, put.timestamp, put.double_value, 
+          put.tags);
+    }
+  }
+
+  /**
+   * Finds the metric of a telnet command without parsing it.
+   * @param type The type of data point.
+   * @param words The command split in words.
+   * @return The metric or null if the command is too short.
+   */
+  private static String metric(final DataPointType type, 
+      final String[] words) {
+    final int index = type == DataPointType.ROLLUP ? 2 : 1;
+    return words.length > index ? words[index] : null;
+  }
+
+  /**
+   * Converts a telnet data point for the storage exception handler.
+   * @param tsdb The TSDB for encoding/decoding.
+   * @param words The data point split in words or null.
+   * @param put The parsed data point if words is null.
+   * @return An incoming data point object.
+   */
+  private IncomingDataPoint getDataPoint(final TSDB tsdb, final String[] words,
+      final PutLineDecoder.PutLine put) {
+    return words != null ? getDataPointFromString(tsdb, words) 
+        : put.toDataPoint();
+  }
+
   /**
    * Converts the string array to an IncomingDataPoint. WARNING: This method
    * does not perform validation. It should only be used by the Telnet style
@@ -826,6 +957,36 @@ class PutDataPointRpc implements TelnetRpc, HttpRpc {
     return map;
   }
   
+  /**
+   * Sets the controller holding back writers when storage is overloaded.
+   * @param admission The controller, null to disable admission control.
+   * @since 2.4
+   */
+  void setAdmissionController(final AdmissionController admission) {
+    this.admission = admission;
+  }
+
+  /**
+   * Sets the limiter of the data point rates.
+   * @param rate_limiter The limiter, null to disable rate limiting.
+   * @since 2.4
+   */
+  void setRateLimiter(final IngestRateLimiter rate_limiter) {
+    this.rate_limiter = rate_limiter;
+  }
+
+  /**
+   * Rejects an HTTP put with a 429 if storage is overloaded.
+   * @param query The HTTP query.
+   * @throws BadRequestException if the put is rejected
+   * @since 2.4
+   */
+  protected void checkAdmission(final HttpQuery query) {
+    if (admission != null) {
+      admission.admit(query);
+    }
+  }
+
   /**
    * Passes a data point off to the storage handler plugin if it has been
    * configured. 
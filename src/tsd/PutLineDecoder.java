@@ -0,0 +1,328 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.Tags;
+
+/**
+ * Decodes telnet style lines. {@code put} lines are parsed straight from the
+ * frame's bytes into a {@link PutLine} with a primitive timestamp and value,
+ * and the metric and tag strings are shared with the previous lines of the
+ * connection whenever they're the same. Any other line, or a {@code put}
+ * line that the regular parser would reject, is split into space separated
+ * words like before so that it's handled, and reported, the same way.
+ * <p>
+ * Keeps per connection state so a new instance is needed for each channel.
+ * @since 2.4
+ */
+final class PutLineDecoder extends OneToOneDecoder {
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** The number of strings remembered, a power of 2 */
+  private static final int STRING_CACHE_SIZE = 512;
+
+  /** Values with up to this many digits fit in a long */
+  private static final int MAX_LONG_DIGITS = 18;
+
+  /** Mantissas with up to this many digits fit in a double exactly */
+  private static final int MAX_DOUBLE_DIGITS = 15;
+
+  /** Powers of 10 that are exact doubles */
+  private static final double[] POWERS_OF_TEN = new double[23];
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  /** Recent metric and tag strings, indexed on their hash code */
+  private final String[] strings = new String[STRING_CACHE_SIZE];
+
+  /** Copy of the line if the frame isn't backed by an array */
+  private byte[] scratch = new byte[0];
+
+  @Override
+  protected Object decode(final ChannelHandlerContext ctx,
+                          final Channel channel,
+                          final Object msg) throws Exception {
+    final ChannelBuffer buffer = (ChannelBuffer) msg;
+    // the first line of an authenticated connection has to go to the
+    // authentication handler as words
+    if (ctx.getPipeline().get("authentication") == null) {
+      final PutLine put = parse(buffer);
+      if (put != null) {
+        return put;
+      }
+    }
+    return Tags.splitString(buffer.toString(CHARSET), ' ');
+  }
+
+  /**
+   * Parses a {@code put} line.
+   * @param buffer The line, without the line feed.
+   * @return The data point or null if it's not a put or the line has to go
+   * through the regular parser, e.g. because it's malformed.
+   */
+  PutLine parse(final ChannelBuffer buffer) {
+    final int length = buffer.readableBytes();
+    final byte[] line;
+    final int start;
+    if (buffer.hasArray()) {
+      line = buffer.array();
+      start = buffer.arrayOffset() + buffer.readerIndex();
+    } else {
+      if (scratch.length < length) {
+        scratch = new byte[length];
+      }
+      buffer.getBytes(buffer.readerIndex(), scratch, 0, length);
+      line = scratch;
+      start = 0;
+    }
+    final int end = start + length;
+    if (length < 4 || line[start] != 'p' || line[start + 1] != 'u'
+        || line[start + 2] != 't' || line[start + 3] != ' ') {
+      return null;
+    }
+
+    // metric
+    int pos = start + 4;
+    int word_end = indexOfSpace(line, pos, end);
+    if (word_end == pos) {
+      return null;
+    }
+    final String metric = string(line, pos, word_end);
+
+    // timestamp, with the dots of milliseconds dropped like the regular parser
+    pos = word_end + 1;
+    word_end = indexOfSpace(line, pos, end);
+    long timestamp = 0;
+    int digits = 0;
+    for (int i = pos; i < word_end; i++) {
+      final byte b = line[i];
+      if (b >= '0' && b <= '9') {
+        timestamp = timestamp * 10 + (b - '0');
+        digits++;
+      } else if (b != '.') {
+        return null;
+      }
+    }
+    if (digits == 0 || digits > MAX_LONG_DIGITS || timestamp <= 0) {
+      return null;
+    }
+
+    // value
+    pos = word_end + 1;
+    word_end = indexOfSpace(line, pos, end);
+    if (pos >= word_end) {
+      return null;
+    }
+    final boolean negative = line[pos] == '-';
+    if (negative || line[pos] == '+') {
+      pos++;
+    }
+    long mantissa = 0;
+    digits = 0;
+    int decimals = -1;
+    for (int i = pos; i < word_end; i++) {
+      final byte b = line[i];
+      if (b >= '0' && b <= '9') {
+        mantissa = mantissa * 10 + (b - '0');
+        digits++;
+        if (decimals >= 0) {
+          decimals++;
+        }
+      } else if (b == '.' && decimals < 0) {
+        decimals = 0;
+      } else {
+        // exponents, NaN and such are left to the regular parser
+        return null;
+      }
+    }
+    if (digits == 0 || digits > (decimals < 0 ? MAX_LONG_DIGITS
+        : MAX_DOUBLE_DIGITS)) {
+      return null;
+    }
+    if (negative) {
+      mantissa = -mantissa;
+    }
+
+    // tags, skipping empty words
+    if (word_end >= end) {
+      return null;  // not enough arguments
+    }
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    pos = word_end + 1;
+    while (pos <= end) {
+      word_end = indexOfSpace(line, pos, end);
+      if (word_end > pos) {
+        int equals = -1;
+        for (int i = pos; i < word_end; i++) {
+          if (line[i] == '=') {
+            if (equals >= 0) {
+              return null;
+            }
+            equals = i;
+          }
+        }
+        if (equals <= pos || equals == word_end - 1) {
+          return null;
+        }
+        final String tagk = string(line, pos, equals);
+        final String tagv = string(line, equals + 1, word_end);
+        final String previous = tags.put(tagk, tagv);
+        if (previous != null && !previous.equals(tagv)) {
+          return null;  // duplicate tag
+        }
+      }
+      pos = word_end + 1;
+    }
+
+    if (decimals < 0) {
+      return new PutLine(metric, timestamp, mantissa, tags);
+    }
+    // both operands are exact so the division is rounded correctly
+    double value = mantissa / POWERS_OF_TEN[decimals];
+    if (negative && mantissa == 0) {
+      value = -0.0;
+    }
+    return new PutLine(metric, timestamp, value, tags);
+  }
+
+  /**
+   * Returns a string of the bytes, the cached one if it's the same.
+   * @param line The bytes of the line
+   * @param start The index of the first byte
+   * @param end The index after the last byte
+   * @return A string
+   */
+  private String string(final byte[] line, final int start, final int end) {
+    // String.hashCode() of the ISO-8859-1 string
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + (line[i] & 0xFF);
+    }
+    final int index = (hash ^ (hash >>> 16)) & (STRING_CACHE_SIZE - 1);
+    final String cached = strings[index];
+    if (cached != null && cached.hashCode() == hash
+        && cached.length() == end - start) {
+      boolean same = true;
+      for (int i = start; i < end; i++) {
+        if (cached.charAt(i - start) != (char) (line[i] & 0xFF)) {
+          same = false;
+          break;
+        }
+      }
+      if (same) {
+        return cached;
+      }
+    }
+    final String string = new String(line, start, end - start, CHARSET);
+    strings[index] = string;
+    return string;
+  }
+
+  /** @return The index of the next space from start or the end */
+  private static int indexOfSpace(final byte[] line, final int start,
+      final int end) {
+    for (int i = start; i < end; i++) {
+      if (line[i] == ' ') {
+        return i;
+      }
+    }
+    return end;
+  }
+
+  /**
+   * A data point parsed from a {@code put} line that the regular parser
+   * would accept as well. The tags are handed over to the TSDB and must not
+   * be modified.
+   */
+  static final class PutLine {
+    final String metric;
+    final long timestamp;
+    final boolean is_integer;
+    final long long_value;
+    final double double_value;
+    final HashMap<String, String> tags;
+
+    PutLine(final String metric, final long timestamp, final long value,
+        final HashMap<String, String> tags) {
+      this.metric = metric;
+      this.timestamp = timestamp;
+      is_integer = true;
+      long_value = value;
+      double_value = 0;
+      this.tags = tags;
+    }
+
+    PutLine(final String metric, final long timestamp, final double value,
+        final HashMap<String, String> tags) {
+      this.metric = metric;
+      this.timestamp = timestamp;
+      is_integer = false;
+      long_value = 0;
+      double_value = value;
+      this.tags = tags;
+    }
+
+    /** @return The value as written by the regular parser's callers */
+    String value() {
+      return is_integer ? Long.toString(long_value)
+          : Double.toString(double_value);
+    }
+
+    /** @return The line split in words, for RPCs that don't take a PutLine */
+    String[] words() {
+      final String[] words = new String[4 + tags.size()];
+      words[0] = "put";
+      words[1] = metric;
+      words[2] = Long.toString(timestamp);
+      words[3] = value();
+      int i = 4;
+      for (final Map.Entry<String, String> tag : tags.entrySet()) {
+        words[i++] = tag.getKey() + '=' + tag.getValue();
+      }
+      return words;
+    }
+
+    /** @return A data point to hand over to the storage exception handler */
+    IncomingDataPoint toDataPoint() {
+      return new IncomingDataPoint(metric, timestamp, value(),
+          new HashMap<String, String>(tags));
+    }
+
+    @Override
+    public String toString() {
+      final StringBuilder buf = new StringBuilder(64);
+      for (final String word : words()) {
+        if (buf.length() > 0) {
+          buf.append(' ');
+        }
+        buf.append(word);
+      }
+      return buf.toString();
+    }
+  }
+}
@@ -232,7 +232,11 @@ public class QueryExecutor {
     class CompleteCB implements Callback<Object, ChannelBuffer> {
       @Override
       public Object call(final ChannelBuffer cb) throws Exception {
-        query.sendReply(cb);
+        if (query.isChunkedReply()) {
+          query.finishChunkedReply(cb);
+        } else {
+          query.sendReply(cb);
+        }
         return null;
       }
     }
@@ -488,6 +492,16 @@ public class QueryExecutor {
     // chain so that when one DPsResolver is finished, it triggers the next to
     // start serializing.
     final Deferred<Object> cb_chain = new Deferred<Object>();
+    
+    // when streaming, each output is sent as soon as enough was serialized
+    final ChunkFlusher flusher;
+    if (tsdb.getConfig().getBoolean("tsd.http.query.stream.enable") && 
+        http_query.canSendChunks()) {
+      flusher = new ChunkFlusher(json, response, 
+          tsdb.getConfig().getInt("tsd.http.query.stream.chunk_size"));
+    } else {
+      flusher = null;
+    }
 
     // default to the expressions if there, or fall back to the metrics
     final List<Output> outputs;
@@ -516,6 +530,9 @@ public class QueryExecutor {
         if (it != null) {
           cb_chain.addCallback(new SerializeExpressionIterator(tsdb, json, 
               output, it, ts_query));
+          if (flusher != null) {
+            cb_chain.addCallback(flusher);
+          }
           continue;
         }
       }
@@ -526,6 +543,9 @@ public class QueryExecutor {
           final TimeSyncedIterator it = new TimeSyncedIterator(output.getId(), 
               sub.getFilterTagKs(), sub_query_results.get(output.getId()));
           cb_chain.addCallback(new SerializeSubIterator(tsdb, json, output, it));
+          if (flusher != null) {
+            cb_chain.addCallback(flusher);
+          }
           continue;
         }
       } else {
@@ -621,6 +641,38 @@ public class QueryExecutor {
     }
   }
   
+  /**
+   * Sends what was serialized so far to the client as a chunk once it's large
+   * enough. The deferred returned when the channel isn't writable holds the 
+   * next output back until the client caught up.
+   */
+  private class ChunkFlusher implements Callback<Object, Object> {
+    final JsonGenerator json;
+    final ChannelBuffer response;
+    final int chunk_size;
+    
+    public ChunkFlusher(final JsonGenerator json, final ChannelBuffer response,
+        final int chunk_size) {
+      if (chunk_size < 1) {
+        throw new IllegalArgumentException("Chunk size must be at least 1: " 
+            + chunk_size);
+      }
+      this.json = json;
+      this.response = response;
+      this.chunk_size = chunk_size;
+    }
+    
+    @Override
+    public Object call(final Object ignored) throws Exception {
+      json.flush();
+      if (response.readableBytes() < chunk_size) {
+        return null;
+      }
+      return http_query.sendChunk(response, 
+          http_query.serializer().responseContentType());
+    }
+  }
+  
   /**
    * Handles serializing the output of an expression iterator
    */
@@ -42,6 +42,7 @@ import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.IncomingDataPoint;
 import net.opentsdb.core.Query;
 import net.opentsdb.core.QueryException;
+import net.opentsdb.core.QueryResultCache;
 import net.opentsdb.core.RateOptions;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
@@ -262,11 +263,27 @@ final class QueryRpc implements HttpRpc {
           }
         }
 
+        /** Counts the query once a streamed reply was handed off */
+        class StreamedIt implements Callback<Object, Object> {
+          public Object call(final Object ignored) throws Exception {
+            query_success.incrementAndGet();
+            return null;
+          }
+        }
+
         switch (query.apiVersion()) {
         case 0:
         case 1:
+          if (tsdb.getConfig().getBoolean("tsd.http.query.stream.enable") && 
+              query.canSendChunks()) {
+            query.serializer().streamQueryAsyncV1(data_query, results, 
+                globals, tsdb.getConfig().getInt(
+                    "tsd.http.query.stream.chunk_size"))
+              .addCallback(new StreamedIt()).addErrback(new ErrorCB());
+          } else {
             query.serializer().formatQueryAsyncV1(data_query, results, 
                globals).addCallback(new SendIt()).addErrback(new ErrorCB());
+          }
           break;
         default: 
           query_invalid.incrementAndGet();
@@ -286,6 +303,11 @@ final class QueryRpc implements HttpRpc {
     class BuildCB implements Callback<Deferred<Object>, Query[]> {
       @Override
       public Deferred<Object> call(final Query[] queries) {
+        final QueryResultCache cache = tsdb.getQueryResultCache();
+        if (cache != null && cache.isCacheable(data_query)) {
+          return cache.runAsync(data_query, queries)
+              .addCallback(new QueriesCB());
+        }
         final ArrayList<Deferred<DataPoints[]>> deferreds = 
             new ArrayList<Deferred<DataPoints[]>>(queries.length);
         for (final Query query : queries) {
@@ -73,6 +73,8 @@ class RollupDataPointRpc extends PutDataPointRpc
           "] is not permitted for this endpoint");
     }
 
+    checkAdmission(query);
+
     final List<RollUpDataPoint> dps = query.serializer()
         .parsePutV1(RollUpDataPoint.class, HttpJsonSerializer.TR_ROLLUP);
     processDataPoint(tsdb, query, dps);
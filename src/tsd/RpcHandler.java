@@ -128,6 +128,9 @@ final class RpcHandler extends IdleStateAwareChannelUpstreamHandler {
       final Object message = msgevent.getMessage();
       if (message instanceof String[]) {
         handleTelnetRpc(msgevent.getChannel(), (String[]) message);
+      } else if (message instanceof PutLineDecoder.PutLine) {
+        handleTelnetPut(msgevent.getChannel(), 
+            (PutLineDecoder.PutLine) message);
       } else if (message instanceof HttpRequest) {
         handleHttpQuery(tsdb, msgevent.getChannel(), (HttpRequest) message);
       } else {
@@ -160,6 +163,22 @@ final class RpcHandler extends IdleStateAwareChannelUpstreamHandler {
     rpc.execute(tsdb, chan, command);
   }
 
+  /**
+   * Executes a put line parsed by the {@link PutLineDecoder}.
+   * @param chan The channel on which the RPC was received.
+   * @param put The parsed data point.
+   */
+  private void handleTelnetPut(final Channel chan, 
+      final PutLineDecoder.PutLine put) {
+    final TelnetRpc rpc = rpc_manager.lookupTelnetRpc("put");
+    if (!(rpc instanceof PutDataPointRpc)) {
+      handleTelnetRpc(chan, put.words());
+      return;
+    }
+    telnet_rpcs_received.incrementAndGet();
+    ((PutDataPointRpc) rpc).executePut(tsdb, chan, put);
+  }
+
   /**
    * Using the request URI, creates a query instance capable of handling 
    * the given request.
@@ -108,6 +108,8 @@ public final class RpcManager {
   private ImmutableMap<String, HttpRpcPlugin> http_plugin_commands;
   /** List of activated RPC plugins */
   private ImmutableList<RpcPlugin> rpc_plugins;
+  /** Holds back the put RPCs when storage is overloaded, null if disabled */
+  private AdmissionController admission;
 
   /** The TSDB that owns us. */
   private TSDB tsdb;
@@ -288,6 +290,21 @@ public final class RpcManager {
     final PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
     final RollupDataPointRpc rollups = new RollupDataPointRpc(tsdb.getConfig());
     final HistogramDataPointRpc histos = new HistogramDataPointRpc(tsdb.getConfig());
+    if (mode != OperationMode.READONLY
+        && tsdb.getConfig().getBoolean("tsd.rpc.admission.enable")) {
+      admission = new AdmissionController(tsdb);
+      put.setAdmissionController(admission);
+      rollups.setAdmissionController(admission);
+      histos.setAdmissionController(admission);
+    }
+    if (mode != OperationMode.READONLY
+        && tsdb.getConfig().getBoolean("tsd.rpc.rate_limit.enable")) {
+      final IngestRateLimiter rate_limiter = 
+          new IngestRateLimiter(tsdb.getConfig());
+      put.setRateLimiter(rate_limiter);
+      rollups.setRateLimiter(rate_limiter);
+      histos.setRateLimiter(rate_limiter);
+    }
     final SuggestRpc suggest_rpc = new SuggestRpc();
     final AnnotationRpc annotation_rpc = new AnnotationRpc();
     final StaticFileRpc staticfile = new StaticFileRpc();
@@ -485,6 +502,10 @@ public final class RpcManager {
 
     final Collection<Deferred<Object>> deferreds = Lists.newArrayList();
 
+    if (admission != null) {
+      admission.shutdown();
+    }
+
     if (http_plugin_commands != null) {
       for (final Map.Entry<String, HttpRpcPlugin> entry : http_plugin_commands.entrySet()) {
         deferreds.add(entry.getValue().shutdown());
@@ -506,6 +527,10 @@ public final class RpcManager {
   static void collectStats(final StatsCollector collector) {
     final RpcManager manager = INSTANCE.get();
     if (manager != null) {
+      if (manager.admission != null) {
+        manager.admission.collectStats(collector);
+      }
+
       if (manager.rpc_plugins != null) {
         try {
           collector.addExtraTag("plugin", "rpc");
@@ -0,0 +1,540 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.HBaseException;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
+import com.stumbleupon.async.TimeoutException;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.Tags;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * A built-in {@link StorageExceptionHandler} that spools the data points
+ * that failed to be written, e.g. while HBase regions move or when asynchbase
+ * throttles, to append-only segment files on the local disk and replays them
+ * at a controlled rate once writes succeed again.
+ * <p>
+ * Segments are memory-mapped files of a fixed size named after a sequence
+ * number. Each record is the int length of the data point encoded with
+ * {@link BinaryWireFormat#encodePutV1} followed by the encoded bytes. The
+ * length is written last so a record cut short by a crash reads as the end of
+ * the segment. A segment is deleted once all of its data points were written
+ * to storage. The segments found on startup are replayed from the start,
+ * which is fine as writing a data point twice stores the same cell.
+ * <p>
+ * Every {@code replay_interval} ms, up to {@code replay_rate} data points
+ * per second are written back, unless the previous ones haven't completed
+ * yet. A data point that fails again goes back to the spool and pauses the
+ * replay for an interval. Only plain data points are spooled, not rollups
+ * or histograms, and only when storage failed in a way worth retrying, i.e.
+ * an {@link HBaseException}, which includes throttling, or a timeout. Data
+ * points rejected for good, e.g. with an unknown metric or a bad value, are
+ * dropped and counted, whether they fail on the first write or on replay.
+ * <p>
+ * Enable with {@code tsd.core.storage_exception_handler.plugin} set to this
+ * class' name and {@code tsd.core.storage_exception_handler.spool.directory}
+ * set.
+ * @since 2.4
+ */
+public class SpoolingStorageExceptionHandler extends StorageExceptionHandler
+    implements TimerTask {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(SpoolingStorageExceptionHandler.class);
+
+  /** Prefix and suffix of segment file names, around the sequence number */
+  static final String SEGMENT_PREFIX = "spool-";
+  static final String SEGMENT_SUFFIX = ".dat";
+
+  private TSDB tsdb;
+  private File directory;
+  private int segment_size;
+  private int max_segments;
+  private int replay_batch;
+  private long replay_interval;
+
+  /** The segments to replay, oldest first, including the one written to.
+   * Guarded by this. */
+  private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+
+  /** The segment appended to, null until a data point is spooled. Guarded by
+   * this. */
+  private Segment active;
+
+  /** The sequence number of the next segment. Guarded by this. */
+  private long next_sequence;
+
+  /** Replays not completed yet. Guarded by this. */
+  private int replays_outstanding;
+
+  /** Whether the last replay failed so the next one is skipped */
+  private volatile boolean backoff;
+
+  private volatile boolean shutdown;
+
+  private final AtomicLong depth = new AtomicLong();
+  private final AtomicLong spooled = new AtomicLong();
+  private final AtomicLong replayed = new AtomicLong();
+  private final AtomicLong replay_errors = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  @Override
+  public void initialize(final TSDB tsdb) {
+    if (tsdb == null) {
+      throw new IllegalArgumentException("The TSDB object was null");
+    }
+    this.tsdb = tsdb;
+    final Config config = tsdb.getConfig();
+    final String path = config.getString(
+        "tsd.core.storage_exception_handler.spool.directory");
+    if (path == null || path.isEmpty()) {
+      throw new IllegalArgumentException("Missing config "
+          + "tsd.core.storage_exception_handler.spool.directory");
+    }
+    segment_size = config.getInt(
+        "tsd.core.storage_exception_handler.spool.segment_size");
+    if (segment_size < 1024) {
+      throw new IllegalArgumentException("The spool segment size must be at "
+          + "least 1024 bytes: " + segment_size);
+    }
+    max_segments = (int) Math.max(1, config.getLong(
+        "tsd.core.storage_exception_handler.spool.max_size") / segment_size);
+    replay_interval = config.getLong(
+        "tsd.core.storage_exception_handler.spool.replay_interval");
+    if (replay_interval < 1) {
+      throw new IllegalArgumentException("The spool replay interval must be "
+          + "at least 1 ms: " + replay_interval);
+    }
+    replay_batch = (int) Math.max(1, config.getInt(
+        "tsd.core.storage_exception_handler.spool.replay_rate")
+        * replay_interval / 1000);
+
+    directory = new File(path);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IllegalArgumentException("Unable to create the spool "
+          + "directory: " + directory);
+    }
+    try {
+      recover();
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to open the spool in " + directory,
+          e);
+    }
+    tsdb.getTimer().newTimeout(this, replay_interval, TimeUnit.MILLISECONDS);
+    LOG.info("Spooling failed writes to " + directory + ", " + depth.get()
+        + " data points to replay");
+  }
+
+  @Override
+  public Deferred<Object> shutdown() {
+    shutdown = true;
+    synchronized (this) {
+      if (active != null) {
+        active.buffer.force();
+      }
+    }
+    return Deferred.fromResult(null);
+  }
+
+  @Override
+  public String version() {
+    return "2.4.0";
+  }
+
+  @Override
+  public void collectStats(final StatsCollector collector) {
+    collector.record("seh.spool.depth", depth);
+    collector.record("seh.spool.spooled", spooled);
+    collector.record("seh.spool.replayed", replayed);
+    collector.record("seh.spool.replay_errors", replay_errors);
+    collector.record("seh.spool.dropped", dropped);
+    synchronized (this) {
+      collector.record("seh.spool.segments", segments.size());
+    }
+  }
+
+  @Override
+  public void handleError(final IncomingDataPoint dp,
+      final Exception exception) {
+    // replayed data points come back decoded
+    if (dp == null || (dp.getClass() != IncomingDataPoint.class
+        && dp.getClass() != BinaryWireFormat.DecodedDataPoint.class)
+        || !isRetryable(exception)) {
+      dropped.incrementAndGet();
+      return;
+    }
+    final ChannelBuffer encoded;
+    try {
+      encoded = BinaryWireFormat.encodePutV1(Collections.singletonList(dp));
+    } catch (RuntimeException e) {
+      LOG.warn("Unable to spool data point " + dp, e);
+      dropped.incrementAndGet();
+      return;
+    }
+    final byte[] record = new byte[encoded.readableBytes()];
+    encoded.readBytes(record);
+    try {
+      if (append(record)) {
+        spooled.incrementAndGet();
+        depth.incrementAndGet();
+      } else {
+        dropped.incrementAndGet();
+      }
+    } catch (IOException e) {
+      LOG.error("Unable to spool data point " + dp, e);
+      dropped.incrementAndGet();
+    }
+  }
+
+  /** Replays a batch of data points, called by the timer. */
+  @Override
+  public void run(final Timeout timeout) {
+    if (shutdown) {
+      return;
+    }
+    try {
+      if (backoff) {
+        backoff = false;
+      } else {
+        replay();
+      }
+    } catch (RuntimeException e) {
+      LOG.error("Failed to replay the spool", e);
+    } finally {
+      if (!shutdown) {
+        tsdb.getTimer().newTimeout(this, replay_interval,
+            TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Writes back up to a batch of spooled data points if the previous ones
+   * completed.
+   * @return The number of data points replayed.
+   */
+  int replay() {
+    final List<IncomingDataPoint> dps = new ArrayList<IncomingDataPoint>();
+    final List<Segment> from = new ArrayList<Segment>();
+    synchronized (this) {
+      if (replays_outstanding > 0) {
+        return 0;
+      }
+      while (dps.size() < replay_batch && !segments.isEmpty()) {
+        final Segment segment = segments.peekFirst();
+        final byte[] record = segment.next();
+        if (record == null) {
+          if (segment.outstanding > 0) {
+            break;
+          }
+          // all of its data points were written, the active one included
+          if (segment == active) {
+            active = null;
+          }
+          segments.removeFirst();
+          segment.delete();
+          continue;
+        }
+        try {
+          dps.addAll(BinaryWireFormat.decodePutV1(
+              ChannelBuffers.wrappedBuffer(record)));
+        } catch (IllegalArgumentException e) {
+          LOG.error("Skipping a corrupt record in " + segment.file, e);
+          dropped.incrementAndGet();
+          depth.decrementAndGet();
+          continue;
+        }
+        segment.outstanding++;
+        from.add(segment);
+      }
+      replays_outstanding += dps.size();
+    }
+    for (int i = 0; i < dps.size(); i++) {
+      write(dps.get(i), from.get(i));
+    }
+    return dps.size();
+  }
+
+  /** @return The number of data points waiting to be replayed. */
+  long depth() {
+    return depth.get();
+  }
+
+  /** @return The number of segment files. */
+  synchronized int segments() {
+    return segments.size();
+  }
+
+  /**
+   * Writes a spooled data point, putting it back in the spool on failure.
+   * @param dp The data point.
+   * @param segment The segment it was read from.
+   */
+  private void write(final IncomingDataPoint dp, final Segment segment) {
+    final class ReplayCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object result) {
+        depth.decrementAndGet();
+        if (result instanceof Exception) {
+          replay_errors.incrementAndGet();
+          if (isRetryable((Exception) result)) {
+            backoff = true;
+            handleError(dp, (Exception) result);
+          } else {
+            LOG.warn("Dropping spooled data point " + dp, (Exception) result);
+            dropped.incrementAndGet();
+          }
+        } else {
+          replayed.incrementAndGet();
+        }
+        synchronized (SpoolingStorageExceptionHandler.this) {
+          replays_outstanding--;
+          segment.outstanding--;
+        }
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "spool replay callback";
+      }
+    }
+
+    Deferred<Object> deferred;
+    try {
+      if (dp instanceof BinaryWireFormat.DecodedDataPoint) {
+        // already decoded to a number, skip the string parsing
+        final BinaryWireFormat.DecodedDataPoint ddp =
+            (BinaryWireFormat.DecodedDataPoint) dp;
+        if (ddp.isInteger()) {
+          deferred = tsdb.addPoint(ddp.getMetric(), ddp.getTimestamp(),
+              ddp.longValue(), ddp.getTags());
+        } else if (ddp.fitsInFloat()) {
+          deferred = tsdb.addPoint(ddp.getMetric(), ddp.getTimestamp(),
+              (float) ddp.doubleValue(), ddp.getTags());
+        } else {
+          deferred = tsdb.addPoint(ddp.getMetric(), ddp.getTimestamp(),
+              ddp.doubleValue(), ddp.getTags());
+        }
+      } else {
+        final String value = dp.getValue();
+        if (Tags.looksLikeInteger(value)) {
+          deferred = tsdb.addPoint(dp.getMetric(), dp.getTimestamp(),
+              Tags.parseLong(value), dp.getTags());
+        } else if (Tags.fitsInFloat(value)) {
+          deferred = tsdb.addPoint(dp.getMetric(), dp.getTimestamp(),
+              Float.parseFloat(value), dp.getTags());
+        } else {
+          deferred = tsdb.addPoint(dp.getMetric(), dp.getTimestamp(),
+              Double.parseDouble(value), dp.getTags());
+        }
+      }
+    } catch (RuntimeException e) {
+      deferred = Deferred.fromError(e);
+    }
+    deferred.addBoth(new ReplayCB());
+  }
+
+  /**
+   * Appends a record to the active segment, starting a new one if needed.
+   * @param record The encoded data point.
+   * @return True if spooled, false if the spool is full.
+   * @throws IOException if a new segment couldn't be created.
+   */
+  private synchronized boolean append(final byte[] record) throws IOException {
+    if (record.length + 8 > segment_size) {
+      return false;
+    }
+    if (active == null || !active.fits(record.length)) {
+      if (segments.size() >= max_segments) {
+        return false;
+      }
+      if (active != null) {
+        active.buffer.force();
+      }
+      active = Segment.create(new File(directory,
+          SEGMENT_PREFIX + next_sequence++ + SEGMENT_SUFFIX), segment_size);
+      segments.addLast(active);
+    }
+    active.append(record);
+    return true;
+  }
+
+  /**
+   * Opens the segments left by a previous run, to be replayed.
+   * @throws IOException if a segment couldn't be opened.
+   */
+  private synchronized void recover() throws IOException {
+    final File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(final File dir, final String name) {
+        return sequence(name) >= 0;
+      }
+    });
+    final long[] sequences = new long[files.length];
+    for (int i = 0; i < files.length; i++) {
+      sequences[i] = sequence(files[i].getName());
+    }
+    Arrays.sort(sequences);
+    for (final long sequence : sequences) {
+      final Segment segment = Segment.open(new File(directory,
+          SEGMENT_PREFIX + sequence + SEGMENT_SUFFIX));
+      segments.addLast(segment);
+      depth.addAndGet(segment.records());
+      next_sequence = sequence + 1;
+    }
+  }
+
+  /**
+   * Whether a write that failed with the exception may succeed later.
+   * @param e The exception, possibly wrapped in a DeferredGroupException.
+   * @return True for storage errors and timeouts, false for data points
+   * that can't ever be written.
+   */
+  static boolean isRetryable(Exception e) {
+    while (e instanceof DeferredGroupException
+        && e.getCause() instanceof Exception) {
+      e = (Exception) e.getCause();
+    }
+    return e instanceof HBaseException || e instanceof TimeoutException;
+  }
+
+  /** @return The sequence number of a segment file, -1 if it isn't one */
+  static long sequence(final String name) {
+    if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+          name.length() - SEGMENT_SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** A memory-mapped segment file. Guarded by the handler. */
+  static final class Segment {
+    final File file;
+    final MappedByteBuffer buffer;
+    int write_position;
+    int read_position;
+    /** Replays of the segment's data points not completed yet */
+    int outstanding;
+
+    private Segment(final File file, final MappedByteBuffer buffer,
+        final int write_position) {
+      this.file = file;
+      this.buffer = buffer;
+      this.write_position = write_position;
+    }
+
+    /** Creates a new segment, zero filled */
+    static Segment create(final File file, final int size) throws IOException {
+      return new Segment(file, map(file, size), 0);
+    }
+
+    /** Opens a segment from a previous run, ending at its last record */
+    static Segment open(final File file) throws IOException {
+      final MappedByteBuffer buffer = map(file, (int) file.length());
+      int position = 0;
+      while (position + 4 <= buffer.capacity()) {
+        final int length = buffer.getInt(position);
+        if (length <= 0 || position + 4 + length > buffer.capacity()) {
+          break;
+        }
+        position += 4 + length;
+      }
+      return new Segment(file, buffer, position);
+    }
+
+    private static MappedByteBuffer map(final File file, final int size)
+        throws IOException {
+      final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        // the mapping stays valid after the file is closed
+        return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      } finally {
+        raf.close();
+      }
+    }
+
+    boolean fits(final int length) {
+      return write_position + 4 + length <= buffer.capacity();
+    }
+
+    void append(final byte[] record) {
+      final ByteBuffer slice = buffer.duplicate();
+      slice.position(write_position + 4);
+      slice.put(record);
+      buffer.putInt(write_position, record.length);
+      write_position += 4 + record.length;
+    }
+
+    /** @return The next record to replay or null if there isn't any yet */
+    byte[] next() {
+      if (read_position >= write_position) {
+        return null;
+      }
+      final int length = buffer.getInt(read_position);
+      final byte[] record = new byte[length];
+      final ByteBuffer slice = buffer.duplicate();
+      slice.position(read_position + 4);
+      slice.get(record);
+      read_position += 4 + length;
+      return record;
+    }
+
+    /** @return The number of records in the segment */
+    int records() {
+      int records = 0;
+      int position = 0;
+      while (position < write_position) {
+        position += 4 + buffer.getInt(position);
+        records++;
+      }
+      return records;
+    }
+
+    void delete() {
+      if (!file.delete()) {
+        LOG.warn("Unable to delete the replayed spool segment " + file);
+      }
+    }
+  }
+}
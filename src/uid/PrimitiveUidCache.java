@@ -0,0 +1,672 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A compact cache of the UID mappings of a {@link UniqueId}, used instead of
+ * the {@code ConcurrentHashMap} caches when
+ * {@code tsd.uid.primitive_cache.enable} is set.
+ * <p>
+ * Every mapping is an entry made of the UID packed into a long and the
+ * offset of the name in a byte arena where names are stored back to back in
+ * ISO-8859-1, the same encoding the UID table uses.  Both directions are
+ * open addressing tables of entry indices, so no matter how many mappings we
+ * hold, the cache is only a handful of primitive arrays.  That's about an
+ * order of magnitude less heap than the maps, with their entries, strings
+ * and arrays per mapping, and nothing for the GC to trace.
+ * <p>
+ * Names with characters outside of ISO-8859-1, or longer than 65535
+ * characters, can't be stored without aliasing so they are never cached.
+ * <p>
+ * Lookups share a read lock, updates take the write lock.  Once
+ * {@code max_entries} mappings are held, new mappings are rejected (and
+ * counted) rather than cached until some are removed or the cache is cleared.
+ * @since 2.4
+ */
+final class PrimitiveUidCache {
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Marks a slot that was never used in the hash tables. */
+  private static final int EMPTY = -1;
+  /** Marks a slot whose entry was removed from the hash tables. */
+  private static final int DELETED = -2;
+
+  /** Flag set on entries indexed by name. */
+  private static final byte IN_NAMES = 1;
+  /** Flag set on entries indexed by UID. */
+  private static final byte IN_IDS = 2;
+
+  /** Smallest size of the tables. */
+  private static final int MIN_CAPACITY = 16;
+
+  /** Number of bytes on which each ID is encoded. */
+  private final short width;
+
+  /** Maximum number of entries to hold, 0 or less for no limit. */
+  private final int max_entries;
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /** UIDs of the entries packed into longs. */
+  private long[] uids;
+  /** Offset of the length prefixed name of each entry in the arena. */
+  private int[] name_offsets;
+  /** Whether each entry is in the names and/or IDs tables. */
+  private byte[] flags;
+  /** Number of entries allocated, including the removed ones. */
+  private int entries;
+  /** Number of entries that were removed from both tables. */
+  private int dead;
+
+  /** The names of the entries, each prefixed by its length on 2 bytes. */
+  private byte[] arena;
+  /** How much of the arena is used. */
+  private int arena_size;
+
+  /** Name to entry index table. */
+  private int[] names;
+  /** Number of live entries and removed slots in the names table. */
+  private int names_count;
+  private int names_deleted;
+
+  /** UID to entry index table. */
+  private int[] ids;
+  /** Number of live entries and removed slots in the IDs table. */
+  private int ids_count;
+  private int ids_deleted;
+
+  /** How many mappings we didn't cache because we were full. */
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Default ctor.
+   * @param width The width of the UIDs in bytes, from 1 to 8.
+   * @param max_entries The maximum number of entries to hold, 0 for no limit.
+   * @throws IllegalArgumentException if the width is invalid.
+   */
+  PrimitiveUidCache(final short width, final int max_entries) {
+    if (width < 1 || width > 8) {
+      throw new IllegalArgumentException("Invalid width: " + width);
+    }
+    this.width = width;
+    this.max_entries = max_entries;
+    init(MIN_CAPACITY, MIN_CAPACITY * 16);
+  }
+
+  /**
+   * Finds the name mapped to a UID.
+   * @param id The UID to look up.
+   * @return The name or null if it wasn't cached.
+   */
+  String getName(final byte[] id) {
+    final long key = pack(id);
+    lock.readLock().lock();
+    try {
+      final int slot = idSlot(key);
+      return slot < 0 ? null : name(ids[slot]);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Finds the UID mapped to a name.
+   * @param name The name to look up.
+   * @return A new array with the UID or null if it wasn't cached.
+   */
+  byte[] getId(final String name) {
+    if (!cacheable(name)) {
+      return null;
+    }
+    lock.readLock().lock();
+    try {
+      final int slot = nameSlot(name);
+      return slot < 0 ? null : unpack(uids[names[slot]]);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Caches the name of a UID if it's not already cached.
+   * @param id The UID.
+   * @param name The name of the UID.
+   * @return The name already cached for this UID, or null if there wasn't
+   * one and we cached the given name (or couldn't).
+   */
+  String putNameIfAbsent(final byte[] id, final String name) {
+    if (!cacheable(name)) {
+      return null;
+    }
+    final long key = pack(id);
+    lock.writeLock().lock();
+    try {
+      final int slot = idSlot(key);
+      if (slot >= 0) {
+        return name(ids[slot]);
+      }
+      addId(key, name);
+      return null;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Caches the name of a UID, replacing any name previously cached for it.
+   * @param id The UID.
+   * @param name The new name of the UID.
+   */
+  void putName(final byte[] id, final String name) {
+    final long key = pack(id);
+    lock.writeLock().lock();
+    try {
+      final int slot = idSlot(key);
+      if (slot >= 0) {
+        if (cacheable(name) && nameEquals(ids[slot], name)) {
+          return;
+        }
+        unlinkId(slot);
+      }
+      if (cacheable(name)) {
+        addId(key, name);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Caches the UID of a name if it's not already cached.
+   * @param name The name.
+   * @param id The UID of the name.
+   * @return A copy of the UID already cached for this name, or null if there
+   * wasn't one and we cached the given UID (or couldn't).
+   */
+  byte[] putIdIfAbsent(final String name, final byte[] id) {
+    if (!cacheable(name)) {
+      return null;
+    }
+    final long key = pack(id);
+    lock.writeLock().lock();
+    try {
+      final int slot = nameSlot(name);
+      if (slot >= 0) {
+        return unpack(uids[names[slot]]);
+      }
+      addName(name, key);
+      return null;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** @param name The name to forget the UID of. */
+  void removeName(final String name) {
+    if (!cacheable(name)) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      final int slot = nameSlot(name);
+      if (slot >= 0) {
+        unlinkName(slot);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** @param id The UID to forget the name of. */
+  void removeId(final byte[] id) {
+    final long key = pack(id);
+    lock.writeLock().lock();
+    try {
+      final int slot = idSlot(key);
+      if (slot >= 0) {
+        unlinkId(slot);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Drops all the mappings and releases the memory. */
+  void clear() {
+    lock.writeLock().lock();
+    try {
+      init(MIN_CAPACITY, MIN_CAPACITY * 16);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** @return The number of names cached. */
+  int nameCount() {
+    lock.readLock().lock();
+    try {
+      return names_count;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** @return The number of UIDs cached. */
+  int idCount() {
+    lock.readLock().lock();
+    try {
+      return ids_count;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** @return The number of mappings, in both directions, cached. */
+  long size() {
+    lock.readLock().lock();
+    try {
+      return names_count + ids_count;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** @return How many bytes the arrays backing the cache take up. */
+  long memoryBytes() {
+    lock.readLock().lock();
+    try {
+      return (long) uids.length * 8 + (long) name_offsets.length * 4
+          + flags.length + arena.length
+          + ((long) names.length + ids.length) * 4;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** @return How many mappings were not cached because we were full. */
+  long rejected() {
+    return rejected.get();
+  }
+
+  /**
+   * Hands a range of the entries to a visitor.  The range is visited under
+   * the read lock so updates wait in the meantime, which is why callers go
+   * through the cache a range at a time.  Entries move when the cache is
+   * compacted between two calls, in which case some mappings may be visited
+   * twice or not at all.
+   * @param from The index of the first entry to visit.
+   * @param count How many entries to visit at most.
+   * @param visitor The visitor to call with each mapping.
+   * @return The index of the next entry to visit, or -1 once there are no
+   * more entries.
+   * @throws IOException if the visitor failed.
+   */
+  int visit(final int from, final int count, 
+            final UniqueId.CacheVisitor visitor) throws IOException {
+    lock.readLock().lock();
+    try {
+      final int end = (int) Math.min(entries, (long) from + count);
+      for (int entry = from; entry < end; entry++) {
+        if (flags[entry] != 0) {
+          visitor.visit(name(entry), unpack(uids[entry]), 
+              (flags[entry] & IN_NAMES) != 0, (flags[entry] & IN_IDS) != 0);
+        }
+      }
+      return end < entries ? end : -1;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Resets all the arrays.
+   * @param capacity The number of entries to allocate room for, a power of 2.
+   * @param arena_capacity The number of name bytes to allocate room for.
+   */
+  private void init(final int capacity, final int arena_capacity) {
+    uids = new long[capacity];
+    name_offsets = new int[capacity];
+    flags = new byte[capacity];
+    entries = 0;
+    dead = 0;
+    arena = new byte[arena_capacity];
+    arena_size = 0;
+    names = newTable(capacity * 2);
+    names_count = 0;
+    names_deleted = 0;
+    ids = newTable(capacity * 2);
+    ids_count = 0;
+    ids_deleted = 0;
+  }
+
+  /** Indexes a new name to UID mapping, reusing the reverse entry if any. */
+  private void addName(final String name, final long key) {
+    int entry = -1;
+    final int slot = idSlot(key);
+    if (slot >= 0 && (flags[ids[slot]] & IN_NAMES) == 0
+        && nameEquals(ids[slot], name)) {
+      entry = ids[slot];
+    } else {
+      entry = newEntry(name, key);
+      if (entry < 0) {
+        return;
+      }
+    }
+    if ((names_count + names_deleted + 1) * 2 > names.length) {
+      names = rehash(names, true);
+      names_deleted = 0;
+    }
+    int i = hash(name) & (names.length - 1);
+    while (names[i] >= 0) {
+      i = (i + 1) & (names.length - 1);
+    }
+    if (names[i] == DELETED) {
+      names_deleted--;
+    }
+    names[i] = entry;
+    names_count++;
+    flags[entry] |= IN_NAMES;
+  }
+
+  /** Indexes a new UID to name mapping, reusing the forward entry if any. */
+  private void addId(final long key, final String name) {
+    int entry = -1;
+    final int slot = nameSlot(name);
+    if (slot >= 0 && (flags[names[slot]] & IN_IDS) == 0
+        && uids[names[slot]] == key) {
+      entry = names[slot];
+    } else {
+      entry = newEntry(name, key);
+      if (entry < 0) {
+        return;
+      }
+    }
+    if ((ids_count + ids_deleted + 1) * 2 > ids.length) {
+      ids = rehash(ids, false);
+      ids_deleted = 0;
+    }
+    int i = hash(key) & (ids.length - 1);
+    while (ids[i] >= 0) {
+      i = (i + 1) & (ids.length - 1);
+    }
+    if (ids[i] == DELETED) {
+      ids_deleted--;
+    }
+    ids[i] = entry;
+    ids_count++;
+    flags[entry] |= IN_IDS;
+  }
+
+  /**
+   * Allocates a new entry, compacting or growing the arrays as needed.
+   * @return The index of the entry or -1 if we're full.
+   */
+  private int newEntry(final String name, final long key) {
+    if (max_entries > 0 && entries - dead >= max_entries) {
+      rejected.incrementAndGet();
+      return -1;
+    }
+    if (entries == uids.length) {
+      if (dead > entries / 2) {
+        compact();
+      } else {
+        uids = Arrays.copyOf(uids, entries * 2);
+        name_offsets = Arrays.copyOf(name_offsets, entries * 2);
+        flags = Arrays.copyOf(flags, entries * 2);
+      }
+    }
+    final int needed = name.length() + 2;
+    if (arena_size + needed > arena.length) {
+      if ((long) arena_size + needed > Integer.MAX_VALUE - 8) {
+        rejected.incrementAndGet();
+        return -1;
+      }
+      arena = Arrays.copyOf(arena, (int) Math.min(Integer.MAX_VALUE - 8,
+          Math.max((long) arena.length * 2, arena_size + needed)));
+    }
+    final int entry = entries++;
+    uids[entry] = key;
+    flags[entry] = 0;
+    name_offsets[entry] = arena_size;
+    arena[arena_size++] = (byte) (name.length() >>> 8);
+    arena[arena_size++] = (byte) name.length();
+    for (int i = 0; i < name.length(); i++) {
+      arena[arena_size++] = (byte) name.charAt(i);
+    }
+    return entry;
+  }
+
+  /** Removes the entry in the given slot of the names table. */
+  private void unlinkName(final int slot) {
+    final int entry = names[slot];
+    names[slot] = DELETED;
+    names_count--;
+    names_deleted++;
+    flags[entry] &= ~IN_NAMES;
+    if (flags[entry] == 0) {
+      dead++;
+    }
+  }
+
+  /** Removes the entry in the given slot of the IDs table. */
+  private void unlinkId(final int slot) {
+    final int entry = ids[slot];
+    ids[slot] = DELETED;
+    ids_count--;
+    ids_deleted++;
+    flags[entry] &= ~IN_IDS;
+    if (flags[entry] == 0) {
+      dead++;
+    }
+  }
+
+  /**
+   * Rewrites the entries and the arena without the removed entries, then
+   * rebuilds both tables.
+   */
+  private void compact() {
+    final long[] old_uids = uids;
+    final int[] old_offsets = name_offsets;
+    final byte[] old_flags = flags;
+    final byte[] old_arena = arena;
+    final int old_entries = entries;
+    final int live = entries - dead;
+    int capacity = MIN_CAPACITY;
+    while (capacity < live * 2) {
+      capacity <<= 1;
+    }
+    init(capacity, Math.max(MIN_CAPACITY * 16, arena_size));
+    for (int old = 0; old < old_entries; old++) {
+      if (old_flags[old] == 0) {
+        continue;
+      }
+      final int entry = entries++;
+      uids[entry] = old_uids[old];
+      flags[entry] = old_flags[old];
+      final int length = nameLength(old_arena, old_offsets[old]) + 2;
+      name_offsets[entry] = arena_size;
+      System.arraycopy(old_arena, old_offsets[old], arena, arena_size, length);
+      arena_size += length;
+    }
+    names = rehash(names, true);
+    ids = rehash(ids, false);
+  }
+
+  /**
+   * Builds a new table, big enough for the current entries, from the flags of
+   * the entries.
+   * @param table The current table, used for sizing.
+   * @param by_name Whether to build the names or the IDs table.
+   * @return The new table.
+   */
+  private int[] rehash(final int[] table, final boolean by_name) {
+    final int count = by_name ? names_count : ids_count;
+    int capacity = Math.max(MIN_CAPACITY, table.length);
+    while (capacity < (count + 1) * 4) {
+      capacity <<= 1;
+    }
+    final int[] rehashed = newTable(capacity);
+    final byte flag = by_name ? IN_NAMES : IN_IDS;
+    int indexed = 0;
+    for (int entry = 0; entry < entries; entry++) {
+      if ((flags[entry] & flag) == 0) {
+        continue;
+      }
+      int i = (by_name ? hash(arena, name_offsets[entry])
+          : hash(uids[entry])) & (capacity - 1);
+      while (rehashed[i] != EMPTY) {
+        i = (i + 1) & (capacity - 1);
+      }
+      rehashed[i] = entry;
+      indexed++;
+    }
+    if (by_name) {
+      names_count = indexed;
+    } else {
+      ids_count = indexed;
+    }
+    return rehashed;
+  }
+
+  /** @return The slot of the name in the names table or -1. */
+  private int nameSlot(final String name) {
+    final int mask = names.length - 1;
+    int i = hash(name) & mask;
+    while (names[i] != EMPTY) {
+      if (names[i] >= 0 && nameEquals(names[i], name)) {
+        return i;
+      }
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  /** @return The slot of the UID in the IDs table or -1. */
+  private int idSlot(final long key) {
+    final int mask = ids.length - 1;
+    int i = hash(key) & mask;
+    while (ids[i] != EMPTY) {
+      if (ids[i] >= 0 && uids[ids[i]] == key) {
+        return i;
+      }
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  /** @return Whether the name of an entry is the same as the given one. */
+  private boolean nameEquals(final int entry, final String name) {
+    final int offset = name_offsets[entry];
+    final int length = nameLength(arena, offset);
+    if (length != name.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if ((arena[offset + 2 + i] & 0xFF) != name.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return The name of an entry. */
+  private String name(final int entry) {
+    final int offset = name_offsets[entry];
+    return new String(arena, offset + 2, nameLength(arena, offset), CHARSET);
+  }
+
+  /** @return A new UID array for a packed UID. */
+  private byte[] unpack(long key) {
+    final byte[] id = new byte[width];
+    for (int i = width - 1; i >= 0; i--) {
+      id[i] = (byte) key;
+      key >>>= 8;
+    }
+    return id;
+  }
+
+  /** @return The UID packed into a long. */
+  private long pack(final byte[] id) {
+    if (id.length != width) {
+      throw new IllegalArgumentException("Wrong id.length = " + id.length
+          + " which is != " + width + " required");
+    }
+    long key = 0;
+    for (final byte b : id) {
+      key = (key << 8) | (b & 0xFF);
+    }
+    return key;
+  }
+
+  /** @return Whether the name can be stored in the arena as is. */
+  private static boolean cacheable(final String name) {
+    if (name.length() > 0xFFFF) {
+      return false;
+    }
+    for (int i = 0; i < name.length(); i++) {
+      if (name.charAt(i) > 0xFF) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int nameLength(final byte[] arena, final int offset) {
+    return ((arena[offset] & 0xFF) << 8) | (arena[offset + 1] & 0xFF);
+  }
+
+  private static int[] newTable(final int capacity) {
+    final int[] table = new int[capacity];
+    Arrays.fill(table, EMPTY);
+    return table;
+  }
+
+  /** @return The hash of a name, same as the hash of its arena bytes. */
+  private static int hash(final String name) {
+    int h = 0;
+    for (int i = 0; i < name.length(); i++) {
+      h = 31 * h + name.charAt(i);
+    }
+    return mix(h);
+  }
+
+  /** @return The hash of a name in the arena. */
+  private static int hash(final byte[] arena, final int offset) {
+    final int length = nameLength(arena, offset);
+    int h = 0;
+    for (int i = 0; i < length; i++) {
+      h = 31 * h + (arena[offset + 2 + i] & 0xFF);
+    }
+    return mix(h);
+  }
+
+  private static int hash(final long key) {
+    return mix((int) (key ^ (key >>> 32)));
+  }
+
+  /** Spreads the bits of a hash, from the murmur3 finalizer. */
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
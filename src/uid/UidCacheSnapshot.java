@@ -0,0 +1,442 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.stumbleupon.async.Callback;
+
+import net.opentsdb.core.TSDB;
+
+/**
+ * Writes the UID caches of a TSD to a local file and loads them back on
+ * startup, so that a restarted TSD doesn't have to scan the UID table (or
+ * miss on every UID) to warm up its caches.
+ * <p>
+ * The snapshot is written every {@code tsd.uid.snapshot.interval} seconds
+ * by a background thread and once more on shutdown, to a temporary file
+ * that's then renamed over {@code tsd.uid.snapshot.path} so a crash never
+ * leaves a truncated snapshot behind.  The file is a header followed by the
+ * mappings of each kind and a CRC32 of everything before it:
+ * <pre>
+ * magic (4) | version (1) | timestamp in ms (8) | number of kinds (1)
+ * for each kind:
+ *   kind length (2) | kind | UID width (1)
+ *   for each mapping: flags (1) | UID | name length (2) | name
+ *   0 (1)
+ * CRC32 (4)
+ * </pre>
+ * The flags tell which directions of the mapping were cached, names are in
+ * ISO-8859-1 like in the UID table.  Loading maps the file in memory and
+ * checks the CRC before caching anything.
+ * <p>
+ * UIDs never change once assigned so mappings can't really go stale, but the
+ * UID table may have been wiped or restored since the snapshot was taken.
+ * Rather than blocking startup to check every mapping, the largest UID of
+ * each kind in the snapshot is compared with the max ID row of the UID table
+ * in the background, and the cache of a kind is dropped if the snapshot knows
+ * of UIDs the table doesn't.  Snapshots older than
+ * {@code tsd.uid.snapshot.max_age} seconds are ignored altogether.
+ * @since 2.4
+ */
+public final class UidCacheSnapshot {
+  private static final Logger LOG = LoggerFactory.getLogger(UidCacheSnapshot.class);
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** "UIDS" */
+  private static final int MAGIC = 0x55494453;
+  private static final byte VERSION = 1;
+
+  private static final byte FORWARD = 1;
+  private static final byte REVERSE = 2;
+  /** Flags value closing the mappings of a kind. */
+  private static final byte END_OF_KIND = 0;
+
+  /** The TSDB to which we belong. */
+  private final TSDB tsdb;
+
+  /** The UniqueId instances to snapshot, keyed on their kind. */
+  private final Map<String, UniqueId> uids;
+
+  /** Where to write the snapshot. */
+  private final File file;
+
+  /** How often to write the snapshot, in milliseconds. */
+  private final long interval;
+
+  /** How old a snapshot may be to be loaded, in milliseconds, 0 for any. */
+  private final long max_age;
+
+  /** The thread writing the snapshots, if started. */
+  private Thrd thread;
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB to which we belong.
+   * @param uids The UniqueId instances whose caches to snapshot.
+   * @throws IllegalArgumentException if {@code tsd.uid.snapshot.path} isn't
+   * set.
+   */
+  public UidCacheSnapshot(final TSDB tsdb, final List<UniqueId> uids) {
+    final String path = tsdb.getConfig().getString("tsd.uid.snapshot.path");
+    if (path == null || path.isEmpty()) {
+      throw new IllegalArgumentException(
+          "tsd.uid.snapshot.path must be set to enable UID cache snapshots");
+    }
+    this.tsdb = tsdb;
+    this.uids = new HashMap<String, UniqueId>(uids.size());
+    for (final UniqueId uid : uids) {
+      this.uids.put(uid.kind(), uid);
+    }
+    file = new File(path);
+    interval = tsdb.getConfig().getInt("tsd.uid.snapshot.interval") * 1000L;
+    max_age = tsdb.getConfig().getInt("tsd.uid.snapshot.max_age") * 1000L;
+  }
+
+  /**
+   * Starts writing the snapshot periodically in a background thread, unless
+   * {@code tsd.uid.snapshot.interval} is 0 or less.
+   */
+  public synchronized void start() {
+    if (interval <= 0 || thread != null) {
+      return;
+    }
+    thread = new Thrd();
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops the background thread, if any, and writes a last snapshot.
+   * Failures are logged, not thrown, so they don't get in the way of the
+   * rest of the shutdown.
+   */
+  public void shutdown() {
+    synchronized (this) {
+      if (thread != null) {
+        thread.interrupt();
+        thread = null;
+      }
+    }
+    try {
+      write();
+    } catch (IOException e) {
+      LOG.error("Failed to write the UID cache snapshot to " + file, e);
+    }
+  }
+
+  /**
+   * Loads the snapshot into the caches and kicks off its validation against
+   * the UID table.  Missing, stale or corrupted snapshots are skipped.
+   * @return True if mappings were loaded, false if there was nothing to load.
+   */
+  public boolean load() {
+    if (!file.exists()) {
+      LOG.info("No UID cache snapshot found at " + file);
+      return false;
+    }
+    final long start = System.currentTimeMillis();
+    final Map<String, Long> max_ids;
+    try {
+      max_ids = read();
+    } catch (IOException e) {
+      LOG.warn("Failed to read the UID cache snapshot " + file, e);
+      return false;
+    } catch (IllegalStateException e) {
+      LOG.warn("Skipping the UID cache snapshot " + file + ": "
+          + e.getMessage());
+      return false;
+    }
+    if (max_ids.isEmpty()) {
+      return false;
+    }
+    LOG.info("Loaded the UID cache snapshot " + file + " in "
+        + (System.currentTimeMillis() - start) + "ms");
+    validate(max_ids);
+    return true;
+  }
+
+  /**
+   * Writes the snapshot of the caches, replacing the previous one.
+   * @throws IOException if the snapshot couldn't be written.
+   */
+  public synchronized void write() throws IOException {
+    final long start = System.currentTimeMillis();
+    final File tmp = new File(file.getPath() + ".tmp");
+    final FileOutputStream fos = new FileOutputStream(tmp);
+    final int[] mappings = { 0 };
+    try {
+      final CRC32 crc = new CRC32();
+      final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new CheckedOutputStream(fos, crc), 65536));
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeLong(start);
+      out.writeByte(uids.size());
+      for (final UniqueId uid : uids.values()) {
+        final byte[] kind = uid.kind().getBytes(CHARSET);
+        out.writeShort(kind.length);
+        out.write(kind);
+        out.writeByte(uid.width());
+        uid.visitCache(new UniqueId.CacheVisitor() {
+          public void visit(final String name, final byte[] id,
+              final boolean forward, final boolean reverse) throws IOException {
+            final byte[] raw = name.getBytes(CHARSET);
+            if (raw.length > 0xFFFF) {
+              return;
+            }
+            out.writeByte((forward ? FORWARD : 0) | (reverse ? REVERSE : 0));
+            out.write(id);
+            out.writeShort(raw.length);
+            out.write(raw);
+            mappings[0]++;
+          }
+        });
+        out.writeByte(END_OF_KIND);
+      }
+      out.flush();
+      // the checksum itself isn't checksummed
+      new DataOutputStream(fos).writeInt((int) crc.getValue());
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+    if (!tmp.renameTo(file)) {
+      // some platforms won't rename over an existing file
+      if (!file.delete() || !tmp.renameTo(file)) {
+        tmp.delete();
+        throw new IOException("Unable to rename " + tmp + " to " + file);
+      }
+    }
+    LOG.info("Wrote " + mappings[0] + " UID mappings to " + file + " in "
+        + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  /**
+   * Reads the snapshot into the caches.
+   * @return The largest UID loaded for each kind.
+   * @throws IOException if the file couldn't be read.
+   * @throws IllegalStateException if the snapshot is corrupted, of an unknown
+   * version or too old.
+   */
+  private Map<String, Long> read() throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    final MappedByteBuffer buf;
+    try {
+      final long length = raf.length();
+      if (length > Integer.MAX_VALUE) {
+        throw new IllegalStateException("snapshot is too large to be mapped");
+      }
+      buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+    } finally {
+      raf.close();
+    }
+    if (buf.limit() < 4 || crc(buf, buf.limit() - 4) != buf.getInt(buf.limit() - 4)) {
+      throw new IllegalStateException("bad checksum");
+    }
+    buf.limit(buf.limit() - 4);
+    final Map<String, Long> max_ids = new HashMap<String, Long>();
+    try {
+      if (buf.getInt() != MAGIC) {
+        throw new IllegalStateException("not a UID cache snapshot");
+      }
+      final byte version = buf.get();
+      if (version != VERSION) {
+        throw new IllegalStateException("unknown version " + version);
+      }
+      final long timestamp = buf.getLong();
+      if (max_age > 0 && System.currentTimeMillis() - timestamp > max_age) {
+        throw new IllegalStateException("snapshot from " + timestamp
+            + " is older than " + (max_age / 1000) + "s");
+      }
+      final int kinds = buf.get() & 0xFF;
+      for (int i = 0; i < kinds; i++) {
+        final byte[] raw_kind = new byte[buf.getShort() & 0xFFFF];
+        buf.get(raw_kind);
+        final String kind = new String(raw_kind, CHARSET);
+        final int width = buf.get();
+        UniqueId uid = uids.get(kind);
+        if (uid != null && uid.width() != width) {
+          LOG.warn("Skipping the UID cache snapshot of '" + kind
+              + "', UID width changed from " + width + " to " + uid.width());
+          uid = null;
+        }
+        final long loaded = readKind(buf, uid, width, kind, max_ids);
+        if (uid != null) {
+          LOG.info("Loaded " + loaded + " '" + kind
+              + "' mappings from the UID cache snapshot");
+        }
+      }
+    } catch (BufferUnderflowException e) {
+      throw new IllegalStateException("truncated snapshot");
+    }
+    return max_ids;
+  }
+
+  /**
+   * Reads the mappings of a kind, caching them in the given instance.
+   * @param buf The snapshot, positioned on the first mapping.
+   * @param uid The instance to cache the mappings in, null to skip them.
+   * @param width The width of the UIDs in the snapshot.
+   * @param kind The kind of the mappings.
+   * @param max_ids Where to record the largest UID of the kind.
+   * @return The number of mappings cached.
+   */
+  private static long readKind(final ByteBuffer buf, final UniqueId uid,
+      final int width, final String kind, final Map<String, Long> max_ids) {
+    long loaded = 0;
+    long max_id = 0;
+    byte flags;
+    while ((flags = buf.get()) != END_OF_KIND) {
+      final byte[] id = new byte[width];
+      buf.get(id);
+      final byte[] raw_name = new byte[buf.getShort() & 0xFFFF];
+      buf.get(raw_name);
+      if (uid == null) {
+        continue;
+      }
+      try {
+        uid.loadCacheMapping(new String(raw_name, CHARSET), id,
+            (flags & FORWARD) != 0, (flags & REVERSE) != 0);
+      } catch (IllegalStateException e) {
+        LOG.warn("Skipping conflicting mapping in the UID cache snapshot: "
+            + e.getMessage());
+        continue;
+      }
+      loaded++;
+      max_id = Math.max(max_id, UniqueId.uidToLong(id, (short) width));
+    }
+    if (uid != null && loaded > 0) {
+      max_ids.put(kind, max_id);
+    }
+    return loaded;
+  }
+
+  /**
+   * Compares the largest UIDs loaded with the max ID row of the UID table in
+   * the background and drops the caches of the kinds the table doesn't know
+   * all the UIDs of.
+   * @param max_ids The largest UID loaded for each kind.
+   */
+  private void validate(final Map<String, Long> max_ids) {
+    final byte[][] kinds = new byte[max_ids.size()][];
+    int i = 0;
+    for (final String kind : max_ids.keySet()) {
+      kinds[i++] = kind.getBytes(CHARSET);
+    }
+
+    class ValidateCB implements Callback<Object, Map<String, Long>> {
+      @Override
+      public Object call(final Map<String, Long> used) {
+        for (final Map.Entry<String, Long> entry : max_ids.entrySet()) {
+          final Long max_id = used.get(entry.getKey());
+          if (max_id == null || max_id < entry.getValue()) {
+            LOG.warn("The UID cache snapshot has '" + entry.getKey()
+                + "' UIDs up to " + entry.getValue() + " but the UID table "
+                + "only has " + max_id + ", dropping the cache");
+            uids.get(entry.getKey()).dropCaches();
+          }
+        }
+        return null;
+      }
+    }
+
+    class ErrCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) {
+        LOG.warn("Unable to validate the UID cache snapshot against the "
+            + "UID table", e);
+        return null;
+      }
+    }
+
+    try {
+      UniqueId.getUsedUIDs(tsdb, kinds)
+        .addCallback(new ValidateCB())
+        .addErrback(new ErrCB());
+    } catch (RuntimeException e) {
+      new ErrCB().call(e);
+    }
+  }
+
+  /**
+   * Computes the CRC32 of the start of a buffer.
+   * @param buf The buffer, its position isn't changed.
+   * @param length How many bytes to checksum.
+   * @return The CRC32 as an int, as it's stored in the snapshot.
+   */
+  private static int crc(final ByteBuffer buf, final int length) {
+    final ByteBuffer view = buf.duplicate();
+    view.position(0);
+    final CRC32 crc = new CRC32();
+    final byte[] chunk = new byte[65536];
+    int remaining = length;
+    while (remaining > 0) {
+      final int n = Math.min(chunk.length, remaining);
+      view.get(chunk, 0, n);
+      crc.update(chunk, 0, n);
+      remaining -= n;
+    }
+    return (int) crc.getValue();
+  }
+
+  @VisibleForTesting
+  File file() {
+    return file;
+  }
+
+  /**
+   * Background thread writing the snapshot periodically.
+   */
+  final class Thrd extends Thread {
+    public Thrd() {
+      super("UidCacheSnapshot");
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          Thread.sleep(interval);
+        } catch (InterruptedException e) {
+          return;  // we're shutting down
+        }
+        try {
+          write();
+        } catch (Exception e) {
+          LOG.error("Failed to write the UID cache snapshot to " + file, e);
+        }
+      }
+    }
+  }
+}
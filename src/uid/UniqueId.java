@@ -12,6 +12,7 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.uid;
 
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -31,11 +32,13 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
 
 import org.hbase.async.AtomicIncrementRequest;
 import org.hbase.async.Bytes;
 import org.hbase.async.DeleteRequest;
 import org.hbase.async.GetRequest;
+import org.hbase.async.GetResultOrException;
 import org.hbase.async.HBaseClient;
 import org.hbase.async.HBaseException;
 import org.hbase.async.KeyValue;
@@ -50,6 +53,7 @@ import net.opentsdb.core.Internal;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSDB.OperationMode;
 import net.opentsdb.meta.UIDMeta;
+import net.opentsdb.utils.Exceptions;
 
 /**
  * Represents a table of Unique IDs, manages the lookup and creation of IDs.
@@ -113,9 +117,18 @@ public final class UniqueId implements UniqueIdInterface {
    * The ID in the key is a byte[] converted to a String to be Comparable. */
   private final Cache<String, String> lru_id_cache;
   
+  /** Compact cache for both mappings, used instead of the maps if set. */
+  private final PrimitiveUidCache primitive_cache;
+  
   /** Map of pending UID assignments */
   private final HashMap<String, Deferred<byte[]>> pending_assignments =
     new HashMap<String, Deferred<byte[]>>();
+  /** Reverse lookups in flight to storage, keyed on the ID as a string */
+  private final HashMap<String, ArrayList<Deferred<byte[]>>> pending_name_lookups =
+    new HashMap<String, ArrayList<Deferred<byte[]>>>();
+  /** Forward lookups in flight to storage, keyed on the name */
+  private final HashMap<String, ArrayList<Deferred<byte[]>>> pending_id_lookups =
+    new HashMap<String, ArrayList<Deferred<byte[]>>>();
   /** Set of UID rename */
   private final Set<String> renaming_id_names =
     Collections.synchronizedSet(new HashSet<String>());
@@ -124,12 +137,19 @@ public final class UniqueId implements UniqueIdInterface {
   private volatile long cache_hits;
   /** Number of times we had to read from HBase and populate the cache. */
   private volatile long cache_misses;
+  /** Number of cache misses that piggybacked on a lookup already in flight.
+   * Guarded by the pending lookup maps. */
+  private long coalesced_lookups;
   /** How many times we collided with an existing ID when attempting to 
    * generate a new UID */
   private volatile int random_id_collisions;
   /** How many times assignments have been rejected by the UID filter */
   private volatile int rejected_assignments;
   
+  /** Blocks of serial IDs reserved ahead of assignments, null to increment
+   * the MAXID row once per ID. */
+  private volatile IdReservation reservation;
+  
   /** The mode of operation for this TSD. */
   private OperationMode mode;
   
@@ -186,6 +206,7 @@ public final class UniqueId implements UniqueIdInterface {
     id_cache = new ConcurrentHashMap<String, String>();
     lru_name_cache = null;
     lru_id_cache = null;
+    primitive_cache = null;
     use_lru = false;
   }
   
@@ -227,11 +248,24 @@ public final class UniqueId implements UniqueIdInterface {
       lru_id_cache = CacheBuilder.newBuilder()
           .maximumSize(tsdb.getConfig().getInt("tsd.uid.lru.id.size"))
           .build();
+      primitive_cache = null;
+    } else if (tsdb.getConfig().getBoolean("tsd.uid.primitive_cache.enable")) {
+      name_cache = null;
+      id_cache = null;
+      lru_name_cache = null;
+      lru_id_cache = null;
+      primitive_cache = new PrimitiveUidCache(id_width, 
+          tsdb.getConfig().getInt("tsd.uid.primitive_cache.max_entries"));
     } else {
       name_cache = new ConcurrentHashMap<String, byte[]>();
       id_cache = new ConcurrentHashMap<String, String>();
       lru_name_cache = null;
       lru_id_cache = null;
+      primitive_cache = null;
+    }
+    final int block_size = tsdb.getConfig().getInt("tsd.uid.assign_block_size");
+    if (block_size > 1) {
+      reservation = new IdReservation(block_size);
     }
   }
 
@@ -247,12 +281,33 @@ public final class UniqueId implements UniqueIdInterface {
 
   /** Returns the number of elements stored in the internal cache. */
   public long cacheSize() {
+    if (primitive_cache != null) {
+      return primitive_cache.size();
+    }
     if (use_lru) {
       return (int) (lru_name_cache.size() + lru_id_cache.size());
     }
     return name_cache.size() + id_cache.size();
   }
 
+  /**
+   * Returns the estimated number of bytes taken up by the cache when
+   * {@code tsd.uid.primitive_cache.enable} is set, 0 otherwise.
+   * @since 2.4
+   */
+  public long cacheBytes() {
+    return primitive_cache != null ? primitive_cache.memoryBytes() : 0;
+  }
+
+  /**
+   * Returns how many mappings were not cached because the primitive cache
+   * was full.
+   * @since 2.4
+   */
+  public long cacheRejected() {
+    return primitive_cache != null ? primitive_cache.rejected() : 0;
+  }
+
   /**
    * Resets the cache hits counter before rollover. Note that a few updates
    * may be dropped due to race conditions at rollover.
@@ -277,6 +332,19 @@ public final class UniqueId implements UniqueIdInterface {
     }
   }
   
+  /**
+   * Returns the number of cache misses that waited on a lookup for the same
+   * UID or name already in flight instead of going to storage.
+   * @since 2.4
+   */
+  public long coalescedLookups() {
+    synchronized (pending_name_lookups) {
+      synchronized (pending_id_lookups) {
+        return coalesced_lookups;
+      }
+    }
+  }
+
   /** Returns the number of random UID collisions */
   public int randomIdCollisions() {
     return random_id_collisions;
@@ -287,6 +355,19 @@ public final class UniqueId implements UniqueIdInterface {
     return rejected_assignments;
   }
   
+  /** Returns the number of blocks of IDs reserved with an atomic increment,
+   * 0 if IDs are not reserved in blocks.
+   * @since 2.4 */
+  public long reservedBlocks() {
+    final IdReservation reservation = this.reservation;
+    if (reservation == null) {
+      return 0;
+    }
+    synchronized (reservation) {
+      return reservation.blocks;
+    }
+  }
+  
   public String kind() {
     return fromBytes(kind);
   }
@@ -295,6 +376,24 @@ public final class UniqueId implements UniqueIdInterface {
     return id_width;
   }
 
+  /**
+   * Sets how many serial IDs are reserved with each atomic increment of the
+   * MAXID row. With more than one, new names are assigned IDs from the
+   * block reserved by this instance and only exhausting the block costs an
+   * increment. IDs left in the block are never assigned if the TSD
+   * restarts, leaving gaps in the ID space. Randomized IDs are not reserved.
+   * @param size The number of IDs per block, 1 to increment once per ID.
+   * @throws IllegalArgumentException if the size is less than 1
+   * @since 2.4
+   */
+  public void setAssignBlockSize(final int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("The UID assignment block size must "
+          + "be at least 1: " + size);
+    }
+    reservation = size > 1 ? new IdReservation(size) : null;
+  }
+
   /** @param tsdb Whether or not to track new UIDMeta objects */
   public void setTSDB(final TSDB tsdb) {
     this.tsdb = tsdb;
@@ -315,7 +414,9 @@ public final class UniqueId implements UniqueIdInterface {
    * @since 1.1
    */
   public void dropCaches() {
-    if (use_lru) {
+    if (primitive_cache != null) {
+      primitive_cache.clear();
+    } else if (use_lru) {
       lru_name_cache.invalidateAll();
       lru_id_cache.invalidateAll();
     } else {
@@ -371,50 +472,157 @@ public final class UniqueId implements UniqueIdInterface {
       return Deferred.fromResult(name);
     }
     incrementCacheMiss();
-    class GetNameCB implements Callback<String, String> {
-      public String call(final String name) {
-        if (name == null) {
-          throw new NoSuchUniqueId(kind(), id);
-        }
-        if (use_mode) {
-          switch(mode) {
-          case READONLY:
-            addNameToCache(id, name);
-            break;
-          case WRITEONLY:
-            break;
-          default:
-            addNameToCache(id, name);
-            addIdToCache(name, id);
-          }
-        } else {
+    return getNameFromHBase(id).addCallback(new GetNameCB(id));
+  }
+
+  /**
+   * Finds the names associated with a list of IDs.  IDs found in the cache
+   * are resolved right away, all the others are fetched from storage with a
+   * single multi-get instead of one get per ID.
+   * @param ids The IDs to look up.
+   * @return A deferred resolving to the names, in the same order as the IDs.
+   * @throws NoSuchUniqueId (in the deferred) if one of the IDs is not
+   * assigned.
+   * @throws IllegalArgumentException if one of the IDs is encoded on the
+   * wrong number of bytes.
+   * @since 2.4
+   */
+  public Deferred<ArrayList<String>> getNamesAsync(final List<byte[]> ids) {
+    // validate everything first so we don't leave lookups pending
+    for (final byte[] id : ids) {
+      if (id.length != id_width) {
+        throw new IllegalArgumentException("Wrong id.length = " + id.length
+                                           + " which is != " + id_width
+                                           + " required for '" + kind() + '\'');
+      }
+    }
+    final ArrayList<Deferred<String>> deferreds = 
+        new ArrayList<Deferred<String>>(ids.size());
+    final ArrayList<String> lookups = new ArrayList<String>();
+    final ArrayList<Deferred<byte[]>> leaders = new ArrayList<Deferred<byte[]>>();
+    final ArrayList<GetRequest> gets = new ArrayList<GetRequest>();
+    for (final byte[] id : ids) {
+      final String name = getNameFromCache(id);
+      if (name != null) {
+        incrementCacheHits();
+        deferreds.add(Deferred.fromResult(name));
+        continue;
+      }
+      incrementCacheMiss();
+      final String lookup = fromBytes(id);
+      Deferred<byte[]> waiter = joinLookup(pending_name_lookups, lookup);
+      if (waiter == null) {
+        waiter = new Deferred<byte[]>();
+        leaders.add(waiter);
+        lookups.add(lookup);
+        gets.add(new GetRequest(table, id).family(NAME_FAMILY).qualifier(kind));
+      }
+      deferreds.add(waiter.addCallback(new NameFromHBaseCB())
+          .addCallback(new GetNameCB(id)));
+    }
+    if (!gets.isEmpty()) {
+      final CompleteLookupsCB<List<GetResultOrException>> cb = 
+          new CompleteLookupsCB<List<GetResultOrException>>(
+              pending_name_lookups, lookups, leaders);
+      try {
+        client.get(gets).addBoth(cb);
+      } catch (RuntimeException e) {
+        cb.fail(e);
+        throw e;
+      }
+    }
+    return Deferred.groupInOrder(deferreds)
+        .addErrback(new UnwrapGroupErrorCB<ArrayList<String>>());
+  }
+
+  /** Caches a name fetched from storage, depending on the mode. */
+  private final class GetNameCB implements Callback<String, String> {
+    private final byte[] id;
+
+    GetNameCB(final byte[] id) {
+      this.id = id;
+    }
+
+    public String call(final String name) {
+      if (name == null) {
+        throw new NoSuchUniqueId(kind(), id);
+      }
+      if (use_mode) {
+        switch(mode) {
+        case READONLY:
+          addNameToCache(id, name);
+          break;
+        case WRITEONLY:
+          break;
+        default:
           addNameToCache(id, name);
           addIdToCache(name, id);
         }
-        return name;
+      } else {
+        addNameToCache(id, name);
+        addIdToCache(name, id);
       }
+      return name;
     }
-    return getNameFromHBase(id).addCallback(new GetNameCB());
   }
 
   private String getNameFromCache(final byte[] id) {
+    if (primitive_cache != null) {
+      return primitive_cache.getName(id);
+    }
     return use_lru ? lru_id_cache.getIfPresent(fromBytes(id)) : 
                      id_cache.get(fromBytes(id));
   }
 
   private Deferred<String> getNameFromHBase(final byte[] id) {
-    class NameFromHBaseCB implements Callback<String, byte[]> {
-      public String call(final byte[] name) {
-        return name == null ? null : fromBytes(name);
+    final String lookup = fromBytes(id);
+    final Deferred<byte[]> waiter = joinLookup(pending_name_lookups, lookup);
+    if (waiter != null) {
+      return waiter.addCallback(new NameFromHBaseCB());
+    }
+    final CompleteLookupsCB<byte[]> cb = 
+        new CompleteLookupsCB<byte[]>(pending_name_lookups, lookup);
+    try {
+      return hbaseGet(id, NAME_FAMILY).addBoth(cb)
+          .addCallback(new NameFromHBaseCB());
+    } catch (RuntimeException e) {
+      cb.fail(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Rethrows the first failure of a batch lookup instead of the
+   * {@link DeferredGroupException} wrapping it.
+   */
+  private static final class UnwrapGroupErrorCB<T> 
+      implements Callback<T, Exception> {
+    public T call(final Exception e) throws Exception {
+      if (e instanceof DeferredGroupException) {
+        final Throwable cause = Exceptions.getCause((DeferredGroupException) e);
+        if (cause instanceof Exception) {
+          throw (Exception) cause;
+        }
       }
+      throw e;
+    }
+  }
+
+  private static final class NameFromHBaseCB implements Callback<String, byte[]> {
+    public String call(final byte[] name) {
+      return name == null ? null : fromBytes(name);
     }
-    return hbaseGet(id, NAME_FAMILY).addCallback(new NameFromHBaseCB());
   }
 
   private void addNameToCache(final byte[] id, final String name) {
     final String key = fromBytes(id);
-    String found = use_lru ? lru_id_cache.getIfPresent(key) : id_cache.get(key);
-    if (found == null) {
+    String found;
+    if (primitive_cache != null) {
+      found = primitive_cache.putNameIfAbsent(id, name);
+    } else {
+      found = use_lru ? lru_id_cache.getIfPresent(key) : id_cache.get(key);
+    }
+    if (found == null && primitive_cache == null) {
       if (use_lru) {
         lru_id_cache.put(key, name);
       } else {
@@ -444,50 +652,227 @@ public final class UniqueId implements UniqueIdInterface {
       return Deferred.fromResult(id);
     }
     incrementCacheMiss();
-    class GetIdCB implements Callback<byte[], byte[]> {
-      public byte[] call(final byte[] id) {
-        if (id == null) {
-          throw new NoSuchUniqueName(kind(), name);
-        }
-        if (id.length != id_width) {
-          throw new IllegalStateException("Found id.length = " + id.length
-                                          + " which is != " + id_width
-                                          + " required for '" + kind() + '\'');
-        }
-        if (use_mode) {
-          switch(mode) {
-          case READONLY:
-            break;
-          case WRITEONLY:
-            addIdToCache(name, id);
-            break;
-          default:
-            addNameToCache(id, name);
-            addIdToCache(name, id);
-          }
-        } else {
+    Deferred<byte[]> d = getIdFromHBase(name).addCallback(new GetIdCB(name));
+    return d;
+  }
+
+  /**
+   * Finds the IDs associated with a list of names.  Names found in the cache
+   * are resolved right away, all the others are fetched from storage with a
+   * single multi-get instead of one get per name.
+   * @param names The names to look up.
+   * @return A deferred resolving to the IDs, in the same order as the names.
+   * @throws NoSuchUniqueName (in the deferred) if one of the names is not
+   * assigned.
+   * @since 2.4
+   */
+  public Deferred<ArrayList<byte[]>> getIdsAsync(final List<String> names) {
+    final ArrayList<Deferred<byte[]>> deferreds = 
+        new ArrayList<Deferred<byte[]>>(names.size());
+    final ArrayList<String> lookups = new ArrayList<String>();
+    final ArrayList<Deferred<byte[]>> leaders = new ArrayList<Deferred<byte[]>>();
+    final ArrayList<GetRequest> gets = new ArrayList<GetRequest>();
+    for (final String name : names) {
+      final byte[] id = getIdFromCache(name);
+      if (id != null) {
+        incrementCacheHits();
+        deferreds.add(Deferred.fromResult(id));
+        continue;
+      }
+      incrementCacheMiss();
+      Deferred<byte[]> waiter = joinLookup(pending_id_lookups, name);
+      if (waiter == null) {
+        waiter = new Deferred<byte[]>();
+        leaders.add(waiter);
+        lookups.add(name);
+        gets.add(new GetRequest(table, toBytes(name))
+            .family(ID_FAMILY).qualifier(kind));
+      }
+      deferreds.add(waiter.addCallback(new GetIdCB(name)));
+    }
+    if (!gets.isEmpty()) {
+      final CompleteLookupsCB<List<GetResultOrException>> cb = 
+          new CompleteLookupsCB<List<GetResultOrException>>(
+              pending_id_lookups, lookups, leaders);
+      try {
+        client.get(gets).addBoth(cb);
+      } catch (RuntimeException e) {
+        cb.fail(e);
+        throw e;
+      }
+    }
+    return Deferred.groupInOrder(deferreds)
+        .addErrback(new UnwrapGroupErrorCB<ArrayList<byte[]>>());
+  }
+
+  /** Validates and caches an ID fetched from storage, depending on the mode. */
+  private final class GetIdCB implements Callback<byte[], byte[]> {
+    private final String name;
+
+    GetIdCB(final String name) {
+      this.name = name;
+    }
+
+    public byte[] call(final byte[] id) {
+      if (id == null) {
+        throw new NoSuchUniqueName(kind(), name);
+      }
+      if (id.length != id_width) {
+        throw new IllegalStateException("Found id.length = " + id.length
+                                        + " which is != " + id_width
+                                        + " required for '" + kind() + '\'');
+      }
+      if (use_mode) {
+        switch(mode) {
+        case READONLY:
+          break;
+        case WRITEONLY:
           addIdToCache(name, id);
+          break;
+        default:
           addNameToCache(id, name);
+          addIdToCache(name, id);
         }
-        return id;
+      } else {
+        addIdToCache(name, id);
+        addNameToCache(id, name);
       }
+      return id;
     }
-    Deferred<byte[]> d = getIdFromHBase(name).addCallback(new GetIdCB());
-    return d;
   }
 
   private byte[] getIdFromCache(final String name) {
+    if (primitive_cache != null) {
+      return primitive_cache.getId(name);
+    }
     return use_lru ? lru_name_cache.getIfPresent(name) : name_cache.get(name);
   }
 
   private Deferred<byte[]> getIdFromHBase(final String name) {
-    return hbaseGet(toBytes(name), ID_FAMILY);
+    final Deferred<byte[]> waiter = joinLookup(pending_id_lookups, name);
+    if (waiter != null) {
+      return waiter;
+    }
+    final CompleteLookupsCB<byte[]> cb = 
+        new CompleteLookupsCB<byte[]>(pending_id_lookups, name);
+    try {
+      return hbaseGet(toBytes(name), ID_FAMILY).addBoth(cb);
+    } catch (RuntimeException e) {
+      cb.fail(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Joins the lookup to storage in flight for the given key, if any, so that
+   * concurrent cache misses for the same key share a single get.
+   * @param pending The lookups in flight for the direction of the lookup.
+   * @param lookup The key being looked up.
+   * @return A deferred called back with the value read by the lookup in
+   * flight, or null if there was none, in which case the caller must issue
+   * the lookup and complete it with {@link CompleteLookupsCB}.
+   */
+  private Deferred<byte[]> joinLookup(
+      final HashMap<String, ArrayList<Deferred<byte[]>>> pending,
+      final String lookup) {
+    synchronized (pending) {
+      final ArrayList<Deferred<byte[]>> waiters = pending.get(lookup);
+      if (waiters == null) {
+        pending.put(lookup, new ArrayList<Deferred<byte[]>>(1));
+        return null;
+      }
+      final Deferred<byte[]> waiter = new Deferred<byte[]>();
+      waiters.add(waiter);
+      coalesced_lookups++;
+      return waiter;
+    }
+  }
+
+  /**
+   * Hands the result of lookups to storage to everyone waiting on them.  The
+   * result is either the value read for a single lookup, an exception, or
+   * the list of results of a multi-get, in the same order as the lookups.
+   * The result is passed through unchanged so a single lookup's leader can
+   * keep using it.
+   */
+  private final class CompleteLookupsCB<T> implements Callback<T, T> {
+    private final HashMap<String, ArrayList<Deferred<byte[]>>> pending;
+    private final List<String> lookups;
+    /** Deferreds of the callers who issued a multi-get, one per lookup. */
+    private final List<Deferred<byte[]>> leaders;
+
+    CompleteLookupsCB(final HashMap<String, ArrayList<Deferred<byte[]>>> pending,
+                      final String lookup) {
+      this(pending, Collections.singletonList(lookup), null);
+    }
+
+    CompleteLookupsCB(final HashMap<String, ArrayList<Deferred<byte[]>>> pending,
+                      final List<String> lookups,
+                      final List<Deferred<byte[]>> leaders) {
+      this.pending = pending;
+      this.lookups = lookups;
+      this.leaders = leaders;
+    }
+
+    public T call(final T result) {
+      complete(result);
+      return result;
+    }
+
+    /**
+     * Fails all the waiters when the lookup couldn't even be sent.
+     * @param e The exception thrown while sending the lookup.
+     */
+    void fail(final Exception e) {
+      complete(e);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void complete(final Object result) {
+      for (int i = 0; i < lookups.size(); i++) {
+        Object value = result;
+        if (result instanceof List) {
+          final GetResultOrException get = 
+              ((List<GetResultOrException>) result).get(i);
+          if (get.getException() != null) {
+            value = get.getException();
+          } else if (get.getCells() == null || get.getCells().isEmpty()) {
+            value = null;
+          } else {
+            value = get.getCells().get(0).value();
+          }
+        }
+        final ArrayList<Deferred<byte[]>> waiters;
+        synchronized (pending) {
+          waiters = pending.remove(lookups.get(i));
+        }
+        if (waiters != null) {
+          for (final Deferred<byte[]> waiter : waiters) {
+            // Each waiter gets its own copy of the value in case it's modified.
+            waiter.callback(value instanceof byte[] ? 
+                Arrays.copyOf((byte[]) value, ((byte[]) value).length) : value);
+          }
+        }
+        if (leaders != null) {
+          leaders.get(i).callback(value);
+        }
+      }
+    }
+
+    public String toString() {
+      return "complete " + lookups.size() + " UID lookup(s)";
+    }
   }
 
   private void addIdToCache(final String name, final byte[] id) {
-    byte[] found = use_lru ? lru_name_cache.getIfPresent(name) : 
-                             name_cache.get(name);
-    if (found == null) {
+    byte[] found;
+    if (primitive_cache != null) {
+      found = primitive_cache.putIdIfAbsent(name, id);
+    } else {
+      found = use_lru ? lru_name_cache.getIfPresent(name) : 
+                        name_cache.get(name);
+    }
+    if (found == null && primitive_cache == null) {
       if (use_lru) {
         lru_name_cache.put(name, Arrays.copyOf(id, id.length));
       } else {
@@ -505,6 +890,111 @@ public final class UniqueId implements UniqueIdInterface {
     }
   }
 
+  /**
+   * Hands out serial IDs from blocks reserved with a single atomic increment
+   * of the MAXID row, so a burst of new names costs one increment per block
+   * instead of one per name. Assignments arriving while a block is being
+   * reserved wait for it rather than issuing their own increment.
+   */
+  private final class IdReservation {
+    /** The number of IDs per block */
+    private final long size;
+    /** The next ID to hand out. Guarded by this. */
+    private long next = 1;
+    /** The last ID of the current block. Guarded by this. */
+    private long last = 0;
+    /** Whether or not an increment is in flight. Guarded by this. */
+    private boolean reserving;
+    /** Assignments waiting for the next block. Guarded by this. */
+    private final ArrayList<Deferred<Long>> waiters =
+        new ArrayList<Deferred<Long>>();
+    /** The number of blocks reserved. Guarded by this. */
+    private long blocks;
+
+    IdReservation(final long size) {
+      this.size = size;
+    }
+
+    /** @return The next free ID, once a block is reserved if needed. */
+    Deferred<Long> nextId() {
+      final Deferred<Long> id = new Deferred<Long>();
+      synchronized (this) {
+        if (next <= last) {
+          return Deferred.fromResult(next++);
+        }
+        waiters.add(id);
+        if (reserving) {
+          return id;
+        }
+        reserving = true;
+      }
+      reserve();
+      return id;
+    }
+
+    /** Increments the MAXID row by a block, outside of the lock. */
+    private void reserve() {
+      final class ReservedCB implements Callback<Object, Long> {
+        @Override
+        public Object call(final Long max) {
+          final ArrayList<Deferred<Long>> served =
+              new ArrayList<Deferred<Long>>();
+          final long first;
+          final boolean again;
+          synchronized (IdReservation.this) {
+            blocks++;
+            next = max - size + 1;
+            last = max;
+            first = next;
+            while (!waiters.isEmpty() && next <= last) {
+              served.add(waiters.remove(0));
+              next++;
+            }
+            again = reserving = !waiters.isEmpty();
+          }
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Reserved IDs " + first + " to " + max + " for kind='"
+                + kind() + "'");
+          }
+          for (int i = 0; i < served.size(); i++) {
+            served.get(i).callback(first + i);
+          }
+          if (again) {
+            reserve();
+          }
+          return null;
+        }
+        @Override
+        public String toString() {
+          return "UID block reserved callback";
+        }
+      }
+
+      final class ErrorCB implements Callback<Object, Exception> {
+        @Override
+        public Object call(final Exception e) {
+          final ArrayList<Deferred<Long>> failed;
+          synchronized (IdReservation.this) {
+            failed = new ArrayList<Deferred<Long>>(waiters);
+            waiters.clear();
+            reserving = false;
+          }
+          for (final Deferred<Long> waiter : failed) {
+            waiter.callback(e);
+          }
+          return null;
+        }
+        @Override
+        public String toString() {
+          return "UID block reserved errback";
+        }
+      }
+
+      client.atomicIncrement(new AtomicIncrementRequest(table, MAXID_ROW,
+          ID_FAMILY, kind, size)).addCallbacks(new ReservedCB(), new ErrorCB());
+    }
+  }
+
   /**
    * Implements the process to allocate a new UID.
    * This callback is re-used multiple times in a four step process:
@@ -618,8 +1108,11 @@ public final class UniqueId implements UniqueIdInterface {
           "ID for kind='" + kind() + "' name='" + name + '\'');
 
       state = CREATE_REVERSE_MAPPING;
+      final IdReservation reservation = UniqueId.this.reservation;
       if (randomize_id) {
         return Deferred.fromResult(RandomUniqueId.getRandomUID());
+      } else if (reservation != null) {
+        return reservation.nextId();
       } else {
         return client.atomicIncrement(new AtomicIncrementRequest(table, 
                                       MAXID_ROW, ID_FAMILY, kind));
@@ -765,6 +1258,73 @@ public final class UniqueId implements UniqueIdInterface {
     addIdToCache(name, id);
     addNameToCache(id, name);
   } 
+
+  /**
+   * Receives the mappings held in the cache of a {@link UniqueId}.
+   * @see UniqueId#visitCache
+   */
+  interface CacheVisitor {
+    /**
+     * @param name The name of the mapping.
+     * @param id The UID of the mapping.
+     * @param forward Whether the name to UID direction is cached.
+     * @param reverse Whether the UID to name direction is cached.
+     * @throws IOException if the visitor failed to handle the mapping.
+     */
+    void visit(String name, byte[] id, boolean forward, boolean reverse)
+        throws IOException;
+  }
+
+  /**
+   * Hands every mapping in the cache to a visitor, once per mapping even if
+   * both directions are cached.  The cache is not locked while it's being
+   * visited so concurrent updates may or may not be seen.
+   * @param visitor The visitor to call with each mapping.
+   * @throws IOException if the visitor failed.
+   */
+  void visitCache(final CacheVisitor visitor) throws IOException {
+    if (primitive_cache != null) {
+      int next = 0;
+      while (next >= 0) {
+        next = primitive_cache.visit(next, 65536, visitor);
+      }
+      return;
+    }
+    final Map<String, byte[]> names = 
+        use_lru ? lru_name_cache.asMap() : name_cache;
+    final Map<String, String> ids = use_lru ? lru_id_cache.asMap() : id_cache;
+    for (final Map.Entry<String, byte[]> entry : names.entrySet()) {
+      visitor.visit(entry.getKey(), entry.getValue(), true, 
+          entry.getKey().equals(ids.get(fromBytes(entry.getValue()))));
+    }
+    for (final Map.Entry<String, String> entry : ids.entrySet()) {
+      final byte[] id = toBytes(entry.getKey());
+      // skip the mappings we already visited along with the forward direction
+      if (!Arrays.equals(id, names.get(entry.getValue()))) {
+        visitor.visit(entry.getValue(), id, false, true);
+      }
+    }
+  }
+
+  /**
+   * Caches a mapping read back from somewhere other than the UID table, such
+   * as a {@link UidCacheSnapshot}.
+   * @param name The name of the mapping.
+   * @param id The UID of the mapping.
+   * @param forward Whether to cache the name to UID direction.
+   * @param reverse Whether to cache the UID to name direction.
+   * @throws IllegalStateException if the mapping conflicts with one that's
+   * already cached.
+   */
+  void loadCacheMapping(final String name, final byte[] id, 
+                        final boolean forward, final boolean reverse) {
+    if (forward) {
+      addIdToCache(name, id);
+    }
+    if (reverse) {
+      addNameToCache(id, name);
+    }
+  }
   
   /**
    * Finds the ID associated with a given name or creates it.
@@ -1051,8 +1611,7 @@ public final class UniqueId implements UniqueIdInterface {
         final byte[] key = row.get(0).key();
         final String name = fromBytes(key);
         final byte[] id = row.get(0).value();
-        final byte[] cached_id = use_lru ? lru_name_cache.getIfPresent(name) : 
-                                           name_cache.get(name);
+        final byte[] cached_id = getIdFromCache(name);
         if (cached_id == null) {
           cacheMapping(name, id); 
         } else if (!Arrays.equals(id, cached_id)) {
@@ -1075,6 +1634,88 @@ public final class UniqueId implements UniqueIdInterface {
     }
   }
 
+  /**
+   * Scans storage for the names of this kind starting with a prefix and
+   * matching a regular expression, letting the storage servers drop the names
+   * that don't match.
+   * @param prefix An optional prefix of the names, null or empty for any.
+   * @param regex An optional regular expression the names have to contain
+   * a match for, null for any.
+   * @param max_results Maximum number of names to return. The scan stops
+   * once it's found that many.
+   * @return The names found with their UIDs.
+   * @throws HBaseException if there was a problem scanning HBase.
+   * @since 2.4
+   */
+  public Deferred<Map<String, byte[]>> findIdsAsync(final String prefix,
+      final String regex, final int max_results) {
+    final Scanner scanner = getSuggestScanner(client, table,
+        prefix == null ? "" : prefix, kind, max_results);
+    if (regex != null) {
+      scanner.setKeyRegexp(regex, CHARSET);
+    }
+    return new FindIdsCB(scanner, max_results).scan();
+  }
+
+  /**
+   * Helper callback to asynchronously scan HBase for the names and UIDs.
+   */
+  private final class FindIdsCB
+    implements Callback<Deferred<Map<String, byte[]>>,
+      ArrayList<ArrayList<KeyValue>>> {
+    private final Map<String, byte[]> ids = new HashMap<String, byte[]>();
+    private final Scanner scanner;
+    private final int max_results;
+
+    FindIdsCB(final Scanner scanner, final int max_results) {
+      this.scanner = scanner;
+      this.max_results = max_results;
+    }
+
+    Deferred<Map<String, byte[]>> scan() {
+      return scanner.nextRows().addCallbackDeferring(this);
+    }
+
+    @Override
+    public Deferred<Map<String, byte[]>> call(
+        final ArrayList<ArrayList<KeyValue>> rows) {
+      if (rows == null) {  // We're done scanning.
+        return Deferred.fromResult(ids);
+      }
+
+      for (final ArrayList<KeyValue> row : rows) {
+        if (row.isEmpty()) {
+          continue;
+        }
+        final String name = fromBytes(row.get(0).key());
+        final byte[] id = row.get(0).value();
+        if (getIdFromCache(name) == null) {
+          cacheMapping(name, id);
+        }
+        ids.put(name, id);
+        if (ids.size() >= max_results) {  // We have enough.
+          class CloseCB implements Callback<Map<String, byte[]>, Object> {
+            @Override
+            public Map<String, byte[]> call(final Object ignored) {
+              return ids;
+            }
+            @Override
+            public String toString() {
+              return "Close UID scanner";
+            }
+          }
+          return scanner.close().addCallback(new CloseCB());
+        }
+      }
+      return scan();  // Get more names.
+    }
+
+    @Override
+    public String toString() {
+      return "Find " + kind() + " UIDs";
+    }
+  }
+
   /**
    * Reassigns the UID to a different name (non-atomic).
    * <p>
@@ -1155,7 +1796,10 @@ public final class UniqueId implements UniqueIdInterface {
 
     // Update cache.
     addIdToCache(newname, row);            // add     new name -> ID
-    if (use_lru) {
+    if (primitive_cache != null) {
+      primitive_cache.putName(row, newname);
+      primitive_cache.removeName(oldname);
+    } else if (use_lru) {
       lru_id_cache.put(fromBytes(row), newname);
       lru_name_cache.invalidate(oldname);
     } else {
@@ -1221,7 +1865,10 @@ public final class UniqueId implements UniqueIdInterface {
     class ErrCB implements Callback<Object, Exception> {
       @Override
       public Object call(final Exception ex) throws Exception {
-        if (use_lru) {
+        if (primitive_cache != null) {
+          primitive_cache.removeName(name);
+          primitive_cache.removeId(uid);
+        } else if (use_lru) {
           lru_name_cache.invalidate(name);
           lru_id_cache.invalidate(fromBytes(uid));
         } else {
@@ -1239,7 +1886,10 @@ public final class UniqueId implements UniqueIdInterface {
       @Override
       public Deferred<Object> call(final ArrayList<Object> response) 
           throws Exception {
-        if (use_lru) {
+        if (primitive_cache != null) {
+          primitive_cache.removeName(name);
+          primitive_cache.removeId(uid);
+        } else if (use_lru) {
           lru_name_cache.invalidate(name);
           lru_id_cache.invalidate(fromBytes(uid));
         } else {
@@ -1274,8 +1924,7 @@ public final class UniqueId implements UniqueIdInterface {
       }
     }
     
-    final byte[] cached_uid = use_lru ? lru_name_cache.getIfPresent(name) : 
-                                        name_cache.get(name);
+    final byte[] cached_uid = getIdFromCache(name);
     if (cached_uid == null) {
       return getIdFromHBase(name).addCallbackDeferring(new LookupCB())
           .addErrback(new ErrCB());
@@ -1790,12 +2439,20 @@ public final class UniqueId implements UniqueIdInterface {
         }
       }
       for (UniqueId unique_id_table : uid_cache_map.values()) {
+        final long ids;
+        final long names;
+        if (unique_id_table.primitive_cache != null) {
+          ids = unique_id_table.primitive_cache.idCount();
+          names = unique_id_table.primitive_cache.nameCount();
+        } else if (unique_id_table.use_lru) {
+          ids = unique_id_table.lru_id_cache.size();
+          names = unique_id_table.lru_name_cache.size();
+        } else {
+          ids = unique_id_table.id_cache.size();
+          names = unique_id_table.name_cache.size();
+        }
         LOG.info("After preloading, uid cache '{}' has {} ids and {} names.",
-                 unique_id_table.kind(),
-                 unique_id_table.use_lru ? unique_id_table.lru_id_cache.size() : 
-                                           unique_id_table.id_cache.size(),
-                 unique_id_table.use_lru ? unique_id_table.lru_name_cache.size() : 
-                                           unique_id_table.name_cache.size());
+                 unique_id_table.kind(), ids, names);
       }
     } catch (Exception e) {
       if (e instanceof HBaseException) {
@@ -1831,4 +2488,9 @@ public final class UniqueId implements UniqueIdInterface {
   Cache<String, String> lruIdCache() {
     return lru_id_cache;
   }
+  
+  @VisibleForTesting
+  PrimitiveUidCache primitiveCache() {
+    return primitive_cache;
+  }
 }
@@ -543,6 +543,12 @@ public class Config {
     default_map.put("tsd.core.connections.limit", "0");
     default_map.put("tsd.core.enable_api", "true");
     default_map.put("tsd.core.enable_ui", "true");
+    default_map.put("tsd.core.histograms.merge_puts", "false");
+    default_map.put("tsd.core.hot_tier.enable", "false");
+    default_map.put("tsd.core.hot_tier.retention", "900000");
+    default_map.put("tsd.core.hot_tier.max_series", "1000000");
+    default_map.put("tsd.core.last_value_cache.enable", "false");
+    default_map.put("tsd.core.last_value_cache.max_series", "1000000");
     default_map.put("tsd.core.meta.enable_realtime_ts", "false");
     default_map.put("tsd.core.meta.enable_realtime_uid", "false");
     default_map.put("tsd.core.meta.enable_tsuid_incrementing", "false");
@@ -554,9 +560,16 @@ public class Config {
     default_map.put("tsd.core.preload_uid_cache", "false");
     default_map.put("tsd.core.preload_uid_cache.max_entries", "300000");
     default_map.put("tsd.core.storage_exception_handler.enable", "false");
+    default_map.put("tsd.core.storage_exception_handler.spool.directory", "");
+    default_map.put("tsd.core.storage_exception_handler.spool.segment_size", "67108864");
+    default_map.put("tsd.core.storage_exception_handler.spool.max_size", "1073741824");
+    default_map.put("tsd.core.storage_exception_handler.spool.replay_rate", "1000");
+    default_map.put("tsd.core.storage_exception_handler.spool.replay_interval", "1000");
     default_map.put("tsd.core.uid.random_metrics", "false");
     default_map.put("tsd.core.bulk.allow_out_of_order_timestamps", "false");
+    default_map.put("tsd.core.bulk.reorder_window", "0");
     default_map.put("tsd.query.filter.expansion_limit", "4096");
+    default_map.put("tsd.query.filter.pushdown", "false");
     default_map.put("tsd.query.skip_unresolved_tagvs", "false");
     default_map.put("tsd.query.allow_simultaneous_duplicates", "true");
     default_map.put("tsd.query.enable_fuzzy_filter", "true");
@@ -570,13 +583,44 @@ public class Config {
     default_map.put("tsd.query.multi_get.batch_size", "1024");
     default_map.put("tsd.query.multi_get.concurrent", "20");
     default_map.put("tsd.query.multi_get.get_all_salts", "false");
+    default_map.put("tsd.query.planner.enable", "false");
+    default_map.put("tsd.query.planner.max_metrics", "100000");
+    default_map.put("tsd.query.parallel.threads", "0");
+    default_map.put("tsd.query.parallel.max_tasks", "4");
+    default_map.put("tsd.query.parallel.max_buffered_points", "1048576");
+    default_map.put("tsd.query.cache.enable", "false");
+    default_map.put("tsd.query.cache.slice", "1h");
+    default_map.put("tsd.query.cache.min_age", "60000");
+    default_map.put("tsd.query.cache.max_datapoints", "10000000");
+    default_map.put("tsd.query.cache.expire_after", "3600000");
     default_map.put("tsd.rpc.telnet.return_errors", "true");
+    default_map.put("tsd.rpc.admission.enable", "false");
+    default_map.put("tsd.rpc.admission.max_pending_puts", "100000");
+    default_map.put("tsd.rpc.admission.resume_pending_puts", "50000");
+    default_map.put("tsd.rpc.admission.max_latency", "0");
+    default_map.put("tsd.rpc.admission.interval", "1000");
+    default_map.put("tsd.rpc.rate_limit.enable", "false");
+    default_map.put("tsd.rpc.rate_limit.burst", "1000");
+    default_map.put("tsd.rpc.rate_limit.connection", "0");
+    default_map.put("tsd.rpc.rate_limit.address", "0");
+    default_map.put("tsd.rpc.rate_limit.metric_prefixes", "");
+    default_map.put("tsd.rpc.rate_limit.tenant", "0");
+    default_map.put("tsd.rpc.rate_limit.tenant_tag", "");
     // Rollup related settings
     default_map.put("tsd.rollups.enable", "false");
     default_map.put("tsd.rollups.tag_raw", "false");
     default_map.put("tsd.rollups.agg_tag_key", "_aggregate");
     default_map.put("tsd.rollups.raw_agg_tag_value", "RAW");
     default_map.put("tsd.rollups.block_derived", "true");
+    default_map.put("tsd.rollups.ingest.enable", "false");
+    // must be set with ingest rollups, confirming that all the writes of a
+    // series, or group by set, are routed to the same TSD
+    default_map.put("tsd.rollups.ingest.routed", "false");
+    default_map.put("tsd.rollups.ingest.intervals", "");
+    default_map.put("tsd.rollups.ingest.flush_delay", "60000");
+    default_map.put("tsd.rollups.ingest.flush_interval", "10000");
+    default_map.put("tsd.rollups.ingest.max_windows", "1000000");
+    default_map.put("tsd.rollups.ingest.groupby_drop_tags", "");
     default_map.put("tsd.rtpublisher.enable", "false");
     default_map.put("tsd.rtpublisher.plugin", "");
     default_map.put("tsd.search.enable", "false");
@@ -596,20 +640,35 @@ public class Config {
     default_map.put("tsd.storage.hbase.prefetch_meta", "false");
     default_map.put("tsd.storage.enable_appends", "false");
     default_map.put("tsd.storage.repair_appends", "false");
+    default_map.put("tsd.storage.row_batch.enable", "false");
+    default_map.put("tsd.storage.row_batch.max_points", "64");
+    default_map.put("tsd.storage.row_batch.interval", "50");
     default_map.put("tsd.storage.enable_compaction", "true");
     default_map.put("tsd.storage.compaction.flush_interval", "10");
     default_map.put("tsd.storage.compaction.min_flush_threshold", "100");
     default_map.put("tsd.storage.compaction.max_concurrent_flushes", "10000");
     default_map.put("tsd.storage.compaction.flush_speed", "2");
+    default_map.put("tsd.storage.compaction.shards", "1");
+    default_map.put("tsd.storage.compaction.max_queue_size", "0");
     default_map.put("tsd.timeseriesfilter.enable", "false");
     default_map.put("tsd.uid.use_mode", "false");
     default_map.put("tsd.uid.lru.enable", "false");
     default_map.put("tsd.uid.lru.name.size", "5000000");
     default_map.put("tsd.uid.lru.id.size", "5000000");
+    default_map.put("tsd.uid.primitive_cache.enable", "false");
+    default_map.put("tsd.uid.primitive_cache.max_entries", "20000000");
+    default_map.put("tsd.uid.snapshot.enable", "false");
+    default_map.put("tsd.uid.snapshot.path", "");
+    default_map.put("tsd.uid.snapshot.interval", "600");
+    default_map.put("tsd.uid.snapshot.max_age", "86400");
+    default_map.put("tsd.uid.assign_block_size", "1");
     default_map.put("tsd.uidfilter.enable", "false");
     default_map.put("tsd.core.stats_with_port", "false");
+    default_map.put("tsd.core.row_key_cache.size", "0");
     default_map.put("tsd.http.show_stack_trace", "true");
     default_map.put("tsd.http.query.allow_delete", "false");
+    default_map.put("tsd.http.query.stream.enable", "false");
+    default_map.put("tsd.http.query.stream.chunk_size", "65536");
     default_map.put("tsd.http.header_tag", "");
     default_map.put("tsd.http.request.enable_chunked", "false");
     default_map.put("tsd.http.request.max_chunk", "4096");
@@ -21,8 +21,10 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -37,6 +39,7 @@ import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.uid.UniqueId.UniqueIdType;
 import net.opentsdb.utils.Config;
+import net.opentsdb.utils.Exceptions;
 import net.opentsdb.utils.Threads;
 
 import org.hbase.async.Bytes;
@@ -57,7 +60,9 @@ import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.reflect.Whitebox;
 
 import com.google.common.collect.Maps;
+import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
 
 /**
  * Sets up a real TSDB with mocked client, compaction queue and timer along
@@ -180,6 +185,9 @@ public class BaseTsdbTest {
     when(metrics.width()).thenReturn((short)3);
     when(tag_names.width()).thenReturn((short)3);
     when(tag_values.width()).thenReturn((short)3);
+    mockBatchedLookups(metrics);
+    mockBatchedLookups(tag_names);
+    mockBatchedLookups(tag_values);
     
     tags = new HashMap<String, String>(1);
     tags.put(TAGK_STRING, TAGV_STRING);
@@ -380,6 +388,57 @@ public class BaseTsdbTest {
     }
   }
   
+  /**
+   * Routes the batched lookups of a UID mock through the single lookups so
+   * tests only have to mock {@code getNameAsync} and {@code getIdAsync}.
+   * Like the real batches, the first failure is returned unwrapped.
+   * @param uid The UniqueId mock.
+   */
+  public static void mockBatchedLookups(final UniqueId uid) {
+    class UnwrapCB<T> implements Callback<T, Exception> {
+      @Override
+      public T call(final Exception e) throws Exception {
+        if (e instanceof DeferredGroupException) {
+          throw (Exception) Exceptions.getCause((DeferredGroupException) e);
+        }
+        throw e;
+      }
+    }
+    
+    when(uid.getNamesAsync(anyListOf(byte[].class))).thenAnswer(
+        new Answer<Deferred<ArrayList<String>>>() {
+      @Override
+      public Deferred<ArrayList<String>> answer(
+          final InvocationOnMock invocation) throws Throwable {
+        @SuppressWarnings("unchecked")
+        final List<byte[]> ids = (List<byte[]>) invocation.getArguments()[0];
+        final List<Deferred<String>> deferreds = 
+            new ArrayList<Deferred<String>>(ids.size());
+        for (final byte[] id : ids) {
+          deferreds.add(uid.getNameAsync(id));
+        }
+        return Deferred.groupInOrder(deferreds)
+            .addErrback(new UnwrapCB<ArrayList<String>>());
+      }
+    });
+    when(uid.getIdsAsync(anyListOf(String.class))).thenAnswer(
+        new Answer<Deferred<ArrayList<byte[]>>>() {
+      @Override
+      public Deferred<ArrayList<byte[]>> answer(
+          final InvocationOnMock invocation) throws Throwable {
+        @SuppressWarnings("unchecked")
+        final List<String> names = (List<String>) invocation.getArguments()[0];
+        final List<Deferred<byte[]>> deferreds = 
+            new ArrayList<Deferred<byte[]>>(names.size());
+        for (final String name : names) {
+          deferreds.add(uid.getIdAsync(name));
+        }
+        return Deferred.groupInOrder(deferreds)
+            .addErrback(new UnwrapCB<ArrayList<byte[]>>());
+      }
+    });
+  }
+  
   /** @return a row key template with the default metric and tags */
   protected byte[] getRowKeyTemplate() {
     return IncomingDataPoints.rowKeyTemplate(tsdb, METRIC_STRING, tags);
@@ -15,6 +15,7 @@ package net.opentsdb.core;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -23,6 +24,7 @@ import com.stumbleupon.async.Deferred;
 
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
@@ -93,7 +95,9 @@ public final class TestCompactionQueue {
     Whitebox.setInternalState(tsdb, "config", config);
     when(tsdb.getConfig()).thenReturn(config);
     // Stub out the compaction thread, so it doesn't even start.
-    PowerMockito.whenNew(CompactionQueue.Thrd.class).withNoArguments()
+    PowerMockito.whenNew(CompactionQueue.Thrd.class)
+      .withParameterTypes(CompactionQueue.class, CompactionQueue.Shard.class)
+      .withArguments(any(CompactionQueue.Shard.class))
       .thenReturn(mock(CompactionQueue.Thrd.class));
     PowerMockito.when(config.enable_compactions()).thenReturn(true);
     PowerMockito.when(config.fix_duplicates()).thenReturn(true);
@@ -1531,6 +1535,195 @@ public final class TestCompactionQueue {
   // ----------------- //
 
   // fake timestamp is derived from the sequence number of new makekv calls
+  @Test
+  public void addCountsUniqueRows() throws Exception {
+    compactionq.add(KEY);
+    compactionq.add(KEY);
+    assertEquals(1, compactionq.size());
+    compactionq.add(otherRow(1));
+    assertEquals(2, compactionq.size());
+  }
+
+  @Test
+  public void shardsSpreadSeries() throws Exception {
+    when(config.getInt("tsd.storage.compaction.shards")).thenReturn(4);
+    compactionq = new CompactionQueue(tsdb);
+    final CompactionQueue.Shard[] shards = 
+        Whitebox.getInternalState(compactionq, "shards");
+    assertEquals(4, shards.length);
+    for (int i = 0; i < 64; i++) {
+      compactionq.add(otherRow(i));
+    }
+    assertEquals(64, compactionq.size());
+    int used = 0;
+    for (final CompactionQueue.Shard shard : shards) {
+      if (shard.size() > 0) {
+        used++;
+      }
+    }
+    assertTrue(used > 1);
+  }
+
+  @Test
+  public void shardsKeepSeriesTogether() throws Exception {
+    when(config.getInt("tsd.storage.compaction.shards")).thenReturn(4);
+    when(tsdb.metrics.width()).thenReturn((short) 3);
+    compactionq = new CompactionQueue(tsdb);
+    final CompactionQueue.Shard[] shards = 
+        Whitebox.getInternalState(compactionq, "shards");
+    // same series, different hours
+    for (int i = 0; i < 10; i++) {
+      final byte[] row = Arrays.copyOf(KEY, KEY.length);
+      Bytes.setInt(row, 1356998400 + (i * 3600), 3);
+      compactionq.add(row);
+    }
+    int used = 0;
+    for (final CompactionQueue.Shard shard : shards) {
+      if (shard.size() > 0) {
+        assertEquals(10, shard.size());
+        used++;
+      }
+    }
+    assertEquals(1, used);
+  }
+
+  @Test
+  public void minFlushThresholdPerShardAtLeastOne() throws Exception {
+    when(config.getInt("tsd.storage.compaction.shards")).thenReturn(8);
+    when(config.getInt("tsd.storage.compaction.min_flush_threshold"))
+      .thenReturn(4);
+    compactionq = new CompactionQueue(tsdb);
+    assertEquals(1, (int) Whitebox.<Integer>getInternalState(compactionq, 
+        "min_flush_threshold"));
+  }
+
+  @Test
+  public void maxQueueSize() throws Exception {
+    when(config.getInt("tsd.storage.compaction.max_queue_size")).thenReturn(2);
+    compactionq = new CompactionQueue(tsdb);
+    compactionq.add(otherRow(1));
+    compactionq.add(otherRow(2));
+    compactionq.add(otherRow(3));
+    assertEquals(2, compactionq.size());
+    final CompactionQueue.Shard[] shards = 
+        Whitebox.getInternalState(compactionq, "shards");
+    assertEquals(1, shards[0].dropped.get());
+  }
+
+  @Test
+  public void flushAllShards() throws Exception {
+    when(config.getInt("tsd.storage.compaction.shards")).thenReturn(4);
+    when(config.getInt("tsd.storage.compaction.max_concurrent_flushes"))
+      .thenReturn(100);
+    compactionq = new CompactionQueue(tsdb);
+    when(tsdb.get(anyBytes())).thenAnswer(
+        new Answer<Deferred<ArrayList<KeyValue>>>() {
+      @Override
+      public Deferred<ArrayList<KeyValue>> answer(
+          final InvocationOnMock invocation) {
+        return Deferred.fromResult(new ArrayList<KeyValue>(0));
+      }
+    });
+    for (int i = 0; i < 16; i++) {
+      compactionq.add(otherRow(i));
+    }
+    compactionq.flush().joinUninterruptibly();
+    // flush() randomly skips some rows to avoid contention so only check
+    // that every row is accounted for.
+    final CompactionQueue.Shard[] shards = 
+        Whitebox.getInternalState(compactionq, "shards");
+    long flushed = 0;
+    for (final CompactionQueue.Shard shard : shards) {
+      flushed += shard.flushes.get();
+    }
+    assertTrue(flushed > 0);
+    assertEquals(16, flushed + compactionq.size());
+  }
+
+  @Test
+  public void flushSkipsRecentHours() throws Exception {
+    when(tsdb.metrics.width()).thenReturn((short) 3);
+    compactionq = new CompactionQueue(tsdb);
+    final long now = System.currentTimeMillis() / 1000;
+    final long hour = now - (now % Const.MAX_TIMESPAN);
+    compactionq.add(rowAt(hour, 1));
+    compactionq.add(rowAt(hour, 2));
+    compactionq.flush().joinUninterruptibly();
+    assertEquals(2, compactionq.size());
+    verify(tsdb, never()).get(anyBytes());
+  }
+
+  @Test
+  public void flushRetiresDrainedHours() throws Exception {
+    when(tsdb.metrics.width()).thenReturn((short) 3);
+    when(config.getInt("tsd.storage.compaction.max_concurrent_flushes"))
+      .thenReturn(100);
+    when(tsdb.get(anyBytes())).thenAnswer(
+        new Answer<Deferred<ArrayList<KeyValue>>>() {
+      @Override
+      public Deferred<ArrayList<KeyValue>> answer(
+          final InvocationOnMock invocation) {
+        return Deferred.fromResult(new ArrayList<KeyValue>(0));
+      }
+    });
+    compactionq = new CompactionQueue(tsdb);
+    final long now = System.currentTimeMillis() / 1000;
+    final long hour = now - (now % Const.MAX_TIMESPAN);
+    compactionq.add(rowAt(hour - Const.MAX_TIMESPAN * 3, 1));
+    compactionq.add(rowAt(hour, 1));
+    final CompactionQueue.Shard shard = ((CompactionQueue.Shard[]) 
+        Whitebox.getInternalState(compactionq, "shards"))[0];
+    final Map<Long, ?> buckets = Whitebox.getInternalState(shard, "buckets");
+    assertEquals(2, buckets.size());
+    // flush() randomly skips rows so try a few times.
+    for (int i = 0; i < 20 && compactionq.size() > 1; i++) {
+      compactionq.flush().joinUninterruptibly();
+    }
+    assertEquals(1, compactionq.size());
+    assertEquals(1, buckets.size());
+    assertTrue(buckets.containsKey(hour));
+  }
+
+  @Test
+  public void flushesDueSpreadsTheHour() throws Exception {
+    when(tsdb.metrics.width()).thenReturn((short) 3);
+    when(config.getInt("tsd.storage.compaction.flush_interval"))
+      .thenReturn(10);
+    when(config.getInt("tsd.storage.compaction.flush_speed")).thenReturn(2);
+    compactionq = new CompactionQueue(tsdb);
+    final CompactionQueue.Shard shard = ((CompactionQueue.Shard[]) 
+        Whitebox.getInternalState(compactionq, "shards"))[0];
+    final long now = 1356998400L + Const.MAX_TIMESPAN * 2;
+    final long cut_off = now - Const.MAX_TIMESPAN - 1;
+    assertEquals(0, shard.flushesDue(now, cut_off));
+    for (int i = 0; i < 360; i++) {
+      compactionq.add(rowAt(1356998400L, i));
+    }
+    // rows for the current hour are not eligible yet
+    compactionq.add(rowAt(now, 1));
+    // 360 rows over 1800 seconds at one run every 10 seconds
+    assertEquals(2, shard.flushesDue(now, cut_off));
+    // half way through and nothing was flushed, so go faster
+    assertEquals(4, shard.flushesDue(now + 900, cut_off + 900));
+    // past the deadline, flush everything that's eligible
+    assertEquals(360, shard.flushesDue(now + 3600, cut_off + 900));
+  }
+
+  /** @return A copy of {@code KEY} with the given base time and tag value. */
+  private static byte[] rowAt(final long base_time, final int tagv) {
+    final byte[] row = otherRow(tagv);
+    Bytes.setInt(row, (int) (base_time - (base_time % Const.MAX_TIMESPAN)), 3);
+    return row;
+  }
+
+  /** @return A copy of {@code KEY} with a different tag value. */
+  private static byte[] otherRow(final int tagv) {
+    final byte[] row = Arrays.copyOf(KEY, KEY.length);
+    row[row.length - 1] = (byte) tagv;
+    row[row.length - 2] = (byte) (tagv >> 8);
+    return row;
+  }
+
   private static long kvCount = 0;
 
   /** Shorthand to create a {@link KeyValue}.  */
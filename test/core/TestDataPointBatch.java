@@ -0,0 +1,185 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+public class TestDataPointBatch {
+  private static final long BASE_TIME = 1356998400000L;
+  private static final DataPoint[] DATA_POINTS = new DataPoint[] {
+    MutableDataPoint.ofLongValue(BASE_TIME, 40),
+    MutableDataPoint.ofDoubleValue(BASE_TIME + 1000, 1.5),
+    MutableDataPoint.ofLongValue(BASE_TIME + 2000, 42),
+    MutableDataPoint.ofDoubleValue(BASE_TIME + 3000, 2.5),
+    MutableDataPoint.ofLongValue(BASE_TIME + 4000, 44)
+  };
+
+  @Test
+  public void ctor() {
+    final DataPointBatch batch = new DataPointBatch();
+    assertEquals(DataPointBatch.DEFAULT_CAPACITY, batch.capacity());
+    assertEquals(0, batch.size());
+    assertFalse(batch.isFull());
+    assertFalse(batch.hasRemaining());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroCapacity() {
+    new DataPointBatch(0);
+  }
+
+  @Test
+  public void fill() {
+    final SeekableView view = SeekableViewsForTest.fromArray(DATA_POINTS);
+    final DataPointBatch batch = new DataPointBatch();
+    assertEquals(5, batch.fill(view));
+    assertFalse(batch.isFull());
+    assertFalse(view.hasNext());
+    for (int i = 0; i < DATA_POINTS.length; i++) {
+      assertEquals(DATA_POINTS[i].timestamp(), batch.timestamp(i));
+      assertEquals(DATA_POINTS[i].isInteger(), batch.isInteger(i));
+      assertEquals(DATA_POINTS[i].toDouble(), batch.toDouble(i), 0.0001);
+    }
+    assertEquals(42, batch.longValue(2));
+    assertEquals(2.5, batch.doubleValue(3), 0.0001);
+    assertEquals(0, batch.fill(view));
+    assertEquals(0, batch.size());
+  }
+
+  @Test
+  public void fillInBlocks() {
+    final SeekableView view = SeekableViewsForTest.fromArray(DATA_POINTS);
+    final DataPointBatch batch = new DataPointBatch(2);
+    assertEquals(2, batch.fill(view));
+    assertTrue(batch.isFull());
+    assertEquals(BASE_TIME, batch.timestamp(0));
+    assertEquals(2, batch.fill(view));
+    assertEquals(BASE_TIME + 2000, batch.timestamp(0));
+    assertEquals(1, batch.fill(view));
+    assertEquals(BASE_TIME + 4000, batch.timestamp(0));
+    assertEquals(0, batch.fill(view));
+  }
+
+  @Test (expected = UnsupportedOperationException.class)
+  public void valueCountNotRecorded() {
+    final DataPointBatch batch = new DataPointBatch();
+    batch.fill(SeekableViewsForTest.fromArray(DATA_POINTS));
+    batch.valueCount(0);
+  }
+
+  @Test
+  public void add() {
+    final DataPointBatch batch = new DataPointBatch(2);
+    batch.add(BASE_TIME, 42L, 3);
+    batch.add(BASE_TIME + 1000, 4.2, 2);
+    assertTrue(batch.isFull());
+    assertEquals(42, batch.longValue(0));
+    assertEquals(3, batch.valueCount(0));
+    assertEquals(4.2, batch.doubleValue(1), 0.0001);
+    assertEquals(2, batch.valueCount(1));
+    try {
+      batch.add(BASE_TIME + 2000, 1L, 1);
+      fail("Expected an IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException e) { }
+    batch.clear();
+    assertEquals(0, batch.size());
+    assertFalse(batch.isFull());
+  }
+
+  @Test (expected = ClassCastException.class)
+  public void longValueOfFloat() {
+    final DataPointBatch batch = new DataPointBatch();
+    batch.fill(SeekableViewsForTest.fromArray(DATA_POINTS));
+    batch.longValue(1);
+  }
+
+  @Test (expected = ClassCastException.class)
+  public void doubleValueOfInteger() {
+    final DataPointBatch batch = new DataPointBatch();
+    batch.fill(SeekableViewsForTest.fromArray(DATA_POINTS));
+    batch.doubleValue(0);
+  }
+
+  @Test (expected = IndexOutOfBoundsException.class)
+  public void timestampPastSize() {
+    final DataPointBatch batch = new DataPointBatch();
+    batch.fill(SeekableViewsForTest.fromArray(DATA_POINTS));
+    batch.timestamp(5);
+  }
+
+  @Test
+  public void advance() {
+    final DataPointBatch batch = new DataPointBatch();
+    batch.fill(SeekableViewsForTest.fromArray(DATA_POINTS));
+    int i = 0;
+    while (batch.hasRemaining()) {
+      batch.advance();
+      assertEquals(DATA_POINTS[i].timestamp(), batch.timestamp());
+      assertEquals(DATA_POINTS[i].isInteger(), batch.isInteger());
+      assertEquals(DATA_POINTS[i].toDouble(), batch.toDouble(), 0.0001);
+      i++;
+    }
+    assertEquals(5, i);
+    try {
+      batch.advance();
+      fail("Expected a NoSuchElementException");
+    } catch (NoSuchElementException e) { }
+  }
+
+  @Test
+  public void fillFromBatches() {
+    // batches of 2, 2 and 1 read into batches of 3
+    final List<DataPointBatch> batches = new ArrayList<DataPointBatch>();
+    final SeekableView source = SeekableViewsForTest.fromArray(DATA_POINTS);
+    DataPointBatch stored = new DataPointBatch(2);
+    while (stored.fill(source) > 0) {
+      batches.add(stored);
+      stored = new DataPointBatch(2);
+    }
+    final DataPointBatchesView view = new DataPointBatchesView(batches);
+    final DataPointBatch batch = new DataPointBatch(3);
+    assertEquals(3, batch.fill(view));
+    assertEquals(BASE_TIME, batch.timestamp(0));
+    assertEquals(1.5, batch.doubleValue(1), 0.0001);
+    assertEquals(42, batch.longValue(2));
+    // positioned on the last data point read
+    assertEquals(BASE_TIME + 2000, view.timestamp());
+    assertTrue(view.hasNext());
+    assertEquals(2, batch.fill(view));
+    assertEquals(2.5, batch.doubleValue(0), 0.0001);
+    assertEquals(BASE_TIME + 4000, batch.timestamp(1));
+    assertFalse(view.hasNext());
+    // the stored batches were filled from a view without value counts
+    try {
+      batch.valueCount(0);
+      fail("Expected an UnsupportedOperationException");
+    } catch (UnsupportedOperationException e) { }
+    assertEquals(0, batch.fill(view));
+  }
+
+  @Test (expected = IndexOutOfBoundsException.class)
+  public void dataPointBeforeAdvance() {
+    final DataPointBatch batch = new DataPointBatch();
+    batch.fill(SeekableViewsForTest.fromArray(DATA_POINTS));
+    batch.timestamp();
+  }
+}
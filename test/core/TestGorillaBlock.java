@@ -0,0 +1,149 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestGorillaBlock {
+  private static final long START = 1356998400000L;
+
+  @Test
+  public void regularIntegers() throws Exception {
+    final long[] timestamps = new long[120];
+    final long[] values = new long[120];
+    final boolean[] integers = new boolean[120];
+    for (int i = 0; i < timestamps.length; i++) {
+      timestamps[i] = START + i * 15000L;
+      values[i] = 42 + (i % 3);
+      integers[i] = true;
+    }
+    final GorillaBlock block = assertRoundTrip(timestamps, values, integers);
+    // well under two bytes per data point once the header is written
+    assertTrue(block.bytes() < 2 * timestamps.length);
+  }
+
+  @Test
+  public void doubles() throws Exception {
+    final long[] timestamps = new long[100];
+    final long[] values = new long[100];
+    final boolean[] integers = new boolean[100];
+    for (int i = 0; i < timestamps.length; i++) {
+      timestamps[i] = START + i * 1000L;
+      values[i] = Double.doubleToRawLongBits(Math.sin(i / 10.0) * 100);
+    }
+    assertRoundTrip(timestamps, values, integers);
+  }
+
+  @Test
+  public void specialValues() throws Exception {
+    final long[] values = new long[] { 0, -1, Long.MAX_VALUE, Long.MIN_VALUE,
+        Double.doubleToRawLongBits(Double.NaN),
+        Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY),
+        Double.doubleToRawLongBits(-0.0), 1, 1 };
+    final long[] timestamps = new long[values.length];
+    final boolean[] integers = new boolean[values.length];
+    for (int i = 0; i < timestamps.length; i++) {
+      timestamps[i] = START + i;
+      integers[i] = i < 4 || i > 6;
+    }
+    assertRoundTrip(timestamps, values, integers);
+  }
+
+  @Test
+  public void irregularTimestamps() throws Exception {
+    final Random random = new Random(42);
+    final long[] timestamps = new long[500];
+    final long[] values = new long[500];
+    final boolean[] integers = new boolean[500];
+    long timestamp = START;
+    for (int i = 0; i < timestamps.length; i++) {
+      // every delta of delta encoding, up to gaps of days
+      switch (i % 5) {
+      case 0: timestamp += 1 + random.nextInt(60); break;
+      case 1: timestamp += 1 + random.nextInt(500); break;
+      case 2: timestamp += 1 + random.nextInt(4000); break;
+      case 3: timestamp += 1 + random.nextInt(Integer.MAX_VALUE); break;
+      default: timestamp += 1 + (random.nextLong() >>> 8); break;
+      }
+      timestamps[i] = timestamp;
+      values[i] = random.nextLong();
+      integers[i] = random.nextBoolean();
+    }
+    assertRoundTrip(timestamps, values, integers);
+  }
+
+  @Test
+  public void singleDataPoint() throws Exception {
+    final GorillaBlock block = assertRoundTrip(new long[] { START },
+        new long[] { 42 }, new boolean[] { true });
+    assertEquals(START, block.firstTimestamp());
+    assertEquals(START, block.lastTimestamp());
+  }
+
+  @Test
+  public void decodeAtOffset() throws Exception {
+    final GorillaBlock block = new GorillaBlock();
+    block.append(START, 1, true);
+    block.append(START + 1000, 2, true);
+    final long[] timestamps = new long[3];
+    final long[] values = new long[3];
+    final boolean[] integers = new boolean[3];
+    block.decode(timestamps, values, integers, 1);
+    assertArrayEquals(new long[] { 0, START, START + 1000 }, timestamps);
+    assertArrayEquals(new long[] { 0, 1, 2 }, values);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void sameTimestamp() throws Exception {
+    final GorillaBlock block = new GorillaBlock();
+    block.append(START, 1, true);
+    block.append(START, 2, true);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void outOfOrder() throws Exception {
+    final GorillaBlock block = new GorillaBlock();
+    block.append(START, 1, true);
+    block.append(START - 1000, 2, true);
+  }
+
+  /** Appends the data points, trims the block and checks they decode */
+  private static GorillaBlock assertRoundTrip(final long[] timestamps,
+      final long[] values, final boolean[] integers) {
+    final GorillaBlock block = new GorillaBlock();
+    for (int i = 0; i < timestamps.length; i++) {
+      block.append(timestamps[i], values[i], integers[i]);
+    }
+    block.trim();
+    assertEquals(timestamps.length, block.size());
+    assertEquals(timestamps[0], block.firstTimestamp());
+    assertEquals(timestamps[timestamps.length - 1], block.lastTimestamp());
+
+    final long[] decoded_timestamps = new long[timestamps.length];
+    final long[] decoded_values = new long[timestamps.length];
+    final boolean[] decoded_integers = new boolean[timestamps.length];
+    block.decode(decoded_timestamps, decoded_values, decoded_integers, 0);
+    assertArrayEquals(timestamps, decoded_timestamps);
+    assertArrayEquals(values, decoded_values);
+    for (int i = 0; i < timestamps.length; i++) {
+      assertEquals(integers[i], decoded_integers[i]);
+    }
+    return block;
+  }
+}
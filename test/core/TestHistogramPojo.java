@@ -1,7 +1,11 @@
 package net.opentsdb.core;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.when;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.hbase.async.Bytes;
 import org.junit.Before;
 import org.junit.Test;
@@ -51,5 +55,42 @@ public class TestHistogramPojo {
     //HistogramDataPoint h = tsdb.histogramManager().getDecoder((byte) 0).decode(raw, 1356998400000L);
     //System.out.println(h);
   }
-  
+
+  @Test
+  public void toSimpleHistogramBuffer() throws Exception {
+    final Map<String, Long> buckets = new HashMap<String, Long>();
+    buckets.put("2.0,3.0", 5L);
+    buckets.put("1.0,2.0", 4L);
+    buckets.put("3.0,10.0", null);
+    final HistogramPojo pojo = new HistogramPojo();
+    pojo.setBuckets(buckets);
+    pojo.setUnderflow(1);
+    pojo.setOverflow(2);
+
+    final SimpleHistogramBuffer histogram = pojo.toSimpleHistogramBuffer(tsdb);
+    assertEquals(0, histogram.getId());
+    assertEquals(1, histogram.getUnderflow());
+    assertEquals(2, histogram.getOverflow());
+    assertEquals(3, histogram.size());
+    assertEquals(1.0f, histogram.lowerBound(0), 0.0001);
+    assertEquals(2.0f, histogram.upperBound(0), 0.0001);
+    assertEquals(4, histogram.count(0));
+    assertEquals(5, histogram.count(1));
+    assertEquals(10.0f, histogram.upperBound(2), 0.0001);
+    assertEquals(0, histogram.count(2));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void toSimpleHistogramBufferBadBounds() throws Exception {
+    final Map<String, Long> buckets = new HashMap<String, Long>();
+    buckets.put("1.0,2.0,3.0", 5L);
+    final HistogramPojo pojo = new HistogramPojo();
+    pojo.setBuckets(buckets);
+    pojo.toSimpleHistogramBuffer(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void toSimpleHistogramBufferEmpty() throws Exception {
+    new HistogramPojo().toSimpleHistogramBuffer(tsdb);
+  }
 }
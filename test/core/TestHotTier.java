@@ -0,0 +1,259 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.google.common.collect.Lists;
+
+import net.opentsdb.utils.DateTime;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ DateTime.class })
+public final class TestHotTier extends BaseTsdbTest {
+  /** The data points stored span 2.5 hours from this hour */
+  private static final long START = 1356998400;
+  private static final long END = START + 9000;
+
+  private HotTier tier;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    PowerMockito.spy(DateTime.class);
+    setTime(START * 1000);
+    config.overrideConfig("tsd.core.hot_tier.retention", "10800000");
+    tier = new HotTier(tsdb, config);
+    Whitebox.setInternalState(tsdb, "hot_tier", tier);
+    storeLongTimeSeriesSeconds(false, false);
+    setTime((END + 600) * 1000);
+  }
+
+  @Test
+  public void sameResultsAsStorage() throws Exception {
+    assertEquals(2, tier.numSeries());
+    assertResults(query(START + 6000, END, null, "*"));
+    assertResults(query(START, END, null, "*"));
+  }
+
+  @Test
+  public void downsampled() throws Exception {
+    assertResults(query(START + 6000, END, "1m-avg", "*"));
+    assertResults(query(START + 6010, END - 10, "5m-max-zero", "*"));
+  }
+
+  @Test
+  public void filtered() throws Exception {
+    Map<String, Map<Long, Double>> results = assertResults(
+        query(START + 6000, END, null, TAGV_STRING));
+    assertEquals(1, results.size());
+
+    // a wildcard is resolved on the tags of each series
+    results = assertResults(query(START + 6000, END, null, "web0*"));
+    assertEquals(2, results.size());
+    results = assertResults(query(START + 6000, END, null, "nope*"));
+    assertEquals(0, results.size());
+  }
+
+  @Test
+  public void milliseconds() throws Exception {
+    tsdb.addPoint(METRIC_STRING, END * 1000 + 250, 1000, tags)
+      .joinUninterruptibly();
+    tsdb.addPoint(METRIC_STRING, END * 1000 + 500, 2000.5F, tags)
+      .joinUninterruptibly();
+    assertResults(query(START + 6000, END + 1, null, "*"));
+  }
+
+  @Test
+  public void latePoints() throws Exception {
+    // overwrites a data point in an older block, then fills a gap
+    tsdb.addPoint(METRIC_STRING, START + 6030, 1000, tags)
+      .joinUninterruptibly();
+    tsdb.addPoint(METRIC_STRING, START + 6045, 2.5F, tags)
+      .joinUninterruptibly();
+    final Map<String, Map<Long, Double>> results =
+        assertResults(query(START + 6000, END, null, "*"));
+    assertEquals(1000, results.get("{host=web01}").get((START + 6030) * 1000),
+        0.0001);
+  }
+
+  @Test
+  public void notCovered() throws Exception {
+    assertFalse(tier.covers(METRIC_BYTES, START * 1000 - 1));
+    assertTrue(tier.covers(METRIC_BYTES, START * 1000));
+    setTime((START + 10800) * 1000 + 1);
+    assertFalse(tier.covers(METRIC_BYTES, START * 1000));
+    assertTrue(tier.covers(METRIC_BYTES, START * 1000 + 1));
+  }
+
+  @Test
+  public void evict() throws Exception {
+    tier.evict(START * 1000 + 1);
+    assertEquals(2, tier.numSeries());
+    tier.evict(END * 1000);
+    assertEquals(2, tier.numSeries());
+    tier.evict(END * 1000 + 1);
+    assertEquals(0, tier.numSeries());
+
+    // data points older than the retention are dropped
+    setTime((START + 10800) * 1000 + 30001);
+    tsdb.addPoint(METRIC_STRING, START + 30, 1, tags).joinUninterruptibly();
+    assertEquals(0, tier.numSeries());
+
+    // series come back on new data points
+    tsdb.addPoint(METRIC_STRING, END + 30, 1, tags).joinUninterruptibly();
+    assertEquals(1, tier.numSeries());
+  }
+
+  @Test
+  public void maxSeries() throws Exception {
+    config.overrideConfig("tsd.core.hot_tier.max_series", "1");
+    setTime(START * 1000);
+    tier = new HotTier(tsdb, config);
+    Whitebox.setInternalState(tsdb, "hot_tier", tier);
+    tsdb.addPoint(METRIC_STRING, END, 1, tags).joinUninterruptibly();
+    tags.put(TAGK_STRING, TAGV_B_STRING);
+    tsdb.addPoint(METRIC_STRING, END, 2, tags).joinUninterruptibly();
+    assertEquals(1, tier.numSeries());
+    setTime((END + 600) * 1000);
+    // the refused series would be missing until its data points are too old
+    assertFalse(tier.covers(METRIC_BYTES, END * 1000));
+    assertTrue(tier.covers(METRIC_BYTES, (END + 10800) * 1000));
+    // but other metrics are complete
+    assertTrue(tier.covers(METRIC_B_BYTES, END * 1000));
+
+    tier.evict((END + 10800) * 1000);
+    assertTrue(((Map<?, ?>) Whitebox.getInternalState(tier,
+        "incomplete_until")).isEmpty());
+  }
+
+  @Test
+  public void notStoredNotBuffered() throws Exception {
+    storage.throwException(getRowKey(METRIC_STRING, 1357005600, TAGK_STRING,
+        TAGV_STRING), new RuntimeException("Boo!"));
+    tier.evict(END * 1000 + 1);
+    try {
+      tsdb.addPoint(METRIC_STRING, END + 30, 1, tags).joinUninterruptibly();
+      fail("Expected RuntimeException");
+    } catch (RuntimeException e) { }
+    assertEquals(0, tier.numSeries());
+  }
+
+  @Test
+  public void annotationsFromStorage() throws Exception {
+    final TSQuery query = query(START + 6000, END, null, "*");
+    query.setNoAnnotations(false);
+    final AtomicLong served = Whitebox.getInternalState(tier, "queries_served");
+    final long before = served.get();
+    // the scanners time themselves on the real clock
+    PowerMockito.when(DateTime.currentTimeMillis()).thenCallRealMethod();
+    assertFalse(run(query).isEmpty());
+    assertEquals(before, served.get());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void retentionTooShort() throws Exception {
+    config.overrideConfig("tsd.core.hot_tier.retention", "999");
+    new HotTier(tsdb, config);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void noSeries() throws Exception {
+    config.overrideConfig("tsd.core.hot_tier.max_series", "0");
+    new HotTier(tsdb, config);
+  }
+
+  private static void setTime(final long ms) {
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(ms);
+  }
+
+  /** @return A validated query of the metric grouped by host */
+  private TSQuery query(final long start, final long end,
+      final String downsample, final String host) {
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put(TAGK_STRING, host);
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setTags(tags);
+    sub.setMetric(METRIC_STRING);
+    sub.setAggregator("sum");
+    sub.setDownsample(downsample);
+    final TSQuery query = new TSQuery();
+    query.setStart(Long.toString(start));
+    query.setEnd(Long.toString(end));
+    query.setQueries(Lists.newArrayList(sub));
+    query.setNoAnnotations(true);
+    query.validateAndSetQuery();
+    return query;
+  }
+
+  /**
+   * Runs the query from storage then from the hot tier and compares
+   * the results.
+   * @return The results.
+   */
+  private Map<String, Map<Long, Double>> assertResults(final TSQuery query)
+      throws Exception {
+    // the scanners time themselves on the real clock
+    final long now = DateTime.currentTimeMillis();
+    PowerMockito.when(DateTime.currentTimeMillis()).thenCallRealMethod();
+    Whitebox.setInternalState(tsdb, "hot_tier", (HotTier) null);
+    final Map<String, Map<Long, Double>> expected = run(query);
+    Whitebox.setInternalState(tsdb, "hot_tier", tier);
+    setTime(now);
+    final AtomicLong served = Whitebox.getInternalState(tier, "queries_served");
+    final long before = served.get();
+    final Map<String, Map<Long, Double>> actual = run(query);
+    assertEquals(before + 1, served.get());
+    assertEquals(expected, actual);
+    return actual;
+  }
+
+  /** @return The values of each series, keyed on the tags */
+  private Map<String, Map<Long, Double>> run(final TSQuery query)
+      throws Exception {
+    final Map<String, Map<Long, Double>> values =
+        new TreeMap<String, Map<Long, Double>>();
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>();
+    for (final Query built : query.buildQueriesAsync(tsdb).join()) {
+      results.add(built.run());
+    }
+    for (final DataPoints dps : results.get(0)) {
+      final Map<Long, Double> series = new TreeMap<Long, Double>();
+      for (final DataPoint dp : dps) {
+        series.put(dp.timestamp(), dp.toDouble());
+      }
+      if (!series.isEmpty()) {
+        values.put(new TreeMap<String, String>(dps.getTags()).toString(),
+            series);
+      }
+    }
+    return values;
+  }
+}
@@ -0,0 +1,76 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+public class TestHyperLogLog {
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  @Test
+  public void empty() throws Exception {
+    assertEquals(0, new HyperLogLog(10).estimate());
+  }
+
+  @Test
+  public void smallCardinalities() throws Exception {
+    final HyperLogLog sketch = new HyperLogLog(10);
+    for (int i = 0; i < 10; i++) {
+      sketch.offer(HASH.hashInt(i).asLong());
+    }
+    assertEquals(10, sketch.estimate());
+  }
+
+  @Test
+  public void largeCardinalities() throws Exception {
+    final HyperLogLog sketch = new HyperLogLog(10);
+    for (int i = 0; i < 1000000; i++) {
+      sketch.offer(HASH.hashInt(i).asLong());
+    }
+    // three times the standard error
+    assertEquals(1000000, sketch.estimate(), 100000);
+    assertEquals(1024, sketch.bytes());
+  }
+
+  @Test
+  public void duplicates() throws Exception {
+    final HyperLogLog sketch = new HyperLogLog(8);
+    for (int i = 0; i < 100000; i++) {
+      sketch.offer(HASH.hashInt(i % 1000).asLong());
+    }
+    assertEquals(1000, sketch.estimate(), 200);
+  }
+
+  @Test
+  public void zeroHash() throws Exception {
+    final HyperLogLog sketch = new HyperLogLog(4);
+    sketch.offer(0);
+    sketch.offer(-1);
+    assertEquals(2, sketch.estimate());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void precisionTooSmall() throws Exception {
+    new HyperLogLog(3);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void precisionTooLarge() throws Exception {
+    new HyperLogLog(17);
+  }
+}
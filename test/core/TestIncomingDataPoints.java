@@ -14,14 +14,22 @@ package net.opentsdb.core;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import net.opentsdb.uid.NoSuchUniqueName;
 
+import org.hbase.async.Bytes;
+import org.hbase.async.PutRequest;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import com.stumbleupon.async.Deferred;
+
 @RunWith(PowerMockRunner.class)
 public class TestIncomingDataPoints extends BaseTsdbTest {
 
@@ -152,4 +160,134 @@ public class TestIncomingDataPoints extends BaseTsdbTest {
         METRIC_STRING, tags);
     assertArrayEquals(expected, key);
   }
+
+  @Test
+  public void reorderWithinWindow() throws Exception {
+    config.overrideConfig("tsd.core.bulk.reorder_window", "60000");
+    setDataPointStorage();
+    final IncomingDataPoints dps = new IncomingDataPoints(tsdb);
+    dps.setSeries(METRIC_STRING, tags);
+    dps.addPoint(1356998410L, 1);
+    dps.addPoint(1356998405L, 2);
+    dps.addPoint(1356998420L, 3);
+    verify(client, times(0)).put(any(PutRequest.class));
+
+    // releases the data points more than a minute older, in one put
+    dps.addPoint(1356998500L, 4);
+    verify(client, times(1)).put(any(PutRequest.class));
+    final byte[] row = getRowKey(METRIC_STRING, 1356998400, TAGK_STRING,
+        TAGV_STRING);
+    assertEquals(2, storage.getColumn(row, new byte[] { 0, 0x50 })[0]);
+    assertEquals(1, storage.getColumn(row, new byte[] { 0, (byte) 0xA0 })[0]);
+    assertEquals(3, storage.getColumn(row, new byte[] { 1, 0x40 })[0]);
+    assertNull(storage.getColumn(row, new byte[] { 6, 0x40 }));
+
+    dps.persist().joinUninterruptibly();
+    verify(client, times(2)).put(any(PutRequest.class));
+    assertEquals(4, storage.getColumn(row, new byte[] { 6, 0x40 })[0]);
+  }
+
+  @Test
+  public void reorderWindowEdge() throws Exception {
+    config.overrideConfig("tsd.core.bulk.reorder_window", "60000");
+    setDataPointStorage();
+    final IncomingDataPoints dps = new IncomingDataPoints(tsdb);
+    dps.setSeries(METRIC_STRING, tags);
+    dps.addPoint(1356998410L, 1);
+    dps.addPoint(1356998440L, 2);
+
+    // exactly the window older than the newest is still held back
+    dps.addPoint(1356998500L, 3);
+    verify(client, times(1)).put(any(PutRequest.class));
+    final byte[] row = getRowKey(METRIC_STRING, 1356998400, TAGK_STRING,
+        TAGV_STRING);
+    assertEquals(1, storage.getColumn(row, new byte[] { 0, (byte) 0xA0 })[0]);
+    assertNull(storage.getColumn(row, new byte[] { 2, (byte) 0x80 }));
+  }
+
+  @Test
+  public void reorderAcrossRows() throws Exception {
+    config.overrideConfig("tsd.core.bulk.reorder_window", "60000");
+    setDataPointStorage();
+    final IncomingDataPoints dps = new IncomingDataPoints(tsdb);
+    dps.setSeries(METRIC_STRING, tags);
+    dps.addPoint(1357002001L, 2);
+    dps.addPoint(1357001999L, 1);
+    dps.addPoint(1357001999500L, 3.5F);
+    dps.persist().joinUninterruptibly();
+    verify(client, times(2)).put(any(PutRequest.class));
+
+    final byte[] row = getRowKey(METRIC_STRING, 1356998400, TAGK_STRING,
+        TAGV_STRING);
+    assertEquals(1, storage.getColumn(row,
+        Internal.buildQualifier(1357001999L, (short) 0))[0]);
+    assertEquals(3.5F, Float.intBitsToFloat(Bytes.getInt(storage.getColumn(
+        row, Internal.buildQualifier(1357001999500L,
+            (short) (Const.FLAG_FLOAT | 0x3))))), 0.0001);
+    assertEquals(2, storage.getColumn(getRowKey(METRIC_STRING, 1357002000,
+        TAGK_STRING, TAGV_STRING), new byte[] { 0, 0x10 })[0]);
+  }
+
+  @Test
+  public void reorderSameTimestamp() throws Exception {
+    config.overrideConfig("tsd.core.bulk.reorder_window", "60000");
+    setDataPointStorage();
+    final IncomingDataPoints dps = new IncomingDataPoints(tsdb);
+    dps.setSeries(METRIC_STRING, tags);
+    final Deferred<Object> first = dps.addPoint(1356998410L, 1);
+    final Deferred<Object> second = dps.addPoint(1356998410L, 2);
+    dps.persist().joinUninterruptibly();
+    first.joinUninterruptibly();
+    second.joinUninterruptibly();
+    verify(client, times(1)).put(any(PutRequest.class));
+    assertEquals(2, storage.getColumn(getRowKey(METRIC_STRING, 1356998400,
+        TAGK_STRING, TAGV_STRING), new byte[] { 0, (byte) 0xA0 })[0]);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void reorderTooLate() throws Exception {
+    config.overrideConfig("tsd.core.bulk.reorder_window", "10000");
+    setDataPointStorage();
+    final IncomingDataPoints dps = new IncomingDataPoints(tsdb);
+    dps.setSeries(METRIC_STRING, tags);
+    dps.addPoint(1356998410L, 1);
+    dps.addPoint(1356998430L, 2);
+    dps.addPoint(1356998405L, 3);
+  }
+
+  @Test
+  public void reorderTooLateAllowed() throws Exception {
+    config.overrideConfig("tsd.core.bulk.reorder_window", "10000");
+    config.overrideConfig("tsd.core.bulk.allow_out_of_order_timestamps",
+        "true");
+    setDataPointStorage();
+    final IncomingDataPoints dps = new IncomingDataPoints(tsdb);
+    dps.setSeries(METRIC_STRING, tags);
+    dps.addPoint(1356998410L, 1);
+    dps.addPoint(1356998430L, 2);
+    dps.addPoint(1356998405L, 3).joinUninterruptibly();
+    assertEquals(3, storage.getColumn(getRowKey(METRIC_STRING, 1356998400,
+        TAGK_STRING, TAGV_STRING), new byte[] { 0, 0x50 })[0]);
+  }
+
+  @Test
+  public void reorderPersistedOnNewSeries() throws Exception {
+    config.overrideConfig("tsd.core.bulk.reorder_window", "60000");
+    setDataPointStorage();
+    final IncomingDataPoints dps = new IncomingDataPoints(tsdb);
+    dps.setSeries(METRIC_STRING, tags);
+    dps.addPoint(1356998410L, 1);
+    dps.setSeries(METRIC_B_STRING, tags);
+    assertEquals(1, storage.getColumn(getRowKey(METRIC_STRING, 1356998400,
+        TAGK_STRING, TAGV_STRING), new byte[] { 0, (byte) 0xA0 })[0]);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void outOfOrderNoReorder() throws Exception {
+    setDataPointStorage();
+    final IncomingDataPoints dps = new IncomingDataPoints(tsdb);
+    dps.setSeries(METRIC_STRING, tags);
+    dps.addPoint(1356998410L, 1);
+    dps.addPoint(1356998405L, 2);
+  }
 }
@@ -0,0 +1,134 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.hbase.async.GetRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import net.opentsdb.uid.UniqueId;
+
+public class TestLastValueCache extends BaseTsdbTest {
+  private static final byte[] TSUID = new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] TSUID_B =
+      new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 2 };
+
+  private LastValueCache cache;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    setDataPointStorage();
+    cache = new LastValueCache(10);
+    Whitebox.setInternalState(tsdb, "last_value_cache", cache);
+  }
+
+  @Test
+  public void addPoint() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998400L, 42, tags).joinUninterruptibly();
+    final IncomingDataPoint dp = cache.getLastPoint(TSUID);
+    assertEquals(UniqueId.uidToString(TSUID), dp.getTSUID());
+    assertEquals(1356998400000L, dp.getTimestamp());
+    assertEquals("42", dp.getValue());
+    assertNull(dp.getMetric());
+    assertNull(dp.getTags());
+    assertNull(cache.getLastPoint(TSUID_B));
+    assertEquals(1, cache.stats().hitCount());
+    assertEquals(1, cache.stats().missCount());
+  }
+
+  @Test
+  public void sameValuesAsStorage() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998400L, Long.MAX_VALUE, tags)
+      .joinUninterruptibly();
+    assertEquals(storedValue(), cache.getLastPoint(TSUID).getValue());
+    tsdb.addPoint(METRIC_STRING, 1356998401L, 0.1F, tags).joinUninterruptibly();
+    assertEquals(storedValue(), cache.getLastPoint(TSUID).getValue());
+    tsdb.addPoint(METRIC_STRING, 1356998402L, 0.1D, tags).joinUninterruptibly();
+    assertEquals(storedValue(), cache.getLastPoint(TSUID).getValue());
+  }
+
+  @Test
+  public void latestWins() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998460L, 2, tags).joinUninterruptibly();
+    tsdb.addPoint(METRIC_STRING, 1356998400L, 1, tags).joinUninterruptibly();
+    assertEquals("2", cache.getLastPoint(TSUID).getValue());
+
+    // a data point written again at the same time replaces the value
+    tsdb.addPoint(METRIC_STRING, 1356998460000L, 3, tags).joinUninterruptibly();
+    assertEquals("3", cache.getLastPoint(TSUID).getValue());
+    tsdb.addPoint(METRIC_STRING, 1356998460500L, 4, tags).joinUninterruptibly();
+    assertEquals(1356998460500L, cache.getLastPoint(TSUID).getTimestamp());
+  }
+
+  @Test
+  public void evicted() throws Exception {
+    cache = new LastValueCache(1);
+    Whitebox.setInternalState(tsdb, "last_value_cache", cache);
+    tsdb.addPoint(METRIC_STRING, 1356998400L, 1, tags).joinUninterruptibly();
+    tags.put(TAGK_STRING, TAGV_B_STRING);
+    tsdb.addPoint(METRIC_STRING, 1356998400L, 2, tags).joinUninterruptibly();
+    assertEquals(1, cache.size());
+    assertNull(cache.getLastPoint(TSUID));
+    assertEquals("2", cache.getLastPoint(TSUID_B).getValue());
+  }
+
+  @Test
+  public void notStored() throws Exception {
+    storage.throwException(getRowKey(METRIC_STRING, 1356998400, TAGK_STRING,
+        TAGV_STRING), new RuntimeException("Boo!"));
+    try {
+      tsdb.addPoint(METRIC_STRING, 1356998400L, 1, tags).joinUninterruptibly();
+      fail("Expected RuntimeException");
+    } catch (RuntimeException e) { }
+    assertNull(cache.getLastPoint(TSUID));
+  }
+
+  @Test
+  public void dropCaches() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998400L, 1, tags).joinUninterruptibly();
+    tsdb.dropCaches();
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void deleted() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998400L, 1, tags).joinUninterruptibly();
+    tags.put(TAGK_STRING, TAGV_B_STRING);
+    tsdb.addPoint(METRIC_STRING, 1356998400L, 2, tags).joinUninterruptibly();
+    final TsdbQuery query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    query.setDelete(true);
+    query.run();
+    assertEquals("1", cache.getLastPoint(TSUID).getValue());
+    assertNull(cache.getLastPoint(TSUID_B));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void zeroSize() throws Exception {
+    new LastValueCache(0);
+  }
+
+  /** @return The value of the last data point read back from storage */
+  private String storedValue() throws Exception {
+    final GetRequest get = new GetRequest(tsdb.dataTable(),
+        getRowKey(METRIC_STRING, 1356998400, TAGK_STRING, TAGV_STRING));
+    return new Internal.GetLastDataPointCB(tsdb)
+        .call(tsdb.getClient().get(get).join()).getValue();
+  }
+}
@@ -0,0 +1,174 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*", "com.sum.*", "org.xml.*"})
+@PrepareForTest({ SpanGroup.class, QueryStats.class })
+public final class TestParallelAggregation {
+  private ExecutorService executor;
+  private QueryStats query_stats;
+
+  @Before
+  public void before() {
+    executor = ParallelAggregation.newExecutor(2);
+    query_stats = PowerMockito.mock(QueryStats.class);
+  }
+
+  @After
+  public void after() {
+    executor.shutdown();
+  }
+
+  @Test
+  public void call() throws Exception {
+    final SpanGroup[] groups = new SpanGroup[5];
+    for (int i = 0; i < groups.length; i++) {
+      groups[i] = PowerMockito.mock(SpanGroup.class);
+      when(groups[i].materialize(any(AtomicLong.class))).thenReturn(10);
+    }
+    final ParallelAggregation aggregation =
+        new ParallelAggregation(executor, 3, 0, query_stats, 1);
+
+    final DataPoints[] results = aggregation.call(groups).join();
+    assertSame(groups, results);
+    for (final SpanGroup group : groups) {
+      verify(group, times(1)).materialize(any(AtomicLong.class));
+    }
+    verify(query_stats, times(1)).addStat(1, QueryStat.AGGREGATION_TASKS, 3);
+    verify(query_stats, times(1)).addStat(eq(1),
+        eq(QueryStat.PARALLEL_AGGREGATION_TIME), anyLong());
+  }
+
+  @Test
+  public void callBufferLimit() throws Exception {
+    final SpanGroup[] groups = new SpanGroup[3];
+    for (int i = 0; i < groups.length; i++) {
+      groups[i] = PowerMockito.mock(SpanGroup.class);
+    }
+    when(groups[0].materialize(any(AtomicLong.class))).thenReturn(10);
+    when(groups[1].materialize(any(AtomicLong.class))).thenReturn(-1);
+    when(groups[2].materialize(any(AtomicLong.class))).thenReturn(10);
+    final ParallelAggregation aggregation =
+        new ParallelAggregation(executor, 1, 4096, null, 0);
+
+    assertSame(groups, aggregation.call(groups).join());
+    final ArgumentCaptor<AtomicLong> budget = 
+        ArgumentCaptor.forClass(AtomicLong.class);
+    for (final SpanGroup group : groups) {
+      verify(group, times(1)).materialize(budget.capture());
+    }
+    // one budget shared by all of the groups of the sub query
+    assertEquals(4096, budget.getAllValues().get(0).get());
+    assertSame(budget.getAllValues().get(0), budget.getAllValues().get(2));
+  }
+
+  @Test
+  public void callEmpty() throws Exception {
+    final DataPoints[] empty = new DataPoints[0];
+    final ParallelAggregation aggregation =
+        new ParallelAggregation(executor, 3, 0, query_stats, 0);
+    assertSame(empty, aggregation.call(empty).join());
+    verify(query_stats, never()).addStat(anyInt(),
+        any(QueryStat.class), anyLong());
+  }
+
+  @Test
+  public void callNoSpanGroups() throws Exception {
+    final DataPoints[] results = new DataPoints[] { mock(DataPoints.class) };
+    final ParallelAggregation aggregation =
+        new ParallelAggregation(executor, 3, 0, null, 0);
+    assertSame(results, aggregation.call(results).join());
+  }
+
+  @Test
+  public void callFailure() throws Exception {
+    final SpanGroup[] groups = new SpanGroup[3];
+    for (int i = 0; i < groups.length; i++) {
+      groups[i] = PowerMockito.mock(SpanGroup.class);
+    }
+    when(groups[1].materialize(any(AtomicLong.class)))
+      .thenThrow(new IllegalDataException("Boo!"));
+    final ParallelAggregation aggregation =
+        new ParallelAggregation(executor, 1, 0, null, 0);
+
+    try {
+      aggregation.call(groups).join();
+      fail("Expected an IllegalDataException");
+    } catch (IllegalDataException e) { }
+    verify(groups[2], never()).materialize(any(AtomicLong.class));
+  }
+
+  @Test
+  public void callRejected() throws Exception {
+    final ExecutorService rejecting = mock(ExecutorService.class);
+    doThrow(new RejectedExecutionException("Shutting down"))
+      .when(rejecting).execute(any(Runnable.class));
+    final SpanGroup group = PowerMockito.mock(SpanGroup.class);
+    final DataPoints[] groups = new DataPoints[] { group };
+    final ParallelAggregation aggregation =
+        new ParallelAggregation(rejecting, 4, 0, null, 0);
+
+    assertSame(groups, aggregation.call(groups).join());
+    verify(group, times(1)).materialize(any(AtomicLong.class));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNullExecutor() throws Exception {
+    new ParallelAggregation(null, 4, 0, null, 0);
+  }
+
+  @Test
+  public void newExecutor() throws Exception {
+    final SpanGroup group = PowerMockito.mock(SpanGroup.class);
+    when(group.materialize(any(AtomicLong.class))).thenReturn(1);
+    new ParallelAggregation(executor, 0, 0, null, 0)
+      .call(new DataPoints[] { group }).join();
+    verify(group, times(1)).materialize(any(AtomicLong.class));
+    assertEquals(2, ((ThreadPoolExecutor) executor)
+        .getCorePoolSize());
+  }
+}
@@ -0,0 +1,263 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.FilterList;
+import org.hbase.async.FuzzyRowFilter;
+import org.hbase.async.ScanFilter;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import com.google.common.collect.Lists;
+
+import net.opentsdb.core.QueryPlanner.Plan;
+import net.opentsdb.core.TsdbQuery.ForTesting;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+import net.opentsdb.storage.MockBase.MockScanner;
+
+public class TestQueryPlanner extends BaseTsdbTest {
+  private static final long START = 1356998400;
+  private static final long END = 1357041600;
+
+  private CardinalityStats stats;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    stats = new CardinalityStats(10);
+    Whitebox.setInternalState(tsdb, "cardinality_stats", stats);
+    storeLongTimeSeriesSeconds(false, false);
+  }
+
+  @Test
+  public void estimates() throws Exception {
+    assertEquals(1, stats.numMetrics());
+    assertEquals(2, stats.estimateSeries(METRIC_BYTES));
+    assertEquals(2, stats.estimateTagValues(METRIC_BYTES, TAGK_BYTES));
+    assertEquals(0, stats.estimateTagValues(METRIC_BYTES, TAGK_B_BYTES));
+    assertEquals(0, stats.estimateSeries(METRIC_B_BYTES));
+
+    addSeries(98);
+    assertEquals(100, stats.estimateSeries(METRIC_BYTES), 3);
+    assertEquals(100, stats.estimateTagValues(METRIC_BYTES, TAGK_BYTES), 6);
+  }
+
+  @Test
+  public void scanWhenMostSeriesMatch() throws Exception {
+    final TsdbQuery query = assertResults(query(TAGV_STRING, true, true));
+    assertEquals(Plan.SCAN, ForTesting.getQueryPlan(query).getPlan());
+    assertEquals(2, ForTesting.getQueryPlan(query).getEstimatedSeries());
+    assertFalse(storage.getScanners().isEmpty());
+    for (final MockScanner scanner : storage.getScanners()) {
+      assertFalse(hasFuzzyFilter(scanner.getFilter()));
+    }
+  }
+
+  @Test
+  public void multiGetWhenFewSeriesMatch() throws Exception {
+    addSeries(98);
+    final TsdbQuery query = assertResults(query(TAGV_STRING, true, true));
+    assertEquals(Plan.MULTI_GET, ForTesting.getQueryPlan(query).getPlan());
+    assertEquals(13 * QueryPlanner.GET_ROW_COST,
+        ForTesting.getQueryPlan(query).getCost());
+    assertTrue(storage.getScanners().isEmpty());
+  }
+
+  @Test
+  public void fuzzyScanWithoutMultiGets() throws Exception {
+    addSeries(98);
+    final TsdbQuery query = assertResults(query(TAGV_STRING, true, false));
+    assertEquals(Plan.FUZZY_SCAN, ForTesting.getQueryPlan(query).getPlan());
+    assertFalse(storage.getScanners().isEmpty());
+    for (final MockScanner scanner : storage.getScanners()) {
+      assertTrue(hasFuzzyFilter(scanner.getFilter()));
+    }
+  }
+
+  @Test
+  public void scanWithoutExplicitTags() throws Exception {
+    addSeries(98);
+    final TsdbQuery query = assertResults(query(TAGV_STRING, false, true));
+    assertEquals(Plan.SCAN, ForTesting.getQueryPlan(query).getPlan());
+  }
+
+  @Test
+  public void scanWithWildcards() throws Exception {
+    addSeries(98);
+    TsdbQuery query = assertResults(query("*", true, true));
+    assertEquals(Plan.SCAN, ForTesting.getQueryPlan(query).getPlan());
+
+    query = assertResults(query("web0*", true, true));
+    assertEquals(Plan.SCAN, ForTesting.getQueryPlan(query).getPlan());
+  }
+
+  @Test
+  public void notPlannedWithoutStatistics() throws Exception {
+    stats = new CardinalityStats(10);
+    Whitebox.setInternalState(tsdb, "cardinality_stats", stats);
+    final TsdbQuery query = assertResults(query(TAGV_STRING, true, true));
+    assertNull(ForTesting.getQueryPlan(query));
+    // as configured
+    for (final MockScanner scanner : storage.getScanners()) {
+      assertTrue(hasFuzzyFilter(scanner.getFilter()));
+    }
+  }
+
+  @Test
+  public void queryStats() throws Exception {
+    addSeries(98);
+    final QueryStats query_stats = mock(QueryStats.class);
+    final TSQuery ts_query = query(TAGV_STRING, true, true);
+    ts_query.setQueryStats(query_stats);
+    run(ts_query);
+    verify(query_stats).addStat(0, QueryStat.QUERY_PLAN,
+        Plan.MULTI_GET.ordinal());
+    verify(query_stats).addStat(0, QueryStat.ESTIMATED_SERIES,
+        stats.estimateSeries(METRIC_BYTES));
+    verify(query_stats).addStat(0, QueryStat.ESTIMATED_COST,
+        13 * QueryPlanner.GET_ROW_COST);
+  }
+
+  @Test
+  public void multiGetLimit() throws Exception {
+    addSeries(98);
+    final ByteMap<byte[][]> literals = new ByteMap<byte[][]>();
+    literals.put(TAGK_BYTES, new byte[][] { TAGV_BYTES, TAGV_B_BYTES });
+    QueryPlanner plan = QueryPlanner.plan(stats, METRIC_BYTES, literals,
+        true, true, 1, true, true, 2);
+    assertEquals(Plan.MULTI_GET, plan.getPlan());
+    assertEquals(2 * QueryPlanner.GET_ROW_COST, plan.getCost());
+
+    plan = QueryPlanner.plan(stats, METRIC_BYTES, literals,
+        true, true, 1, true, true, 1);
+    assertEquals(Plan.FUZZY_SCAN, plan.getPlan());
+    assertEquals(2 * QueryPlanner.FUZZY_ROW_COST, plan.getCost());
+
+    // post scan filters can't be fetched with gets
+    plan = QueryPlanner.plan(stats, METRIC_BYTES, literals,
+        true, false, 1, true, true, 2);
+    assertEquals(Plan.FUZZY_SCAN, plan.getPlan());
+
+    plan = QueryPlanner.plan(stats, METRIC_BYTES, literals,
+        true, true, 1, false, false, 2);
+    assertEquals(Plan.SCAN, plan.getPlan());
+    assertEquals(plan.getEstimatedSeries(), plan.getCost());
+
+    assertNull(QueryPlanner.plan(stats, METRIC_B_BYTES, literals,
+        true, true, 1, true, true, 2));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void noMetrics() throws Exception {
+    new CardinalityStats(0);
+  }
+
+  /** Records more series of the metric with new host values */
+  private void addSeries(final int count) {
+    for (int i = 0; i < count; i++) {
+      stats.add(new byte[] { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 1,
+          (byte) (i >> 8), (byte) i });
+    }
+  }
+
+  private static boolean hasFuzzyFilter(final ScanFilter filter) {
+    if (filter instanceof FilterList) {
+      for (final ScanFilter sub : ((FilterList) filter).filters()) {
+        if (sub instanceof FuzzyRowFilter) {
+          return true;
+        }
+      }
+    }
+    return filter instanceof FuzzyRowFilter;
+  }
+
+  /** @return A validated query of the metric on host */
+  private TSQuery query(final String host, final boolean explicit_tags,
+      final boolean multi_gets) {
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put(TAGK_STRING, host);
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setTags(tags);
+    sub.setMetric(METRIC_STRING);
+    sub.setAggregator("sum");
+    sub.setExplicitTags(explicit_tags);
+    sub.setUseMultiGets(multi_gets);
+    final TSQuery query = new TSQuery();
+    query.setStart(Long.toString(START));
+    query.setEnd(Long.toString(END));
+    query.setQueries(Lists.newArrayList(sub));
+    query.validateAndSetQuery();
+    return query;
+  }
+
+  /**
+   * Runs the query without then with the planner and compares the results.
+   * @return The planned query.
+   */
+  private TsdbQuery assertResults(final TSQuery query) throws Exception {
+    Whitebox.setInternalState(tsdb, "cardinality_stats",
+        (CardinalityStats) null);
+    final Map<String, Map<Long, Double>> expected = new TreeMap<String,
+        Map<Long, Double>>();
+    run(query, expected);
+    assertFalse(expected.isEmpty());
+    Whitebox.setInternalState(tsdb, "cardinality_stats", stats);
+    storage.getScanners().clear();
+    final Map<String, Map<Long, Double>> actual = new TreeMap<String,
+        Map<Long, Double>>();
+    final TsdbQuery planned = run(query, actual);
+    assertEquals(expected, actual);
+    return planned;
+  }
+
+  private TsdbQuery run(final TSQuery query) throws Exception {
+    return run(query, new TreeMap<String, Map<Long, Double>>());
+  }
+
+  /**
+   * Runs the query, storing the values of each series keyed on the tags.
+   * @return The query run.
+   */
+  private TsdbQuery run(final TSQuery query,
+      final Map<String, Map<Long, Double>> values) throws Exception {
+    final Query built = query.buildQueriesAsync(tsdb).join()[0];
+    final List<DataPoints> results = new ArrayList<DataPoints>();
+    for (final DataPoints dps : built.run()) {
+      results.add(dps);
+    }
+    for (final DataPoints dps : results) {
+      final Map<Long, Double> series = new TreeMap<Long, Double>();
+      for (final DataPoint dp : dps) {
+        series.put(dp.timestamp(), dp.toDouble());
+      }
+      values.put(new TreeMap<String, String>(dps.getTags()).toString(),
+          series);
+    }
+    return (TsdbQuery) built;
+  }
+}
@@ -0,0 +1,285 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import com.google.common.collect.Lists;
+
+public class TestQueryResultCache extends BaseTsdbTest {
+  /** The data points stored span 2.5 hours from this hour */
+  private static final long START = 1356998400;
+  private static final long END = START + 9000;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+  }
+
+  @Test
+  public void sameResultsAsStorage() throws Exception {
+    final QueryResultCache cache = cache();
+    final TSQuery query = query(START, END, "1m-sum");
+    assertTrue(cache.isCacheable(query));
+
+    // the 2 complete hours are run then cached, the rest is run
+    assertResults(runUncached(query), runCached(cache, query));
+    assertEquals(2, cache.size());
+    assertEquals(0, cache.stats().hitCount());
+    assertEquals(2, cache.stats().missCount());
+
+    assertResults(runUncached(query), runCached(cache, query));
+    assertEquals(2, cache.stats().hitCount());
+    assertEquals(2, cache.stats().missCount());
+  }
+
+  @Test
+  public void onlyFreshSliceRun() throws Exception {
+    final QueryResultCache cache = cache();
+    final TSQuery query = query(START, END, "1m-sum");
+    final Map<String, Map<Long, Double>> before = runCached(cache, query);
+
+    // a late point in a cached slice isn't seen but one in the tail is
+    tsdb.addPoint(METRIC_STRING, START + 15, 1000, tags).joinUninterruptibly();
+    tsdb.addPoint(METRIC_STRING, END - 15, 1000, tags).joinUninterruptibly();
+    final Map<String, Map<Long, Double>> after = runCached(cache, query);
+    final String web01 = "{host=web01}";
+    assertEquals(before.get(web01).get(START * 1000),
+        after.get(web01).get(START * 1000));
+    assertEquals(before.get(web01).get((END - 60) * 1000) + 1000,
+        after.get(web01).get((END - 60) * 1000), 0.0001);
+
+    cache.clear();
+    assertResults(runUncached(query), runCached(cache, query));
+  }
+
+  @Test
+  public void slidingWindow() throws Exception {
+    final QueryResultCache cache = cache();
+    runCached(cache, query(START, END, "1m-sum"));
+
+    // a partial hour at each end, the hour in between is cached
+    final TSQuery query = query(START + 1800, END - 1800, "1m-sum");
+    assertResults(runUncached(query), runCached(cache, query));
+    assertEquals(1, cache.stats().hitCount());
+  }
+
+  @Test
+  public void alignedEnds() throws Exception {
+    final QueryResultCache cache = cache();
+    tsdb.addPoint(METRIC_STRING, START + 7200, 1000, tags)
+      .joinUninterruptibly();
+    final TSQuery query = query(START, START + 7200, "1m-sum");
+    assertResults(runUncached(query), runCached(cache, query));
+    assertEquals(2, cache.size());
+    assertResults(runUncached(query), runCached(cache, query));
+    assertEquals(2, cache.stats().hitCount());
+  }
+
+  @Test
+  public void missingSlicesRunTogether() throws Exception {
+    final QueryResultCache cache = cache();
+    runCached(cache, query(START + 3600, START + 7200, "1m-sum"));
+    assertEquals(1, cache.size());
+
+    final TSQuery query = query(START, END, "1m-sum");
+    assertResults(runUncached(query), runCached(cache, query));
+    assertEquals(1, cache.stats().hitCount());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void fillPolicy() throws Exception {
+    final QueryResultCache cache = cache();
+    final TSQuery query = query(START, END, "1m-avg-zero");
+    runCached(cache, query);
+    assertResults(runUncached(query), runCached(cache, query));
+  }
+
+  @Test
+  public void differentQueries() throws Exception {
+    final QueryResultCache cache = cache();
+    runCached(cache, query(START, END, "1m-sum"));
+    final TSQuery query = query(START, END, "1m-max");
+    assertResults(runUncached(query), runCached(cache, query));
+    assertEquals(0, cache.stats().hitCount());
+
+    assertNotEquals(QueryResultCache.queryKey(query(START, END, "1m-sum")),
+        QueryResultCache.queryKey(query(START, END, "1m-max")));
+    assertEquals(QueryResultCache.queryKey(query(START, END, "1m-sum")),
+        QueryResultCache.queryKey(query(START + 60, END, "1m-sum")));
+  }
+
+  @Test
+  public void tooRecent() throws Exception {
+    final QueryResultCache cache = cache();
+    final long now = System.currentTimeMillis() / 1000;
+    tsdb.addPoint(METRIC_STRING, now - 300, 1, tags).joinUninterruptibly();
+    tags.put(TAGK_STRING, TAGV_B_STRING);
+    tsdb.addPoint(METRIC_STRING, now - 300, 2, tags).joinUninterruptibly();
+    final TSQuery query = query(now - 600, now, "1m-sum");
+    assertResults(runUncached(query), runCached(cache, query));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void evicted() throws Exception {
+    config.overrideConfig("tsd.query.cache.max_datapoints", "100");
+    final QueryResultCache cache = cache();
+    final TSQuery query = query(START, END, "1m-sum");
+    runCached(cache, query);
+    assertResults(runUncached(query), runCached(cache, query));
+    assertTrue(cache.stats().evictionCount() > 0);
+  }
+
+  @Test
+  public void expired() throws Exception {
+    config.overrideConfig("tsd.query.cache.expire_after", "1");
+    final QueryResultCache cache = cache();
+    final TSQuery query = query(START, END, "1m-sum");
+    runCached(cache, query);
+    Thread.sleep(10);
+    assertResults(runUncached(query), runCached(cache, query));
+    assertEquals(0, cache.stats().hitCount());
+    assertEquals(4, cache.stats().missCount());
+  }
+
+  @Test
+  public void dropCaches() throws Exception {
+    final QueryResultCache cache = cache();
+    Whitebox.setInternalState(tsdb, "query_cache", cache);
+    runCached(cache, query(START, END, "1m-sum"));
+    assertEquals(2, cache.size());
+    tsdb.dropCaches();
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void renameUid() throws Exception {
+    final QueryResultCache cache = cache();
+    Whitebox.setInternalState(tsdb, "query_cache", cache);
+    runCached(cache, query(START, END, "1m-sum"));
+    tsdb.renameUid("tagv", TAGV_STRING, "web03");
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void notCacheable() throws Exception {
+    final QueryResultCache cache = cache();
+    assertFalse(cache.isCacheable(query(START, END, null)));
+    assertFalse(cache.isCacheable(query(START, END, "1mc-sum")));
+    assertFalse(cache.isCacheable(query(START, END, "0all-sum")));
+    assertFalse(cache.isCacheable(query(START, END, "7m-sum")));
+
+    TSQuery query = query(START, END, "1m-sum");
+    query.getQueries().get(0).setRate(true);
+    assertFalse(cache.isCacheable(query));
+
+    query = query(START, END, "1m-sum");
+    query.setPadding(true);
+    assertFalse(cache.isCacheable(query));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void sliceNotInSeconds() throws Exception {
+    config.overrideConfig("tsd.query.cache.slice", "1500ms");
+    cache();
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void negativeMinAge() throws Exception {
+    config.overrideConfig("tsd.query.cache.min_age", "-1");
+    cache();
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void negativeExpireAfter() throws Exception {
+    config.overrideConfig("tsd.query.cache.expire_after", "-1");
+    cache();
+  }
+
+  private QueryResultCache cache() {
+    return new QueryResultCache(tsdb, config);
+  }
+
+  /** @return A validated query of the metric grouped by host */
+  private TSQuery query(final long start, final long end,
+      final String downsample) {
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put(TAGK_STRING, "*");
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setTags(tags);
+    sub.setMetric(METRIC_STRING);
+    sub.setAggregator("sum");
+    sub.setDownsample(downsample);
+    final TSQuery query = new TSQuery();
+    query.setStart(Long.toString(start));
+    query.setEnd(Long.toString(end));
+    query.setQueries(Lists.newArrayList(sub));
+    query.validateAndSetQuery();
+    return query;
+  }
+
+  private Map<String, Map<Long, Double>> runUncached(final TSQuery query)
+      throws Exception {
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>();
+    for (final Query built : query.buildQueriesAsync(tsdb).join()) {
+      results.add(built.run());
+    }
+    return values(results);
+  }
+
+  private Map<String, Map<Long, Double>> runCached(
+      final QueryResultCache cache, final TSQuery query) throws Exception {
+    return values(cache.runAsync(query, query.buildQueriesAsync(tsdb).join())
+        .join());
+  }
+
+  /** @return The values of each series, keyed on the tags */
+  private static Map<String, Map<Long, Double>> values(
+      final List<DataPoints[]> results) {
+    final Map<String, Map<Long, Double>> values =
+        new TreeMap<String, Map<Long, Double>>();
+    assertEquals(1, results.size());
+    for (final DataPoints dps : results.get(0)) {
+      final Map<Long, Double> series = new TreeMap<Long, Double>();
+      for (final DataPoint dp : dps) {
+        assertFalse(series.containsKey(dp.timestamp()));
+        series.put(dp.timestamp(), dp.toDouble());
+      }
+      values.put(new TreeMap<String, String>(dps.getTags()).toString(),
+          series);
+    }
+    return values;
+  }
+
+  private static void assertResults(
+      final Map<String, Map<Long, Double>> expected,
+      final Map<String, Map<Long, Double>> actual) {
+    assertEquals(2, expected.size());
+    assertEquals(expected, actual);
+  }
+}
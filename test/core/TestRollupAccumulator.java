@@ -0,0 +1,340 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.rollup.RollupConfig;
+import net.opentsdb.rollup.RollupInterval;
+import net.opentsdb.rollup.RollupUtils;
+import net.opentsdb.storage.MockBase;
+
+import org.hbase.async.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+public class TestRollupAccumulator extends BaseTsdbTest {
+  private final static byte[] FAMILY = "t".getBytes(MockBase.ASCII());
+  private final static short DOUBLE_FLAGS = (short) (Const.FLAG_FLOAT | 0x7);
+  private RollupConfig rollup_config;
+  private RollupInterval interval;
+  private String agg_tag_key;
+  /** The start of the current 10 minute interval, in seconds */
+  private long start;
+  private byte[] row;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    agg_tag_key = config.getString("tsd.rollups.agg_tag_key");
+
+    storage = new MockBase(tsdb, client, true, true, true, true);
+    final List<byte[]> families = new ArrayList<byte[]>();
+    families.add(FAMILY);
+    storage.addTable("tsdb-rollup-10m".getBytes(), families);
+    storage.addTable("tsdb-rollup-agg-10m".getBytes(), families);
+    storage.addTable("tsdb-rollup-1h".getBytes(), families);
+    storage.addTable("tsdb-rollup-agg-1h".getBytes(), families);
+
+    rollup_config = RollupConfig.builder()
+        .addAggregationId("sum", 0)
+        .addAggregationId("count", 1)
+        .addAggregationId("max", 2)
+        .addAggregationId("min", 3)
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb")
+            .setPreAggregationTable("tsdb-agg")
+            .setInterval("1m")
+            .setRowSpan("1h")
+            .setDefaultInterval(true))
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb-rollup-10m")
+            .setPreAggregationTable("tsdb-rollup-agg-10m")
+            .setInterval("10m")
+            .setRowSpan("1d"))
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb-rollup-1h")
+            .setPreAggregationTable("tsdb-rollup-agg-1h")
+            .setInterval("1h")
+            .setRowSpan("1n"))
+        .build();
+    Whitebox.setInternalState(tsdb, "rollup_config", rollup_config);
+    Whitebox.setInternalState(tsdb, "default_interval",
+        rollup_config.getRollupInterval("1m"));
+    Whitebox.setInternalState(tsdb, "agg_tag_key", agg_tag_key);
+    Whitebox.setInternalState(tsdb, "raw_agg_tag_value",
+        config.getString("tsd.rollups.raw_agg_tag_value"));
+    setupGroupByTagValues();
+
+    config.overrideConfig("tsd.rollups.ingest.routed", "true");
+    config.overrideConfig("tsd.rollups.ingest.intervals", "10m");
+    interval = rollup_config.getRollupInterval("10m");
+    final long now = System.currentTimeMillis() / 1000;
+    start = now - (now % 600);
+    row = getRowKey(METRIC_STRING,
+        RollupUtils.getRollupBasetime(start, interval),
+        TAGK_STRING, TAGV_STRING);
+  }
+
+  @Test
+  public void flushIntegers() throws Exception {
+    final RollupAccumulator accumulator = accumulator();
+    accumulator.add(METRIC_STRING, start, 1L, tags);
+    accumulator.add(METRIC_STRING, start + 60, 5L, tags);
+    accumulator.add(METRIC_STRING, (start + 120) * 1000 + 250, 3L, tags);
+    assertEquals(1, accumulator.openWindows());
+
+    // still open
+    accumulator.flush(System.currentTimeMillis()).joinUninterruptibly();
+    assertEquals(1, accumulator.openWindows());
+    assertNull(column(interval.getTemporalTable(), row, (short) 0, 0));
+
+    accumulator.flush((start + 600) * 1000 + 60000).joinUninterruptibly();
+    assertEquals(0, accumulator.openWindows());
+    assertArrayEquals(new byte[] { 9 },
+        column(interval.getTemporalTable(), row, (short) 0, 0));
+    assertArrayEquals(new byte[] { 3 },
+        column(interval.getTemporalTable(), row, (short) 0, 1));
+    assertArrayEquals(new byte[] { 5 },
+        column(interval.getTemporalTable(), row, (short) 0, 2));
+    assertArrayEquals(new byte[] { 1 },
+        column(interval.getTemporalTable(), row, (short) 0, 3));
+    // nothing grouped
+    assertEquals(0, storage.numRows(interval.getGroupbyTable()));
+  }
+
+  @Test
+  public void flushDoubles() throws Exception {
+    final RollupAccumulator accumulator = accumulator();
+    accumulator.add(METRIC_STRING, start, 1L, tags);
+    accumulator.add(METRIC_STRING, start + 1, 2.5, tags);
+    accumulator.add(METRIC_STRING, start + 2, -0.5, tags);
+    accumulator.shutdown().joinUninterruptibly();
+
+    assertEquals(3.0, doubleColumn(0), 0.0001);
+    assertArrayEquals(new byte[] { 3 },
+        column(interval.getTemporalTable(), row, (short) 0, 1));
+    assertEquals(2.5, doubleColumn(2), 0.0001);
+    assertEquals(-0.5, doubleColumn(3), 0.0001);
+  }
+
+  @Test
+  public void late() throws Exception {
+    final RollupAccumulator accumulator = accumulator();
+    accumulator.add(METRIC_STRING, start - 3600, 1L, tags);
+    assertEquals(0, accumulator.openWindows());
+    accumulator.shutdown().joinUninterruptibly();
+    assertEquals(0, storage.numRows(interval.getTemporalTable()));
+  }
+
+  @Test
+  public void lateAfterFlush() throws Exception {
+    final RollupAccumulator accumulator = accumulator();
+    accumulator.add(METRIC_STRING, start, 1L, tags);
+    accumulator.add(METRIC_STRING, start + 60, 5L, tags);
+    accumulator.flush((start + 600) * 1000 + 60000).joinUninterruptibly();
+
+    // an add that read the time before the flush must not reopen the window
+    accumulator.add(METRIC_STRING, start + 120, 3L, tags);
+    assertEquals(0, accumulator.openWindows());
+    accumulator.shutdown().joinUninterruptibly();
+    assertArrayEquals(new byte[] { 6 },
+        column(interval.getTemporalTable(), row, (short) 0, 0));
+    assertArrayEquals(new byte[] { 2 },
+        column(interval.getTemporalTable(), row, (short) 0, 1));
+  }
+
+  @Test
+  public void concurrentFlush() throws Exception {
+    final RollupAccumulator accumulator = accumulator();
+    final CountDownLatch ready = new CountDownLatch(4);
+    final Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          ready.countDown();
+          for (int j = 0; j < 25; j++) {
+            accumulator.add(METRIC_STRING, start + j, 1L, tags);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    ready.await();
+    accumulator.flush((start + 600) * 1000 + 60000).joinUninterruptibly();
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    accumulator.shutdown().joinUninterruptibly();
+
+    // whatever made it in before the flush is written once, in full
+    final long added = ((AtomicLong) Whitebox.getInternalState(accumulator,
+        "datapoints_added")).get();
+    final long late = ((AtomicLong) Whitebox.getInternalState(accumulator,
+        "datapoints_late")).get();
+    assertEquals(100, added + late);
+    if (added > 0) {
+      assertArrayEquals(new byte[] { (byte) added },
+          column(interval.getTemporalTable(), row, (short) 0, 1));
+    }
+  }
+
+  @Test
+  public void maxWindows() throws Exception {
+    config.overrideConfig("tsd.rollups.ingest.max_windows", "1");
+    final RollupAccumulator accumulator = accumulator();
+    accumulator.add(METRIC_STRING, start, 1L, tags);
+    accumulator.add(METRIC_B_STRING, start, 1L, tags);
+    accumulator.add(METRIC_STRING, start + 1, 1L, tags);
+    assertEquals(1, accumulator.openWindows());
+    accumulator.shutdown().joinUninterruptibly();
+    assertArrayEquals(new byte[] { 2 },
+        column(interval.getTemporalTable(), row, (short) 0, 1));
+    assertEquals(1, storage.numRows(interval.getTemporalTable()));
+  }
+
+  @Test
+  public void allIntervals() throws Exception {
+    config.overrideConfig("tsd.rollups.ingest.intervals", "");
+    final RollupAccumulator accumulator = accumulator();
+    accumulator.add(METRIC_STRING, start, 42L, tags);
+    assertEquals(2, accumulator.openWindows());
+    accumulator.shutdown().joinUninterruptibly();
+
+    final RollupInterval hourly = rollup_config.getRollupInterval("1h");
+    final long hour = start - (start % 3600);
+    assertArrayEquals(new byte[] { 42 },
+        column(interval.getTemporalTable(), row, (short) 0, 0));
+    assertArrayEquals(new byte[] { 42 }, storage.getColumn(
+        hourly.getTemporalTable(),
+        getRowKey(METRIC_STRING, RollupUtils.getRollupBasetime(hour, hourly),
+            TAGK_STRING, TAGV_STRING),
+        FAMILY, RollupUtils.buildRollupQualifier(hour, (short) 0, 0, hourly)));
+  }
+
+  @Test
+  public void groupBy() throws Exception {
+    config.overrideConfig("tsd.rollups.ingest.groupby_drop_tags", "host");
+    final RollupAccumulator accumulator = accumulator();
+    tags.put(TAGK_B_STRING, TAGV_STRING);
+    accumulator.add(METRIC_STRING, start, 4L, tags);
+    tags.put(TAGK_STRING, TAGV_B_STRING);
+    accumulator.add(METRIC_STRING, start, 2L, tags);
+    // two series and a group
+    assertEquals(3, accumulator.openWindows());
+    accumulator.shutdown().joinUninterruptibly();
+
+    final int base_time = RollupUtils.getRollupBasetime(start, interval);
+    assertArrayEquals(new byte[] { 4 }, column(interval.getTemporalTable(),
+        getRowKey(METRIC_STRING, base_time, TAGK_STRING, TAGV_STRING,
+            TAGK_B_STRING, TAGV_STRING), (short) 0, 0));
+    assertArrayEquals(new byte[] { 6 }, column(interval.getGroupbyTable(),
+        getRowKey(METRIC_STRING, base_time, TAGK_B_STRING, TAGV_STRING,
+            agg_tag_key, "SUM"), (short) 0, 0));
+    assertArrayEquals(new byte[] { 2 }, column(interval.getGroupbyTable(),
+        getRowKey(METRIC_STRING, base_time, TAGK_B_STRING, TAGV_STRING,
+            agg_tag_key, "COUNT"), (short) 0, 1));
+    assertArrayEquals(new byte[] { 2 }, column(interval.getGroupbyTable(),
+        getRowKey(METRIC_STRING, base_time, TAGK_B_STRING, TAGV_STRING,
+            agg_tag_key, "MIN"), (short) 0, 3));
+  }
+
+  @Test
+  public void addPoint() throws Exception {
+    final RollupAccumulator accumulator = accumulator();
+    Whitebox.setInternalState(tsdb, "rollup_accumulator", accumulator);
+    tsdb.addPoint(METRIC_STRING, start, 40L, tags).joinUninterruptibly();
+    tsdb.addPoint(METRIC_STRING, start + 1, 2L, tags).joinUninterruptibly();
+    accumulator.shutdown().joinUninterruptibly();
+    assertArrayEquals(new byte[] { 42 },
+        column(interval.getTemporalTable(), row, (short) 0, 0));
+  }
+
+  @Test
+  public void addPointFailedNotCounted() throws Exception {
+    final RollupAccumulator accumulator = accumulator();
+    Whitebox.setInternalState(tsdb, "rollup_accumulator", accumulator);
+    storage.throwException(getRowKey(METRIC_STRING,
+        (int) (start - (start % 3600)), TAGK_STRING, TAGV_STRING),
+        new RuntimeException("Boo!"));
+    try {
+      tsdb.addPoint(METRIC_STRING, start, 40L, tags).joinUninterruptibly();
+      fail("Expected RuntimeException");
+    } catch (RuntimeException e) { }
+    storage.clearExceptions();
+    tsdb.addPoint(METRIC_STRING, start + 1, 2L, tags).joinUninterruptibly();
+    accumulator.shutdown().joinUninterruptibly();
+    assertArrayEquals(new byte[] { 2 },
+        column(interval.getTemporalTable(), row, (short) 0, 0));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void notRouted() throws Exception {
+    config.overrideConfig("tsd.rollups.ingest.routed", "false");
+    accumulator();
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void defaultInterval() throws Exception {
+    config.overrideConfig("tsd.rollups.ingest.intervals", "10m,1m");
+    accumulator();
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void noSuchInterval() throws Exception {
+    config.overrideConfig("tsd.rollups.ingest.intervals", "5m");
+    accumulator();
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void zeroFlushInterval() throws Exception {
+    config.overrideConfig("tsd.rollups.ingest.flush_interval", "0");
+    accumulator();
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void noAggregators() throws Exception {
+    new RollupAccumulator(tsdb, RollupConfig.builder()
+        .addAggregationId("avg", 0)
+        .addInterval(RollupInterval.builder()
+            .setTable("tsdb-rollup-10m")
+            .setPreAggregationTable("tsdb-rollup-agg-10m")
+            .setInterval("10m")
+            .setRowSpan("1d"))
+        .build(), config);
+  }
+
+  private RollupAccumulator accumulator() {
+    return new RollupAccumulator(tsdb, rollup_config, config);
+  }
+
+  private byte[] column(final byte[] table, final byte[] key,
+      final short flags, final int aggregator_id) {
+    return storage.getColumn(table, key, FAMILY, RollupUtils
+        .buildRollupQualifier(start, flags, aggregator_id, interval));
+  }
+
+  private double doubleColumn(final int aggregator_id) {
+    return Double.longBitsToDouble(Bytes.getLong(column(
+        interval.getTemporalTable(), row, DOUBLE_FLAGS, aggregator_id)));
+  }
+}
@@ -0,0 +1,144 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.hbase.async.PutRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+public class TestRowBatcher extends BaseTsdbTest {
+  private byte[] row;
+  private RowBatcher batcher;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    row = getRowKey(METRIC_STRING, 1356998400, TAGK_STRING, TAGV_STRING);
+    setDataPointStorage();
+    batcher = new RowBatcher(tsdb, 3, 50);
+    Whitebox.setInternalState(tsdb, "row_batcher", batcher);
+    timer.pausedTask = null;
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroPoints() throws Exception {
+    new RowBatcher(tsdb, 0, 50);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroInterval() throws Exception {
+    new RowBatcher(tsdb, 16, 0);
+  }
+
+  @Test
+  public void addPointsFlushedByTimer() throws Exception {
+    final Deferred<Object> first =
+        tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    final Deferred<Object> second =
+        tsdb.addPoint(METRIC_STRING, 1356998401, 24, tags);
+    assertNull(storage.getColumn(row, new byte[] { 0, 0 }));
+    assertEquals(1, batcher.pendingRows());
+    verify(client, never()).put(any(PutRequest.class));
+
+    assertTrue(timer.continuePausedTask());
+    first.joinUninterruptibly();
+    second.joinUninterruptibly();
+    assertEquals(42, storage.getColumn(row, new byte[] { 0, 0 })[0]);
+    assertEquals(24, storage.getColumn(row, new byte[] { 0, 0x10 })[0]);
+    assertEquals(0, batcher.pendingRows());
+    verify(client, times(1)).put(any(PutRequest.class));
+    // nothing pending so nothing scheduled
+    assertNull(timer.pausedTask);
+  }
+
+  @Test
+  public void addPointsFullBatch() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998402, 3, tags);
+    tsdb.addPoint(METRIC_STRING, 1356998400, 1, tags);
+    tsdb.addPoint(METRIC_STRING, 1356998401, 2, tags).joinUninterruptibly();
+    assertEquals(1, storage.getColumn(row, new byte[] { 0, 0 })[0]);
+    assertEquals(2, storage.getColumn(row, new byte[] { 0, 0x10 })[0]);
+    assertEquals(3, storage.getColumn(row, new byte[] { 0, 0x20 })[0]);
+    verify(client, times(1)).put(any(PutRequest.class));
+    assertEquals(0, batcher.pendingRows());
+  }
+
+  @Test
+  public void addPointsDifferentRows() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    tsdb.addPoint(METRIC_STRING, 1357002000, 24, tags);
+    assertEquals(2, batcher.pendingRows());
+    tsdb.flush();
+    final byte[] next_row = getRowKey(METRIC_STRING, 1357002000, TAGK_STRING,
+        TAGV_STRING);
+    assertEquals(42, storage.getColumn(row, new byte[] { 0, 0 })[0]);
+    assertEquals(24, storage.getColumn(next_row, new byte[] { 0, 0 })[0]);
+    verify(client, times(2)).put(any(PutRequest.class));
+  }
+
+  @Test
+  public void addPointSameColumn() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    tsdb.addPoint(METRIC_STRING, 1356998400, 24, tags);
+    // the first value was sent to make room for the second
+    verify(client, times(1)).put(any(PutRequest.class));
+    assertEquals(42, storage.getColumn(row, new byte[] { 0, 0 })[0]);
+    assertEquals(1, batcher.pendingRows());
+
+    batcher.flush();
+    assertEquals(24, storage.getColumn(row, new byte[] { 0, 0 })[0]);
+  }
+
+  @Test
+  public void addPointsError() throws Exception {
+    storage.throwException(row, new UnitTestException());
+    final Deferred<Object> first =
+        tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    final Deferred<Object> second =
+        tsdb.addPoint(METRIC_STRING, 1356998401, 24, tags);
+    batcher.flush();
+    for (final Deferred<Object> deferred : new Deferred[] { first, second }) {
+      try {
+        deferred.joinUninterruptibly();
+        fail("Expected a UnitTestException");
+      } catch (UnitTestException e) { }
+    }
+  }
+
+  @Test
+  public void addPointOTSDBTimestampNotBatched() throws Exception {
+    tsdb.getConfig().overrideConfig("tsd.storage.use_otsdb_timestamp", "true");
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags).joinUninterruptibly();
+    assertEquals(42, storage.getColumn(row, new byte[] { 0, 0 })[0]);
+    assertEquals(0, batcher.pendingRows());
+  }
+
+  @Test
+  public void flushEmpty() throws Exception {
+    batcher.flush();
+    verify(client, never()).put(any(PutRequest.class));
+    assertFalse(timer.continuePausedTask());
+  }
+}
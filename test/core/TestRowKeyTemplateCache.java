@@ -0,0 +1,144 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.opentsdb.uid.NoSuchUniqueName;
+
+import org.hbase.async.Bytes;
+import org.junit.Test;
+
+public class TestRowKeyTemplateCache extends BaseTsdbTest {
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroSize() throws Exception {
+    new RowKeyTemplateCache(0);
+  }
+
+  @Test
+  public void get() throws Exception {
+    final RowKeyTemplateCache cache = new RowKeyTemplateCache(16);
+    final byte[] expected = IncomingDataPoints.rowKeyTemplate(tsdb,
+        METRIC_STRING, tags);
+
+    final byte[] first = cache.get(tsdb, METRIC_STRING, tags);
+    final byte[] second = cache.get(tsdb, METRIC_STRING, tags);
+    assertArrayEquals(expected, first);
+    assertArrayEquals(expected, second);
+    assertNotSame(first, second);
+    assertEquals(1, cache.stats().hitCount());
+    assertEquals(1, cache.stats().missCount());
+    assertEquals(1, cache.size());
+    // once for the expected template and once for the miss
+    verify(metrics, times(2)).getOrCreateId(METRIC_STRING);
+  }
+
+  @Test
+  public void getCopyIsIndependent() throws Exception {
+    final RowKeyTemplateCache cache = new RowKeyTemplateCache(16);
+    final byte[] first = cache.get(tsdb, METRIC_STRING, tags);
+    Bytes.setInt(first, 1356998400, Const.SALT_WIDTH() + 3);
+
+    final byte[] second = cache.get(tsdb, METRIC_STRING, tags);
+    assertEquals(0, Bytes.getInt(second, Const.SALT_WIDTH() + 3));
+  }
+
+  @Test
+  public void getDifferentSeries() throws Exception {
+    final RowKeyTemplateCache cache = new RowKeyTemplateCache(16);
+    final Map<String, String> tags_b = new HashMap<String, String>(1);
+    tags_b.put(TAGK_STRING, TAGV_B_STRING);
+
+    assertFalse(Bytes.equals(cache.get(tsdb, METRIC_STRING, tags),
+        cache.get(tsdb, METRIC_STRING, tags_b)));
+    assertFalse(Bytes.equals(cache.get(tsdb, METRIC_STRING, tags),
+        cache.get(tsdb, METRIC_B_STRING, tags)));
+    assertEquals(3, cache.size());
+    assertEquals(1, cache.stats().hitCount());
+  }
+
+  @Test
+  public void getEviction() throws Exception {
+    final RowKeyTemplateCache cache = new RowKeyTemplateCache(1);
+    cache.get(tsdb, METRIC_STRING, tags);
+    cache.get(tsdb, METRIC_B_STRING, tags);
+    cache.get(tsdb, METRIC_STRING, tags);
+    assertEquals(1, cache.size());
+    assertEquals(3, cache.stats().missCount());
+    assertEquals(2, cache.stats().evictionCount());
+  }
+
+  @Test
+  public void getNoSuchUniqueName() throws Exception {
+    final RowKeyTemplateCache cache = new RowKeyTemplateCache(16);
+    for (int i = 0; i < 2; i++) {
+      try {
+        cache.get(tsdb, NSUN_METRIC, tags);
+        fail("Expected a NoSuchUniqueName");
+      } catch (NoSuchUniqueName e) { }
+    }
+    assertEquals(0, cache.size());
+    assertEquals(2, cache.stats().missCount());
+  }
+
+  @Test
+  public void clear() throws Exception {
+    final RowKeyTemplateCache cache = new RowKeyTemplateCache(16);
+    cache.get(tsdb, METRIC_STRING, tags);
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertNotNull(cache.get(tsdb, METRIC_STRING, tags));
+    assertEquals(2, cache.stats().missCount());
+  }
+
+  @Test
+  public void seriesKeyTagOrder() throws Exception {
+    final Map<String, String> ordered = new LinkedHashMap<String, String>();
+    ordered.put("host", "web01");
+    ordered.put("dc", "lga");
+    final Map<String, String> reversed = new LinkedHashMap<String, String>();
+    reversed.put("dc", "lga");
+    reversed.put("host", "web01");
+    final String key = RowKeyTemplateCache.seriesKey(METRIC_STRING, ordered);
+    assertEquals(key, RowKeyTemplateCache.seriesKey(METRIC_STRING, reversed));
+    assertEquals(key, RowKeyTemplateCache.seriesKey(METRIC_STRING,
+        new TreeMap<String, String>(ordered)));
+  }
+
+  @Test
+  public void seriesKeyUnambiguous() throws Exception {
+    // special characters may be allowed in names
+    final Map<String, String> a = new HashMap<String, String>(1);
+    a.put("host", "web01,dc=lga");
+    final Map<String, String> b = new HashMap<String, String>(2);
+    b.put("host", "web01");
+    b.put("dc", "lga");
+    assertFalse(RowKeyTemplateCache.seriesKey(METRIC_STRING, a).equals(
+        RowKeyTemplateCache.seriesKey(METRIC_STRING, b)));
+    assertFalse(RowKeyTemplateCache.seriesKey("sys", a).equals(
+        RowKeyTemplateCache.seriesKey("sys:4:host", a)));
+  }
+}
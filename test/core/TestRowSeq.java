@@ -720,7 +720,79 @@ public final class TestRowSeq {
     }
     assertFalse(it.hasNext());
   }
-  
+
+  @Test
+  public void nextBatchMixed() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { (byte) 0xF0, 0x00, 0x7D, 0x0B };
+    final byte[] val2 = Bytes.fromInt(Float.floatToRawIntBits(1.5f));
+    final byte[] qual3 = { 0x00, 0x51 };
+    final byte[] val3 = Bytes.fromShort((short) 6);
+    final KeyValue kv = makekv(KEY,
+        MockBase.concatByteArrays(qual1, qual2, qual3),
+        MockBase.concatByteArrays(val1, val2, val3, ZERO));
+
+    final RowSeq rs = new RowSeq(tsdb);
+    rs.setRow(kv);
+
+    final BatchedSeekableView it = (BatchedSeekableView) rs.iterator();
+    final DataPointBatch batch = new DataPointBatch();
+    assertEquals(3, it.nextBatch(batch));
+    assertFalse(it.hasNext());
+
+    assertEquals(1356998400000L, batch.timestamp(0));
+    assertTrue(batch.isInteger(0));
+    assertEquals(4, batch.longValue(0));
+    assertEquals(1, batch.valueCount(0));
+    assertEquals(1356998400500L, batch.timestamp(1));
+    assertFalse(batch.isInteger(1));
+    assertEquals(1.5, batch.doubleValue(1), 0.0001);
+    assertEquals(1356998405000L, batch.timestamp(2));
+    assertEquals(6, batch.longValue(2));
+
+    assertEquals(0, it.nextBatch(batch));
+    assertEquals(3, batch.size());
+  }
+
+  @Test
+  public void nextBatchPartialThenNext() throws Exception {
+    long ts = 1356998400500L;
+    final int limit = 10;
+    final byte[] qualifier = new byte[4 * limit];
+    final byte[] values = new byte[limit + 1];
+    for (int i = 0; i < limit; i++) {
+      System.arraycopy(Internal.buildQualifier(ts + (i * 50), (short) 0), 0,
+          qualifier, i * 4, 4);
+      values[i] = (byte) i;
+    }
+    final RowSeq rs = new RowSeq(tsdb);
+    rs.setRow(makekv(KEY, qualifier, values));
+
+    final BatchedSeekableView it = (BatchedSeekableView) rs.iterator();
+    final DataPointBatch batch = new DataPointBatch(4);
+    assertEquals(4, it.nextBatch(batch));
+    assertTrue(batch.isFull());
+    assertEquals(ts + 150, batch.timestamp(3));
+    assertEquals(3, batch.longValue(3));
+
+    // the iterator picks up right after the batch
+    DataPoint dp = it.next();
+    assertEquals(ts + 200, dp.timestamp());
+    assertEquals(4, dp.longValue());
+
+    assertEquals(4, batch.fill(it));
+    assertEquals(ts + 250, batch.timestamp(0));
+    assertEquals(5, batch.longValue(0));
+    assertEquals(1, batch.fill(it));
+    assertEquals(9, batch.longValue(0));
+    assertEquals(0, batch.fill(it));
+
+    it.seek(ts + 400);
+    assertEquals(2, batch.fill(it));
+    assertEquals(ts + 400, batch.timestamp(0));
+  }
+
   @Test
   public void seekMs() throws Exception {
     final RowSeq rs = new RowSeq(tsdb);
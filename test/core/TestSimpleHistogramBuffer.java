@@ -0,0 +1,160 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestSimpleHistogramBuffer {
+  private static final int ID = 42;
+
+  @Test
+  public void encodeSameAsSimpleHistogram() throws Exception {
+    final SimpleHistogram expected = new SimpleHistogram(ID);
+    expected.addBucket(0F, 1F, 42L);
+    expected.addBucket(1F, 5F, 24L);
+    expected.addBucket(5F, 10F, Long.MAX_VALUE);
+    expected.addBucket(10F, 20F, -1L);
+    expected.addBucket(20F, 40F, 300L);
+    expected.setUnderflow(0L);
+    expected.setOverflow(1L << 40);
+
+    final SimpleHistogramBuffer histogram = new SimpleHistogramBuffer(ID);
+    // out of order
+    histogram.addBucket(10F, 20F, -1L);
+    histogram.addBucket(1F, 5F, 24L);
+    histogram.addBucket(20F, 40F, 300L);
+    histogram.addBucket(0F, 1F, 42L);
+    histogram.addBucket(5F, 10F, 7L);
+    // replaced
+    histogram.addBucket(5F, 10F, Long.MAX_VALUE);
+    histogram.setOverflow(1L << 40);
+
+    assertEquals(5, histogram.size());
+    assertArrayEquals(expected.histogram(true), histogram.encode(true));
+    assertArrayEquals(expected.histogram(false), histogram.encode(false));
+  }
+
+  @Test
+  public void decode() throws Exception {
+    final Random random = new Random(42);
+    final SimpleHistogram expected = new SimpleHistogram(ID);
+    for (int i = 0; i < 100; i++) {
+      expected.addBucket((float) i, (float) i + 1, random.nextLong() >>>
+          random.nextInt(64));
+    }
+    expected.setUnderflow(3L);
+    expected.setOverflow(Long.MIN_VALUE);
+
+    final SimpleHistogramBuffer histogram = SimpleHistogramBuffer.decode(ID,
+        expected.histogram(true), true);
+    assertEquals(100, histogram.size());
+    assertEquals(ID, histogram.getId());
+    assertEquals(3L, histogram.getUnderflow());
+    assertEquals(Long.MIN_VALUE, histogram.getOverflow());
+    assertEquals(50F, histogram.lowerBound(50), 0.0001);
+    assertEquals(51F, histogram.upperBound(50), 0.0001);
+    assertEquals((long) expected.getBucketCount(50F, 51F), histogram.count(50));
+    assertArrayEquals(expected.histogram(true), histogram.encode(true));
+
+    final SimpleHistogram decoded = new SimpleHistogram(ID);
+    decoded.fromHistogram(histogram.encode(false), false);
+    assertEquals(expected.getHistogram(), decoded.getHistogram());
+  }
+
+  @Test
+  public void decodeNoBuckets() throws Exception {
+    final SimpleHistogram expected = new SimpleHistogram(ID);
+    expected.setUnderflow(1L);
+    final SimpleHistogramBuffer histogram = SimpleHistogramBuffer.decode(ID,
+        expected.histogram(false), false);
+    assertEquals(0, histogram.size());
+    assertEquals(1L, histogram.getUnderflow());
+    assertArrayEquals(expected.histogram(false), histogram.encode(false));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void decodeNull() throws Exception {
+    SimpleHistogramBuffer.decode(ID, null, false);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void decodeTooShort() throws Exception {
+    SimpleHistogramBuffer.decode(ID, new byte[] { 0, 0, 0 }, false);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void decodeTruncated() throws Exception {
+    final SimpleHistogram expected = new SimpleHistogram(ID);
+    expected.addBucket(0F, 1F, 1L << 50);
+    final byte[] raw = expected.histogram(false);
+    SimpleHistogramBuffer.decode(ID, Arrays.copyOf(raw, raw.length - 4),
+        false);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void decodeNegativeBucketCount() throws Exception {
+    SimpleHistogramBuffer.decode(ID, new byte[] { (byte) 0xFF, 0, 0, 0 },
+        false);
+  }
+
+  @Test
+  public void mergeSameBuckets() throws Exception {
+    final SimpleHistogram expected = simpleHistogram(0, 1, 2);
+    expected.aggregate(simpleHistogram(0, 1, 2), HistogramAggregation.SUM);
+
+    final SimpleHistogramBuffer histogram = buffer(0, 1, 2);
+    histogram.merge(buffer(0, 1, 2));
+    assertEquals(3, histogram.size());
+    assertArrayEquals(expected.histogram(true), histogram.encode(true));
+  }
+
+  @Test
+  public void mergeDifferentBuckets() throws Exception {
+    final SimpleHistogram expected = simpleHistogram(0, 2, 4);
+    expected.aggregate(simpleHistogram(1, 2, 5, 6), HistogramAggregation.SUM);
+    expected.aggregate(new SimpleHistogram(ID), HistogramAggregation.SUM);
+
+    final SimpleHistogramBuffer histogram = buffer(0, 2, 4);
+    histogram.merge(buffer(1, 2, 5, 6));
+    histogram.merge(new SimpleHistogramBuffer(ID));
+    assertEquals(6, histogram.size());
+    assertArrayEquals(expected.histogram(true), histogram.encode(true));
+
+    // into an empty one
+    final SimpleHistogramBuffer empty = new SimpleHistogramBuffer(ID);
+    empty.merge(histogram);
+    assertArrayEquals(expected.histogram(true), empty.encode(true));
+  }
+
+  /** @return A histogram with unit buckets starting at each lower bound */
+  private static SimpleHistogram simpleHistogram(final int... lowers) {
+    final SimpleHistogram histogram = new SimpleHistogram(ID);
+    for (final int lower : lowers) {
+      histogram.addBucket((float) lower, (float) lower + 1, lower + 10L);
+    }
+    histogram.setUnderflow(1L);
+    histogram.setOverflow(2L);
+    return histogram;
+  }
+
+  private static SimpleHistogramBuffer buffer(final int... lowers) {
+    return SimpleHistogramBuffer.decode(ID,
+        simpleHistogram(lowers).histogram(false), false);
+  }
+}
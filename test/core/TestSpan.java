@@ -334,6 +334,46 @@ public final class TestSpan {
     
   }
 
+  @Test
+  public void nextBatchAcrossRows() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final byte[] qual12 = MockBase.concatByteArrays(qual1, qual2);
+
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual12,
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    span.addRow(new KeyValue(HOUR2, FAMILY, qual12,
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    span.addRow(new KeyValue(HOUR3, FAMILY, qual12,
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+
+    final BatchedSeekableView it = (BatchedSeekableView) span.iterator();
+    final DataPointBatch batch = new DataPointBatch(5);
+    assertEquals(5, it.nextBatch(batch));
+    assertEquals(1356998400000L, batch.timestamp(0));
+    assertEquals(4, batch.longValue(0));
+    assertEquals(1356998402000L, batch.timestamp(1));
+    assertEquals(1357002000000L, batch.timestamp(2));
+    assertEquals(1357002002000L, batch.timestamp(3));
+    assertEquals(1357005600000L, batch.timestamp(4));
+    assertEquals(4, batch.longValue(4));
+
+    assertTrue(it.hasNext());
+    final DataPoint dp = it.next();
+    assertEquals(1357005602000L, dp.timestamp());
+    assertEquals(5, dp.longValue());
+    assertFalse(it.hasNext());
+    assertEquals(0, batch.fill(it));
+
+    it.seek(1357002000000L);
+    assertEquals(4, batch.fill(it));
+    assertEquals(1357002000000L, batch.timestamp(0));
+    assertEquals(1357005602000L, batch.timestamp(3));
+  }
+
   @Test
   public void downsampler() throws Exception {
     final byte[] val40 = Bytes.fromLong(40L);
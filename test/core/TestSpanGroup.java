@@ -14,11 +14,15 @@ package net.opentsdb.core;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.opentsdb.utils.Config;
 
@@ -31,6 +35,8 @@ import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.reflect.Whitebox;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 @RunWith(PowerMockRunner.class)
 @PrepareForTest({ TSDB.class, HBaseClient.class, Config.class, SpanGroup.class,
@@ -157,4 +163,103 @@ public final class TestSpanGroup {
     assertEquals(0, uids_read.size());
   }
 
+  @Test
+  public void materialize() throws Exception {
+    final SpanGroup group = generatedGroup(2500);
+    assertEquals(2500, group.materialize());
+    assertEquals(2500, group.materialize());
+    PowerMockito.verifyPrivate(group, times(1))
+      .invoke("aggregate");
+
+    final SeekableView expected = 
+        SeekableViewsForTest.generator(start_ts * 1000, 1000, 2500, true);
+    final SeekableView it = group.iterator();
+    while (expected.hasNext()) {
+      assertTrue(it.hasNext());
+      final DataPoint exp = expected.next();
+      final DataPoint dp = it.next();
+      assertEquals(exp.timestamp(), dp.timestamp());
+      assertTrue(dp.isInteger());
+      assertEquals(exp.longValue(), dp.longValue());
+      assertEquals(1, dp.valueCount());
+    }
+    assertFalse(it.hasNext());
+  }
+  
+  @Test
+  public void materializeSeek() throws Exception {
+    final SpanGroup group = generatedGroup(2500);
+    group.materialize();
+    
+    // the view can seek backwards, the generator can't
+    final SeekableView it = group.iterator();
+    for (final long ts : new long[] { start_ts * 1000 + 1500500, 
+        start_ts * 1000, start_ts * 1000 + 2499000 }) {
+      final SeekableView expected = 
+          SeekableViewsForTest.generator(start_ts * 1000, 1000, 2500, true);
+      it.seek(ts);
+      expected.seek(ts);
+      assertTrue(it.hasNext());
+      final DataPoint exp = expected.next();
+      final DataPoint dp = it.next();
+      assertEquals(exp.timestamp(), dp.timestamp());
+      assertEquals(exp.longValue(), dp.longValue());
+    }
+    it.seek(start_ts * 1000 + 2600000);
+    assertFalse(it.hasNext());
+  }
+  
+  @Test
+  public void materializeBudget() throws Exception {
+    final SpanGroup group = generatedGroup(2500);
+    final AtomicLong budget = new AtomicLong(4096);
+    assertEquals(2500, group.materialize(budget));
+    // three batches reserved
+    assertEquals(4096 - 3 * DataPointBatch.DEFAULT_CAPACITY, budget.get());
+  }
+  
+  @Test
+  public void materializeBudgetExceeded() throws Exception {
+    final SpanGroup group = generatedGroup(2500);
+    final AtomicLong budget = new AtomicLong(2048);
+    assertEquals(-1, group.materialize(budget));
+    assertEquals(2048, budget.get());
+    
+    // still iterates, lazily
+    final SeekableView it = group.iterator();
+    int count = 0;
+    while (it.hasNext()) {
+      it.next();
+      count++;
+    }
+    assertEquals(2500, count);
+    PowerMockito.verifyPrivate(group, times(2))
+      .invoke("aggregate");
+  }
+  
+  @Test
+  public void materializeEmpty() throws Exception {
+    final SpanGroup group = generatedGroup(0);
+    assertEquals(0, group.materialize());
+    assertFalse(group.iterator().hasNext());
+  }
+  
+  /**
+   * @param num_data_points The number of data points the group aggregates to
+   * @return A group whose aggregation returns generated integers from 1
+   */
+  private SpanGroup generatedGroup(final int num_data_points) 
+      throws Exception {
+    final SpanGroup group = PowerMockito.spy(new SpanGroup(tsdb, start_ts, 
+        end_ts, null, false, Aggregators.SUM, 0, null));
+    PowerMockito.doAnswer(new Answer<SeekableView>() {
+      @Override
+      public SeekableView answer(final InvocationOnMock invocation) {
+        return SeekableViewsForTest.generator(start_ts * 1000, 1000, 
+            num_data_points, true);
+      }
+    }).when(group, "aggregate");
+    return group;
+  }
+
 }
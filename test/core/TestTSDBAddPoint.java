@@ -175,6 +175,23 @@ public class TestTSDBAddPoint extends BaseTsdbTest {
     tsdb.addPoint(NSUN_METRIC, 1356998400, 42, tags).joinUninterruptibly();
   }
 
+  @Test
+  public void addPointRowKeyCache() throws Exception {
+    Whitebox.setInternalState(tsdb, "row_key_cache",
+        new RowKeyTemplateCache(16));
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags).joinUninterruptibly();
+    tsdb.addPoint(METRIC_STRING, 1357002000, 24, tags).joinUninterruptibly();
+    assertEquals(42, storage.getColumn(row, new byte[] { 0, 0 })[0]);
+    final byte[] next_row = getRowKey(METRIC_STRING, 1357002000, TAGK_STRING,
+        TAGV_STRING);
+    assertEquals(24, storage.getColumn(next_row, new byte[] { 0, 0 })[0]);
+    verify(metrics, times(1)).getOrCreateId(METRIC_STRING);
+
+    tsdb.dropCaches();
+    tsdb.addPoint(METRIC_STRING, 1356998401, 1, tags).joinUninterruptibly();
+    verify(metrics, times(2)).getOrCreateId(METRIC_STRING);
+  }
+
   @Test
   public void addPointSecondZero() throws Exception {
     // Thu, 01 Jan 1970 00:00:00 GMT
@@ -54,9 +54,12 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.anyMapOf;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 
@@ -645,6 +648,28 @@ public final class TestTags {
     assertEquals("web01", tags.get("host"));
   }
   
+  @SuppressWarnings("unchecked")
+  @Test
+  public void resolveIdsAsyncBatched() throws Exception {
+    setupStorage();
+    setupResolveIds();
+    when(tag_names.getNameAsync(new byte[] { 0, 0, 3 }))
+      .thenReturn(Deferred.fromResult("dc"));
+    when(tag_values.getNameAsync(new byte[] { 0, 0, 3 }))
+      .thenReturn(Deferred.fromResult("lga"));
+    
+    final List<byte[]> ids = new ArrayList<byte[]>(2);
+    ids.add(new byte[] { 0, 0, 1, 0, 0, 1 });
+    ids.add(new byte[] { 0, 0, 3, 0, 0, 3 });
+    final HashMap<String, String> tags = Tags.resolveIdsAsync(tsdb, ids)
+      .joinUninterruptibly();
+    assertEquals(2, tags.size());
+    assertEquals("web01", tags.get("host"));
+    assertEquals("lga", tags.get("dc"));
+    verify(tag_names, times(1)).getNamesAsync(any(List.class));
+    verify(tag_values, times(1)).getNamesAsync(any(List.class));
+  }
+  
   @Test (expected = NoSuchUniqueId.class)
   public void resolveIdsAsyncNSUI() throws Exception {
     setupStorage();
@@ -854,6 +879,8 @@ public final class TestTags {
     when(metrics.width()).thenReturn((short)3);
     when(tag_names.width()).thenReturn((short)3);
     when(tag_values.width()).thenReturn((short)3);
+    BaseTsdbTest.mockBatchedLookups(tag_names);
+    BaseTsdbTest.mockBatchedLookups(tag_values);
   }
   
   private void setupResolveIds() throws Exception {
@@ -14,19 +14,30 @@ package net.opentsdb.core;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import net.opentsdb.core.TsdbQuery.ForTesting;
 import net.opentsdb.query.QueryLimitOverride;
 import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.query.filter.TagVRegexFilter;
 import net.opentsdb.query.filter.TagVWildcardFilter;
 import net.opentsdb.storage.MockBase;
 import net.opentsdb.uid.NoSuchUniqueName;
@@ -40,6 +51,7 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.reflect.Whitebox;
 
+import com.stumbleupon.async.Deferred;
 import com.stumbleupon.async.DeferredGroupException;
 
 /**
@@ -356,6 +368,56 @@ public final class TestTsdbQuery extends BaseTsdbTest {
     assertNotNull(ForTesting.getRateOptions(query));
   }
 
+  @Test
+  public void configureFromQueryWithFilterPushdown() throws Exception {
+    config.overrideConfig("tsd.query.filter.pushdown", "true");
+    storeLongTimeSeriesSeconds(false, false);
+    final Map<String, byte[]> found = new HashMap<String, byte[]>(2);
+    found.put(TAGV_STRING, TAGV_BYTES);
+    found.put(TAGV_B_STRING, TAGV_B_BYTES);
+    when(tag_values.findIdsAsync((String) isNull(), eq("web0[1]"), anyInt()))
+      .thenReturn(Deferred.fromResult(found));
+    final TSQuery ts_query = getTSQuery();
+    final List<TagVFilter> filters = new ArrayList<TagVFilter>(1);
+    filters.add(new TagVRegexFilter("host", "web0[1]"));
+    ts_query.getQueries().get(0).setFilters(filters);
+    ts_query.setEnd("1357041600");
+    ts_query.validateAndSetQuery();
+    query = new TsdbQuery(tsdb);
+    query.configureFromQuery(ts_query, 0).joinUninterruptibly();
+
+    // only the matching value is pushed into the scanner filter
+    assertFalse(ForTesting.getFilters(query).get(0).postScan());
+    assertEquals(1, ForTesting.getRowKeyLiterals(query).get(TAGK_BYTES).length);
+    assertArrayEquals(TAGV_BYTES, 
+        ForTesting.getRowKeyLiterals(query).get(TAGK_BYTES)[0]);
+
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(TAGV_STRING, dps[0].getTags().get(TAGK_STRING));
+    assertEquals(300, dps[0].size());
+  }
+
+  @Test
+  public void configureFromQueryWithFilterPushdownSameTagk() throws Exception {
+    config.overrideConfig("tsd.query.filter.pushdown", "true");
+    setDataPointStorage();
+    final TSQuery ts_query = getTSQuery();
+    final List<TagVFilter> filters = new ArrayList<TagVFilter>(2);
+    filters.add(new TagVRegexFilter("host", "web0[1]"));
+    filters.add(new TagVWildcardFilter("host", "*01"));
+    ts_query.getQueries().get(0).setFilters(filters);
+    ts_query.validateAndSetQuery();
+    query = new TsdbQuery(tsdb);
+    query.configureFromQuery(ts_query, 0).joinUninterruptibly();
+
+    // literals are OR'd in the scan so the filters match after it
+    verify(tag_values, never()).findIdsAsync(anyString(), anyString(), 
+        anyInt());
+    assertTrue(ForTesting.getFilters(query).get(0).postScan());
+    assertNull(ForTesting.getRowKeyLiterals(query).get(TAGK_BYTES));
+  }
+
   @Test (expected = IllegalArgumentException.class)
   public void configureFromQueryNullSubs() throws Exception {
     final TSQuery ts_query = new TSQuery();
@@ -29,6 +29,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import net.opentsdb.query.filter.TagVLiteralOrFilter;
 import net.opentsdb.rollup.RollupConfig;
@@ -148,6 +149,47 @@ public class TestTsdbQueryQueries extends BaseTsdbTest {
     assertEquals(300, dps[0].size());
   }
 
+  @Test
+  public void runLongTwoAggNoneParallel() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    final ExecutorService executor = ParallelAggregation.newExecutor(2);
+    when(tsdb.getQueryExecutor()).thenReturn(executor);
+
+    try {
+      tags.clear();
+      query.setStartTime(1356998400L);
+      query.setEndTime(1357041600L);
+      query.setTimeSeries(METRIC_STRING, tags, Aggregators.NONE, false);
+
+      final DataPoints[] dps = query.run();
+      assertEquals(2, dps.length);
+      assertMeta(dps, 0, false);
+      assertMeta(dps, 1, false);
+
+      long value = 1;
+      long timestamp = 1356998430000L;
+      for (DataPoint dp : dps[0]) {
+        assertEquals(value, dp.longValue());
+        assertEquals(timestamp, dp.timestamp());
+        value++;
+        timestamp += 30000;
+      }
+      assertEquals(300, dps[0].size());
+
+      value = 300;
+      timestamp = 1356998430000L;
+      for (DataPoint dp : dps[1]) {
+        assertEquals(value, dp.longValue());
+        assertEquals(timestamp, dp.timestamp());
+        value--;
+        timestamp += 30000;
+      }
+      assertEquals(300, dps[1].size());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   @Test
   public void runLongTwoAggSumMs() throws Exception {
     storeLongTimeSeriesMs();
@@ -18,13 +18,13 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
-import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.List;
 
 import net.opentsdb.core.BaseTsdbTest;
 import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.LastValueCache;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.storage.MockBase;
 import net.opentsdb.uid.NoSuchUniqueId;
@@ -51,7 +51,6 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.reflect.Whitebox;
 
-import com.stumbleupon.async.DeferredGroupException;
 
 @PowerMockIgnore({"javax.management.*", "javax.xml.*",
   "ch.qos.*", "org.slf4j.*",
@@ -205,7 +204,7 @@ public final class TestTSUIDQuery extends BaseTsdbTest {
     query.getLastWriteTimes().joinUninterruptibly();
   }
   
-  @Test (expected = DeferredGroupException.class)
+  @Test (expected = NoSuchUniqueName.class)
   public void getLastWriteTimesNSUNTagk() throws Exception {
     tags.clear();
     tags.put("dc", TAGV_STRING);
@@ -213,7 +212,7 @@ public final class TestTSUIDQuery extends BaseTsdbTest {
     query.getLastWriteTimes().joinUninterruptibly();
   }
   
-  @Test (expected = DeferredGroupException.class)
+  @Test (expected = NoSuchUniqueName.class)
   public void getLastWriteTimesNSUNTagv() throws Exception {
     tags.put(TAGK_STRING, "web03");
     query = new TSUIDQuery(tsdb, METRIC_STRING, tags);
@@ -269,7 +268,7 @@ public final class TestTSUIDQuery extends BaseTsdbTest {
     assertEquals(TAGV_B_STRING, tsmetas.get(0).getTags().get(3).getName());
   }
   
-  @Test (expected = DeferredGroupException.class)
+  @Test (expected = NoSuchUniqueName.class)
   public void getTSMetasNSUITagk() throws Exception {
     tags.put(NSUN_TAGK, TAGV_B_STRING);
     query = new TSUIDQuery(tsdb, METRIC_B_STRING, tags);
@@ -301,14 +300,14 @@ public final class TestTSUIDQuery extends BaseTsdbTest {
     TSUIDQuery.tsuidFromMetric(tsdb, NSUN_METRIC, tags).join();
   }
   
-  @Test (expected = DeferredGroupException.class)
+  @Test (expected = NoSuchUniqueName.class)
   public void tsuidFromMetricNSUNTagk() throws Exception {
     tags.clear();
     tags.put("dc", TAGV_STRING);
     TSUIDQuery.tsuidFromMetric(tsdb, METRIC_STRING, tags).join();
   }
   
-  @Test (expected = DeferredGroupException.class)
+  @Test (expected = NoSuchUniqueName.class)
   public void tsuidFromMetricNSUNTagv() throws Exception {
     tags.put(TAGK_STRING, "web03");
     TSUIDQuery.tsuidFromMetric(tsdb, METRIC_STRING, tags).join();
@@ -490,7 +489,7 @@ public final class TestTSUIDQuery extends BaseTsdbTest {
     query.getLastPoint(false, 0).join();
   }
   
-  @Test (expected = DeferredGroupException.class)
+  @Test (expected = NoSuchUniqueName.class)
   public void getLastPointMetricNSUNTagk() throws Exception {
     tags.clear();
     tags.put(NSUN_TAGK, TAGV_STRING);
@@ -503,7 +502,7 @@ public final class TestTSUIDQuery extends BaseTsdbTest {
     query.getLastPoint(false, 0).join();
   }
   
-  @Test (expected = DeferredGroupException.class)
+  @Test (expected = NoSuchUniqueName.class)
   public void getLastPointMetricNSUNTagv() throws Exception {
     tags.put(TAGK_STRING, NSUN_TAGV);
     Whitebox.setInternalState(config, "enable_tsuid_incrementing", false);
@@ -676,7 +675,7 @@ public final class TestTSUIDQuery extends BaseTsdbTest {
     assertEquals(UniqueId.uidToString(tsuid), dp.getTSUID());
   }
   
-  @Test
+  @Test (expected = NoSuchUniqueId.class)
   public void getLastPointTSUIDTagkNSUI() throws Exception {
     Whitebox.setInternalState(config, "enable_tsuid_incrementing", false);
     Whitebox.setInternalState(config, "enable_realtime_ts", false);
@@ -687,12 +686,7 @@ public final class TestTSUIDQuery extends BaseTsdbTest {
     PowerMockito.mockStatic(DateTime.class);
     PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1356998400000L);
     query = new TSUIDQuery(tsdb, tsuid);
-    try {
-      query.getLastPoint(true, 0).join();
-      fail("Expected DeferredGroupException");
-    } catch (DeferredGroupException e) {
-      assertTrue(e.getCause() instanceof NoSuchUniqueId);
-    }
+    query.getLastPoint(true, 0).join();
   }
 
   @Test
@@ -714,7 +708,7 @@ public final class TestTSUIDQuery extends BaseTsdbTest {
     assertEquals(UniqueId.uidToString(tsuid), dp.getTSUID());
   }
   
-  @Test
+  @Test (expected = NoSuchUniqueId.class)
   public void getLastPoitTSUIDTagvNSUI() throws Exception {
     Whitebox.setInternalState(config, "enable_tsuid_incrementing", false);
     Whitebox.setInternalState(config, "enable_realtime_ts", false);
@@ -725,12 +719,7 @@ public final class TestTSUIDQuery extends BaseTsdbTest {
     PowerMockito.mockStatic(DateTime.class);
     PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1356998400000L);
     query = new TSUIDQuery(tsdb, tsuid);
-    try {
-      query.getLastPoint(true, 0).join();
-      fail("Expected DeferredGroupException");
-    } catch (DeferredGroupException e) {
-      assertTrue(e.getCause() instanceof NoSuchUniqueId);
-    }
+    query.getLastPoint(true, 0).join();
   }
   
   @Test
@@ -764,6 +753,78 @@ public final class TestTSUIDQuery extends BaseTsdbTest {
     assertNull(query.getLastPoint(false, 0).join());
   }
   
+  @Test
+  public void getLastPointTSUIDCached() throws Exception {
+    Whitebox.setInternalState(config, "enable_tsuid_incrementing", false);
+    Whitebox.setInternalState(config, "enable_realtime_ts", false);
+    Whitebox.setInternalState(tsdb, "last_value_cache", new LastValueCache(10));
+    tsdb.addPoint(METRIC_STRING, 1356998460L, 43, tags);
+    tsdb.addPoint(METRIC_STRING, 1356998400L, 42, tags);
+    storage.flushStorage();
+    
+    PowerMockito.mockStatic(DateTime.class);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1356998400000L);
+    query = new TSUIDQuery(tsdb, TSUID);
+    final IncomingDataPoint dp = query.getLastPoint(false, 0).join();
+    assertEquals(1356998460000L, dp.getTimestamp());
+    assertNull(dp.getMetric());
+    assertNull(dp.getTags());
+    assertEquals("43", dp.getValue());
+    assertEquals(UniqueId.uidToString(TSUID), dp.getTSUID());
+  }
+  
+  @Test
+  public void getLastPointTSUIDCachedOutOfRange() throws Exception {
+    Whitebox.setInternalState(config, "enable_tsuid_incrementing", false);
+    Whitebox.setInternalState(config, "enable_realtime_ts", false);
+    Whitebox.setInternalState(tsdb, "last_value_cache", new LastValueCache(10));
+    tsdb.addPoint(METRIC_STRING, 1356998400L, 42, tags);
+    
+    PowerMockito.mockStatic(DateTime.class);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1357002000000L);
+    query = new TSUIDQuery(tsdb, TSUID);
+    assertNull(query.getLastPoint(false, 0).join());
+    query = new TSUIDQuery(tsdb, TSUID);
+    assertEquals("42", query.getLastPoint(false, 1).join().getValue());
+  }
+  
+  @Test
+  public void getLastPointMetricCachedResolve() throws Exception {
+    Whitebox.setInternalState(config, "enable_tsuid_incrementing", false);
+    Whitebox.setInternalState(config, "enable_realtime_ts", false);
+    Whitebox.setInternalState(tsdb, "last_value_cache", new LastValueCache(10));
+    tsdb.addPoint(METRIC_STRING, 1356998400L, 42.5F, tags);
+    storage.flushStorage();
+    
+    PowerMockito.mockStatic(DateTime.class);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1356998400000L);
+    query = new TSUIDQuery(tsdb, METRIC_STRING, tags);
+    final IncomingDataPoint dp = query.getLastPoint(true, 0).join();
+    assertEquals(1356998400000L, dp.getTimestamp());
+    assertEquals(METRIC_STRING, dp.getMetric());
+    assertSame(tags, dp.getTags());
+    assertEquals("42.5", dp.getValue());
+  }
+  
+  @Test
+  public void getLastPointTSUIDMetaCached() throws Exception {
+    Whitebox.setInternalState(config, "enable_tsuid_incrementing", false);
+    Whitebox.setInternalState(config, "enable_realtime_ts", false);
+    Whitebox.setInternalState(tsdb, "last_value_cache", new LastValueCache(10));
+    tsdb.addPoint(METRIC_STRING, 1388534400L, 42, tags);
+    storage.flushStorage();
+    
+    Whitebox.setInternalState(config, "enable_tsuid_incrementing", true);
+    Whitebox.setInternalState(config, "enable_realtime_ts", true);
+
+    // the cache is trusted to hold the last point as the counter would be
+    PowerMockito.mockStatic(DateTime.class);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1356998400000L);
+    query = new TSUIDQuery(tsdb, TSUID);
+    assertEquals(1388534400000L, 
+        query.getLastPoint(false, 0).join().getTimestamp());
+  }
+  
   /**
    * Public for sharing with other UT classes
    * @param tsdb The mock TSDB client
@@ -19,6 +19,13 @@ import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -37,7 +44,7 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.reflect.Whitebox;
 
-import com.stumbleupon.async.DeferredGroupException;
+import com.stumbleupon.async.Deferred;
 
 @RunWith(PowerMockRunner.class)
 @PowerMockIgnore({"javax.management.*", "javax.xml.*",
@@ -207,7 +214,7 @@ public class TestTagVFilter extends BaseTsdbTest {
     assertArrayEquals(TAGV_B_BYTES, filter.getTagVUids().get(1));
   }
   
-  @Test (expected = DeferredGroupException.class)
+  @Test (expected = NoSuchUniqueName.class)
   public void resolveNameLiteralsNSUNTagV() throws Exception {
     final TagVFilter filter = new TagVLiteralOrFilter(TAGK_STRING, "web01|web03");
     filter.resolveTagkName(tsdb).join();
@@ -241,6 +248,86 @@ public class TestTagVFilter extends BaseTsdbTest {
     assertTrue(filter.getTagVUids().isEmpty());    
   }
   
+  @Test
+  public void resolveMatchingRegex() throws Exception {
+    final Map<String, byte[]> found = new HashMap<String, byte[]>(3);
+    found.put(TAGV_STRING, TAGV_BYTES);
+    found.put(TAGV_B_STRING, TAGV_B_BYTES);
+    when(tag_values.findIdsAsync((String) isNull(), eq("web0[2]"), eq(11)))
+      .thenReturn(Deferred.fromResult(found));
+    final TagVFilter filter = new TagVRegexFilter(TAGK_STRING, "web0[2]");
+    assertArrayEquals(TAGK_BYTES, filter.resolveMatchingTags(tsdb, 10).join());
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    // the values are matched again in case storage returned more
+    assertEquals(1, filter.getTagVUids().size());
+    assertArrayEquals(TAGV_B_BYTES, filter.getTagVUids().get(0));
+  }
+  
+  @Test
+  public void resolveMatchingWildcard() throws Exception {
+    final Map<String, byte[]> found = new HashMap<String, byte[]>(2);
+    found.put(TAGV_B_STRING, TAGV_B_BYTES);
+    found.put(TAGV_STRING, TAGV_BYTES);
+    when(tag_values.findIdsAsync(eq("web"), eq("(?s)^(?=.*\\Qweb\\E)"), 
+        eq(11))).thenReturn(Deferred.fromResult(found));
+    final TagVFilter filter = new TagVWildcardFilter(TAGK_STRING, "web*");
+    filter.resolveMatchingTags(tsdb, 10).join();
+    assertEquals(2, filter.getTagVUids().size());
+    assertArrayEquals(TAGV_BYTES, filter.getTagVUids().get(0));
+    assertArrayEquals(TAGV_B_BYTES, filter.getTagVUids().get(1));
+  }
+  
+  @Test
+  public void resolveMatchingWildcardCaseInsensitive() throws Exception {
+    final Map<String, byte[]> found = new HashMap<String, byte[]>(1);
+    found.put("WEB01", TAGV_BYTES);
+    when(tag_values.findIdsAsync((String) isNull(), 
+        eq("(?iu)(?s)^(?=.*\\Qweb\\E)(?=.*\\Q1\\E)"), eq(11)))
+      .thenReturn(Deferred.fromResult(found));
+    final TagVFilter filter = new TagVWildcardFilter(TAGK_STRING, "Web*1", 
+        true);
+    filter.resolveMatchingTags(tsdb, 10).join();
+    assertEquals(1, filter.getTagVUids().size());
+  }
+  
+  @Test
+  public void resolveMatchingTooMany() throws Exception {
+    final Map<String, byte[]> found = new HashMap<String, byte[]>(2);
+    found.put(TAGV_STRING, TAGV_BYTES);
+    found.put(TAGV_B_STRING, TAGV_B_BYTES);
+    when(tag_values.findIdsAsync(anyString(), anyString(), anyInt()))
+      .thenReturn(Deferred.fromResult(found));
+    final TagVFilter filter = new TagVRegexFilter(TAGK_STRING, "web.*");
+    filter.resolveMatchingTags(tsdb, 1).join();
+    assertArrayEquals(TAGK_BYTES, filter.getTagkBytes());
+    assertTrue(filter.getTagVUids().isEmpty());
+  }
+  
+  @Test
+  public void resolveMatchingScanFailed() throws Exception {
+    when(tag_values.findIdsAsync(anyString(), anyString(), anyInt()))
+      .thenReturn(Deferred.<Map<String, byte[]>>fromError(
+          new RuntimeException("Boo!")));
+    final TagVFilter filter = new TagVRegexFilter(TAGK_STRING, "web.*");
+    assertArrayEquals(TAGK_BYTES, filter.resolveMatchingTags(tsdb, 10).join());
+    assertTrue(filter.getTagVUids().isEmpty());
+  }
+  
+  @Test
+  public void resolveMatchingLiterals() throws Exception {
+    final TagVFilter filter = new TagVLiteralOrFilter(TAGK_STRING, "web01|web02");
+    filter.resolveMatchingTags(tsdb, 10).join();
+    assertEquals(2, filter.getTagVUids().size());
+    verify(tag_values, never()).findIdsAsync(anyString(), anyString(), 
+        anyInt());
+  }
+  
+  @Test (expected = NoSuchUniqueName.class)
+  public void resolveMatchingNSUN() throws Exception {
+    new TagVRegexFilter(NSUN_TAGK, "web.*").resolveMatchingTags(tsdb, 10)
+      .join();
+  }
+  
   @Test (expected = NoSuchUniqueName.class)
   public void resolveNameNSUN() throws Exception {
     final TagVFilter filter = new TagVWildcardFilter(NSUN_TAGK, "*omnia");
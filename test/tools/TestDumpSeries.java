@@ -24,6 +24,7 @@ import java.lang.reflect.Method;
 import java.util.HashMap;
 
 import net.opentsdb.core.AppendDataPoints;
+import net.opentsdb.core.BaseTsdbTest;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.storage.MockBase;
@@ -105,6 +106,9 @@ public class TestDumpSeries {
     Field tagv = tsdb.getClass().getDeclaredField("tag_values");
     tagv.setAccessible(true);
     tagv.set(tsdb, tag_values);
+    BaseTsdbTest.mockBatchedLookups(metrics);
+    BaseTsdbTest.mockBatchedLookups(tag_names);
+    BaseTsdbTest.mockBatchedLookups(tag_values);
     
     // mock UniqueId
     when(metrics.getId("sys.cpu.user")).thenReturn(new byte[] { 0, 0, 1 });
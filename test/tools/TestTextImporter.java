@@ -731,6 +731,28 @@ public class TestTextImporter {
   }
   
   // TODO - figure out how to trigger a throttling exception
+
+  @Test (timeout = 10000)
+  public void importFileThrottledReorderWindow() throws Exception {
+    config.overrideConfig("tsd.core.bulk.reorder_window", "60000");
+    String data = "sys.cpu.user 1356998400 42 host=web01";
+    setData(data);
+    TextImporter.throttle = true;
+    try {
+      Integer points = (Integer)importFile.invoke(null, client, tsdb, "file",
+          false);
+      assertEquals(1, (int)points);
+    } finally {
+      TextImporter.throttle = false;
+    }
+
+    // the held back data point was written rather than waited on
+    byte[] row = new byte[] { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0,
+        0, 0, 1, 0, 0, 1};
+    byte[] value = storage.getColumn(row, new byte[] { 0, 0 });
+    assertNotNull(value);
+    assertEquals(42, value[0]);
+  }
   
   /**
    * Helper to set the reader buffer. Just pass a string to use for the unit test
@@ -108,6 +108,8 @@ public final class NettyMocks {
     final SocketAddress socket = mock(SocketAddress.class);
     when(socket.toString()).thenReturn("192.168.1.1:4243");
     when(chan.getRemoteAddress()).thenReturn(socket);
+    when(chan.getCloseFuture())
+      .thenReturn(new DefaultChannelFuture(chan, false));
     return chan;
   }
   
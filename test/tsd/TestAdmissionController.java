@@ -0,0 +1,246 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.utils.Config;
+
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ TSDB.class, Histogram.class })
+public final class TestAdmissionController {
+  private TSDB tsdb;
+  private Config config;
+  private Timer timer;
+  private Histogram put_latency;
+
+  @Before
+  public void before() throws Exception {
+    config = new Config(false);
+    config.overrideConfig("tsd.rpc.admission.max_pending_puts", "4");
+    config.overrideConfig("tsd.rpc.admission.resume_pending_puts", "2");
+    timer = mock(Timer.class);
+    put_latency = mock(Histogram.class);
+    tsdb = mock(TSDB.class);
+    when(tsdb.getConfig()).thenReturn(config);
+    when(tsdb.getTimer()).thenReturn(timer);
+    when(tsdb.getPutLatencyHistogram()).thenReturn(put_latency);
+  }
+
+  @Test
+  public void ctor() throws Exception {
+    final AdmissionController admission = new AdmissionController(tsdb);
+    assertEquals(0, admission.pending());
+    assertFalse(admission.overloaded());
+    verify(timer, times(1)).newTimeout(any(TimerTask.class), eq(1000L),
+        eq(TimeUnit.MILLISECONDS));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroPending() throws Exception {
+    config.overrideConfig("tsd.rpc.admission.max_pending_puts", "0");
+    new AdmissionController(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorResumeTooHigh() throws Exception {
+    config.overrideConfig("tsd.rpc.admission.resume_pending_puts", "4");
+    new AdmissionController(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroInterval() throws Exception {
+    config.overrideConfig("tsd.rpc.admission.interval", "0");
+    new AdmissionController(tsdb);
+  }
+
+  @Test
+  public void track() throws Exception {
+    final AdmissionController admission = new AdmissionController(tsdb);
+    final Deferred<Object> ok = new Deferred<Object>();
+    final Deferred<Object> error = new Deferred<Object>();
+    assertTrue(ok == admission.track(ok));
+    admission.track(error);
+    assertEquals(2, admission.pending());
+
+    ok.callback(null);
+    error.callback(new RuntimeException("Boo!"));
+    assertEquals(0, admission.pending());
+    // the error goes on down the chain
+    try {
+      error.joinUninterruptibly();
+      fail("Expected a RuntimeException");
+    } catch (RuntimeException e) {
+      assertEquals("Boo!", e.getMessage());
+    }
+    verify(put_latency, times(2)).add(anyInt());
+  }
+
+  @Test
+  public void pauseAndResume() throws Exception {
+    final AdmissionController admission = new AdmissionController(tsdb);
+    final Channel chan = channel();
+    final Deferred<Object> writes = new Deferred<Object>();
+    for (int i = 0; i < 3; i++) {
+      admission.track(writes);
+      admission.admit(chan);
+    }
+    verify(chan, never()).setReadable(anyBoolean());
+
+    final Deferred<Object> write = new Deferred<Object>();
+    admission.track(write);
+    admission.admit(chan);
+    assertTrue(admission.overloaded());
+    verify(chan, times(1)).setReadable(false);
+    assertEquals(1, admission.paused());
+    // already paused
+    admission.admit(chan);
+    verify(chan, times(1)).setReadable(false);
+
+    // 3 pending is still above the resume threshold
+    write.callback(null);
+    assertFalse(admission.overloaded());
+    verify(chan, never()).setReadable(true);
+    admission.run(null);
+    verify(chan, never()).setReadable(true);
+
+    writes.callback(null);
+    assertEquals(0, admission.pending());
+    verify(chan, times(1)).setReadable(true);
+    assertEquals(0, admission.paused());
+  }
+
+  @Test
+  public void latency() throws Exception {
+    config.overrideConfig("tsd.rpc.admission.max_latency", "10");
+    final AdmissionController admission = new AdmissionController(tsdb);
+    final Channel chan = channel();
+    final Deferred<Object> write = new Deferred<Object>();
+    admission.track(write);
+    Thread.sleep(20);
+    write.callback(null);
+    assertFalse(admission.overloaded());
+
+    admission.run(null);
+    assertTrue(admission.overloaded());
+    admission.admit(chan);
+    verify(chan, times(1)).setReadable(false);
+    verify(timer, times(2)).newTimeout(any(TimerTask.class), eq(1000L),
+        eq(TimeUnit.MILLISECONDS));
+
+    // nothing completed in the next interval
+    admission.run(null);
+    assertFalse(admission.overloaded());
+    verify(chan, times(1)).setReadable(true);
+  }
+
+  @Test
+  public void latencyDisabled() throws Exception {
+    final AdmissionController admission = new AdmissionController(tsdb);
+    final Deferred<Object> write = new Deferred<Object>();
+    admission.track(write);
+    Thread.sleep(20);
+    write.callback(null);
+    admission.run(null);
+    assertFalse(admission.overloaded());
+  }
+
+  @Test
+  public void shutdown() throws Exception {
+    final AdmissionController admission = new AdmissionController(tsdb);
+    final Channel chan = channel();
+    for (int i = 0; i < 4; i++) {
+      admission.track(new Deferred<Object>());
+    }
+    admission.admit(chan);
+    verify(chan, times(1)).setReadable(false);
+
+    admission.shutdown();
+    verify(chan, times(1)).setReadable(true);
+    admission.admit(chan);
+    verify(chan, times(1)).setReadable(false);
+    admission.run(null);
+    verify(timer, times(1)).newTimeout(any(TimerTask.class), eq(1000L),
+        eq(TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void closedWhilePaused() throws Exception {
+    final AdmissionController admission = new AdmissionController(tsdb);
+    final Channel chan = channel();
+    final Deferred<Object> writes = new Deferred<Object>();
+    for (int i = 0; i < 4; i++) {
+      admission.track(writes);
+    }
+    admission.admit(chan);
+    assertEquals(1, admission.paused());
+
+    chan.getCloseFuture().setSuccess();
+    assertEquals(0, admission.paused());
+    writes.callback(null);
+    verify(chan, never()).setReadable(true);
+  }
+
+  @Test
+  public void alreadyClosed() throws Exception {
+    final AdmissionController admission = new AdmissionController(tsdb);
+    final Channel chan = channel();
+    chan.getCloseFuture().setSuccess();
+    for (int i = 0; i < 4; i++) {
+      admission.track(new Deferred<Object>());
+    }
+    admission.admit(chan);
+    assertEquals(0, admission.paused());
+  }
+
+  /** @return A mock channel with a close future that can be completed */
+  private static Channel channel() {
+    final Channel chan = mock(Channel.class);
+    final ChannelFuture close_future = new DefaultChannelFuture(chan, false);
+    when(chan.getCloseFuture()).thenReturn(close_future);
+    return chan;
+  }
+}
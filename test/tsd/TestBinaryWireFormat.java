@@ -0,0 +1,189 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import net.opentsdb.core.IncomingDataPoint;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+public final class TestBinaryWireFormat {
+
+  @Test
+  public void varints() {
+    final long[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE,
+        1356998400000L, Long.MAX_VALUE };
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    final BinaryWireFormat.Writer writer = new BinaryWireFormat.Writer(buffer);
+    for (final long value : values) {
+      writer.writeVarint(value);
+      writer.writeSignedVarint(value);
+      writer.writeSignedVarint(-value);
+    }
+    writer.writeSignedVarint(Long.MIN_VALUE);
+
+    final BinaryWireFormat.Reader reader = new BinaryWireFormat.Reader(buffer);
+    for (final long value : values) {
+      assertEquals(value, reader.readVarint());
+      assertEquals(value, reader.readSignedVarint());
+      assertEquals(-value, reader.readSignedVarint());
+    }
+    assertEquals(Long.MIN_VALUE, reader.readSignedVarint());
+    assertFalse(reader.readable());
+  }
+
+  @Test
+  public void varintSizes() {
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    final BinaryWireFormat.Writer writer = new BinaryWireFormat.Writer(buffer);
+    writer.writeVarint(127);
+    assertEquals(1, buffer.readableBytes());
+    writer.writeSignedVarint(-64);
+    assertEquals(2, buffer.readableBytes());
+    writer.writeVarint(128);
+    assertEquals(4, buffer.readableBytes());
+  }
+
+  @Test
+  public void strings() {
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    final BinaryWireFormat.Writer writer = new BinaryWireFormat.Writer(buffer);
+    writer.writeString("sys.cpu.user");
+    final int first = buffer.readableBytes();
+    writer.writeString("hôst");
+    writer.writeString("sys.cpu.user");
+    // a marker, the length and 5 bytes of UTF-8 then a single byte reference
+    assertEquals(first + 8, buffer.readableBytes());
+    writer.writeString("");
+
+    final BinaryWireFormat.Reader reader = new BinaryWireFormat.Reader(buffer);
+    assertEquals("sys.cpu.user", reader.readString());
+    assertEquals("hôst", reader.readString());
+    assertEquals("sys.cpu.user", reader.readString());
+    assertEquals("", reader.readString());
+    assertFalse(reader.readable());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void unknownStringReference() {
+    new BinaryWireFormat.Reader(ChannelBuffers.wrappedBuffer(new byte[] { 2 }))
+      .readString();
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void stringTooLong() {
+    new BinaryWireFormat.Reader(
+        ChannelBuffers.wrappedBuffer(new byte[] { 0, 5, 'a', 'b' }))
+      .readString();
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void varintTooLong() {
+    final byte[] bytes = new byte[11];
+    Arrays.fill(bytes, (byte) 0x80);
+    new BinaryWireFormat.Reader(ChannelBuffers.wrappedBuffer(bytes))
+      .readVarint();
+  }
+
+  @Test
+  public void putRoundTrip() {
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    tags.put("dc", "lga");
+    final List<IncomingDataPoint> dps = new ArrayList<IncomingDataPoint>();
+    dps.add(new IncomingDataPoint("sys.cpu.user", 1365465600L, "42", tags));
+    dps.add(new IncomingDataPoint("sys.cpu.user", 1365465600500L, "1.5e3",
+        tags));
+    dps.add(new IncomingDataPoint("sys.cpu.nice", 1365465590L, "-7", tags));
+    dps.add(new IncomingDataPoint("sys.cpu.nice", 1365465600L, "0.25",
+        new HashMap<String, String>()));
+
+    final ChannelBuffer buffer = BinaryWireFormat.encodePutV1(dps);
+    final List<IncomingDataPoint> decoded =
+        BinaryWireFormat.decodePutV1(buffer);
+    assertEquals(4, decoded.size());
+    for (int i = 0; i < dps.size(); i++) {
+      assertEquals(dps.get(i).getMetric(), decoded.get(i).getMetric());
+      assertEquals(dps.get(i).getTimestamp(), decoded.get(i).getTimestamp());
+      assertEquals(dps.get(i).getTags(), decoded.get(i).getTags());
+    }
+    assertEquals("42", decoded.get(0).getValue());
+    assertEquals("1500.0", decoded.get(1).getValue());
+    assertEquals("-7", decoded.get(2).getValue());
+    assertEquals("0.25", decoded.get(3).getValue());
+    
+    // the values stay primitives
+    final BinaryWireFormat.DecodedDataPoint integer = 
+        (BinaryWireFormat.DecodedDataPoint) decoded.get(0);
+    assertTrue(integer.isInteger());
+    assertEquals(42, integer.longValue());
+    final BinaryWireFormat.DecodedDataPoint real = 
+        (BinaryWireFormat.DecodedDataPoint) decoded.get(1);
+    assertFalse(real.isInteger());
+    assertEquals(1500.0, real.doubleValue(), 0.0);
+    assertTrue(real.fitsInFloat());
+  }
+
+  @Test
+  public void putEmpty() {
+    assertTrue(BinaryWireFormat.decodePutV1(BinaryWireFormat.encodePutV1(
+        new ArrayList<IncomingDataPoint>())).isEmpty());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void putBadVersion() {
+    BinaryWireFormat.decodePutV1(
+        ChannelBuffers.wrappedBuffer(new byte[] { 2, 0 }));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void putTruncated() {
+    final List<IncomingDataPoint> dps = new ArrayList<IncomingDataPoint>();
+    dps.add(new IncomingDataPoint("sys.cpu.user", 1365465600L, "4.2",
+        new HashMap<String, String>()));
+    final ChannelBuffer buffer = BinaryWireFormat.encodePutV1(dps);
+    BinaryWireFormat.decodePutV1(buffer.slice(0, buffer.readableBytes() - 2));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void putTrailingBytes() {
+    final ChannelBuffer buffer = BinaryWireFormat.encodePutV1(
+        new ArrayList<IncomingDataPoint>());
+    buffer.writeByte(0);
+    BinaryWireFormat.decodePutV1(buffer);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void putUnknownType() {
+    BinaryWireFormat.decodePutV1(ChannelBuffers.wrappedBuffer(
+        new byte[] { 1, 1, 0, 1, 'm', 2, 9, 0 }));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void encodeBadValue() {
+    final List<IncomingDataPoint> dps = new ArrayList<IncomingDataPoint>();
+    dps.add(new IncomingDataPoint("sys.cpu.user", 1365465600L, "notanumber",
+        new HashMap<String, String>()));
+    BinaryWireFormat.encodePutV1(dps);
+  }
+}
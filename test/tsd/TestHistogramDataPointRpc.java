@@ -17,6 +17,7 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
@@ -27,7 +28,9 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.hbase.async.HBaseClient;
@@ -46,6 +49,7 @@ import org.powermock.reflect.Whitebox;
 
 import com.google.common.collect.Maps;
 
+import net.opentsdb.core.HistogramAggregation;
 import net.opentsdb.core.HistogramCodecManager;
 import net.opentsdb.core.HistogramPojo;
 import net.opentsdb.core.IncomingDataPoint;
@@ -246,7 +250,7 @@ public class TestHistogramDataPointRpc extends BaseTestPutRpc {
           .substring(0, 8), 
         TAGK_STRING + "=" + TAGV_STRING })
         .join();
-    validateCounters(1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0);
+    validateCounters(1, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 1, 0);
     verify(chan, times(1)).write(any());
     verify(chan, times(1)).isConnected();
     validateSEH(false);
@@ -492,6 +496,86 @@ public class TestHistogramDataPointRpc extends BaseTestPutRpc {
         TAGK_STRING, TAGV_STRING), qualifier));
   }
   
+  @Test
+  public void executeHttpMergeSameSeries() throws Exception {
+    config.overrideConfig("tsd.core.histograms.merge_puts", "true");
+    final SimpleHistogram other = new SimpleHistogram(42);
+    other.addBucket(1F, 5F, 6L);
+    other.addBucket(5F, 10F, 1L);
+    other.setUnderflow(2L);
+    final HttpQuery query = NettyMocks.postQuery(tsdb, "/api/histogram",
+        "[{\"metric\":\"" + METRIC_STRING + "\",\"timestamp\":1356998400,"
+            + "\"id\":42,\"value\":\"" 
+            + HistogramPojo.bytesToBase64String(test_histo.histogram(false))
+            + "\",\"tags\":{\"" + TAGK_STRING + "\":\"" + TAGV_STRING + "\"}},"
+            + "{\"metric\":\"" + METRIC_STRING + "\",\"timestamp\":1356998460,"
+            + "\"id\":42,\"value\":\"" 
+            + HistogramPojo.bytesToBase64String(test_histo.histogram(false))
+            + "\",\"tags\":{\"" + TAGK_STRING + "\":\"" + TAGV_STRING + "\"}},"
+            + "{\"metric\":\"" + METRIC_STRING + "\",\"timestamp\":1356998400,"
+            + "\"buckets\":{\"1,5\":6,\"5,10\":1},\"underflow\":2"
+            + ",\"tags\":{\"" + TAGK_STRING + "\":\"" + TAGV_STRING + "\"}}]");
+    final HistogramDataPointRpc rpc = new HistogramDataPointRpc(tsdb.getConfig());
+    rpc.execute(tsdb, query);
+    validateCounters(0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 2);
+    assertEquals(HttpResponseStatus.NO_CONTENT, query.response().getStatus());
+    validateSEH(false);
+    
+    test_histo.aggregate(other, HistogramAggregation.SUM);
+    byte[] qualifier = new byte[] {0x06, 0, 0};
+    byte[] value = storage.getColumn(getRowKey(METRIC_STRING, 1356998400, 
+        TAGK_STRING, TAGV_STRING), qualifier);
+    assertArrayEquals(test_histo.histogram(true), value);
+  }
+  
+  @Test
+  public void executeHttpMergeDisabled() throws Exception {
+    final HttpQuery query = NettyMocks.postQuery(tsdb, "/api/histogram",
+        "[{\"metric\":\"" + METRIC_STRING + "\",\"timestamp\":1356998400,"
+            + "\"id\":42,\"value\":\"" 
+            + HistogramPojo.bytesToBase64String(test_histo.histogram(false))
+            + "\",\"tags\":{\"" + TAGK_STRING + "\":\"" + TAGV_STRING + "\"}},"
+            + "{\"metric\":\"" + METRIC_STRING + "\",\"timestamp\":1356998400,"
+            + "\"id\":42,\"value\":\"" 
+            + HistogramPojo.bytesToBase64String(test_histo.histogram(false))
+            + "\",\"tags\":{\"" + TAGK_STRING + "\":\"" + TAGV_STRING + "\"}}]");
+    final HistogramDataPointRpc rpc = new HistogramDataPointRpc(tsdb.getConfig());
+    rpc.execute(tsdb, query);
+    validateCounters(0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 2);
+    
+    byte[] qualifier = new byte[] {0x06, 0, 0};
+    byte[] value = storage.getColumn(getRowKey(METRIC_STRING, 1356998400, 
+        TAGK_STRING, TAGV_STRING), qualifier);
+    assertArrayEquals(test_histo.histogram(true), value);
+  }
+  
+  @Test
+  public void mergeSimpleHistogramsBadValue() throws Exception {
+    final HistogramDataPointRpc rpc = new HistogramDataPointRpc(tsdb.getConfig());
+    final List<HistogramPojo> dps = new ArrayList<HistogramPojo>();
+    dps.add(pojo(1356998400, HistogramPojo.bytesToBase64String(
+        test_histo.histogram(false)).substring(0, 4)));
+    dps.add(pojo(1356998400, HistogramPojo.bytesToBase64String(
+        test_histo.histogram(false))));
+    dps.add(pojo(1356998400, HistogramPojo.bytesToBase64String(
+        test_histo.histogram(false))));
+    
+    // the bad one isn't merged with so it fails on its own
+    final List<HistogramPojo> merged = rpc.mergeSimpleHistograms(tsdb, dps);
+    assertEquals(3, merged.size());
+    assertSame(dps.get(0), merged.get(0));
+    
+    // and a bad duplicate stays apart
+    dps.remove(0);
+    dps.add(pojo(1356998400, HistogramPojo.bytesToBase64String(
+        test_histo.histogram(false)).substring(0, 4)));
+    final List<HistogramPojo> good = rpc.mergeSimpleHistograms(tsdb, dps);
+    assertEquals(2, good.size());
+    assertSame(dps.get(2), good.get(1));
+    test_histo.aggregate(test_histo.clone(), HistogramAggregation.SUM);
+    assertArrayEquals(test_histo.histogram(false), good.get(0).getBytes());
+  }
+  
   @Test
   public void httpNSUNMetric() throws Exception {
     final HttpQuery query = NettyMocks.postQuery(tsdb, "/api/histogram",
@@ -566,6 +650,16 @@ public class TestHistogramDataPointRpc extends BaseTestPutRpc {
     validateSEH(true);
   }
   
+  private HistogramPojo pojo(final long timestamp, final String value) {
+    final HistogramPojo dp = new HistogramPojo();
+    dp.setMetric(METRIC_STRING);
+    dp.setTimestamp(timestamp);
+    dp.setId(42);
+    dp.setValue(value);
+    dp.setTags(new HashMap<String, String>(tags));
+    return dp;
+  }
+  
   @Override
   protected void validateSEH(final boolean called) {
     if (called) {
@@ -0,0 +1,297 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.core.TSSubQuery;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.rollup.RollUpDataPoint;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.storage.MockDataPoints;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.google.common.cache.CacheBuilder;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ HttpBinarySerializer.class, TSDB.class, Config.class,
+  HttpQuery.class, TSQuery.class, TSSubQuery.class, QueryStats.class,
+  DateTime.class })
+public final class TestHttpBinarySerializer {
+  private static final String REMOTE = "192.168.1.1:4242";
+  private TSDB tsdb = null;
+  private final List<Long> timestamp = new ArrayList<Long>(1);
+
+  @Before
+  public void before() throws Exception {
+    tsdb = NettyMocks.getMockedHTTPTSDB();
+  }
+
+  @Test
+  public void names() {
+    final HttpBinarySerializer serdes = new HttpBinarySerializer();
+    assertEquals("binary", serdes.shortName());
+    assertEquals(BinaryWireFormat.CONTENT_TYPE, serdes.requestContentType());
+    assertEquals("application/json; charset=UTF-8",
+        serdes.responseContentType());
+  }
+
+  @Test
+  public void parsePutV1() throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    final List<IncomingDataPoint> dps = new ArrayList<IncomingDataPoint>();
+    dps.add(new IncomingDataPoint("sys.cpu.user", 1365465600L, "42", tags));
+    dps.add(new IncomingDataPoint("sys.cpu.user", 1365465610L, "-24.5",
+        tags));
+    final HttpQuery query = binaryPost(BinaryWireFormat.encodePutV1(dps));
+
+    final List<IncomingDataPoint> parsed = new HttpBinarySerializer(query)
+        .parsePutV1(IncomingDataPoint.class, HttpJsonSerializer.TR_INCOMING);
+    assertEquals(2, parsed.size());
+    assertEquals("sys.cpu.user", parsed.get(0).getMetric());
+    assertEquals(1365465600L, parsed.get(0).getTimestamp());
+    assertEquals("42", parsed.get(0).getValue());
+    assertEquals("web01", parsed.get(0).getTags().get("host"));
+    assertEquals(1365465610L, parsed.get(1).getTimestamp());
+    assertEquals(-24.5, Double.parseDouble(parsed.get(1).getValue()), 0.0001);
+    assertEquals(tags, parsed.get(1).getTags());
+  }
+
+  @Test (expected = BadRequestException.class)
+  public void parsePutV1NoContent() throws Exception {
+    final HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", null,
+        BinaryWireFormat.CONTENT_TYPE);
+    new HttpBinarySerializer(query).parsePutV1();
+  }
+
+  @Test (expected = BadRequestException.class)
+  public void parsePutV1Malformed() throws Exception {
+    final HttpQuery query = binaryPost(
+        ChannelBuffers.wrappedBuffer(new byte[] { 1, 5, 0, 42 }));
+    new HttpBinarySerializer(query).parsePutV1();
+  }
+
+  @Test (expected = BadRequestException.class)
+  public void parsePutV1Json() throws Exception {
+    final HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put",
+        "{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,\"value\":42,"
+        + "\"tags\":{\"host\":\"web01\"}}", BinaryWireFormat.CONTENT_TYPE);
+    new HttpBinarySerializer(query).parsePutV1();
+  }
+
+  @Test (expected = BadRequestException.class)
+  public void parsePutV1Rollup() throws Exception {
+    final HttpQuery query = binaryPost(BinaryWireFormat.encodePutV1(
+        Collections.<IncomingDataPoint>emptyList()));
+    new HttpBinarySerializer(query).parsePutV1(RollUpDataPoint.class,
+        HttpJsonSerializer.TR_ROLLUP);
+  }
+
+  @Test
+  public void formatQueryAsyncV1() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    final HttpBinarySerializer serdes = new HttpBinarySerializer(query);
+    final TSQuery data_query = getTestQuery();
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock(),
+        new MockDataPoints().getMock() });
+
+    final ChannelBuffer cb = serdes.formatQueryAsyncV1(data_query, results,
+        Collections.<Annotation>emptyList()).joinUninterruptibly();
+    assertNotNull(cb);
+    assertEquals(BinaryWireFormat.CONTENT_TYPE, serdes.responseContentType());
+    final BinaryWireFormat.Reader reader = new BinaryWireFormat.Reader(cb);
+    assertEquals(BinaryWireFormat.VERSION, reader.readByte());
+    assertSeries(reader);
+    assertSeries(reader);
+    assertEquals(BinaryWireFormat.END, reader.readByte());
+    assertFalse(reader.readable());
+  }
+
+  @Test
+  public void formatQueryAsyncV1EmptyDPs() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    final HttpBinarySerializer serdes = new HttpBinarySerializer(query);
+    final ChannelBuffer cb = serdes.formatQueryAsyncV1(getTestQuery(),
+        new ArrayList<DataPoints[]>(), Collections.<Annotation>emptyList())
+        .joinUninterruptibly();
+    assertEquals(2, cb.readableBytes());
+    assertEquals(BinaryWireFormat.VERSION, cb.getByte(0));
+    assertEquals(BinaryWireFormat.END, cb.getByte(1));
+  }
+
+  @Test
+  public void streamQueryAsyncV1() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    final HttpBinarySerializer serdes = new HttpBinarySerializer(query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock(),
+        new MockDataPoints().getMock() });
+
+    serdes.streamQueryAsyncV1(getTestQuery(), results,
+        Collections.<Annotation>emptyList(), 64).joinUninterruptibly();
+    assertTrue(query.isChunkedReply());
+
+    final ArgumentCaptor<Object> writes = ArgumentCaptor.forClass(Object.class);
+    verify(query.channel(), atLeastOnce()).write(writes.capture());
+    final List<Object> written = writes.getAllValues();
+    final HttpResponse response = (HttpResponse) written.get(0);
+    assertEquals(BinaryWireFormat.CONTENT_TYPE,
+        response.headers().get(HttpHeaders.Names.CONTENT_TYPE));
+    assertTrue(((HttpChunk) written.get(written.size() - 1)).isLast());
+
+    final ChannelBuffer body = ChannelBuffers.dynamicBuffer();
+    for (int i = 1; i < written.size() - 1; i++) {
+      body.writeBytes(((HttpChunk) written.get(i)).getContent());
+    }
+    final BinaryWireFormat.Reader reader = new BinaryWireFormat.Reader(body);
+    assertEquals(BinaryWireFormat.VERSION, reader.readByte());
+    assertSeries(reader);
+    assertSeries(reader);
+    assertEquals(BinaryWireFormat.END, reader.readByte());
+    assertFalse(reader.readable());
+  }
+
+  /**
+   * Reads a series written from {@link MockDataPoints} and validates it.
+   * @param reader The reader positioned at the start of the series
+   */
+  private void assertSeries(final BinaryWireFormat.Reader reader) {
+    assertEquals(BinaryWireFormat.SERIES, reader.readByte());
+    assertEquals("system.cpu.user", reader.readString());
+    assertEquals(1, reader.readVarint());
+    assertEquals("dc", reader.readString());
+    assertEquals("lga", reader.readString());
+    assertEquals(1, reader.readVarint());
+    assertEquals("host", reader.readString());
+    assertEquals(0, reader.readVarint());
+
+    long ts = 0;
+    long expected_ts = 1356998700;
+    long expected_value = 1;
+    int block;
+    while ((block = (int) reader.readVarint()) > 0) {
+      for (int i = 0; i < block; i++) {
+        ts += reader.readSignedVarint();
+        assertEquals(expected_ts, ts);
+        assertEquals(BinaryWireFormat.TYPE_LONG, reader.readByte());
+        assertEquals(expected_value, reader.readSignedVarint());
+        expected_ts += 300;
+        expected_value++;
+      }
+    }
+    assertEquals(402, expected_value);
+  }
+
+  /**
+   * @param content The binary body
+   * @return A POST to /api/put with the binary body and content type
+   */
+  private HttpQuery binaryPost(final ChannelBuffer content) {
+    final HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", "",
+        BinaryWireFormat.CONTENT_TYPE);
+    query.request().setContent(content);
+    return query;
+  }
+
+  /** @return A validated test query with stats */
+  private TSQuery getTestQuery() {
+    final TSQuery data_query = new TSQuery();
+    data_query.setStart("1356998400");
+    data_query.setEnd("1388534400");
+
+    final TSSubQuery sub_query = new TSSubQuery();
+    sub_query.setMetric("sys.cpu.user");
+    sub_query.setAggregator("sum");
+    final ArrayList<TSSubQuery> sub_queries = new ArrayList<TSSubQuery>(1);
+    sub_queries.add(sub_query);
+    data_query.setQueries(sub_queries);
+    data_query.validateAndSetQuery();
+    data_query.setQueryStats(new QueryStats(REMOTE, data_query, null));
+    return data_query;
+  }
+
+  /**
+   * Resets the static query stats maps and mocks the time so the stats
+   * don't interfere between tests.
+   */
+  private void setupFormatQuery() throws Exception {
+    final Field running_queries =
+        QueryStats.class.getDeclaredField("running_queries");
+    running_queries.setAccessible(true);
+    running_queries.set(null, new ConcurrentHashMap<Integer, QueryStats>());
+    final Field completed_queries =
+        QueryStats.class.getDeclaredField("completed_queries");
+    completed_queries.setAccessible(true);
+    completed_queries.set(null,
+        CacheBuilder.newBuilder().maximumSize(2).build());
+
+    timestamp.add(1388534400000L);
+    PowerMockito.mockStatic(DateTime.class);
+    PowerMockito.when(DateTime.parseDateTimeString(anyString(), anyString()))
+      .thenCallRealMethod();
+    PowerMockito.when(DateTime.currentTimeMillis())
+      .thenAnswer(new Answer<Long>() {
+      public Long answer(final InvocationOnMock invocation) throws Throwable {
+        final long ts = timestamp.get(0);
+        timestamp.set(0, ts + 500);
+        return ts;
+      }
+    });
+    PowerMockito.when(DateTime.nanoTime())
+      .thenAnswer(new Answer<Long>() {
+      public Long answer(final InvocationOnMock invocation) throws Throwable {
+        final long ts = timestamp.get(0);
+        timestamp.set(0, ts + 500);
+        return ts * 1000000;
+      }
+    });
+  }
+}
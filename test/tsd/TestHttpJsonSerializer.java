@@ -16,7 +16,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.lang.Thread.State;
@@ -29,7 +33,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import net.opentsdb.core.BatchedSeekableView;
+import net.opentsdb.core.DataPointBatch;
 import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
 import net.opentsdb.core.TSSubQuery;
@@ -41,9 +48,16 @@ import net.opentsdb.utils.Config;
 import net.opentsdb.utils.DateTime;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
@@ -296,6 +310,38 @@ public final class TestHttpJsonSerializer {
     assertFalse(json.contains("\"query\":"));
   }
 
+  @Test
+  public void formatQueryAsyncV1Batched() throws Exception {
+    setupFormatQuery();
+    HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    final DataPoints dps = new MockDataPoints().getMock();
+    final SeekableView source = dps.iterator();
+    final BatchedSeekableView batched = 
+        PowerMockito.mock(BatchedSeekableView.class);
+    when(batched.nextBatch(any(DataPointBatch.class))).thenAnswer(
+        new Answer<Integer>() {
+          @Override
+          public Integer answer(final InvocationOnMock invocation) 
+              throws Throwable {
+            return ((DataPointBatch) invocation.getArguments()[0])
+                .fill(source);
+          }
+        });
+    when(dps.iterator()).thenReturn(batched);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { dps });
+
+    ChannelBuffer cb = serdes.formatQueryAsyncV1(data_query, results, 
+        Collections.<Annotation> emptyList()).joinUninterruptibly();
+    final String json = cb.toString(Charset.forName("UTF-8"));
+    assertTrue(json.contains("\"1356998700\":1,"));
+    assertTrue(json.contains("\"1357058700\":201"));
+    verify(batched, atLeastOnce()).nextBatch(any(DataPointBatch.class));
+  }
+
   @Test
   public void formatQueryAsyncV1wQuery() throws Exception {
     setupFormatQuery();
@@ -562,6 +608,109 @@ public final class TestHttpJsonSerializer {
         Collections.<Annotation> emptyList()).joinUninterruptibly();
   }
   
+  @Test
+  public void streamQueryAsyncV1() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    final HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock(), 
+        new MockDataPoints().getMock() });
+
+    serdes.streamQueryAsyncV1(data_query, results, 
+        Collections.<Annotation> emptyList(), 256).joinUninterruptibly();
+    assertTrue(query.isChunkedReply());
+    
+    final ArgumentCaptor<Object> writes = ArgumentCaptor.forClass(Object.class);
+    verify(query.channel(), atLeastOnce()).write(writes.capture());
+    final List<Object> written = writes.getAllValues();
+    assertTrue(written.size() > 3);
+    final HttpResponse response = (HttpResponse) written.get(0);
+    assertEquals(HttpResponseStatus.OK, response.getStatus());
+    assertTrue(response.isChunked());
+    assertTrue(HttpHeaders.isTransferEncodingChunked(response));
+    assertTrue(((HttpChunk) written.get(written.size() - 1)).isLast());
+    
+    final StringBuilder json = new StringBuilder();
+    for (int i = 1; i < written.size() - 1; i++) {
+      final HttpChunk chunk = (HttpChunk) written.get(i);
+      assertFalse(chunk.isLast());
+      json.append(chunk.getContent().toString(Charset.forName("UTF-8")));
+    }
+    assertTrue(json.toString().startsWith("[{\"metric\":\"system.cpu.user\","));
+    assertTrue(json.toString().endsWith("}]"));
+    assertTrue(json.toString().contains("\"1357058700\":201"));
+    assertEquals(2, json.toString().split("\"metric\"").length - 1);
+  }
+  
+  @Test
+  public void streamQueryAsyncV1SmallResponse() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    final HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock() });
+
+    serdes.streamQueryAsyncV1(data_query, results, 
+        Collections.<Annotation> emptyList(), 1024 * 1024)
+        .joinUninterruptibly();
+    assertFalse(query.isChunkedReply());
+    assertFalse(query.response().isChunked());
+    final String json = query.response().getContent()
+        .toString(Charset.forName("UTF-8"));
+    assertTrue(json.contains("\"1357058700\":201"));
+    assertEquals(json.length(), 
+        HttpHeaders.getContentLength(query.response()));
+  }
+  
+  @Test
+  public void streamQueryAsyncV1Backpressure() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    final ChannelFuture future = 
+        new DefaultChannelFuture(query.channel(), false);
+    when(query.channel().isWritable()).thenReturn(false);
+    when(query.channel().write(any())).thenReturn(future);
+    final HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock(), 
+        new MockDataPoints().getMock() });
+
+    final Deferred<Object> deferred = serdes.streamQueryAsyncV1(data_query, 
+        results, Collections.<Annotation> emptyList(), 256);
+    // the second series waits until the first one was written
+    final ArgumentCaptor<Object> writes = ArgumentCaptor.forClass(Object.class);
+    verify(query.channel(), atLeastOnce()).write(writes.capture());
+    final int before = writes.getAllValues().size();
+    for (final Object write : writes.getAllValues()) {
+      if (write instanceof HttpChunk) {
+        assertFalse(((HttpChunk) write).isLast());
+      }
+    }
+    
+    future.setSuccess();
+    deferred.joinUninterruptibly();
+    verify(query.channel(), atLeast(before + 1)).write(any());
+    verify(query.channel()).write(HttpChunk.LAST_CHUNK);
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void streamQueryAsyncV1ZeroChunkSize() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    final HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    serdes.streamQueryAsyncV1(data_query, new ArrayList<DataPoints[]>(), 
+        Collections.<Annotation> emptyList(), 0);
+  }
+  
   @Test
   public void formatThreadStats() throws Exception {
     HttpQuery query = NettyMocks.getQuery(tsdb, "");
@@ -21,11 +21,15 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.lang.reflect.Method;
+import java.nio.channels.ClosedChannelException;
 import java.nio.charset.Charset;
 import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -39,6 +43,7 @@ import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.DefaultChannelFuture;
 import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
@@ -47,9 +52,13 @@ import org.jboss.netty.util.CharsetUtil;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
 @RunWith(PowerMockRunner.class)
 @PrepareForTest({TSDB.class, Config.class, HttpQuery.class})
 public final class TestHttpQuery {
@@ -745,6 +754,29 @@ public final class TestHttpQuery {
         query.serializer().getClass().getCanonicalName());
   }
   
+  @Test
+  public void setSerializerBinaryCT() throws Exception {
+    HttpQuery.initializeSerializerMaps(null);
+    final Channel channelMock = NettyMocks.fakeChannel();
+    final HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, 
+        HttpMethod.POST, "/api/put");
+    req.headers().add("Content-Type", BinaryWireFormat.CONTENT_TYPE);
+    final HttpQuery query = new HttpQuery(tsdb, req, channelMock);
+    query.setSerializer();
+    assertEquals(HttpBinarySerializer.class.getCanonicalName(), 
+        query.serializer().getClass().getCanonicalName());
+  }
+  
+  @Test
+  public void setSerializerBinaryQS() throws Exception {
+    HttpQuery.initializeSerializerMaps(null);
+    final HttpQuery query = NettyMocks.getQuery(tsdb, 
+        "/api/query?serializer=binary");
+    query.setSerializer();
+    assertEquals(HttpBinarySerializer.class.getCanonicalName(), 
+        query.serializer().getClass().getCanonicalName());
+  }
+  
   @Test
   public void setSerializerDummyCT() throws Exception {
     PluginLoader.loadJAR("plugin_test.jar");
@@ -1204,6 +1236,90 @@ public final class TestHttpQuery {
     sendBuffer.invoke(query, HttpResponseStatus.OK, null);
   }
 
+  @Test
+  public void canSendChunks() throws Exception {
+    assertTrue(NettyMocks.getQuery(tsdb, "/").canSendChunks());
+    final HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_0, 
+        HttpMethod.GET, "/");
+    assertFalse(new HttpQuery(tsdb, req, NettyMocks.fakeChannel())
+        .canSendChunks());
+  }
+  
+  @Test
+  public void sendChunk() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "/");
+    final ChannelBuffer cb = ChannelBuffers.dynamicBuffer();
+    cb.writeBytes("Hello".getBytes(CharsetUtil.UTF_8));
+    assertNull(query.sendChunk(cb, "text/plain").joinUninterruptibly());
+    assertTrue(query.isChunkedReply());
+    assertTrue(query.response().isChunked());
+    assertEquals("text/plain", query.response().headers().get("Content-Type"));
+    assertFalse(cb.readable());
+    
+    cb.writeBytes(" World".getBytes(CharsetUtil.UTF_8));
+    query.finishChunkedReply(cb);
+    assertFalse(cb.readable());
+    
+    final ArgumentCaptor<Object> writes = ArgumentCaptor.forClass(Object.class);
+    verify(query.channel(), times(4)).write(writes.capture());
+    assertTrue(writes.getAllValues().get(0) == query.response());
+    assertEquals("Hello", ((HttpChunk) writes.getAllValues().get(1))
+        .getContent().toString(CharsetUtil.UTF_8));
+    assertEquals(" World", ((HttpChunk) writes.getAllValues().get(2))
+        .getContent().toString(CharsetUtil.UTF_8));
+    assertTrue(writes.getAllValues().get(3) == HttpChunk.LAST_CHUNK);
+  }
+  
+  @Test
+  public void sendChunkNotWritable() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "/");
+    final ChannelFuture future = 
+        new DefaultChannelFuture(query.channel(), false);
+    when(query.channel().write(any())).thenReturn(future);
+    when(query.channel().isWritable()).thenReturn(false);
+    final ChannelBuffer cb = ChannelBuffers.copiedBuffer("Hello", 
+        CharsetUtil.UTF_8);
+    
+    final Deferred<Object> deferred = query.sendChunk(cb, "text/plain");
+    final List<Object> called = new ArrayList<Object>();
+    deferred.addBoth(new Callback<Object, Object>() {
+      public Object call(final Object arg) {
+        called.add(arg);
+        return arg;
+      }
+    });
+    assertTrue(called.isEmpty());
+    
+    future.setFailure(new ClosedChannelException());
+    assertEquals(1, called.size());
+    assertTrue(called.get(0) instanceof ClosedChannelException);
+  }
+  
+  @Test
+  public void sendChunkEmpty() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "/");
+    query.sendChunk(ChannelBuffers.EMPTY_BUFFER, "text/plain");
+    assertTrue(query.isChunkedReply());
+    verify(query.channel(), times(1)).write(any());
+  }
+  
+  @Test (expected = IllegalStateException.class)
+  public void finishChunkedReplyNotStarted() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "/");
+    query.finishChunkedReply(ChannelBuffers.EMPTY_BUFFER);
+  }
+  
+  @Test
+  public void sendBufferAfterChunks() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "/");
+    query.sendChunk(ChannelBuffers.copiedBuffer("Hello", CharsetUtil.UTF_8), 
+        "text/plain");
+    query.badRequest(new BadRequestException("Boo"));
+    verify(query.channel()).close();
+    // only the headers and the first chunk were written
+    verify(query.channel(), times(2)).write(any());
+  }
+  
   @Test
   public void getSerializerStatus() throws Exception {
     HttpQuery.initializeSerializerMaps(tsdb);
@@ -0,0 +1,272 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.Channel;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+import net.opentsdb.tsd.IngestRateLimiter.Limit;
+import net.opentsdb.tsd.IngestRateLimiter.TokenBucket;
+import net.opentsdb.utils.Config;
+
+public final class TestIngestRateLimiter {
+  private Config config;
+  private FakeTicker ticker;
+  private Channel chan;
+  private HashMap<String, String> tags;
+
+  @Before
+  public void before() throws Exception {
+    config = new Config(false);
+    ticker = new FakeTicker();
+    chan = channel("10.0.0.1", 4242);
+    tags = new HashMap<String, String>(2);
+    tags.put("host", "web01");
+  }
+
+  @Test
+  public void tokenBucket() throws Exception {
+    // 10 per second with a burst of 1 second
+    final TokenBucket bucket = new TokenBucket(10,
+        TimeUnit.SECONDS.toNanos(1), 0);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(bucket.acquire(0));
+    }
+    assertFalse(bucket.acquire(0));
+    assertFalse(bucket.acquire(TimeUnit.MILLISECONDS.toNanos(99)));
+    assertTrue(bucket.acquire(TimeUnit.MILLISECONDS.toNanos(100)));
+    assertFalse(bucket.acquire(TimeUnit.MILLISECONDS.toNanos(100)));
+
+    // refills up to the burst only
+    final long later = TimeUnit.SECONDS.toNanos(60);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(bucket.acquire(later));
+    }
+    assertFalse(bucket.acquire(later));
+  }
+
+  @Test
+  public void tokenBucketBurstSmallerThanInterval() throws Exception {
+    final TokenBucket bucket = new TokenBucket(1, 1, 0);
+    assertTrue(bucket.acquire(0));
+    assertFalse(bucket.acquire(TimeUnit.MILLISECONDS.toNanos(999)));
+    assertTrue(bucket.acquire(TimeUnit.SECONDS.toNanos(1)));
+  }
+
+  @Test
+  public void tokenBucketNegativeTicker() throws Exception {
+    final long now = Long.MIN_VALUE + 5;
+    final TokenBucket bucket = new TokenBucket(1000,
+        TimeUnit.MILLISECONDS.toNanos(2), now);
+    assertTrue(bucket.acquire(now));
+    assertTrue(bucket.acquire(now));
+    assertFalse(bucket.acquire(now));
+  }
+
+  @Test
+  public void unlimited() throws Exception {
+    final IngestRateLimiter limiter = new IngestRateLimiter(config, ticker);
+    for (int i = 0; i < 10000; i++) {
+      assertNull(limiter.acquire(chan, "sys.cpu.user", tags));
+    }
+  }
+
+  @Test
+  public void connection() throws Exception {
+    config.overrideConfig("tsd.rpc.rate_limit.connection", "2");
+    final IngestRateLimiter limiter = new IngestRateLimiter(config, ticker);
+    assertNull(limiter.acquire(chan, "sys.cpu.user", tags));
+    assertNull(limiter.acquire(chan, "sys.cpu.user", tags));
+    assertEquals(Limit.CONNECTION, limiter.acquire(chan, "sys.cpu.user", tags));
+
+    // another connection from the same host has its own bucket
+    final Channel other = channel("10.0.0.1", 4243);
+    assertNull(limiter.acquire(other, "sys.cpu.user", tags));
+
+    ticker.advance(500);
+    assertNull(limiter.acquire(chan, "sys.cpu.user", tags));
+    assertEquals(Limit.CONNECTION, limiter.acquire(chan, "sys.cpu.user", tags));
+  }
+
+  @Test
+  public void address() throws Exception {
+    config.overrideConfig("tsd.rpc.rate_limit.address", "2");
+    final IngestRateLimiter limiter = new IngestRateLimiter(config, ticker);
+    final Channel other = channel("10.0.0.1", 4243);
+    assertNull(limiter.acquire(chan, "sys.cpu.user", tags));
+    assertNull(limiter.acquire(other, "sys.cpu.user", tags));
+    assertEquals(Limit.ADDRESS, limiter.acquire(chan, "sys.cpu.user", tags));
+    assertNull(limiter.acquire(channel("10.0.0.2", 4242), "sys.cpu.user",
+        tags));
+  }
+
+  @Test
+  public void metricPrefixes() throws Exception {
+    config.overrideConfig("tsd.rpc.rate_limit.metric_prefixes",
+        "sys.:2, sys.cpu.:1,app:1");
+    final IngestRateLimiter limiter = new IngestRateLimiter(config, ticker);
+    // longest prefix wins
+    assertNull(limiter.acquire(chan, "sys.cpu.user", tags));
+    assertEquals(Limit.METRIC, limiter.acquire(chan, "sys.cpu.nice", tags));
+    assertNull(limiter.acquire(chan, "sys.mem.free", tags));
+    assertNull(limiter.acquire(chan, "sys.if.in", tags));
+    assertEquals(Limit.METRIC, limiter.acquire(chan, "sys.if.out", tags));
+    assertNull(limiter.acquire(chan, "app.requests", tags));
+    assertEquals(Limit.METRIC, limiter.acquire(chan, "app.errors", tags));
+    // not limited
+    assertNull(limiter.acquire(chan, "web.hits", tags));
+    assertNull(limiter.acquire(chan, null, tags));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void metricPrefixesNoRate() throws Exception {
+    config.overrideConfig("tsd.rpc.rate_limit.metric_prefixes", "sys.");
+    new IngestRateLimiter(config, ticker);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void metricPrefixesBadRate() throws Exception {
+    config.overrideConfig("tsd.rpc.rate_limit.metric_prefixes", "sys.:fast");
+    new IngestRateLimiter(config, ticker);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void metricPrefixesZeroRate() throws Exception {
+    config.overrideConfig("tsd.rpc.rate_limit.metric_prefixes", "sys.:0");
+    new IngestRateLimiter(config, ticker);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void negativeRate() throws Exception {
+    config.overrideConfig("tsd.rpc.rate_limit.connection", "-1");
+    new IngestRateLimiter(config, ticker);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void zeroBurst() throws Exception {
+    config.overrideConfig("tsd.rpc.rate_limit.burst", "0");
+    new IngestRateLimiter(config, ticker);
+  }
+
+  @Test
+  public void tenant() throws Exception {
+    config.overrideConfig("tsd.rpc.rate_limit.tenant", "1");
+    config.overrideConfig("tsd.rpc.rate_limit.tenant_tag", "tenant");
+    final IngestRateLimiter limiter = new IngestRateLimiter(config, ticker);
+    tags.put("tenant", "a");
+    assertNull(limiter.acquire(chan, "sys.cpu.user", tags));
+    assertEquals(Limit.TENANT, limiter.acquire(chan, "sys.cpu.user", tags));
+    tags.put("tenant", "b");
+    assertNull(limiter.acquire(chan, "sys.cpu.user", tags));
+
+    // from the words of a telnet command
+    assertEquals(Limit.TENANT, limiter.acquire(chan, "sys.cpu.user",
+        new String[] { "put", "sys.cpu.user", "1365465600", "42",
+            "host=web01", "tenant=a" }));
+    assertNull(limiter.acquire(chan, "sys.cpu.user",
+        new String[] { "put", "sys.cpu.user", "1365465600", "42",
+            "host=web01", "tenants=a", "tenant=c" }));
+    // no tenant
+    tags.remove("tenant");
+    assertNull(limiter.acquire(chan, "sys.cpu.user", tags));
+    assertNull(limiter.acquire(chan, "sys.cpu.user", tags));
+  }
+
+  @Test
+  public void rejectedRefundsWiderLimits() throws Exception {
+    config.overrideConfig("tsd.rpc.rate_limit.connection", "3");
+    config.overrideConfig("tsd.rpc.rate_limit.address", "3");
+    config.overrideConfig("tsd.rpc.rate_limit.tenant", "1");
+    config.overrideConfig("tsd.rpc.rate_limit.tenant_tag", "tenant");
+    final IngestRateLimiter limiter = new IngestRateLimiter(config, ticker);
+    tags.put("tenant", "a");
+    assertNull(limiter.acquire(chan, "sys.cpu.user", tags));
+    // the tenant is over its limit, the connection and address keep their
+    // tokens
+    for (int i = 0; i < 10; i++) {
+      assertEquals(Limit.TENANT, limiter.acquire(chan, "sys.cpu.user", tags));
+    }
+    tags.put("tenant", "b");
+    assertNull(limiter.acquire(chan, "sys.cpu.user", tags));
+    tags.remove("tenant");
+    assertNull(limiter.acquire(chan, "sys.cpu.user", tags));
+    assertEquals(Limit.CONNECTION, 
+        limiter.acquire(chan, "sys.cpu.user", tags));
+  }
+
+  @Test
+  public void tokenBucketRelease() throws Exception {
+    final TokenBucket bucket = new TokenBucket(1, 
+        TimeUnit.SECONDS.toNanos(1), 0);
+    assertTrue(bucket.acquire(0));
+    assertFalse(bucket.acquire(0));
+    bucket.release();
+    assertTrue(bucket.acquire(0));
+    assertFalse(bucket.acquire(0));
+  }
+
+  @Test
+  public void tenantNoTag() throws Exception {
+    config.overrideConfig("tsd.rpc.rate_limit.tenant", "1");
+    final IngestRateLimiter limiter = new IngestRateLimiter(config, ticker);
+    tags.put("tenant", "a");
+    assertNull(limiter.acquire(chan, "sys.cpu.user", tags));
+    assertNull(limiter.acquire(chan, "sys.cpu.user", tags));
+  }
+
+  @Test
+  public void idleBucketsForgotten() throws Exception {
+    config.overrideConfig("tsd.rpc.rate_limit.connection", "1");
+    final IngestRateLimiter limiter = new IngestRateLimiter(config, ticker);
+    assertNull(limiter.acquire(chan, "sys.cpu.user", tags));
+    assertEquals(Limit.CONNECTION, limiter.acquire(chan, "sys.cpu.user", tags));
+    ticker.advance(120000);
+    assertNull(limiter.acquire(chan, "sys.cpu.user", tags));
+    assertEquals(Limit.CONNECTION, limiter.acquire(chan, "sys.cpu.user", tags));
+  }
+
+  private static Channel channel(final String host, final int port) {
+    final Channel chan = mock(Channel.class);
+    when(chan.getRemoteAddress()).thenReturn(
+        new InetSocketAddress(host, port));
+    return chan;
+  }
+
+  /** A ticker moved forward by the tests */
+  private static final class FakeTicker extends Ticker {
+    private long nanos = 42;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(final long ms) {
+      nanos += TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+  }
+}
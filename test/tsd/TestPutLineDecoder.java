@@ -0,0 +1,222 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.Charset;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.opentsdb.core.IncomingDataPoint;
+
+public final class TestPutLineDecoder {
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  private PutLineDecoder decoder;
+
+  @Before
+  public void before() {
+    decoder = new PutLineDecoder();
+  }
+
+  @Test
+  public void parseLong() throws Exception {
+    final PutLineDecoder.PutLine put =
+        parse("put sys.cpu.user 1365465600 42 host=web01 dc=lga");
+    assertEquals("sys.cpu.user", put.metric);
+    assertEquals(1365465600L, put.timestamp);
+    assertTrue(put.is_integer);
+    assertEquals(42, put.long_value);
+    assertEquals(2, put.tags.size());
+    assertEquals("web01", put.tags.get("host"));
+    assertEquals("lga", put.tags.get("dc"));
+  }
+
+  @Test
+  public void parseNegativeLong() throws Exception {
+    assertEquals(-42, parse("put m 1365465600 -42 host=web01").long_value);
+    assertEquals(42, parse("put m 1365465600 +42 host=web01").long_value);
+    assertEquals(Long.MAX_VALUE / 10, parse("put m 1365465600 "
+        + (Long.MAX_VALUE / 10) + " host=web01").long_value);
+  }
+
+  @Test
+  public void parseDouble() throws Exception {
+    final String[] values = { "42.5", "4.2", "-0.1", "0.30000000000001",
+        "5.", ".5", "-.5", "123456.789", "-0.0" };
+    for (final String value : values) {
+      final PutLineDecoder.PutLine put =
+          parse("put m 1365465600 " + value + " host=web01");
+      assertFalse(put.is_integer);
+      assertEquals(Double.doubleToLongBits(Double.parseDouble(value)),
+          Double.doubleToLongBits(put.double_value));
+    }
+  }
+
+  @Test
+  public void parseMilliseconds() throws Exception {
+    assertEquals(1365465600500L,
+        parse("put m 1365465600.500 42 host=web01").timestamp);
+    assertEquals(1365465600500L,
+        parse("put m 1365465600500 42 host=web01").timestamp);
+  }
+
+  @Test
+  public void parseExtraSpaces() throws Exception {
+    final PutLineDecoder.PutLine put =
+        parse("put m 1365465600 42  host=web01   dc=lga ");
+    assertEquals(2, put.tags.size());
+  }
+
+  @Test
+  public void parseNoTags() throws Exception {
+    // too few words is reported by the regular parser, an empty tag isn't
+    assertNull(parse("put m 1365465600 42"));
+    assertEquals(0, parse("put m 1365465600 42 ").tags.size());
+  }
+
+  @Test
+  public void parseSameTagTwice() throws Exception {
+    assertEquals(1, parse("put m 1365465600 42 host=web01 host=web01")
+        .tags.size());
+  }
+
+  @Test
+  public void parseLeftToRegularParser() throws Exception {
+    final String[] lines = {
+        "version",
+        "rollup 1h-sum m 1365465600 42 host=web01",
+        "PUT m 1365465600 42 host=web01",
+        "put  m 1365465600 42 host=web01",
+        "put m  1365465600 42 host=web01",
+        "put m 1365465600  42 host=web01",
+        "put m 0 42 host=web01",
+        "put m -1365465600 42 host=web01",
+        "put m 136546560O 42 host=web01",
+        "put m 12345678901234567890 42 host=web01",
+        "put m 1365465600 4.2e3 host=web01",
+        "put m 1365465600 NaN host=web01",
+        "put m 1365465600 0x2A host=web01",
+        "put m 1365465600 . host=web01",
+        "put m 1365465600 - host=web01",
+        "put m 1365465600 1.2.3 host=web01",
+        "put m 1365465600 1234567890123456789 host=web01",
+        "put m 1365465600 1.234567890123456 host=web01",
+        "put m 1365465600 42 host",
+        "put m 1365465600 42 host=",
+        "put m 1365465600 42 =web01",
+        "put m 1365465600 42 host=web01=web02",
+        "put m 1365465600 42 host=web01 host=web02",
+    };
+    for (final String line : lines) {
+      assertNull(line, parse(line));
+    }
+  }
+
+  @Test
+  public void parseSharesStrings() throws Exception {
+    final PutLineDecoder.PutLine first =
+        parse("put sys.cpu.user 1365465600 42 host=web01");
+    final PutLineDecoder.PutLine second =
+        parse("put sys.cpu.user 1365465601 24 host=web01");
+    assertSame(first.metric, second.metric);
+    assertSame(first.tags.get("host"), second.tags.get("host"));
+    assertSame(first.tags.keySet().iterator().next(),
+        second.tags.keySet().iterator().next());
+  }
+
+  @Test
+  public void parseSlice() throws Exception {
+    final ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(
+        "xxput m 1365465600 42 host=web01yy".getBytes(CHARSET));
+    final PutLineDecoder.PutLine put =
+        decoder.parse(buffer.slice(2, buffer.capacity() - 4));
+    assertEquals("m", put.metric);
+    assertEquals("web01", put.tags.get("host"));
+  }
+
+  @Test
+  public void parseDirectBuffer() throws Exception {
+    final byte[] line = "put m 1365465600 42 host=web01".getBytes(CHARSET);
+    final ChannelBuffer buffer = ChannelBuffers.directBuffer(line.length);
+    buffer.writeBytes(line);
+    assertEquals(42, decoder.parse(buffer).long_value);
+  }
+
+  @Test
+  public void words() throws Exception {
+    assertArrayEquals(new String[] { "put", "m", "1365465600500", "4.5",
+        "host=web01" }, parse("put m 1365465600.500 4.5 host=web01").words());
+    assertEquals("put m 1365465600 42 host=web01",
+        parse("put m 1365465600 42 host=web01").toString());
+  }
+
+  @Test
+  public void toDataPoint() throws Exception {
+    final IncomingDataPoint dp =
+        parse("put m 1365465600 42 host=web01").toDataPoint();
+    assertEquals("m", dp.getMetric());
+    assertEquals(1365465600L, dp.getTimestamp());
+    assertEquals("42", dp.getValue());
+    assertEquals("web01", dp.getTags().get("host"));
+  }
+
+  @Test
+  public void decode() throws Exception {
+    final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+    final ChannelPipeline pipeline = mock(ChannelPipeline.class);
+    when(ctx.getPipeline()).thenReturn(pipeline);
+
+    assertTrue(decoder.decode(ctx, null, buffer(
+        "put m 1365465600 42 host=web01")) instanceof PutLineDecoder.PutLine);
+    assertArrayEquals(new String[] { "put", "m", "1365465600", "4.2e3",
+        "host=web01" }, (String[]) decoder.decode(ctx, null,
+            buffer("put m 1365465600 4.2e3 host=web01")));
+    assertArrayEquals(new String[] { "version" },
+        (String[]) decoder.decode(ctx, null, buffer("version")));
+  }
+
+  @Test
+  public void decodeNotAuthenticated() throws Exception {
+    final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+    final ChannelPipeline pipeline = mock(ChannelPipeline.class);
+    when(ctx.getPipeline()).thenReturn(pipeline);
+    when(pipeline.get("authentication")).thenReturn(mock(ChannelHandler.class));
+
+    assertArrayEquals(new String[] { "put", "m", "1365465600", "42",
+        "host=web01" }, (String[]) decoder.decode(ctx, null,
+            buffer("put m 1365465600 42 host=web01")));
+  }
+
+  private PutLineDecoder.PutLine parse(final String line) {
+    return decoder.parse(buffer(line));
+  }
+
+  private static ChannelBuffer buffer(final String line) {
+    return ChannelBuffers.wrappedBuffer(line.getBytes(CHARSET));
+  }
+}
@@ -32,6 +32,7 @@ import java.util.HashMap;
 import org.hbase.async.HBaseException;
 import org.hbase.async.PleaseThrottleException;
 import org.hbase.async.PutRequest;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.junit.Test;
@@ -49,6 +50,11 @@ import com.stumbleupon.async.Deferred;
              "com.sum.*", "org.xml.*"})
 public final class TestPutRpc extends BaseTestPutRpc {
   
+  private static PutLineDecoder.PutLine putLine(final String line) {
+    return new PutLineDecoder().parse(ChannelBuffers.wrappedBuffer(
+        line.getBytes(Charset.forName("ISO-8859-1"))));
+  }
+
   @Test
   public void constructor() {
     assertNotNull(new PutDataPointRpc(tsdb.getConfig()));
@@ -187,6 +193,96 @@ public final class TestPutRpc extends BaseTestPutRpc {
     validateSEH(true);
   }
 
+  @Test
+  public void executePutLine() throws Exception {
+    final PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    final Channel chan = NettyMocks.fakeChannel();
+    put.executePut(tsdb, chan, putLine("put " + METRIC_STRING + " 1365465600 42 "
+        + TAGK_STRING + "=" + TAGV_STRING)).joinUninterruptibly();
+    validateCounters(1, 0, 1, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+    verify(chan, never()).write(any());
+    verify(tsdb, times(1)).addPoint(METRIC_STRING, 1365465600L, 42L, tags);
+    validateSEH(false);
+  }
+
+  @Test
+  public void executePutLineFloat() throws Exception {
+    final PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    final Channel chan = NettyMocks.fakeChannel();
+    put.executePut(tsdb, chan, putLine("put " + METRIC_STRING + " 1365465600 "
+        + "42.5 " + TAGK_STRING + "=" + TAGV_STRING)).joinUninterruptibly();
+    put.executePut(tsdb, chan, putLine("put " + METRIC_STRING + " 1365465600 "
+        + "4.2 " + TAGK_STRING + "=" + TAGV_STRING)).joinUninterruptibly();
+    verify(tsdb, times(1)).addPoint(METRIC_STRING, 1365465600L, 42.5F, tags);
+    verify(tsdb, times(1)).addPoint(METRIC_STRING, 1365465600L, 4.2D, tags);
+  }
+
+  @Test
+  public void executePutLineUnknownMetric() throws Exception {
+    final PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    final Channel chan = NettyMocks.fakeChannel();
+    put.executePut(tsdb, chan, putLine("put " + NSUN_METRIC + " 1365465600 42 "
+        + TAGK_STRING + "=" + TAGV_STRING)).joinUninterruptibly();
+    validateCounters(1, 0, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0);
+    verify(chan, times(1)).write(any());
+    validateSEH(false);
+  }
+
+  @Test
+  public void executePutLineHBaseErrorHandler() throws Exception {
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(Deferred.fromError(mock(HBaseException.class)));
+    setStorageExceptionHandler();
+    
+    final PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    final Channel chan = NettyMocks.fakeChannel();
+    put.executePut(tsdb, chan, putLine("put " + METRIC_STRING + " 1365465600 42 "
+        + TAGK_STRING + "=" + TAGV_STRING)).joinUninterruptibly();
+    validateCounters(1, 0, 1, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0);
+    verify(chan, times(1)).write(any());
+    validateSEH(true);
+  }
+
+  @Test
+  public void executeAdmissionPausesChannel() throws Exception {
+    final Deferred<Object> write = new Deferred<Object>();
+    when(client.put(any(PutRequest.class))).thenReturn(write);
+    tsdb.getConfig().overrideConfig("tsd.rpc.admission.max_pending_puts", "1");
+    tsdb.getConfig().overrideConfig("tsd.rpc.admission.resume_pending_puts", 
+        "0");
+    final PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    put.setAdmissionController(new AdmissionController(tsdb));
+    final Channel chan = NettyMocks.fakeChannel();
+    final Deferred<Object> result = put.execute(tsdb, chan, new String[] { 
+        "put", METRIC_STRING, "1365465600", "42", 
+        TAGK_STRING + "=" + TAGV_STRING });
+    verify(chan, times(1)).setReadable(false);
+    verify(chan, never()).setReadable(true);
+    
+    write.callback(null);
+    result.joinUninterruptibly();
+    verify(chan, times(1)).setReadable(true);
+    validateCounters(1, 0, 1, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+  }
+
+  @Test
+  public void executeRateLimited() throws Exception {
+    tsdb.getConfig().overrideConfig("tsd.rpc.rate_limit.connection", "1");
+    final PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    put.setRateLimiter(new IngestRateLimiter(tsdb.getConfig()));
+    final Channel chan = NettyMocks.fakeChannel();
+    put.execute(tsdb, chan, new String[] { "put", METRIC_STRING, 
+        "1365465600", "42", TAGK_STRING + "=" + TAGV_STRING })
+      .joinUninterruptibly();
+    put.executePut(tsdb, chan, putLine("put " + METRIC_STRING 
+        + " 1365465601 42 " + TAGK_STRING + "=" + TAGV_STRING))
+      .joinUninterruptibly();
+    validateCounters(2, 0, 2, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+    verify(tsdb, times(1)).addPoint(anyString(), anyLong(), anyLong(), 
+        (HashMap<String, String>)any());
+    verify(chan, times(1)).write("put: Rate limit per connection exceeded\n");
+  }
+
   @Test
   public void executePleaseThrottle() throws Exception {
     when(client.put(any(PutRequest.class)))
@@ -303,6 +399,56 @@ public final class TestPutRpc extends BaseTestPutRpc {
     validateSEH(false);
   }
 
+  @Test
+  public void putAdmissionRejected() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", 
+        "{\"metric\":\"" + METRIC_STRING + "\",\"timestamp\":1365465600,\"value\""
+        +":42,\"tags\":{\"" + TAGK_STRING + "\":\"" + TAGV_STRING + "\"}}");
+    tsdb.getConfig().overrideConfig("tsd.rpc.admission.max_pending_puts", "1");
+    tsdb.getConfig().overrideConfig("tsd.rpc.admission.resume_pending_puts", 
+        "0");
+    final AdmissionController admission = new AdmissionController(tsdb);
+    admission.track(new Deferred<Object>());
+    PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    put.setAdmissionController(admission);
+    try {
+      put.execute(tsdb, query);
+      fail("Expected a BadRequestException");
+    } catch (BadRequestException e) {
+      assertEquals(HttpResponseStatus.TOO_MANY_REQUESTS, e.getStatus());
+    }
+    assertEquals("1", query.response().headers().get("Retry-After"));
+    validateCounters(0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+    verify(tsdb, never()).addPoint(anyString(), anyLong(), anyLong(), 
+        (HashMap<String, String>)any());
+  }
+
+  @Test
+  public void putRateLimited() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put?details", 
+        "[{\"metric\":\"" + METRIC_STRING + "\",\"timestamp\":1365465600,\"value\""
+        + ":42,\"tags\":{\"" + TAGK_STRING + "\":\"" + TAGV_STRING 
+        + "\"}},{\"metric\":\"" + METRIC_B_STRING + "\","
+        + "\"timestamp\":1365465600,\"value\":24,\"tags\":"
+        + "{\"" + TAGK_STRING + "\":\"" + TAGV_STRING + "\"}}]");
+    tsdb.getConfig().overrideConfig("tsd.rpc.rate_limit.metric_prefixes", 
+        METRIC_B_STRING + ":1");
+    final IngestRateLimiter rate_limiter = 
+        new IngestRateLimiter(tsdb.getConfig());
+    // use up the token
+    rate_limiter.acquire(null, METRIC_B_STRING, tags);
+    PutDataPointRpc put = new PutDataPointRpc(tsdb.getConfig());
+    put.setRateLimiter(rate_limiter);
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.BAD_REQUEST, query.response().getStatus());
+    final String response = 
+        query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(response.contains("\"failed\":1"));
+    assertTrue(response.contains("\"success\":1"));
+    assertTrue(response.contains("Rate limit exceeded"));
+    validateCounters(0, 1, 2, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+  }
+
   @Test
   public void putTwo() throws Exception {
     HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", 
@@ -13,12 +13,15 @@
 package net.opentsdb.tsd;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 
@@ -44,10 +47,14 @@ import net.opentsdb.storage.MockDataPoints;
 import net.opentsdb.utils.Config;
 import net.opentsdb.utils.DateTime;
 
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
@@ -548,6 +555,50 @@ public final class TestQueryRpc {
     assertTrue(json.contains("\"metric\":\"system.cpu.user\""));
   }
 
+  @Test
+  public void executeURIStreamed() throws Exception {
+    tsdb.getConfig().overrideConfig("tsd.http.query.stream.enable", "true");
+    tsdb.getConfig().overrideConfig("tsd.http.query.stream.chunk_size", "64");
+    final DataPoints[] datapoints = new DataPoints[1];
+    datapoints[0] = new MockDataPoints().getMock();
+    when(query_result.runAsync()).thenReturn(
+        Deferred.fromResult(datapoints));
+
+    final HttpQuery query = NettyMocks.getQuery(tsdb,
+        "/api/query?start=1h-ago&m=sum:sys.cpu.user");
+    final ChannelFuture future = 
+        new DefaultChannelFuture(query.channel(), false);
+    future.setSuccess();
+    when(query.channel().write(any())).thenReturn(future);
+    rpc.execute(tsdb, query);
+    assertTrue(query.isChunkedReply());
+    
+    final ArgumentCaptor<Object> writes = ArgumentCaptor.forClass(Object.class);
+    verify(query.channel(), atLeastOnce()).write(writes.capture());
+    final StringBuilder json = new StringBuilder();
+    for (final Object write : writes.getAllValues()) {
+      if (write instanceof HttpChunk) {
+        json.append(((HttpChunk) write).getContent()
+            .toString(Charset.forName("UTF-8")));
+      }
+    }
+    assertTrue(json.toString().contains("\"metric\":\"system.cpu.user\""));
+    assertTrue(json.toString().endsWith("]"));
+  }
+
+  @Test
+  public void executeURIStreamedSmall() throws Exception {
+    tsdb.getConfig().overrideConfig("tsd.http.query.stream.enable", "true");
+    final HttpQuery query = NettyMocks.getQuery(tsdb,
+        "/api/query?start=1h-ago&m=sum:sys.cpu.user");
+    NettyMocks.mockChannelFuture(query);
+    rpc.execute(tsdb, query);
+    assertFalse(query.isChunkedReply());
+    final String json =
+        query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertEquals("[]", json);
+  }
+
   @Test
   public void executeURIDuplicates() throws Exception {
     final DataPoints[] datapoints = new DataPoints[1];
@@ -0,0 +1,305 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyFloat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.hbase.async.HBaseException;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.TimeoutException;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.rollup.RollUpDataPoint;
+import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.utils.Config;
+
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ TSDB.class })
+public final class TestSpoolingStorageExceptionHandler {
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private TSDB tsdb;
+  private Config config;
+  private Timer timer;
+  private File directory;
+  private HashMap<String, String> tags;
+
+  @Before
+  public void before() throws Exception {
+    directory = new File(folder.getRoot(), "spool");
+    config = new Config(false);
+    config.overrideConfig("tsd.core.storage_exception_handler.spool.directory",
+        directory.getPath());
+    config.overrideConfig(
+        "tsd.core.storage_exception_handler.spool.segment_size", "1024");
+    config.overrideConfig(
+        "tsd.core.storage_exception_handler.spool.replay_rate", "2");
+    timer = mock(Timer.class);
+    tsdb = mock(TSDB.class);
+    when(tsdb.getConfig()).thenReturn(config);
+    when(tsdb.getTimer()).thenReturn(timer);
+    when(tsdb.addPoint(anyString(), anyLong(), anyLong(), anyMap()))
+      .thenReturn(Deferred.<Object>fromResult(null));
+    when(tsdb.addPoint(anyString(), anyLong(), anyFloat(), anyMap()))
+      .thenReturn(Deferred.<Object>fromResult(null));
+    tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+  }
+
+  @Test
+  public void initialize() throws Exception {
+    final SpoolingStorageExceptionHandler spool = newSpool();
+    assertTrue(directory.isDirectory());
+    assertEquals(0, spool.depth());
+    assertEquals(0, spool.segments());
+    verify(timer, times(1)).newTimeout(any(TimerTask.class), eq(1000L),
+        eq(TimeUnit.MILLISECONDS));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void initializeNoDirectory() throws Exception {
+    config.overrideConfig("tsd.core.storage_exception_handler.spool.directory",
+        "");
+    newSpool();
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void initializeSegmentTooSmall() throws Exception {
+    config.overrideConfig(
+        "tsd.core.storage_exception_handler.spool.segment_size", "512");
+    newSpool();
+  }
+
+  @Test
+  public void spoolAndReplay() throws Exception {
+    final SpoolingStorageExceptionHandler spool = newSpool();
+    spool.handleError(dp(1365465600L, "42"), storageError());
+    spool.handleError(dp(1365465601L, "4.5"), storageError());
+    spool.handleError(dp(1365465602L, "24"), storageError());
+    assertEquals(3, spool.depth());
+    assertEquals(1, spool.segments());
+
+    // two per replay
+    assertEquals(2, spool.replay());
+    verify(tsdb, times(1)).addPoint("sys.cpu.user", 1365465600L, 42L, tags);
+    verify(tsdb, times(1)).addPoint("sys.cpu.user", 1365465601L, 4.5F, tags);
+    assertEquals(1, spool.depth());
+    assertEquals(1, spool.replay());
+    verify(tsdb, times(1)).addPoint("sys.cpu.user", 1365465602L, 24L, tags);
+    assertEquals(0, spool.depth());
+
+    // the drained segment is deleted
+    assertEquals(0, spool.replay());
+    assertEquals(0, spool.segments());
+    assertEquals(0, directory.list().length);
+  }
+
+  @Test
+  public void replayFailureRespools() throws Exception {
+    when(tsdb.addPoint(anyString(), anyLong(), anyLong(), anyMap()))
+      .thenReturn(Deferred.<Object>fromError(mock(HBaseException.class)));
+    final SpoolingStorageExceptionHandler spool = newSpool();
+    spool.handleError(dp(1365465600L, "42"), storageError());
+    assertEquals(1, spool.replay());
+    assertEquals(1, spool.depth());
+
+    when(tsdb.addPoint(anyString(), anyLong(), anyLong(), anyMap()))
+      .thenReturn(Deferred.<Object>fromResult(null));
+    assertEquals(1, spool.replay());
+    assertEquals(0, spool.depth());
+    verify(tsdb, times(2)).addPoint("sys.cpu.user", 1365465600L, 42L, tags);
+  }
+
+  @Test
+  public void replayWaitsForOutstanding() throws Exception {
+    final Deferred<Object> pending = new Deferred<Object>();
+    when(tsdb.addPoint(anyString(), anyLong(), anyLong(), anyMap()))
+      .thenReturn(pending);
+    final SpoolingStorageExceptionHandler spool = newSpool();
+    spool.handleError(dp(1365465600L, "42"), storageError());
+    spool.handleError(dp(1365465601L, "42"), storageError());
+    spool.handleError(dp(1365465602L, "42"), storageError());
+    assertEquals(2, spool.replay());
+    assertEquals(0, spool.replay());
+    pending.callback(null);
+    assertEquals(1, spool.replay());
+  }
+
+  @Test
+  public void recoverOnRestart() throws Exception {
+    SpoolingStorageExceptionHandler spool = newSpool();
+    for (int i = 0; i < 40; i++) {
+      spool.handleError(dp(1365465600L + i, "42"), storageError());
+    }
+    assertTrue(spool.segments() > 1);
+    final int segments = spool.segments();
+    spool.shutdown().joinUninterruptibly();
+
+    spool = newSpool();
+    assertEquals(40, spool.depth());
+    assertEquals(segments, spool.segments());
+    // new data points go to a new segment
+    spool.handleError(dp(1365465700L, "42"), storageError());
+    assertEquals(segments + 1, spool.segments());
+    int replayed = 0;
+    for (int i = 0; i < 30; i++) {
+      replayed += spool.replay();
+    }
+    assertEquals(41, replayed);
+    assertEquals(0, spool.depth());
+    assertEquals(0, spool.segments());
+  }
+
+  @Test
+  public void spoolFull() throws Exception {
+    config.overrideConfig(
+        "tsd.core.storage_exception_handler.spool.max_size", "1024");
+    final SpoolingStorageExceptionHandler spool = newSpool();
+    for (int i = 0; i < 100; i++) {
+      spool.handleError(dp(1365465600L + i, "42"), storageError());
+    }
+    assertEquals(1, spool.segments());
+    assertTrue(spool.depth() < 100);
+  }
+
+  @Test
+  public void rollupsNotSpooled() throws Exception {
+    final SpoolingStorageExceptionHandler spool = newSpool();
+    spool.handleError(new RollUpDataPoint(), storageError());
+    spool.handleError(null, storageError());
+    assertEquals(0, spool.depth());
+    assertEquals(0, spool.segments());
+  }
+
+  @Test
+  public void badValueNotSpooled() throws Exception {
+    final SpoolingStorageExceptionHandler spool = newSpool();
+    spool.handleError(dp(1365465600L, "notanumber"), storageError());
+    assertEquals(0, spool.depth());
+    assertFalse(directory.list().length > 0);
+  }
+
+  @Test
+  public void runSkipsAfterFailure() throws Exception {
+    when(tsdb.addPoint(anyString(), anyLong(), anyLong(), anyMap()))
+      .thenReturn(Deferred.<Object>fromError(mock(HBaseException.class)));
+    final SpoolingStorageExceptionHandler spool = newSpool();
+    spool.handleError(dp(1365465600L, "42"), storageError());
+    spool.run(null);
+    verify(tsdb, times(1)).addPoint("sys.cpu.user", 1365465600L, 42L, tags);
+    // backing off
+    spool.run(null);
+    verify(tsdb, times(1)).addPoint("sys.cpu.user", 1365465600L, 42L, tags);
+    spool.run(null);
+    verify(tsdb, times(2)).addPoint("sys.cpu.user", 1365465600L, 42L, tags);
+  }
+
+  @Test
+  public void runAfterShutdown() throws Exception {
+    final SpoolingStorageExceptionHandler spool = newSpool();
+    spool.handleError(dp(1365465600L, "42"), storageError());
+    spool.shutdown();
+    spool.run(null);
+    verify(tsdb, never()).addPoint(anyString(), anyLong(), anyLong(),
+        anyMap());
+  }
+
+  @Test
+  public void permanentErrorNotSpooled() throws Exception {
+    final SpoolingStorageExceptionHandler spool = newSpool();
+    spool.handleError(dp(1365465600L, "42"),
+        new NoSuchUniqueName("metrics", "sys.cpu.user"));
+    spool.handleError(dp(1365465601L, "42"),
+        new IllegalArgumentException("Boo!"));
+    assertEquals(0, spool.depth());
+    assertEquals(0, spool.segments());
+  }
+
+  @Test
+  public void timeoutSpooled() throws Exception {
+    final SpoolingStorageExceptionHandler spool = newSpool();
+    TimeoutException timeout = null;
+    try {
+      new Deferred<Object>().join(1);
+    } catch (TimeoutException e) {
+      timeout = e;
+    }
+    spool.handleError(dp(1365465600L, "42"), timeout);
+    assertEquals(1, spool.depth());
+  }
+
+  @Test
+  public void replayPermanentErrorDropped() throws Exception {
+    when(tsdb.addPoint(anyString(), anyLong(), anyLong(), anyMap()))
+      .thenReturn(Deferred.<Object>fromError(
+          new NoSuchUniqueName("metrics", "sys.cpu.user")));
+    final SpoolingStorageExceptionHandler spool = newSpool();
+    spool.handleError(dp(1365465600L, "42"), storageError());
+    assertEquals(1, spool.replay());
+    assertEquals(0, spool.depth());
+
+    // not put back and no backoff, the drained segment goes on the next run
+    spool.run(null);
+    assertEquals(0, spool.segments());
+    verify(tsdb, times(1)).addPoint("sys.cpu.user", 1365465600L, 42L, tags);
+  }
+
+  private SpoolingStorageExceptionHandler newSpool() {
+    final SpoolingStorageExceptionHandler spool =
+        new SpoolingStorageExceptionHandler();
+    spool.initialize(tsdb);
+    return spool;
+  }
+
+  private HBaseException storageError() {
+    return mock(HBaseException.class);
+  }
+
+  private IncomingDataPoint dp(final long timestamp, final String value) {
+    return new IncomingDataPoint("sys.cpu.user", timestamp, value,
+        new HashMap<String, String>(tags));
+  }
+}
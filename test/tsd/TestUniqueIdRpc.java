@@ -23,6 +23,7 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 
+import net.opentsdb.core.BaseTsdbTest;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.meta.TSMeta;
 import net.opentsdb.meta.UIDMeta;
@@ -1135,6 +1136,9 @@ public final class TestUniqueIdRpc {
     Field tagv = tsdb.getClass().getDeclaredField("tag_values");
     tagv.setAccessible(true);
     tagv.set(tsdb, tag_values);
+    BaseTsdbTest.mockBatchedLookups(metrics);
+    BaseTsdbTest.mockBatchedLookups(tag_names);
+    BaseTsdbTest.mockBatchedLookups(tag_values);
     
     storage = new MockBase(tsdb, client, true, true, true, true);
     final List<byte[]> families = new ArrayList<byte[]>(1);
@@ -0,0 +1,203 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestPrimitiveUidCache {
+  private static final byte[] ID = { 0, 0, 1 };
+  private static final byte[] ID2 = { 0, 0, 2 };
+
+  private PrimitiveUidCache cache;
+
+  @Before
+  public void before() {
+    cache = new PrimitiveUidCache((short) 3, 0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadWidth() {
+    new PrimitiveUidCache((short) 9, 0);
+  }
+
+  @Test
+  public void bothDirections() {
+    assertNull(cache.putIdIfAbsent("sys.cpu.user", ID));
+    assertNull(cache.putNameIfAbsent(ID, "sys.cpu.user"));
+    assertArrayEquals(ID, cache.getId("sys.cpu.user"));
+    assertEquals("sys.cpu.user", cache.getName(ID));
+    assertEquals(1, cache.nameCount());
+    assertEquals(1, cache.idCount());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void oneDirection() {
+    assertNull(cache.putIdIfAbsent("sys.cpu.user", ID));
+    assertArrayEquals(ID, cache.getId("sys.cpu.user"));
+    assertNull(cache.getName(ID));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void missing() {
+    assertNull(cache.getId("sys.cpu.user"));
+    assertNull(cache.getName(ID));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void putIfAbsentReturnsExisting() {
+    cache.putIdIfAbsent("sys.cpu.user", ID);
+    cache.putNameIfAbsent(ID, "sys.cpu.user");
+    assertArrayEquals(ID, cache.putIdIfAbsent("sys.cpu.user", ID2));
+    assertEquals("sys.cpu.user", cache.putNameIfAbsent(ID, "sys.cpu.nice"));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void getIdReturnsCopy() {
+    cache.putIdIfAbsent("sys.cpu.user", ID);
+    cache.getId("sys.cpu.user")[2] = 42;
+    assertArrayEquals(ID, cache.getId("sys.cpu.user"));
+  }
+
+  @Test
+  public void rename() {
+    cache.putIdIfAbsent("sys.cpu.user", ID);
+    cache.putNameIfAbsent(ID, "sys.cpu.user");
+    cache.putIdIfAbsent("sys.cpu.nice", ID);
+    cache.putName(ID, "sys.cpu.nice");
+    cache.removeName("sys.cpu.user");
+    assertEquals("sys.cpu.nice", cache.getName(ID));
+    assertArrayEquals(ID, cache.getId("sys.cpu.nice"));
+    assertNull(cache.getId("sys.cpu.user"));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void remove() {
+    cache.putIdIfAbsent("sys.cpu.user", ID);
+    cache.putNameIfAbsent(ID, "sys.cpu.user");
+    cache.removeName("sys.cpu.user");
+    assertNull(cache.getId("sys.cpu.user"));
+    assertEquals("sys.cpu.user", cache.getName(ID));
+    cache.removeId(ID);
+    assertNull(cache.getName(ID));
+    assertEquals(0, cache.size());
+    // removing again is a no-op
+    cache.removeId(ID);
+    cache.removeName("sys.cpu.user");
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void notCacheable() {
+    final String name = "sys.cpu.\u2603";
+    assertNull(cache.putIdIfAbsent(name, ID));
+    assertNull(cache.putNameIfAbsent(ID, name));
+    assertNull(cache.getId(name));
+    assertNull(cache.getName(ID));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void latin1Names() {
+    final String name = "sys.cpu.\u00e9t\u00e9";
+    cache.putIdIfAbsent(name, ID);
+    cache.putNameIfAbsent(ID, name);
+    assertArrayEquals(ID, cache.getId(name));
+    assertEquals(name, cache.getName(ID));
+    assertNull(cache.getId("sys.cpu.ete"));
+  }
+
+  @Test
+  public void fullWidth() {
+    cache = new PrimitiveUidCache((short) 8, 0);
+    final byte[] id = { (byte) 0xFF, 1, 2, 3, 4, 5, 6, (byte) 0x80 };
+    cache.putIdIfAbsent("foo", id);
+    cache.putNameIfAbsent(id, "foo");
+    assertArrayEquals(id, cache.getId("foo"));
+    assertEquals("foo", cache.getName(id));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void wrongIdLength() {
+    cache.getName(new byte[] { 0, 1 });
+  }
+
+  @Test
+  public void maxEntries() {
+    cache = new PrimitiveUidCache((short) 3, 2);
+    cache.putIdIfAbsent("a", id(1));
+    cache.putNameIfAbsent(id(1), "a");
+    cache.putIdIfAbsent("b", id(2));
+    cache.putIdIfAbsent("c", id(3));
+    assertNull(cache.getId("c"));
+    assertEquals(1, cache.rejected());
+    assertEquals(3, cache.size());
+    // freeing up an entry makes room again
+    cache.removeName("b");
+    cache.putIdIfAbsent("c", id(3));
+    assertArrayEquals(id(3), cache.getId("c"));
+  }
+
+  @Test
+  public void growAndCompact() {
+    for (int i = 0; i < 10000; i++) {
+      cache.putIdIfAbsent("name" + i, id(i));
+      cache.putNameIfAbsent(id(i), "name" + i);
+    }
+    assertEquals(20000, cache.size());
+    // churn through removals to trigger compactions
+    for (int i = 0; i < 10000; i += 2) {
+      cache.removeName("name" + i);
+      cache.removeId(id(i));
+    }
+    for (int i = 10000; i < 30000; i++) {
+      cache.putIdIfAbsent("name" + i, id(i));
+      cache.putNameIfAbsent(id(i), "name" + i);
+    }
+    for (int i = 0; i < 30000; i++) {
+      if (i < 10000 && i % 2 == 0) {
+        assertNull(cache.getId("name" + i));
+        assertNull(cache.getName(id(i)));
+      } else {
+        assertArrayEquals(id(i), cache.getId("name" + i));
+        assertEquals("name" + i, cache.getName(id(i)));
+      }
+    }
+    assertEquals(50000, cache.size());
+    assertTrue(cache.memoryBytes() > 0);
+  }
+
+  @Test
+  public void clear() {
+    cache.putIdIfAbsent("sys.cpu.user", ID);
+    cache.putNameIfAbsent(ID, "sys.cpu.user");
+    cache.clear();
+    assertNull(cache.getId("sys.cpu.user"));
+    assertNull(cache.getName(ID));
+    assertEquals(0, cache.size());
+  }
+
+  private static byte[] id(final int i) {
+    return new byte[] { (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+  }
+}
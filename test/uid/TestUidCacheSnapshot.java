@@ -0,0 +1,298 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2018  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ HBaseClient.class, TSDB.class })
+public final class TestUidCacheSnapshot {
+  private static final byte[] TABLE = { 't', 's', 'd', 'b', '-', 'u', 'i', 'd' };
+  private static final byte[] FOO = { 0, 0, 1 };
+  private static final byte[] BAR = { 0, 0, 2 };
+  private static final byte[] WEB = { 0, 0, 3 };
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private TSDB tsdb;
+  private Config config;
+  private HBaseClient client;
+  private File file;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = mock(TSDB.class);
+    client = mock(HBaseClient.class);
+    config = new Config(false);
+    file = new File(folder.getRoot(), "uid.snapshot");
+    config.overrideConfig("tsd.uid.snapshot.path", file.getPath());
+    when(tsdb.getClient()).thenReturn(client);
+    when(tsdb.getConfig()).thenReturn(config);
+    when(tsdb.uidTable()).thenReturn(TABLE);
+    maxIds(3, 1);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNoPath() {
+    config.overrideConfig("tsd.uid.snapshot.path", "");
+    new UidCacheSnapshot(tsdb, new ArrayList<UniqueId>());
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    final UniqueId metrics = newUniqueId("metrics", 3);
+    final UniqueId tagks = newUniqueId("tagk", 3);
+    populate(metrics, tagks);
+    new UidCacheSnapshot(tsdb, Arrays.asList(metrics, tagks)).write();
+    assertTrue(file.exists());
+    assertFalse(new File(file.getPath() + ".tmp").exists());
+
+    final UniqueId loaded_metrics = newUniqueId("metrics", 3);
+    final UniqueId loaded_tagks = newUniqueId("tagk", 3);
+    assertTrue(new UidCacheSnapshot(tsdb,
+        Arrays.asList(loaded_metrics, loaded_tagks)).load());
+    assertLoaded(loaded_metrics, loaded_tagks);
+  }
+
+  @Test
+  public void roundTripPrimitiveCache() throws Exception {
+    config.overrideConfig("tsd.uid.primitive_cache.enable", "true");
+    final UniqueId metrics = newUniqueId("metrics", 3);
+    final UniqueId tagks = newUniqueId("tagk", 3);
+    populate(metrics, tagks);
+    new UidCacheSnapshot(tsdb, Arrays.asList(metrics, tagks)).write();
+
+    final UniqueId loaded_metrics = newUniqueId("metrics", 3);
+    final UniqueId loaded_tagks = newUniqueId("tagk", 3);
+    assertTrue(new UidCacheSnapshot(tsdb,
+        Arrays.asList(loaded_metrics, loaded_tagks)).load());
+    assertLoaded(loaded_metrics, loaded_tagks);
+  }
+
+  @Test
+  public void loadIntoPrimitiveCache() throws Exception {
+    final UniqueId metrics = newUniqueId("metrics", 3);
+    final UniqueId tagks = newUniqueId("tagk", 3);
+    populate(metrics, tagks);
+    new UidCacheSnapshot(tsdb, Arrays.asList(metrics, tagks)).write();
+
+    config.overrideConfig("tsd.uid.primitive_cache.enable", "true");
+    final UniqueId loaded_metrics = newUniqueId("metrics", 3);
+    final UniqueId loaded_tagks = newUniqueId("tagk", 3);
+    assertTrue(new UidCacheSnapshot(tsdb,
+        Arrays.asList(loaded_metrics, loaded_tagks)).load());
+    assertLoaded(loaded_metrics, loaded_tagks);
+  }
+
+  @Test
+  public void writeReplacesPrevious() throws Exception {
+    final UniqueId metrics = newUniqueId("metrics", 3);
+    final UidCacheSnapshot snapshot =
+        new UidCacheSnapshot(tsdb, Arrays.asList(metrics));
+    metrics.loadCacheMapping("sys.cpu.user", FOO, true, true);
+    snapshot.write();
+    metrics.loadCacheMapping("sys.cpu.nice", BAR, true, true);
+    snapshot.write();
+
+    final UniqueId loaded = newUniqueId("metrics", 3);
+    assertTrue(new UidCacheSnapshot(tsdb, Arrays.asList(loaded)).load());
+    assertEquals(4, loaded.cacheSize());
+  }
+
+  @Test
+  public void loadMissing() throws Exception {
+    final UniqueId metrics = newUniqueId("metrics", 3);
+    assertFalse(new UidCacheSnapshot(tsdb, Arrays.asList(metrics)).load());
+    assertEquals(0, metrics.cacheSize());
+  }
+
+  @Test
+  public void loadEmpty() throws Exception {
+    final UniqueId metrics = newUniqueId("metrics", 3);
+    new UidCacheSnapshot(tsdb, Arrays.asList(metrics)).write();
+    assertFalse(new UidCacheSnapshot(tsdb, Arrays.asList(metrics)).load());
+    verify(client, never()).get(any(GetRequest.class));
+  }
+
+  @Test
+  public void loadCorrupted() throws Exception {
+    final UniqueId metrics = newUniqueId("metrics", 3);
+    final UniqueId tagks = newUniqueId("tagk", 3);
+    populate(metrics, tagks);
+    new UidCacheSnapshot(tsdb, Arrays.asList(metrics, tagks)).write();
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.seek(20);
+      final int b = raf.read();
+      raf.seek(20);
+      raf.write(b ^ 0xFF);
+    } finally {
+      raf.close();
+    }
+
+    final UniqueId loaded = newUniqueId("metrics", 3);
+    assertFalse(new UidCacheSnapshot(tsdb, Arrays.asList(loaded)).load());
+    assertEquals(0, loaded.cacheSize());
+  }
+
+  @Test
+  public void loadTruncated() throws Exception {
+    final UniqueId metrics = newUniqueId("metrics", 3);
+    final UniqueId tagks = newUniqueId("tagk", 3);
+    populate(metrics, tagks);
+    new UidCacheSnapshot(tsdb, Arrays.asList(metrics, tagks)).write();
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(raf.length() / 2);
+    } finally {
+      raf.close();
+    }
+
+    final UniqueId loaded = newUniqueId("metrics", 3);
+    assertFalse(new UidCacheSnapshot(tsdb, Arrays.asList(loaded)).load());
+    assertEquals(0, loaded.cacheSize());
+  }
+
+  @Test
+  public void loadSkipsOtherWidths() throws Exception {
+    final UniqueId metrics = newUniqueId("metrics", 3);
+    final UniqueId tagks = newUniqueId("tagk", 3);
+    populate(metrics, tagks);
+    new UidCacheSnapshot(tsdb, Arrays.asList(metrics, tagks)).write();
+
+    final UniqueId loaded_metrics = newUniqueId("metrics", 4);
+    final UniqueId loaded_tagks = newUniqueId("tagk", 3);
+    assertTrue(new UidCacheSnapshot(tsdb,
+        Arrays.asList(loaded_metrics, loaded_tagks)).load());
+    assertEquals(0, loaded_metrics.cacheSize());
+    assertEquals("host", loaded_tagks.getName(FOO));
+  }
+
+  @Test
+  public void validationDropsCachesAheadOfTheTable() throws Exception {
+    final UniqueId metrics = newUniqueId("metrics", 3);
+    final UniqueId tagks = newUniqueId("tagk", 3);
+    populate(metrics, tagks);
+    new UidCacheSnapshot(tsdb, Arrays.asList(metrics, tagks)).write();
+
+    // the metrics table was reset since the snapshot
+    maxIds(1, 1);
+    final UniqueId loaded_metrics = newUniqueId("metrics", 3);
+    final UniqueId loaded_tagks = newUniqueId("tagk", 3);
+    assertTrue(new UidCacheSnapshot(tsdb,
+        Arrays.asList(loaded_metrics, loaded_tagks)).load());
+    assertEquals(0, loaded_metrics.cacheSize());
+    assertEquals(2, loaded_tagks.cacheSize());
+  }
+
+  @Test
+  public void validationFailureKeepsCaches() throws Exception {
+    final UniqueId metrics = newUniqueId("metrics", 3);
+    final UniqueId tagks = newUniqueId("tagk", 3);
+    populate(metrics, tagks);
+    new UidCacheSnapshot(tsdb, Arrays.asList(metrics, tagks)).write();
+
+    when(client.get(any(GetRequest.class))).thenReturn(
+        Deferred.<ArrayList<KeyValue>>fromError(new RuntimeException("Boo!")));
+    final UniqueId loaded_metrics = newUniqueId("metrics", 3);
+    final UniqueId loaded_tagks = newUniqueId("tagk", 3);
+    assertTrue(new UidCacheSnapshot(tsdb,
+        Arrays.asList(loaded_metrics, loaded_tagks)).load());
+    assertLoaded(loaded_metrics, loaded_tagks);
+  }
+
+  @Test
+  public void shutdownWrites() throws Exception {
+    final UniqueId metrics = newUniqueId("metrics", 3);
+    metrics.loadCacheMapping("sys.cpu.user", FOO, true, true);
+    final UidCacheSnapshot snapshot =
+        new UidCacheSnapshot(tsdb, Arrays.asList(metrics));
+    snapshot.start();
+    snapshot.shutdown();
+    assertTrue(file.exists());
+  }
+
+  /** Caches mappings cached in one or both directions. */
+  private static void populate(final UniqueId metrics, final UniqueId tagks) {
+    metrics.loadCacheMapping("sys.cpu.user", FOO, true, true);
+    metrics.loadCacheMapping("sys.cpu.nice", BAR, true, false);
+    metrics.loadCacheMapping("sys.cpu.\u00e9t\u00e9", WEB, false, true);
+    tagks.loadCacheMapping("host", FOO, true, true);
+  }
+
+  private void assertLoaded(final UniqueId metrics, final UniqueId tagks)
+      throws Exception {
+    assertEquals(4, metrics.cacheSize());
+    assertEquals(2, tagks.cacheSize());
+    assertArrayEquals(FOO, metrics.getId("sys.cpu.user"));
+    assertEquals("sys.cpu.user", metrics.getName(FOO));
+    assertArrayEquals(BAR, metrics.getId("sys.cpu.nice"));
+    assertEquals("sys.cpu.\u00e9t\u00e9", metrics.getName(WEB));
+    assertArrayEquals(FOO, tagks.getId("host"));
+    assertEquals("host", tagks.getName(FOO));
+    // all served from the caches
+    assertEquals(6, metrics.cacheHits() + tagks.cacheHits());
+    assertEquals(0, metrics.cacheMisses() + tagks.cacheMisses());
+  }
+
+  private UniqueId newUniqueId(final String kind, final int width) {
+    return new UniqueId(tsdb, TABLE, kind, width, false);
+  }
+
+  /** Mocks the max ID row of the UID table. */
+  private void maxIds(final long metrics, final long tagks) {
+    final byte[] row = { 0 };
+    final byte[] family = { 'i', 'd' };
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    kvs.add(new KeyValue(row, family, "metrics".getBytes(),
+        Bytes.fromLong(metrics)));
+    kvs.add(new KeyValue(row, family, "tagk".getBytes(),
+        Bytes.fromLong(tagks)));
+    when(client.get(any(GetRequest.class))).thenReturn(Deferred.fromResult(kvs));
+  }
+}
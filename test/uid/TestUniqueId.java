@@ -12,6 +12,7 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.uid;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -32,6 +33,7 @@ import org.hbase.async.AtomicIncrementRequest;
 import org.hbase.async.Bytes;
 import org.hbase.async.DeleteRequest;
 import org.hbase.async.GetRequest;
+import org.hbase.async.GetResultOrException;
 import org.hbase.async.HBaseClient;
 import org.hbase.async.HBaseException;
 import org.hbase.async.KeyValue;
@@ -41,6 +43,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
 import org.mockito.InOrder;
 import org.mockito.invocation.InvocationOnMock;
@@ -48,6 +51,7 @@ import org.mockito.stubbing.Answer;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyMapOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.anyInt;
@@ -155,6 +159,156 @@ public final class TestUniqueId {
     verify(client).get(anyGet());
   }
 
+  @Test
+  public void getNameCoalescesConcurrentMisses() throws Exception {
+    uid = new UniqueId(client, table, METRIC, 3);
+    final byte[] id = { 0, 'a', 0x42 };
+    final byte[] byte_name = { 'f', 'o', 'o' };
+
+    final Deferred<ArrayList<KeyValue>> get = 
+        new Deferred<ArrayList<KeyValue>>();
+    when(client.get(anyGet())).thenReturn(get);
+
+    final Deferred<String> d1 = uid.getNameAsync(id);
+    final Deferred<String> d2 = uid.getNameAsync(id);
+    verify(client).get(anyGet());
+    assertEquals(1, uid.coalescedLookups());
+
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(id, ID, METRIC_ARRAY, byte_name));
+    get.callback(kvs);
+    assertEquals("foo", d1.join());
+    assertEquals("foo", d2.join());
+    assertEquals(2, uid.cacheMisses());
+    assertEquals("foo", uid.getName(id));
+    assertEquals(1, uid.cacheHits());
+    verify(client).get(anyGet());
+  }
+
+  @Test
+  public void getIdCoalescesConcurrentMisses() throws Exception {
+    uid = new UniqueId(client, table, METRIC, 3);
+    final byte[] id = { 0, 'a', 0x42 };
+    final byte[] byte_name = { 'f', 'o', 'o' };
+
+    final Deferred<ArrayList<KeyValue>> get = 
+        new Deferred<ArrayList<KeyValue>>();
+    when(client.get(anyGet())).thenReturn(get);
+
+    final Deferred<byte[]> d1 = uid.getIdAsync("foo");
+    final Deferred<byte[]> d2 = uid.getIdAsync("foo");
+    verify(client).get(anyGet());
+    assertEquals(1, uid.coalescedLookups());
+
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(byte_name, ID, METRIC_ARRAY, id));
+    get.callback(kvs);
+    final byte[] id1 = d1.join();
+    final byte[] id2 = d2.join();
+    assertArrayEquals(id, id1);
+    assertArrayEquals(id, id2);
+    assertNotSame(id1, id2);
+  }
+
+  @Test
+  public void getIdCoalescedMissesAllFail() throws Exception {
+    uid = new UniqueId(client, table, METRIC, 3);
+    final Deferred<ArrayList<KeyValue>> get = 
+        new Deferred<ArrayList<KeyValue>>();
+    when(client.get(anyGet())).thenReturn(get);
+
+    final Deferred<byte[]> d1 = uid.getIdAsync("foo");
+    final Deferred<byte[]> d2 = uid.getIdAsync("foo");
+    get.callback(fakeHBaseException());
+    try {
+      d1.join();
+      fail("Expected an HBaseException");
+    } catch (HBaseException e) { }
+    try {
+      d2.join();
+      fail("Expected an HBaseException");
+    } catch (HBaseException e) { }
+
+    // the next miss goes back to storage
+    uid.getIdAsync("foo");
+    verify(client, times(2)).get(anyGet());
+  }
+
+  @Test
+  public void getNamesAsync() throws Exception {
+    uid = new UniqueId(client, table, METRIC, 3);
+    final byte[] foo = { 0, 0, 1 };
+    final byte[] bar = { 0, 0, 2 };
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(foo, ID, METRIC_ARRAY, new byte[] { 'f', 'o', 'o' }));
+    final List<GetResultOrException> results = 
+        new ArrayList<GetResultOrException>(2);
+    results.add(new GetResultOrException(kvs));
+    kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(bar, ID, METRIC_ARRAY, new byte[] { 'b', 'a', 'r' }));
+    results.add(new GetResultOrException(kvs));
+    when(client.get(anyListOf(GetRequest.class)))
+      .thenReturn(Deferred.fromResult(results));
+
+    assertEquals(Arrays.asList("foo", "bar", "foo"), 
+        uid.getNamesAsync(Arrays.asList(foo, bar, foo)).join());
+    verify(client).get(anyListOf(GetRequest.class));
+    verify(client, never()).get(anyGet());
+    assertEquals(1, uid.coalescedLookups());
+
+    // all cached now
+    assertEquals(Arrays.asList("bar", "foo"), 
+        uid.getNamesAsync(Arrays.asList(bar, foo)).join());
+    verify(client).get(anyListOf(GetRequest.class));
+    assertEquals(2, uid.cacheHits());
+    assertEquals(3, uid.cacheMisses());
+  }
+
+  @Test (expected = NoSuchUniqueId.class)
+  public void getNamesAsyncNoSuchUniqueId() throws Exception {
+    uid = new UniqueId(client, table, METRIC, 3);
+    final byte[] foo = { 0, 0, 1 };
+    final byte[] bar = { 0, 0, 2 };
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(foo, ID, METRIC_ARRAY, new byte[] { 'f', 'o', 'o' }));
+    final List<GetResultOrException> results = 
+        new ArrayList<GetResultOrException>(2);
+    results.add(new GetResultOrException(kvs));
+    results.add(new GetResultOrException(new ArrayList<KeyValue>(0)));
+    when(client.get(anyListOf(GetRequest.class)))
+      .thenReturn(Deferred.fromResult(results));
+    uid.getNamesAsync(Arrays.asList(foo, bar)).join();
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void getNamesAsyncWrongWidth() throws Exception {
+    uid = new UniqueId(client, table, METRIC, 3);
+    uid.getNamesAsync(Arrays.asList(new byte[] { 0, 1 }));
+  }
+
+  @Test
+  public void getIdsAsync() throws Exception {
+    uid = new UniqueId(client, table, METRIC, 3);
+    final byte[] foo = { 0, 0, 1 };
+    final byte[] bar = { 0, 0, 2 };
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(new byte[] { 'f', 'o', 'o' }, ID, METRIC_ARRAY, foo));
+    final List<GetResultOrException> results = 
+        new ArrayList<GetResultOrException>(2);
+    results.add(new GetResultOrException(kvs));
+    results.add(new GetResultOrException(fakeHBaseException()));
+    when(client.get(anyListOf(GetRequest.class)))
+      .thenReturn(Deferred.fromResult(results));
+
+    try {
+      uid.getIdsAsync(Arrays.asList("foo", "bar")).join();
+      fail("Expected an HBaseException");
+    } catch (HBaseException e) { }
+    // foo still made it to the cache
+    assertArrayEquals(foo, uid.getIdsAsync(Arrays.asList("foo")).join().get(0));
+    verify(client).get(anyListOf(GetRequest.class));
+  }
+
   @Test
   public void getNameWithErrorDuringHBaseLookup() {
     uid = new UniqueId(client, table, METRIC, 3);
@@ -714,6 +868,100 @@ public final class TestUniqueId {
     order.verify(client).compareAndSet(putForRow(row), emptyArray());
   }
   
+  @Test
+  public void getOrCreateIdReservedBlocks() {
+    uid = new UniqueId(client, table, METRIC, 3);
+    uid.setAssignBlockSize(3);
+    
+    when(client.get(anyGet()))      // null  =>  ID doesn't exist.
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+    when(client.atomicIncrement(incrementForRow(MAXID)))
+      .thenReturn(Deferred.fromResult(3L))
+      .thenReturn(Deferred.fromResult(6L));
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenAnswer(answerTrue());
+
+    assertArrayEquals(new byte[] { 0, 0, 1 }, uid.getOrCreateId("foo"));
+    assertArrayEquals(new byte[] { 0, 0, 2 }, uid.getOrCreateId("bar"));
+    assertArrayEquals(new byte[] { 0, 0, 3 }, uid.getOrCreateId("baz"));
+    verify(client, times(1)).atomicIncrement(incrementForRow(MAXID));
+    assertEquals(1, uid.reservedBlocks());
+
+    // block exhausted
+    assertArrayEquals(new byte[] { 0, 0, 4 }, uid.getOrCreateId("qux"));
+    verify(client, times(2)).atomicIncrement(incrementForRow(MAXID));
+    assertEquals(2, uid.reservedBlocks());
+    // Reverse + forward mappings.
+    verify(client, times(8)).compareAndSet(anyPut(), emptyArray());
+    
+    final ArgumentCaptor<AtomicIncrementRequest> increment = 
+        ArgumentCaptor.forClass(AtomicIncrementRequest.class);
+    verify(client, times(2)).atomicIncrement(increment.capture());
+    assertEquals(3, increment.getValue().getAmount());
+  }
+  
+  @Test
+  public void getOrCreateIdReservedBlockInFlight() throws Exception {
+    uid = new UniqueId(client, table, METRIC, 3);
+    uid.setAssignBlockSize(2);
+    
+    final Deferred<Long> block = new Deferred<Long>();
+    when(client.get(anyGet()))      // null  =>  ID doesn't exist.
+      .thenAnswer(new Answer<Deferred<ArrayList<KeyValue>>>() {
+        @Override
+        public Deferred<ArrayList<KeyValue>> answer(
+            final InvocationOnMock invocation) throws Throwable {
+          return Deferred.<ArrayList<KeyValue>>fromResult(null);
+        }
+      });
+    when(client.atomicIncrement(incrementForRow(MAXID)))
+      .thenReturn(block)
+      .thenReturn(Deferred.fromResult(4L));
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenAnswer(answerTrue());
+
+    final Deferred<byte[]> foo = uid.getOrCreateIdAsync("foo");
+    final Deferred<byte[]> bar = uid.getOrCreateIdAsync("bar");
+    final Deferred<byte[]> baz = uid.getOrCreateIdAsync("baz");
+    // all waiting on the same increment
+    verify(client, times(1)).atomicIncrement(incrementForRow(MAXID));
+    
+    block.callback(2L);
+    assertArrayEquals(new byte[] { 0, 0, 1 }, foo.join());
+    assertArrayEquals(new byte[] { 0, 0, 2 }, bar.join());
+    // the next block is reserved for the name left over
+    assertArrayEquals(new byte[] { 0, 0, 3 }, baz.join());
+    verify(client, times(2)).atomicIncrement(incrementForRow(MAXID));
+    assertEquals(2, uid.reservedBlocks());
+  }
+  
+  @Test
+  public void getOrCreateIdReservedBlockICVFailure() {
+    uid = new UniqueId(client, table, METRIC, 3);
+    uid.setAssignBlockSize(10);
+    
+    when(client.get(anyGet()))      // null  =>  ID doesn't exist.
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+    HBaseException hbe = fakeHBaseException();
+    when(client.atomicIncrement(incrementForRow(MAXID)))
+      .thenReturn(Deferred.<Long>fromError(hbe))
+      .thenReturn(Deferred.fromResult(20L));
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenAnswer(answerTrue());
+
+    assertArrayEquals(new byte[] { 0, 0, 11 }, uid.getOrCreateId("foo"));
+    assertArrayEquals(new byte[] { 0, 0, 12 }, uid.getOrCreateId("bar"));
+    // First increment (failed) + retry.
+    verify(client, times(2)).atomicIncrement(incrementForRow(MAXID));
+    assertEquals(1, uid.reservedBlocks());
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void setAssignBlockSizeZero() {
+    uid = new UniqueId(client, table, METRIC, 3);
+    uid.setAssignBlockSize(0);
+  }
+  
   @Test
   public void getOrCreateIdRandom() {
     PowerMockito.mockStatic(RandomUniqueId.class);
@@ -902,6 +1150,68 @@ public final class TestUniqueId {
     verify(client, never()).get(anyGet());
   }
 
+  @Test
+  public void findIdsWithRegex() throws Exception {
+    uid = new UniqueId(client, table, METRIC, 3);
+
+    final Scanner fake_scanner = mock(Scanner.class);
+    when(client.newScanner(table))
+      .thenReturn(fake_scanner);
+
+    final ArrayList<ArrayList<KeyValue>> rows = new ArrayList<ArrayList<KeyValue>>(2);
+    final byte[] foo_bar_id = { 0, 0, 1 };
+    {
+      ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+      row.add(new KeyValue("foo.bar".getBytes(), ID, METRIC_ARRAY, foo_bar_id));
+      rows.add(row);
+      row = new ArrayList<KeyValue>(1);
+      row.add(new KeyValue("foo.baz".getBytes(), ID, METRIC_ARRAY,
+                           new byte[] { 0, 0, 2 }));
+      rows.add(row);
+    }
+    when(fake_scanner.nextRows())
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(rows))
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+
+    final Map<String, byte[]> ids = uid.findIdsAsync("foo", "ba[rz]", 10)
+        .join();
+    verify(fake_scanner).setKeyRegexp("ba[rz]", 
+        Charset.forName("ISO-8859-1"));
+    assertEquals(2, ids.size());
+    assertArrayEquals(foo_bar_id, ids.get("foo.bar"));
+    assertArrayEquals(new byte[] { 0, 0, 2 }, ids.get("foo.baz"));
+    assertEquals(4, uid.cacheSize());
+    verify(fake_scanner, never()).close();
+  }
+
+  @Test
+  public void findIdsMaxResults() throws Exception {
+    uid = new UniqueId(client, table, METRIC, 3);
+
+    final Scanner fake_scanner = mock(Scanner.class);
+    when(client.newScanner(table))
+      .thenReturn(fake_scanner);
+    when(fake_scanner.close()).thenReturn(Deferred.fromResult(null));
+
+    final ArrayList<ArrayList<KeyValue>> rows = new ArrayList<ArrayList<KeyValue>>(2);
+    ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+    row.add(new KeyValue("foo.bar".getBytes(), ID, METRIC_ARRAY, 
+        new byte[] { 0, 0, 1 }));
+    rows.add(row);
+    row = new ArrayList<KeyValue>(1);
+    row.add(new KeyValue("foo.baz".getBytes(), ID, METRIC_ARRAY,
+        new byte[] { 0, 0, 2 }));
+    rows.add(row);
+    when(fake_scanner.nextRows())
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(rows));
+
+    final Map<String, byte[]> ids = uid.findIdsAsync(null, null, 1).join();
+    assertEquals(1, ids.size());
+    assertTrue(ids.containsKey("foo.bar"));
+    verify(fake_scanner, never()).setKeyRegexp(anyString(), any(Charset.class));
+    verify(fake_scanner).close();
+  }
+
   @Test
   public void uidToString() {
     assertEquals("01", UniqueId.uidToString(new byte[] { 1 }));
@@ -1503,6 +1813,38 @@ public final class TestUniqueId {
     assertNotNull(uid.lruIdCache());
   }
   
+  @Test
+  public void usePrimitiveCache() throws Exception {
+    config.overrideConfig("tsd.uid.primitive_cache.enable", "true");
+    uid = new UniqueId(tsdb, table, METRIC, 3, false);
+    final byte[] id = { 0, 'a', 0x42 };
+    final byte[] byte_name = { 'f', 'o', 'o' };
+
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(id, ID, METRIC_ARRAY, byte_name));
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.fromResult(kvs));
+
+    assertEquals("foo", uid.getName(id));
+    // Should be a cache hit ...
+    assertEquals("foo", uid.getName(id));
+    assertArrayEquals(id, uid.getId("foo"));
+
+    assertEquals(2, uid.cacheHits());
+    assertEquals(1, uid.cacheMisses());
+    assertEquals(2, uid.cacheSize());
+    assertTrue(uid.cacheBytes() > 0);
+
+    // ... so verify there was only one HBase Get.
+    verify(client).get(anyGet());
+    assertNotNull(uid.primitiveCache());
+    assertNull(uid.nameCache());
+    assertNull(uid.idCache());
+
+    uid.dropCaches();
+    assertEquals(0, uid.cacheSize());
+  }
+  
   @Test
   public void useLruLimit() throws Exception {
     config.overrideConfig("tsd.uid.lru.name.size", "2");
@@ -17,6 +17,9 @@ OPENTSDB_THIRD_PARTY_BASE_URL := http://opentsdb.googlecode.com/files
 FETCH_DEPENDENCY := ./build-aux/fetchdep.sh "$$@"
 all-am: build-aux/fetchdep.sh
 THIRD_PARTY =
+# Only fetched by "make bench", kept out of THIRD_PARTY so regular builds
+# and dist tarballs don't pull them in.
+BENCHMARK_THIRD_PARTY =
 
 include third_party/guava/include.mk
 include third_party/gwt/include.mk
@@ -26,6 +29,7 @@ include third_party/javacc/include.mk
 include third_party/javassist/include.mk
 include third_party/jexl/include.mk
 include third_party/jgrapht/include.mk
+include third_party/jmh/include.mk
 include third_party/junit/include.mk
 include third_party/kryo/include.mk
 include third_party/logback/include.mk
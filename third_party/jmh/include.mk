@@ -0,0 +1,39 @@
+# Copyright (C) 2018  The OpenTSDB Authors.
+#
+# This library is free software: you can redistribute it and/or modify it
+# under the terms of the GNU Lesser General Public License as published
+# by the Free Software Foundation, either version 2.1 of the License, or
+# (at your option) any later version.
+#
+# This library is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU Lesser General Public License for more details.
+#
+# You should have received a copy of the GNU Lesser General Public License
+# along with this library.  If not, see <http://www.gnu.org/licenses/>.
+
+JMH_VERSION := 1.21
+
+JMH_CORE_VERSION := $(JMH_VERSION)
+JMH_CORE := third_party/jmh/jmh-core-$(JMH_CORE_VERSION).jar
+JMH_CORE_BASE_URL := https://repo1.maven.org/maven2/org/openjdk/jmh/jmh-core/$(JMH_CORE_VERSION)
+
+$(JMH_CORE): $(JMH_CORE).md5
+	set dummy "$(JMH_CORE_BASE_URL)" "$(JMH_CORE)"; shift; $(FETCH_DEPENDENCY)
+
+JMH_GENERATOR_VERSION := $(JMH_VERSION)
+JMH_GENERATOR := third_party/jmh/jmh-generator-annprocess-$(JMH_GENERATOR_VERSION).jar
+JMH_GENERATOR_BASE_URL := https://repo1.maven.org/maven2/org/openjdk/jmh/jmh-generator-annprocess/$(JMH_GENERATOR_VERSION)
+
+$(JMH_GENERATOR): $(JMH_GENERATOR).md5
+	set dummy "$(JMH_GENERATOR_BASE_URL)" "$(JMH_GENERATOR)"; shift; $(FETCH_DEPENDENCY)
+
+JOPT_SIMPLE_VERSION := 4.6
+JOPT_SIMPLE := third_party/jmh/jopt-simple-$(JOPT_SIMPLE_VERSION).jar
+JOPT_SIMPLE_BASE_URL := https://repo1.maven.org/maven2/net/sf/jopt-simple/jopt-simple/$(JOPT_SIMPLE_VERSION)
+
+$(JOPT_SIMPLE): $(JOPT_SIMPLE).md5
+	set dummy "$(JOPT_SIMPLE_BASE_URL)" "$(JOPT_SIMPLE)"; shift; $(FETCH_DEPENDENCY)
+
+BENCHMARK_THIRD_PARTY += $(JMH_CORE) $(JMH_GENERATOR) $(JOPT_SIMPLE)